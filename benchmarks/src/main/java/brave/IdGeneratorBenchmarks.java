@@ -0,0 +1,69 @@
+package brave;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares ID generation on one thread and under contention. The shared {@link Random} is what
+ * the platform generator falls back to on JRE 6.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class IdGeneratorBenchmarks {
+  final Random sharedRandom = new Random(System.nanoTime());
+
+  @Benchmark @Threads(1) public long platform() {
+    return IdGenerator.PLATFORM.nextId();
+  }
+
+  @Benchmark @Threads(8) public long platform_8threads() {
+    return IdGenerator.PLATFORM.nextId();
+  }
+
+  @Benchmark @Threads(1) public long threadLocal() {
+    return IdGenerator.THREAD_LOCAL.nextId();
+  }
+
+  @Benchmark @Threads(8) public long threadLocal_8threads() {
+    return IdGenerator.THREAD_LOCAL.nextId();
+  }
+
+  @Benchmark @Threads(1) public long sharedRandom() {
+    return sharedRandom.nextLong();
+  }
+
+  @Benchmark @Threads(8) public long sharedRandom_8threads() {
+    return sharedRandom.nextLong();
+  }
+
+  @Benchmark @Threads(8) public long threadLocal_traceIdHigh_8threads() {
+    return IdGenerator.THREAD_LOCAL.nextTraceIdHigh();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + IdGeneratorBenchmarks.class.getSimpleName() + ".*")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,102 @@
+package brave;
+
+import brave.propagation.TraceContext;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Measures the span lifecycle through the recorder, comparing the default recorder with span
+ * pooling and age-based orphan detection. Run with {@code -prof gc} to compare allocation per span:
+ * each benchmark ending in "_pooled" is paired with one that is the same except unpooled.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class TracerBenchmarks {
+  final Tracing tracing = Tracing.newBuilder().spanReporter(Reporter.NOOP).build();
+  final Tracing pooledTracing = Tracing.newBuilder()
+      .spanReporter(Reporter.NOOP)
+      .spanPoolSize(64)
+      .build();
+  final Tracing deadlineTracing = Tracing.newBuilder()
+      .spanReporter(Reporter.NOOP)
+      .maxSpanAge(1, TimeUnit.MINUTES)
+      .build();
+  final Tracer tracer = tracing.tracer();
+  final TraceContext parent = tracer.newTrace().context();
+
+  @TearDown public void close() {
+    tracing.close();
+    pooledTracing.close();
+    deadlineTracing.close();
+  }
+
+  @Benchmark public Span newTrace() {
+    return tracer.newTrace();
+  }
+
+  @Benchmark public Span newChild() {
+    return tracer.newChild(parent);
+  }
+
+  @Benchmark public Span joinSpan() {
+    return tracer.joinSpan(parent);
+  }
+
+  @Benchmark public void start_finish() {
+    tracer.newTrace().start().finish();
+  }
+
+  @Benchmark public void start_finish_pooled() {
+    pooledTracing.tracer().newTrace().start().finish();
+  }
+
+  @Benchmark public void tag_annotate_finish() {
+    lifecycle(tracer);
+  }
+
+  @Benchmark public void tag_annotate_finish_pooled() {
+    lifecycle(pooledTracing.tracer());
+  }
+
+  @Benchmark public void tag_annotate_finish_maxSpanAge() {
+    lifecycle(deadlineTracing.tracer());
+  }
+
+  static void lifecycle(Tracer tracer) {
+    Span span = tracer.newTrace().name("get /").kind(Span.Kind.SERVER).start();
+    span.tag("http.path", "/api");
+    span.tag("http.status_code", "200");
+    span.annotate("wr");
+    span.finish();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + TracerBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
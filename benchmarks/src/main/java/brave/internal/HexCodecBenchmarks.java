@@ -0,0 +1,91 @@
+package brave.internal;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class HexCodecBenchmarks {
+  static final long ID = 1234567890123L;
+  static final String ID_HEX = HexCodec.toLowerHex(ID);
+  static final String TRACE_ID_128_HEX = HexCodec.toLowerHex(ID, ID);
+
+  /** Varied IDs, so that the branchy loop can't learn a single input */
+  final String[] ids = new String[1024];
+  int next;
+
+  {
+    Random random = new Random(1L);
+    for (int i = 0; i < ids.length; i++) ids[i] = HexCodec.toLowerHex(random.nextLong());
+  }
+
+  @Benchmark public String toLowerHex() {
+    return HexCodec.toLowerHex(ID);
+  }
+
+  @Benchmark public String toLowerHex_128() {
+    return HexCodec.toLowerHex(ID, ID);
+  }
+
+  @Benchmark public long lowerHexToUnsignedLong() {
+    return HexCodec.lowerHexToUnsignedLong(ID_HEX);
+  }
+
+  @Benchmark public long lowerHexToUnsignedLong_128_low() {
+    return HexCodec.lowerHexToUnsignedLong(TRACE_ID_128_HEX, 16);
+  }
+
+  @Benchmark public long lenientLowerHexToUnsignedLong() {
+    return HexCodec.lenientLowerHexToUnsignedLong(ids[next++ & 1023], 0, 16);
+  }
+
+  @Benchmark public long lenientLowerHexToUnsignedLong_loop() {
+    return loopLowerHexToUnsignedLong(ids[next++ & 1023], 0, 16);
+  }
+
+  /** The character-at-a-time parser HexCodec used before, kept as a baseline */
+  static long loopLowerHexToUnsignedLong(CharSequence lowerHex, int index, int endIndex) {
+    long result = 0;
+    while (index < endIndex) {
+      char c = lowerHex.charAt(index++);
+      result <<= 4;
+      if (c >= '0' && c <= '9') {
+        result |= c - '0';
+      } else if (c >= 'a' && c <= 'f') {
+        result |= c - 'a' + 10;
+      } else {
+        return 0;
+      }
+    }
+    return result;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + HexCodecBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
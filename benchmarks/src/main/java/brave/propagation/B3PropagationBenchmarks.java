@@ -0,0 +1,90 @@
+package brave.propagation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class B3PropagationBenchmarks {
+  static final Propagation<String> b3 = Propagation.B3_STRING;
+  static final TraceContext.Injector<Map<String, String>> b3Injector =
+      b3.injector(new Propagation.Setter<Map<String, String>, String>() {
+        @Override public void put(Map<String, String> carrier, String key, String value) {
+          carrier.put(key, value);
+        }
+      });
+  static final TraceContext.Extractor<Map<String, String>> b3Extractor =
+      b3.extractor(new Propagation.Getter<Map<String, String>, String>() {
+        @Override public String get(Map<String, String> carrier, String key) {
+          return carrier.get(key);
+        }
+      });
+
+  static final TraceContext context = TraceContext.newBuilder()
+      .traceIdHigh(333L)
+      .traceId(444L)
+      .spanId(3L)
+      .sampled(true)
+      .build();
+
+  static final Map<String, String> incoming = new LinkedHashMap<String, String>();
+  static final Map<String, String> incomingPadded = new LinkedHashMap<String, String>();
+  static final Map<String, String> nothingIncoming = new LinkedHashMap<String, String>();
+
+  static {
+    b3Injector.inject(context, incoming);
+    incomingPadded.put("accept", "*/*");
+    incomingPadded.put("user-agent", "Mozilla/5.0");
+    incomingPadded.put("host", "localhost:8080");
+    incomingPadded.putAll(incoming);
+  }
+
+  final Map<String, String> carrier = new LinkedHashMap<String, String>();
+
+  @Benchmark public void inject() {
+    carrier.clear();
+    b3Injector.inject(context, carrier);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract() {
+    return b3Extractor.extract(incoming);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_padded() {
+    return b3Extractor.extract(incomingPadded);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_nothing() {
+    return b3Extractor.extract(nothingIncoming);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + B3PropagationBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,73 @@
+package brave.propagation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Measures baggage access and child creation when many fields are propagated. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class ExtraFieldPropagationBenchmarks {
+  static final ExtraFieldPropagation.Factory factory;
+  static final ExtraFieldPropagation.Field lastField;
+  static final String lastFieldName;
+  static final TraceContext context;
+
+  static {
+    List<String> fieldNames = new ArrayList<String>();
+    for (int i = 0; i < 24; i++) fieldNames.add("field-" + i);
+    factory = ExtraFieldPropagation.newFactoryBuilder(B3Propagation.FACTORY)
+        .addField("x-vcap-request-id")
+        .addPrefixedFields("baggage-", fieldNames)
+        .build();
+    lastFieldName = fieldNames.get(fieldNames.size() - 1);
+    lastField = factory.field(lastFieldName);
+    context = factory.decorate(TraceContext.newBuilder().traceId(1L).spanId(2L).build());
+    ExtraFieldPropagation.set(context, lastField, "value");
+  }
+
+  @Benchmark public String get_name() {
+    return ExtraFieldPropagation.get(context, lastFieldName);
+  }
+
+  @Benchmark public String get_field() {
+    return ExtraFieldPropagation.get(context, lastField);
+  }
+
+  @Benchmark public void set_field() {
+    ExtraFieldPropagation.set(context, lastField, "value");
+  }
+
+  @Benchmark public TraceContext decorate_child() {
+    return factory.decorate(context.toBuilder().parentId(2L).spanId(3L).build());
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + ExtraFieldPropagationBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
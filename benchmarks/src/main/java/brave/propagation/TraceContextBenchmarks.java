@@ -0,0 +1,70 @@
+package brave.propagation;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class TraceContextBenchmarks {
+  static final TraceContext context = TraceContext.newBuilder()
+      .traceIdHigh(333L)
+      .traceId(444L)
+      .parentId(1L)
+      .spanId(3L)
+      .sampled(true)
+      .build();
+
+  @Benchmark public TraceContext newBuilder_build() {
+    return TraceContext.newBuilder()
+        .traceIdHigh(333L)
+        .traceId(444L)
+        .parentId(1L)
+        .spanId(3L)
+        .sampled(true)
+        .build();
+  }
+
+  @Benchmark public TraceContext toBuilder_spanId() {
+    return context.toBuilder().parentId(context.spanId()).spanId(5L).build();
+  }
+
+  @Benchmark public String traceIdString() {
+    return context.traceIdString();
+  }
+
+  @Benchmark public String toString_() {
+    return context.toString();
+  }
+
+  @Benchmark public int hashCode_() {
+    return context.hashCode();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + TraceContextBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Spans shaped like those from http instrumentation, shared across benchmarks. */
+public final class TestObjects {
+  public static final Endpoint FRONTEND =
+      Endpoint.newBuilder().serviceName("frontend").ip("172.17.0.13").port(8080).build();
+  public static final Endpoint BACKEND =
+      Endpoint.newBuilder().serviceName("backend").ip("192.168.99.101").port(9000).build();
+
+  public static final Span CLIENT_SPAN = Span.newBuilder()
+      .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+      .parentId("6b221d5bc9e6496c")
+      .id("5b4185666d50f68b")
+      .name("get /backend")
+      .kind(Span.Kind.CLIENT)
+      .localEndpoint(FRONTEND)
+      .remoteEndpoint(BACKEND)
+      .timestamp(1472470996199000L)
+      .duration(207000L)
+      .addAnnotation(1472470996238000L, "ws")
+      .addAnnotation(1472470996403000L, "wr")
+      .putTag("http.path", "/backend")
+      .putTag("http.status_code", "200")
+      .putTag("clnt/finagle.version", "6.45.0")
+      .build();
+
+  /** A typical message: 100 spans differing only in span ID */
+  public static final List<Span> TRACE;
+
+  static {
+    List<Span> trace = new ArrayList<Span>(100);
+    for (int i = 1; i <= 100; i++) {
+      trace.add(CLIENT_SPAN.toBuilder().id(Long.toHexString(i)).build());
+    }
+    TRACE = Collections.unmodifiableList(trace);
+  }
+
+  TestObjects() {
+  }
+}
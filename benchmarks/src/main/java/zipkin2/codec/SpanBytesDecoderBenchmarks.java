@@ -0,0 +1,103 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.codec;
+
+import java.io.ByteArrayInputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+import zipkin2.internal.JsonCodec;
+import zipkin2.internal.V2SpanReader;
+
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.TRACE;
+
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class SpanBytesDecoderBenchmarks {
+  static final byte[] span_jsonV2 = SpanBytesEncoder.JSON_V2.encode(CLIENT_SPAN);
+  static final byte[] span_proto3 = SpanBytesEncoder.PROTO3.encode(CLIENT_SPAN);
+  static final byte[] trace_jsonV2 = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+  static final byte[] trace_proto3 = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+
+  @Benchmark public Span decodeOne_jsonV2() {
+    return SpanBytesDecoder.JSON_V2.decodeOne(span_jsonV2);
+  }
+
+  @Benchmark public Span decodeOne_proto3() {
+    return SpanBytesDecoder.PROTO3.decodeOne(span_proto3);
+  }
+
+  @Benchmark public List<Span> decodeList_jsonV2() {
+    return SpanBytesDecoder.JSON_V2.decodeList(trace_jsonV2);
+  }
+
+  /** The Gson-based reader, which JSON_V2 used before decoding directly from bytes */
+  @Benchmark public Span decodeOne_jsonV2_gson() {
+    return JsonCodec.readOne(new V2SpanReader(), span_jsonV2);
+  }
+
+  @Benchmark public List<Span> decodeList_jsonV2_gson() {
+    return JsonCodec.readList(new V2SpanReader(), trace_jsonV2);
+  }
+
+  @Benchmark public List<Span> decodeList_proto3() {
+    return SpanBytesDecoder.PROTO3.decodeList(trace_proto3);
+  }
+
+  /** Streams the same list, returning the last span so that the others are garbage right away */
+  @Benchmark public Span decodeStream_jsonV2() {
+    return last(SpanBytesDecoder.JSON_V2.decodeList(new ByteArrayInputStream(trace_jsonV2)));
+  }
+
+  @Benchmark public Span decodeStream_proto3() {
+    return last(SpanBytesDecoder.PROTO3.decodeList(new ByteArrayInputStream(trace_proto3)));
+  }
+
+  static Span last(Iterator<Span> spans) {
+    Span result = null;
+    while (spans.hasNext()) result = spans.next();
+    return result;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SpanBytesDecoderBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
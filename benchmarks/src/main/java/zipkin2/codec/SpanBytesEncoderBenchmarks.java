@@ -0,0 +1,104 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.codec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.TRACE;
+
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class SpanBytesEncoderBenchmarks {
+  final byte[] buffer = new byte[SpanBytesEncoder.JSON_V1.encodeList(TRACE).length];
+  final ByteBuffer directBuffer = ByteBuffer.allocateDirect(buffer.length);
+
+  @Benchmark public int sizeInBytes_jsonV2() {
+    return SpanBytesEncoder.JSON_V2.sizeInBytes(CLIENT_SPAN);
+  }
+
+  @Benchmark public byte[] encode_jsonV1() {
+    return SpanBytesEncoder.JSON_V1.encode(CLIENT_SPAN);
+  }
+
+  @Benchmark public byte[] encode_jsonV2() {
+    return SpanBytesEncoder.JSON_V2.encode(CLIENT_SPAN);
+  }
+
+  @Benchmark public byte[] encode_proto3() {
+    return SpanBytesEncoder.PROTO3.encode(CLIENT_SPAN);
+  }
+
+  @Benchmark public byte[] encodeList_jsonV1() {
+    return SpanBytesEncoder.JSON_V1.encodeList(TRACE);
+  }
+
+  @Benchmark public byte[] encodeList_jsonV2() {
+    return SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+  }
+
+  @Benchmark public byte[] encodeList_proto3() {
+    return SpanBytesEncoder.PROTO3.encodeList(TRACE);
+  }
+
+  /** Encodes into a reused buffer, as done by AsyncReporter when the sender supports messages */
+  @Benchmark public int encodeList_jsonV2_intoBuffer() {
+    return SpanBytesEncoder.JSON_V2.encodeList(TRACE, buffer, 0);
+  }
+
+  @Benchmark public int encodeList_proto3_intoBuffer() {
+    return SpanBytesEncoder.PROTO3.encodeList(TRACE, buffer, 0);
+  }
+
+  @Benchmark public int encodeList_jsonV2_intoDirectBuffer() {
+    directBuffer.clear();
+    return SpanBytesEncoder.JSON_V2.encodeList(TRACE, directBuffer);
+  }
+
+  @Benchmark public int encodeList_proto3_intoDirectBuffer() {
+    directBuffer.clear();
+    return SpanBytesEncoder.PROTO3.encodeList(TRACE, directBuffer);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SpanBytesEncoderBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
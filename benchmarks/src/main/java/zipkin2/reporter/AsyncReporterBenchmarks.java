@@ -0,0 +1,143 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.codec.Encoding;
+
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+/**
+ * Measures the application-side cost of reporting: from recording a span to it being queued for
+ * a sender that discards messages. Run with {@code -prof gc} to see allocation per span. Spans
+ * dropped and messages sent are reported as secondary results.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+public class AsyncReporterBenchmarks {
+  @Param({"JSON", "PROTO3"})
+  public Encoding encoding;
+
+  /** When true, spans are encoded directly into a pooled message buffer. */
+  @Param({"false", "true"})
+  public boolean supportsMessages;
+
+  @Param({"false", "true"})
+  public boolean lockFreeQueue;
+
+  /** When true, spans are queued as encoded bytes instead of objects. */
+  @Param({"false", "true"})
+  public boolean encodeOnReport;
+
+  /** Only applies when the sender supports messages. */
+  @Param({"NONE", "GZIP"})
+  public Compression compression;
+
+  AsyncReporter<zipkin2.Span> reporter;
+  InMemoryReporterMetrics metrics;
+  Tracing tracing;
+  Tracer tracer;
+  long spansDroppedClaimed, messagesClaimed; // guarded by this
+
+  @Setup public void setup() {
+    metrics = new InMemoryReporterMetrics();
+    spansDroppedClaimed = messagesClaimed = 0L;
+    reporter = AsyncReporter.builder(new NoopSender(encoding, supportsMessages, compression))
+        .metrics(metrics)
+        .lockFreeQueue(lockFreeQueue)
+        .encodeOnReport(encodeOnReport)
+        .messageTimeout(1, TimeUnit.MILLISECONDS)
+        .build();
+    tracing = Tracing.newBuilder().spanReporter(reporter).build();
+    tracer = tracing.tracer();
+  }
+
+  @Benchmark public void report(Counters counters) {
+    reporter.report(CLIENT_SPAN);
+  }
+
+  @Benchmark public void span_to_sender(Counters counters) {
+    Span span = tracer.newTrace().name("get /").kind(Span.Kind.SERVER).start();
+    span.tag("http.path", "/api");
+    span.tag("http.status_code", "200");
+    span.finish();
+  }
+
+  @TearDown public void close() {
+    tracing.close();
+    reporter.close();
+  }
+
+  /**
+   * Reporter metrics for an iteration, as rates alongside the score. The metrics aren't per thread,
+   * so each thread claims the change since the last claim, and the sum is the iteration total.
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long spansDropped, messages;
+
+    @Setup(Level.Iteration) public void clear() {
+      spansDropped = messages = 0L;
+    }
+
+    @TearDown(Level.Iteration) public void claim(AsyncReporterBenchmarks benchmark) {
+      synchronized (benchmark) {
+        long spans = benchmark.metrics.spansDropped();
+        long messages = benchmark.metrics.messages();
+        this.spansDropped = spans - benchmark.spansDroppedClaimed;
+        this.messages = messages - benchmark.messagesClaimed;
+        benchmark.spansDroppedClaimed = spans;
+        benchmark.messagesClaimed = messages;
+      }
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + AsyncReporterBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
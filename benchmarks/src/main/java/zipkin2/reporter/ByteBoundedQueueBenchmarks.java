@@ -0,0 +1,141 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures offers to the pending span queue while a consumer drains it, as the flush thread does,
+ * under increasing contention from producers.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class ByteBoundedQueueBenchmarks {
+  static final byte[] ONE = {1};
+  static final SpanWithSizeConsumer<byte[]> NOOP_CONSUMER = new SpanWithSizeConsumer<byte[]>() {
+    @Override public boolean offer(byte[] next, int nextSizeInBytes) {
+      return true;
+    }
+  };
+
+  @AuxCounters
+  @State(Scope.Thread)
+  public static class OfferCounters {
+    public int offersFailed;
+    public int offersMade;
+
+    @Setup(Level.Iteration)
+    public void clean() {
+      offersFailed = offersMade = 0;
+    }
+  }
+
+  @AuxCounters
+  @State(Scope.Thread)
+  public static class DrainCounters {
+    public int drained;
+
+    @Setup(Level.Iteration)
+    public void clean() {
+      drained = 0;
+    }
+  }
+
+  /** False benchmarks {@link ByteBoundedQueue}, true {@link LockFreeByteBoundedQueue}. */
+  @Param({"false", "true"})
+  public boolean lockFree;
+
+  SpanQueue<byte[]> q;
+
+  @Setup
+  public void setup() {
+    q = lockFree
+        ? new LockFreeByteBoundedQueue<byte[]>(10000, 10000)
+        : new ByteBoundedQueue<byte[]>(10000, 10000);
+  }
+
+  @Benchmark @Group("no_contention") @GroupThreads(1)
+  public void no_contention_offer(OfferCounters counters) {
+    offer(counters);
+  }
+
+  @Benchmark @Group("no_contention") @GroupThreads(1)
+  public void no_contention_drain(DrainCounters counters) {
+    drain(counters);
+  }
+
+  @Benchmark @Group("mild_contention") @GroupThreads(2)
+  public void mild_contention_offer(OfferCounters counters) {
+    offer(counters);
+  }
+
+  @Benchmark @Group("mild_contention") @GroupThreads(1)
+  public void mild_contention_drain(DrainCounters counters) {
+    drain(counters);
+  }
+
+  @Benchmark @Group("high_contention") @GroupThreads(8)
+  public void high_contention_offer(OfferCounters counters) {
+    offer(counters);
+  }
+
+  @Benchmark @Group("high_contention") @GroupThreads(1)
+  public void high_contention_drain(DrainCounters counters) {
+    drain(counters);
+  }
+
+  void offer(OfferCounters counters) {
+    if (q.offer(ONE, 1)) {
+      counters.offersMade++;
+    } else {
+      counters.offersFailed++;
+    }
+  }
+
+  void drain(DrainCounters counters) {
+    counters.drained += q.drainTo(NOOP_CONSUMER, 1000);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + ByteBoundedQueueBenchmarks.class.getSimpleName() + ".*")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
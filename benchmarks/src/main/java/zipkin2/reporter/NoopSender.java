@@ -0,0 +1,71 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.List;
+import zipkin2.Call;
+import zipkin2.codec.Encoding;
+
+/** Discards messages, so that benchmarks measure the reporting pipeline as opposed to I/O. */
+public final class NoopSender extends Sender {
+  final Encoding encoding;
+  final boolean supportsMessages;
+  final Compression compression;
+
+  public NoopSender(Encoding encoding, boolean supportsMessages) {
+    this(encoding, supportsMessages, Compression.NONE);
+  }
+
+  public NoopSender(Encoding encoding, boolean supportsMessages, Compression compression) {
+    this.encoding = encoding;
+    this.supportsMessages = supportsMessages;
+    this.compression = compression;
+  }
+
+  @Override public Encoding encoding() {
+    return encoding;
+  }
+
+  @Override public int messageMaxBytes() {
+    return 5 * 1024 * 1024;
+  }
+
+  @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+    return encoding.listSizeInBytes(encodedSpans);
+  }
+
+  @Override public int messageSizeInBytes(int encodedSizeInBytes) {
+    return encoding.listSizeInBytes(encodedSizeInBytes);
+  }
+
+  @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+    return Call.create(null);
+  }
+
+  @Override public boolean supportsMessages() {
+    return supportsMessages;
+  }
+
+  @Override public Compression compression() {
+    return compression;
+  }
+
+  @Override public Call<Void> sendMessage(byte[] message, int offset, int length) {
+    return Call.create(null);
+  }
+
+  @Override public String toString() {
+    return "NoopSender(" + encoding + ")";
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.local.LatencyDistribution;
+import zipkin2.reporter.local.LocalSender;
+import zipkin2.reporter.local.LoopbackCollector;
+import zipkin2.reporter.local.LoopbackHttpSender;
+import zipkin2.reporter.local.SimulatedCollector;
+
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+/**
+ * Measures reporting against a collector that is slow or failing, in-process or over loopback
+ * http. Unlike {@link AsyncReporterBenchmarks}, the sender applies backpressure, so compare the
+ * spans and messages dropped, reported as secondary results, as well as the score.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 5, time = 1)
+@Fork(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+public class SimulatedCollectorBenchmarks {
+  /** "local" is in-process, while "http" posts to a loopback collector. */
+  @Param({"local", "http"})
+  public String transport;
+
+  /** Mean collector latency in milliseconds, exponentially distributed. */
+  @Param({"0", "5"})
+  public int latencyMillis;
+
+  @Param({"0", "0.1"})
+  public float errorRate;
+
+  @Param({"1", "4"})
+  public int maxInFlightMessages;
+
+  SimulatedCollector collector;
+  LoopbackCollector loopback;
+  AsyncReporter<zipkin2.Span> reporter;
+  InMemoryReporterMetrics metrics;
+  long spansDroppedClaimed, messagesDroppedClaimed; // guarded by this
+
+  @Setup public void setup() throws IOException {
+    collector = SimulatedCollector.newBuilder()
+        .latency(latencyMillis == 0
+            ? LatencyDistribution.NONE
+            : LatencyDistribution.exponential(latencyMillis, TimeUnit.MILLISECONDS))
+        .errorRate(errorRate)
+        .decodeSpans(false)
+        .seed(1L)
+        .build();
+    Sender sender;
+    if (transport.equals("http")) {
+      loopback = LoopbackCollector.start(collector);
+      sender = LoopbackHttpSender.create(loopback.url(), Encoding.JSON, Compression.NONE);
+    } else {
+      sender = LocalSender.newBuilder(collector).build();
+    }
+    metrics = new InMemoryReporterMetrics();
+    spansDroppedClaimed = messagesDroppedClaimed = 0L;
+    reporter = AsyncReporter.builder(sender)
+        .metrics(metrics)
+        .maxInFlightMessages(maxInFlightMessages)
+        .messageTimeout(10, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  @Benchmark public void report(Dropped dropped) {
+    reporter.report(CLIENT_SPAN);
+  }
+
+  @TearDown public void close() {
+    reporter.close();
+    if (loopback != null) loopback.close();
+  }
+
+  /**
+   * What the reporter dropped during an iteration, as rates alongside the score. Drops aren't per
+   * thread, so each thread claims those since the last claim, and the sum is the iteration total.
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Dropped {
+    public long spansDropped, messagesDropped;
+
+    @Setup(Level.Iteration) public void clear() {
+      spansDropped = messagesDropped = 0L;
+    }
+
+    @TearDown(Level.Iteration) public void claim(SimulatedCollectorBenchmarks benchmark) {
+      synchronized (benchmark) {
+        long spans = benchmark.metrics.spansDropped();
+        long messages = benchmark.metrics.messagesDropped();
+        spansDropped = spans - benchmark.spansDroppedClaimed;
+        messagesDropped = messages - benchmark.messagesDroppedClaimed;
+        benchmark.spansDroppedClaimed = spans;
+        benchmark.messagesDroppedClaimed = messages;
+      }
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SimulatedCollectorBenchmarks.class.getSimpleName() + ".*")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
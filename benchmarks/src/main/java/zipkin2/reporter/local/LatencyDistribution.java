@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.local;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Simulates how long a collector takes to accept a message. */
+public abstract class LatencyDistribution {
+  public static final LatencyDistribution NONE = constant(0, TimeUnit.NANOSECONDS);
+
+  /** Every message takes the same time. */
+  public static LatencyDistribution constant(long latency, TimeUnit unit) {
+    final long nanos = unit.toNanos(latency);
+    return new LatencyDistribution("constant(" + nanos + "ns)") {
+      @Override public long nextNanos(Random random) {
+        return nanos;
+      }
+    };
+  }
+
+  /** Latency is evenly spread between the minimum and maximum, inclusive. */
+  public static LatencyDistribution uniform(long min, long max, TimeUnit unit) {
+    if (min > max) throw new IllegalArgumentException("min > max: " + min + " > " + max);
+    final long minNanos = unit.toNanos(min), maxNanos = unit.toNanos(max);
+    final long rangeNanos = maxNanos - minNanos;
+    return new LatencyDistribution("uniform(" + minNanos + "ns, " + maxNanos + "ns)") {
+      @Override public long nextNanos(Random random) {
+        return minNanos + (long) (random.nextDouble() * (rangeNanos + 1));
+      }
+    };
+  }
+
+  /** Latency of independent arrivals, where most messages are fast but some wait long. */
+  public static LatencyDistribution exponential(long mean, TimeUnit unit) {
+    final long meanNanos = unit.toNanos(mean);
+    return new LatencyDistribution("exponential(" + meanNanos + "ns)") {
+      @Override public long nextNanos(Random random) {
+        return (long) (-Math.log(1 - random.nextDouble()) * meanNanos);
+      }
+    };
+  }
+
+  /**
+   * Latency with a long tail, as typically seen from real services. Sigma controls the tail: with
+   * 0.5, the 99th percentile is about three times the median.
+   */
+  public static LatencyDistribution logNormal(long median, double sigma, TimeUnit unit) {
+    final long medianNanos = unit.toNanos(median);
+    final double s = sigma;
+    return new LatencyDistribution("logNormal(" + medianNanos + "ns, " + sigma + ")") {
+      @Override public long nextNanos(Random random) {
+        return (long) (medianNanos * Math.exp(s * random.nextGaussian()));
+      }
+    };
+  }
+
+  final String description;
+
+  LatencyDistribution(String description) {
+    this.description = description;
+  }
+
+  /** Returns the next latency in nanoseconds. */
+  public abstract long nextNanos(Random random);
+
+  @Override public String toString() {
+    return description;
+  }
+}
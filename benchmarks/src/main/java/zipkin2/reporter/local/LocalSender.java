@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.local;
+
+import java.io.IOException;
+import java.util.List;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Compression;
+import zipkin2.reporter.Sender;
+
+/**
+ * Sends to a {@link SimulatedCollector} in-process, so that the reporter can be load tested
+ * without a network. Messages the collector doesn't accept fail with an {@link IOException}.
+ */
+public final class LocalSender extends Sender {
+  public static Builder newBuilder(SimulatedCollector collector) {
+    return new Builder(collector);
+  }
+
+  public static final class Builder {
+    final SimulatedCollector collector;
+    Encoding encoding = Encoding.JSON;
+    int messageMaxBytes = 5 * 1024 * 1024;
+    boolean supportsMessages = true;
+    Compression compression = Compression.NONE;
+
+    Builder(SimulatedCollector collector) {
+      if (collector == null) throw new NullPointerException("collector == null");
+      this.collector = collector;
+    }
+
+    /** Default {@link Encoding#JSON} */
+    public Builder encoding(Encoding encoding) {
+      if (encoding == null) throw new NullPointerException("encoding == null");
+      this.encoding = encoding;
+      return this;
+    }
+
+    /** The limit the reporter honors. Default 5MiB, like the http collector */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      this.messageMaxBytes = messageMaxBytes;
+      return this;
+    }
+
+    /** When false, the reporter calls {@link #sendSpans(List)}. Default true */
+    public Builder supportsMessages(boolean supportsMessages) {
+      this.supportsMessages = supportsMessages;
+      return this;
+    }
+
+    /** Applied by the reporter to messages. Default {@link Compression#NONE} */
+    public Builder compression(Compression compression) {
+      if (compression == null) throw new NullPointerException("compression == null");
+      this.compression = compression;
+      return this;
+    }
+
+    public LocalSender build() {
+      return new LocalSender(this);
+    }
+  }
+
+  final SimulatedCollector collector;
+  final Encoding encoding;
+  final int messageMaxBytes;
+  final boolean supportsMessages;
+  final Compression compression;
+  final BytesMessageEncoder messageEncoder;
+  volatile boolean closeCalled;
+
+  LocalSender(Builder builder) {
+    collector = builder.collector;
+    encoding = builder.encoding;
+    messageMaxBytes = builder.messageMaxBytes;
+    supportsMessages = builder.supportsMessages;
+    compression = builder.compression;
+    messageEncoder = BytesMessageEncoder.forEncoding(encoding);
+  }
+
+  public SimulatedCollector collector() {
+    return collector;
+  }
+
+  @Override public Encoding encoding() {
+    return encoding;
+  }
+
+  @Override public int messageMaxBytes() {
+    return messageMaxBytes;
+  }
+
+  @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+    return encoding.listSizeInBytes(encodedSpans);
+  }
+
+  @Override public int messageSizeInBytes(int encodedSizeInBytes) {
+    return encoding.listSizeInBytes(encodedSizeInBytes);
+  }
+
+  @Override public boolean supportsMessages() {
+    return supportsMessages;
+  }
+
+  @Override public Compression compression() {
+    return compression;
+  }
+
+  /** The spans are framed here, but not compressed, as the reporter only compresses messages. */
+  @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+    if (closeCalled) throw new IllegalStateException("closed");
+    byte[] message = messageEncoder.encode(encodedSpans);
+    return new LocalCall(Compression.NONE, message, 0, message.length, encodedSpans.size());
+  }
+
+  @Override public Call<Void> sendMessage(byte[] message, int offset, int length) {
+    if (closeCalled) throw new IllegalStateException("closed");
+    if (!supportsMessages) return super.sendMessage(message, offset, length);
+    return new LocalCall(compression, message, offset, length, -1);
+  }
+
+  @Override public CheckResult check() {
+    return CheckResult.OK;
+  }
+
+  @Override public void close() {
+    closeCalled = true;
+  }
+
+  @Override public String toString() {
+    return "LocalSender(" + collector + ")";
+  }
+
+  final class LocalCall extends Call.Base<Void> {
+    final Compression compression;
+    final byte[] message;
+    final int offset, length, spanCount;
+
+    LocalCall(Compression compression, byte[] message, int offset, int length, int spanCount) {
+      this.compression = compression;
+      this.message = message;
+      this.offset = offset;
+      this.length = length;
+      this.spanCount = spanCount;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      SimulatedCollector.Outcome outcome =
+          collector.accept(encoding, compression, message, offset, length, spanCount);
+      if (outcome != SimulatedCollector.Outcome.ACCEPTED) {
+        throw new IOException("collector responded " + outcome);
+      }
+      return null;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      try {
+        callback.onSuccess(doExecute());
+      } catch (IOException e) {
+        callback.onError(e);
+      } catch (RuntimeException e) {
+        callback.onError(e);
+      }
+    }
+
+    @Override public Call<Void> clone() {
+      return new LocalCall(compression, message, offset, length, spanCount);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.local;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Compression;
+
+/**
+ * Serves a {@link SimulatedCollector} over http on the loopback interface, at the same path as the
+ * zipkin server: {@code POST /api/v2/spans}. This exercises the reporter with real sockets, for
+ * example via {@link LoopbackHttpSender}.
+ *
+ * <p>The encoding is read from the "Content-Type" header, and compression from the
+ * "Content-Encoding" header. Accepted messages get status 202. Otherwise, the status corresponds
+ * to the {@link SimulatedCollector.Outcome outcome}.
+ */
+public final class LoopbackCollector implements Closeable {
+  public static final String PATH = "/api/v2/spans";
+
+  /** Listens on an ephemeral port of the loopback interface. */
+  public static LoopbackCollector start(SimulatedCollector collector) throws IOException {
+    return new LoopbackCollector(collector);
+  }
+
+  final SimulatedCollector collector;
+  final HttpServer server;
+  final ExecutorService executor;
+
+  LoopbackCollector(final SimulatedCollector collector) throws IOException {
+    this.collector = collector;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "LoopbackCollector");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server.setExecutor(executor);
+    server.createContext(PATH, new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        try {
+          exchange.sendResponseHeaders(handleRequest(exchange), -1);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+  }
+
+  int handleRequest(HttpExchange exchange) throws IOException {
+    if (!"POST".equals(exchange.getRequestMethod())) return 405;
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    Encoding encoding = contentType != null && contentType.startsWith("application/x-protobuf")
+        ? Encoding.PROTO3
+        : Encoding.JSON;
+    String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    Compression compression = compression(contentEncoding);
+    if (compression == null) return 415;
+
+    byte[] body = readFully(exchange.getRequestBody());
+    SimulatedCollector.Outcome outcome;
+    try {
+      outcome = collector.accept(encoding, compression, body, 0, body.length, -1);
+    } catch (IllegalArgumentException e) { // malformed spans
+      return 400;
+    }
+    switch (outcome) {
+      case ACCEPTED:
+        return 202;
+      case TOO_LARGE:
+        return 413;
+      case THROTTLED:
+        return 429;
+      default:
+        return 500;
+    }
+  }
+
+  static Compression compression(String contentEncoding) {
+    if (contentEncoding == null) return Compression.NONE;
+    for (Compression compression : Compression.values()) {
+      if (compression.contentEncoding().equalsIgnoreCase(contentEncoding)) return compression;
+    }
+    return null;
+  }
+
+  static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int read; (read = in.read(buffer)) != -1; ) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  public SimulatedCollector collector() {
+    return collector;
+  }
+
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  /** The url to post spans to. */
+  public String url() {
+    return "http://127.0.0.1:" + port() + PATH;
+  }
+
+  @Override public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Override public String toString() {
+    return "LoopbackCollector(" + url() + ")";
+  }
+}
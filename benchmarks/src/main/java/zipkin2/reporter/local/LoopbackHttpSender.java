@@ -0,0 +1,176 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.local;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Compression;
+import zipkin2.reporter.Sender;
+
+/**
+ * Posts messages to an http endpoint, usually a {@link LoopbackCollector}, using {@link
+ * HttpURLConnection}. This is a minimal sender for load tests: it doesn't retry or pool beyond the
+ * JRE's keep-alive.
+ */
+public final class LoopbackHttpSender extends Sender {
+  public static LoopbackHttpSender create(String endpoint, Encoding encoding,
+      Compression compression) {
+    return new LoopbackHttpSender(endpoint, encoding, compression);
+  }
+
+  final URL endpoint;
+  final Encoding encoding;
+  final Compression compression;
+  final BytesMessageEncoder messageEncoder;
+  volatile boolean closeCalled;
+
+  LoopbackHttpSender(String endpoint, Encoding encoding, Compression compression) {
+    try {
+      this.endpoint = new URL(endpoint);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(endpoint, e);
+    }
+    if (encoding == null) throw new NullPointerException("encoding == null");
+    if (compression == null) throw new NullPointerException("compression == null");
+    this.encoding = encoding;
+    this.compression = compression;
+    this.messageEncoder = BytesMessageEncoder.forEncoding(encoding);
+  }
+
+  @Override public Encoding encoding() {
+    return encoding;
+  }
+
+  /** Like the zipkin server's default http limit */
+  @Override public int messageMaxBytes() {
+    return 5 * 1024 * 1024;
+  }
+
+  @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+    return encoding.listSizeInBytes(encodedSpans);
+  }
+
+  @Override public int messageSizeInBytes(int encodedSizeInBytes) {
+    return encoding.listSizeInBytes(encodedSizeInBytes);
+  }
+
+  @Override public boolean supportsMessages() {
+    return true;
+  }
+
+  @Override public Compression compression() {
+    return compression;
+  }
+
+  @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+    if (closeCalled) throw new IllegalStateException("closed");
+    byte[] message = messageEncoder.encode(encodedSpans);
+    return new PostCall(Compression.NONE, message, 0, message.length);
+  }
+
+  @Override public Call<Void> sendMessage(byte[] message, int offset, int length) {
+    if (closeCalled) throw new IllegalStateException("closed");
+    return new PostCall(compression, message, offset, length);
+  }
+
+  @Override public CheckResult check() {
+    return CheckResult.OK;
+  }
+
+  @Override public void close() {
+    closeCalled = true;
+  }
+
+  @Override public String toString() {
+    return "LoopbackHttpSender(" + endpoint + ")";
+  }
+
+  void post(Compression compression, byte[] message, int offset, int length) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+    try {
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(length);
+      connection.setRequestProperty("Content-Type",
+          encoding == Encoding.PROTO3 ? "application/x-protobuf" : "application/json");
+      if (compression != Compression.NONE) {
+        connection.setRequestProperty("Content-Encoding", compression.contentEncoding());
+      }
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(message, offset, length);
+      } finally {
+        out.close();
+      }
+      int status = connection.getResponseCode();
+      // read the response fully, so that the connection can be reused
+      InputStream in =
+          status / 100 == 2 ? connection.getInputStream() : connection.getErrorStream();
+      if (in != null) {
+        try {
+          byte[] buffer = new byte[1024];
+          while (in.read(buffer) != -1) ;
+        } finally {
+          in.close();
+        }
+      }
+      if (status / 100 != 2) throw new IOException("response " + status + " from " + endpoint);
+    } catch (IOException e) {
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  final class PostCall extends Call.Base<Void> {
+    final Compression compression;
+    final byte[] message;
+    final int offset, length;
+
+    PostCall(Compression compression, byte[] message, int offset, int length) {
+      this.compression = compression;
+      this.message = message;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      post(compression, message, offset, length);
+      return null;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      try {
+        post(compression, message, offset, length);
+        callback.onSuccess(null);
+      } catch (IOException e) {
+        callback.onError(e);
+      } catch (RuntimeException e) {
+        callback.onError(e);
+      }
+    }
+
+    @Override public Call<Void> clone() {
+      return new PostCall(compression, message, offset, length);
+    }
+  }
+}
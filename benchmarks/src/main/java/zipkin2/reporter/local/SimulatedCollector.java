@@ -0,0 +1,279 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.local;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.Compression;
+
+/**
+ * Stands in for a zipkin collector, so that reporters can be load tested offline. Messages are
+ * checked against a size limit and a throttle, delayed according to a latency distribution, then
+ * failed at an error rate. What's accepted is recorded.
+ *
+ * <p>This is shared by {@link LocalSender}, which calls it in-process, and {@link
+ * LoopbackCollector}, which serves it over http. It is safe for concurrent use.
+ */
+public final class SimulatedCollector {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** What happened to a message. */
+  public enum Outcome {
+    ACCEPTED,
+    /** The message was larger than {@link Builder#maxMessageBytes(int)}. Http 413 */
+    TOO_LARGE,
+    /** The message exceeded {@link Builder#maxMessagesPerSecond(int)}. Http 429 */
+    THROTTLED,
+    /** The message was failed per {@link Builder#errorRate(float)}. Http 500 */
+    FAILED
+  }
+
+  public static final class Builder {
+    LatencyDistribution latency = LatencyDistribution.NONE;
+    float errorRate = 0;
+    int maxMessagesPerSecond = 0;
+    int maxMessageBytes = Integer.MAX_VALUE;
+    boolean decodeSpans = true;
+    int retainSpans = 10000;
+    long seed = System.nanoTime();
+
+    /** How long to wait before accepting or failing a message. Default none. */
+    public Builder latency(LatencyDistribution latency) {
+      if (latency == null) throw new NullPointerException("latency == null");
+      this.latency = latency;
+      return this;
+    }
+
+    /** Fraction of messages, between 0 and 1, that fail after the latency. Default 0. */
+    public Builder errorRate(float errorRate) {
+      if (errorRate < 0 || errorRate > 1) {
+        throw new IllegalArgumentException("errorRate should be between 0 and 1: " + errorRate);
+      }
+      this.errorRate = errorRate;
+      return this;
+    }
+
+    /** When positive, messages over this rate fail immediately. Default 0: unthrottled. */
+    public Builder maxMessagesPerSecond(int maxMessagesPerSecond) {
+      this.maxMessagesPerSecond = maxMessagesPerSecond;
+      return this;
+    }
+
+    /**
+     * Messages larger than this, as received, fail immediately. Default unlimited. Use this to
+     * simulate a collector whose limit is lower than what the sender assumes.
+     */
+    public Builder maxMessageBytes(int maxMessageBytes) {
+      this.maxMessageBytes = maxMessageBytes;
+      return this;
+    }
+
+    /**
+     * When true, accepted messages are decoded, so that spans can be counted and retained. Default
+     * true. Disable when the cost of decoding would skew a benchmark.
+     */
+    public Builder decodeSpans(boolean decodeSpans) {
+      this.decodeSpans = decodeSpans;
+      return this;
+    }
+
+    /** Maximum count of decoded spans to retain for {@link #spans()}. Default 10000. */
+    public Builder retainSpans(int retainSpans) {
+      this.retainSpans = retainSpans;
+      return this;
+    }
+
+    /** Seeds the random source of latency and errors, for reproducible runs. */
+    public Builder seed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    public SimulatedCollector build() {
+      return new SimulatedCollector(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final LatencyDistribution latency;
+  final float errorRate;
+  final int maxMessagesPerSecond, maxMessageBytes, retainSpans;
+  final boolean decodeSpans;
+  final Random random;
+  final AtomicLong messages = new AtomicLong(), messageBytes = new AtomicLong(),
+      spanCount = new AtomicLong(), tooLarge = new AtomicLong(), throttled = new AtomicLong(),
+      failed = new AtomicLong();
+  final List<Span> spans = new ArrayList<Span>();
+  // token bucket of messages, refilled at the max rate, holding up to one second worth
+  double tokens; // guarded by this
+  long lastRefillNanos; // guarded by this
+
+  SimulatedCollector(Builder builder) {
+    latency = builder.latency;
+    errorRate = builder.errorRate;
+    maxMessagesPerSecond = builder.maxMessagesPerSecond;
+    maxMessageBytes = builder.maxMessageBytes;
+    decodeSpans = builder.decodeSpans;
+    retainSpans = builder.retainSpans;
+    random = new Random(builder.seed);
+    tokens = maxMessagesPerSecond;
+    lastRefillNanos = System.nanoTime();
+  }
+
+  /**
+   * Accepts or fails a message, after simulating latency.
+   *
+   * @param compression how the message was compressed, as in http "Content-Encoding"
+   * @param spanCount count of spans in the message, or -1 if unknown
+   */
+  public Outcome accept(Encoding encoding, Compression compression, byte[] message, int offset,
+      int length, int spanCount) throws IOException {
+    if (length > maxMessageBytes) {
+      tooLarge.incrementAndGet();
+      return Outcome.TOO_LARGE;
+    }
+    if (maxMessagesPerSecond > 0 && !tryAcquireToken()) {
+      throttled.incrementAndGet();
+      return Outcome.THROTTLED;
+    }
+    long latencyNanos = latency.nextNanos(random);
+    if (latencyNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(latencyNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted");
+      }
+    }
+    if (errorRate > 0 && random.nextFloat() < errorRate) {
+      failed.incrementAndGet();
+      return Outcome.FAILED;
+    }
+
+    messages.incrementAndGet();
+    messageBytes.addAndGet(length);
+    if (decodeSpans) {
+      byte[] decompressed = decompress(compression, message, offset, length);
+      List<Span> decoded = encoding == Encoding.PROTO3
+          ? SpanBytesDecoder.PROTO3.decodeList(decompressed)
+          : SpanBytesDecoder.JSON_V2.decodeList(decompressed);
+      spanCount = decoded.size();
+      synchronized (spans) {
+        for (Span span : decoded) {
+          if (spans.size() >= retainSpans) break;
+          spans.add(span);
+        }
+      }
+    }
+    if (spanCount > 0) this.spanCount.addAndGet(spanCount);
+    return Outcome.ACCEPTED;
+  }
+
+  synchronized boolean tryAcquireToken() {
+    long now = System.nanoTime();
+    tokens = Math.min(maxMessagesPerSecond,
+        tokens + (now - lastRefillNanos) * maxMessagesPerSecond / 1e9);
+    lastRefillNanos = now;
+    if (tokens < 1) return false;
+    tokens--;
+    return true;
+  }
+
+  static byte[] decompress(Compression compression, byte[] message, int offset, int length)
+      throws IOException {
+    if (compression == null || compression == Compression.NONE) {
+      byte[] result = new byte[length];
+      System.arraycopy(message, offset, result, 0, length);
+      return result;
+    }
+    InputStream in = new ByteArrayInputStream(message, offset, length);
+    in = compression == Compression.GZIP ? new GZIPInputStream(in) : new InflaterInputStream(in);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+    byte[] buffer = new byte[8192];
+    for (int read; (read = in.read(buffer)) != -1; ) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  /** Count of messages accepted. */
+  public long messages() {
+    return messages.get();
+  }
+
+  /** Size of messages accepted, as received. */
+  public long messageBytes() {
+    return messageBytes.get();
+  }
+
+  /** Count of spans in accepted messages, if known. */
+  public long spanCount() {
+    return spanCount.get();
+  }
+
+  /** Decoded spans accepted, up to {@link Builder#retainSpans(int)}. */
+  public List<Span> spans() {
+    synchronized (spans) {
+      return Collections.unmodifiableList(new ArrayList<Span>(spans));
+    }
+  }
+
+  public long tooLarge() {
+    return tooLarge.get();
+  }
+
+  public long throttled() {
+    return throttled.get();
+  }
+
+  public long failed() {
+    return failed.get();
+  }
+
+  /** Clears what was recorded. */
+  public void clear() {
+    messages.set(0);
+    messageBytes.set(0);
+    spanCount.set(0);
+    tooLarge.set(0);
+    throttled.set(0);
+    failed.set(0);
+    synchronized (spans) {
+      spans.clear();
+    }
+  }
+
+  @Override public String toString() {
+    return "SimulatedCollector{messages=" + messages + ", spans=" + spanCount
+        + ", tooLarge=" + tooLarge + ", throttled=" + throttled + ", failed=" + failed
+        + ", latency=" + latency + "}";
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.local;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.Compression;
+import zipkin2.reporter.InMemoryReporterMetrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static zipkin2.TestObjects.TRACE;
+
+public class LocalSenderTest {
+  SimulatedCollector collector = SimulatedCollector.newBuilder().seed(1L).build();
+  InMemoryReporterMetrics metrics = new InMemoryReporterMetrics();
+  AsyncReporter<Span> reporter;
+
+  @After public void close() {
+    if (reporter != null) reporter.close();
+  }
+
+  @Test public void reportsSpans() {
+    reportTrace(LocalSender.newBuilder(collector).build());
+
+    assertEquals(TRACE, collector.spans());
+    assertEquals(1, collector.messages());
+    assertEquals(TRACE.size(), collector.spanCount());
+    assertEquals(0, metrics.spansDropped());
+  }
+
+  @Test public void reportsSpans_proto3() {
+    reportTrace(LocalSender.newBuilder(collector).encoding(Encoding.PROTO3).build());
+
+    assertEquals(TRACE, collector.spans());
+  }
+
+  @Test public void reportsSpans_withoutMessageSupport() {
+    reportTrace(LocalSender.newBuilder(collector).supportsMessages(false).build());
+
+    assertEquals(TRACE, collector.spans());
+  }
+
+  /** The collector inflates what the reporter compressed, and records the size as received. */
+  @Test public void compression() {
+    int uncompressed = SpanBytesEncoder.JSON_V2.encodeList(TRACE).length;
+    for (Compression compression : Compression.values()) {
+      collector.clear();
+      reportTrace(LocalSender.newBuilder(collector).compression(compression).build());
+      reporter.close();
+
+      assertEquals(compression.name(), TRACE, collector.spans());
+      if (compression == Compression.NONE) {
+        assertEquals(uncompressed, collector.messageBytes());
+      } else {
+        assertTrue(compression.name(), collector.messageBytes() < uncompressed);
+      }
+    }
+  }
+
+  @Test public void drops_tooLarge() {
+    collector = SimulatedCollector.newBuilder().maxMessageBytes(100).build();
+
+    reportTrace(LocalSender.newBuilder(collector).build());
+
+    assertEquals(1, collector.tooLarge());
+    assertEquals(0, collector.messages());
+    assertEquals(1, metrics.messagesDropped());
+    assertEquals(TRACE.size(), metrics.spansDropped());
+  }
+
+  @Test public void drops_failed() {
+    collector = SimulatedCollector.newBuilder().errorRate(1.0f).build();
+
+    reportTrace(LocalSender.newBuilder(collector).build());
+
+    assertEquals(1, collector.failed());
+    assertEquals(1, metrics.messagesDropped());
+    assertEquals(TRACE.size(), metrics.spansDropped());
+  }
+
+  /** The throttle allows a burst of a second's worth of messages, then refuses until refilled. */
+  @Test public void drops_throttled() throws Exception {
+    collector = SimulatedCollector.newBuilder().maxMessagesPerSecond(2).build();
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+
+    assertEquals(SimulatedCollector.Outcome.ACCEPTED, accept(message));
+    assertEquals(SimulatedCollector.Outcome.ACCEPTED, accept(message));
+    assertEquals(SimulatedCollector.Outcome.THROTTLED, accept(message));
+    assertEquals(1, collector.throttled());
+
+    Thread.sleep(600); // more than enough for one token
+    assertEquals(SimulatedCollector.Outcome.ACCEPTED, accept(message));
+  }
+
+  @Test public void retainSpans() {
+    collector = SimulatedCollector.newBuilder().retainSpans(2).build();
+
+    reportTrace(LocalSender.newBuilder(collector).build());
+
+    assertEquals(TRACE.subList(0, 2), collector.spans());
+    assertEquals(TRACE.size(), collector.spanCount());
+  }
+
+  SimulatedCollector.Outcome accept(byte[] message) throws Exception {
+    return collector.accept(Encoding.JSON, Compression.NONE, message, 0, message.length, -1);
+  }
+
+  /** Reports the trace as one message, synchronously. */
+  void reportTrace(LocalSender sender) {
+    reporter = AsyncReporter.builder(sender)
+        .metrics(metrics)
+        .messageTimeout(0, TimeUnit.MILLISECONDS)
+        .build();
+    for (Span span : TRACE) reporter.report(span);
+    reporter.flush();
+  }
+}
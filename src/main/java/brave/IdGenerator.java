@@ -0,0 +1,102 @@
+package brave;
+
+import brave.internal.Platform;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates span IDs and the lower 64-bits of trace IDs, as well as the upper 64-bits of {@link
+ * Tracing.Builder#traceId128Bit 128-bit trace IDs}.
+ *
+ * <p>IDs needn't be cryptographically random, but they must be well distributed as samplers and
+ * storage treat them as such. They are generated for every span, so this is on the hot path.
+ */
+// abstract for factory-method support on Java language level 7
+public abstract class IdGenerator {
+
+  /**
+   * Delegates to {@link Platform#randomLong()} and {@link Platform#nextTraceIdHigh()}, as the
+   * tracer did before this type existed. What that returns is up to the platform: this build
+   * overrides the JRE 7 platform to return {@link System#currentTimeMillis()}, and JRE 6 uses a
+   * shared {@link java.util.Random}.
+   */
+  public static final IdGenerator PLATFORM = new IdGenerator() {
+    @Override public long nextId() {
+      long nextId = Platform.get().randomLong();
+      while (nextId == 0L) {
+        nextId = Platform.get().randomLong();
+      }
+      return nextId;
+    }
+
+    @Override public long nextTraceIdHigh() {
+      return Platform.get().nextTraceIdHigh();
+    }
+
+    @Override public String toString() {
+      return "PlatformIdGenerator";
+    }
+  };
+
+  /**
+   * Each thread has its own <a href="http://xorshift.di.unimi.it/splitmix64.c">SplitMix64</a>
+   * generator, the algorithm behind {@code java.util.SplittableRandom}. Threads share no state
+   * once seeded, so there's no contention, even in JRE 6. This is the default.
+   */
+  public static final IdGenerator THREAD_LOCAL = new ThreadLocalIdGenerator();
+
+  /** Returns a new 64-bit ID, which is never zero as zero can be confused with absent. */
+  public abstract long nextId();
+
+  /**
+   * Returns the high 8-bytes of a 128-bit trace ID. The upper 4-bytes are epoch seconds and the
+   * lower 4-bytes are random. Leading with time allows storage to bucket traces, and makes the ID
+   * convertible to the <a href="http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-request-tracing.html">Amazon
+   * X-Ray trace ID format v1</a>.
+   */
+  public long nextTraceIdHigh() {
+    long epochSeconds = System.currentTimeMillis() / 1000;
+    return (epochSeconds & 0xffffffffL) << 32 | (nextId() & 0xffffffffL);
+  }
+
+  static final class ThreadLocalIdGenerator extends IdGenerator {
+    static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /** Only touched when a thread first generates an ID, to give each thread a distinct seed. */
+    static final AtomicLong SEEDER =
+        new AtomicLong(mix64(System.currentTimeMillis()) ^ mix64(System.nanoTime()));
+
+    static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+      @Override protected State initialValue() {
+        return new State(mix64(SEEDER.getAndAdd(GOLDEN_GAMMA << 1)));
+      }
+    };
+
+    static final class State {
+      long seed;
+
+      State(long seed) {
+        this.seed = seed;
+      }
+    }
+
+    @Override public long nextId() {
+      State state = STATE.get();
+      long nextId;
+      do {
+        nextId = mix64(state.seed += GOLDEN_GAMMA);
+      } while (nextId == 0L); // mix64 is a bijection, so this is once per 2^64 calls
+      return nextId;
+    }
+
+    /** The finalizer of SplitMix64, also David Stafford's Mix13 */
+    static long mix64(long z) {
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      return z ^ (z >>> 31);
+    }
+
+    @Override public String toString() {
+      return "ThreadLocalIdGenerator";
+    }
+  }
+}
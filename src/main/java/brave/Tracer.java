@@ -1,7 +1,6 @@
 package brave;
 
 import brave.internal.Nullable;
-import brave.internal.Platform;
 import brave.internal.recorder.Recorder;
 import brave.propagation.CurrentTraceContext;
 import brave.propagation.Propagation;
@@ -122,6 +121,7 @@ public final class Tracer {
   final Reporter<zipkin2.Span> reporter; // for toString
   final Recorder recorder;
   final Sampler sampler;
+  final IdGenerator idGenerator;
   final CurrentTraceContext currentTraceContext;
   final boolean traceId128Bit, supportsJoin;
   final AtomicBoolean noop;
@@ -132,8 +132,10 @@ public final class Tracer {
     this.supportsJoin = builder.supportsJoin && propagationFactory.supportsJoin();
     this.clock = clock;
     this.reporter = builder.reporter;
-    this.recorder = new Recorder(builder.endpoint, clock, builder.reporter, this.noop);
+    this.recorder = new Recorder(builder.endpoint, clock, builder.reporter, this.noop,
+        builder.spanPoolSize, builder.maxSpanAgeNanos);
     this.sampler = builder.sampler;
+    this.idGenerator = builder.idGenerator;
     this.currentTraceContext = builder.currentTraceContext;
     this.traceId128Bit = builder.traceId128Bit || propagationFactory.requires128BitTraceId();
   }
@@ -300,7 +302,7 @@ public final class Tracer {
     if (sampled == null) sampled = sampler.isSampled(nextId);
     return TraceContext.newBuilder()
         .sampled(sampled)
-        .traceIdHigh(traceId128Bit ? Platform.get().nextTraceIdHigh() : 0L).traceId(nextId)
+        .traceIdHigh(traceId128Bit ? idGenerator.nextTraceIdHigh() : 0L).traceId(nextId)
         .spanId(nextId)
         .debug(samplingFlags.debug())
         .extra(extra).build();
@@ -308,11 +310,7 @@ public final class Tracer {
 
   /** Generates a new 64-bit ID, taking care to dodge zero which can be confused with absent */
   long nextId() {
-    long nextId = Platform.get().randomLong();
-    while (nextId == 0L) {
-      nextId = Platform.get().randomLong();
-    }
-    return nextId;
+    return idGenerator.nextId();
   }
 
   /**
@@ -8,6 +8,7 @@ import brave.propagation.Propagation;
 import brave.propagation.TraceContext;
 import brave.sampler.Sampler;
 import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import zipkin2.Endpoint;
 import zipkin2.reporter.AsyncReporter;
@@ -118,9 +119,12 @@ public abstract class Tracing implements Closeable {
     Reporter<zipkin2.Span> reporter;
     Clock clock;
     Sampler sampler = Sampler.ALWAYS_SAMPLE;
+    IdGenerator idGenerator = IdGenerator.THREAD_LOCAL;
     CurrentTraceContext currentTraceContext = CurrentTraceContext.Default.inheritable();
     boolean traceId128Bit = false;
     boolean supportsJoin = true;
+    int spanPoolSize = 0;
+    long maxSpanAgeNanos = 0L;
     Propagation.Factory propagationFactory = B3Propagation.FACTORY;
 
     /**
@@ -203,6 +207,16 @@ public abstract class Tracing implements Closeable {
       return this;
     }
 
+    /**
+     * Generates span and trace IDs for new spans. Defaults to {@link IdGenerator#THREAD_LOCAL},
+     * which doesn't contend when many threads create spans.
+     */
+    public Builder idGenerator(IdGenerator idGenerator) {
+      if (idGenerator == null) throw new NullPointerException("idGenerator == null");
+      this.idGenerator = idGenerator;
+      return this;
+    }
+
     /**
      * Responsible for implementing {@link Tracer#currentSpanCustomizer()}, {@link Tracer#currentSpan()}
      * and {@link Tracer#withSpanInScope(Span)}. By default a simple thread-local is used. Override
@@ -248,6 +262,37 @@ public abstract class Tracing implements Closeable {
       return this;
     }
 
+    /**
+     * When positive, the recorder reuses the objects that buffer span data after a span is
+     * reported or abandoned, retaining up to this count idle. Defaults to zero (no pooling).
+     *
+     * <p>This reduces allocation per span. Like without pooling, mutations after {@link
+     * Span#finish() finishing} or {@link Span#abandon() abandoning} a span are ignored, including
+     * those racing with finish on another thread: each buffer has a generation, incremented when it
+     * is reused, and a mutation which looked up the buffer before it was reused is dropped.
+     */
+    public Builder spanPoolSize(int spanPoolSize) {
+      if (spanPoolSize < 0) throw new IllegalArgumentException("spanPoolSize < 0: " + spanPoolSize);
+      this.spanPoolSize = spanPoolSize;
+      return this;
+    }
+
+    /**
+     * When positive, spans in-progress longer than this are considered orphaned: they are reported
+     * with a "brave.flush" annotation by a background thread. Defaults to zero, which detects
+     * orphans when their {@link TraceContext} is garbage collected instead.
+     *
+     * <p>Age based detection keeps garbage collection out of the span lookups made on each span
+     * operation, at the cost of a daemon thread. The age should exceed that of the longest span
+     * you expect, as spans reported early will have their remaining data reported separately.
+     */
+    public Builder maxSpanAge(long maxSpanAge, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (maxSpanAge < 0) throw new IllegalArgumentException("maxSpanAge < 0: " + maxSpanAge);
+      this.maxSpanAgeNanos = unit.toNanos(maxSpanAge);
+      return this;
+    }
+
     public Tracing build() {
       if (clock == null) clock = Platform.get().clock();
       if (endpoint == null) {
@@ -308,6 +353,7 @@ public abstract class Tracing implements Closeable {
     }
 
     @Override public void close() {
+      tracer.recorder.close();
       if (current != this) return;
       // don't blindly set most recent to null as there could be a race
       synchronized (Tracing.class) {
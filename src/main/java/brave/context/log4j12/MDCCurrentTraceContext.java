@@ -1,6 +1,5 @@
 package brave.context.log4j12;
 
-import brave.internal.HexCodec;
 import brave.internal.Nullable;
 import brave.propagation.CurrentTraceContext;
 import brave.propagation.TraceContext;
@@ -41,9 +40,8 @@ public final class MDCCurrentTraceContext extends CurrentTraceContext {
 
     if (currentSpan != null) {
       MDC.put("traceId", currentSpan.traceIdString());
-      long parentId = currentSpan.parentIdAsLong();
-      replace("parentId", parentId != 0L ? HexCodec.toLowerHex(parentId) : null);
-      MDC.put("spanId", HexCodec.toLowerHex(currentSpan.spanId()));
+      replace("parentId", currentSpan.parentIdString());
+      MDC.put("spanId", currentSpan.spanIdString());
     } else {
       MDC.remove("traceId");
       MDC.remove("spanId");
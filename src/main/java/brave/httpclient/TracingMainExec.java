@@ -3,9 +3,10 @@ package brave.httpclient;
 import brave.Tracer;
 import brave.http.HttpClientHandler;
 import brave.http.HttpTracing;
-import brave.propagation.Propagation.Setter;
+import brave.propagation.HeaderBatch;
 import brave.propagation.TraceContext;
 import java.io.IOException;
+import org.apache.http.HeaderIterator;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -20,14 +21,25 @@ import org.apache.http.impl.execchain.ClientExecChain;
  * request, so this is where the span is started.
  */
 final class TracingMainExec implements ClientExecChain {
-  static final Setter<HttpRequestWrapper, String> SETTER = // retrolambda no likey
-      new Setter<HttpRequestWrapper, String>() {
-        @Override public void put(HttpRequestWrapper carrier, String key, String value) {
-          carrier.setHeader(key, value);
+  /**
+   * Each {@link HttpRequestWrapper#setHeader} call scans all headers to replace any with the same
+   * name. Instead, this removes stale propagation headers in one pass, then appends the new ones.
+   */
+  static final HeaderBatch.Writer<HttpRequestWrapper> WRITER = // retrolambda no likey
+      new HeaderBatch.Writer<HttpRequestWrapper>() {
+        @Override public void write(HttpRequestWrapper carrier, HeaderBatch batch) {
+          for (HeaderIterator i = carrier.headerIterator(); i.hasNext(); ) {
+            int slot = batch.slot(i.nextHeader().getName());
+            if (slot != -1 && batch.value(slot) != null) i.remove(); // replaced below
+          }
+          for (int i = 0, length = batch.size(); i < length; i++) {
+            String value = batch.value(i);
+            if (value != null) carrier.addHeader(batch.name(i), value);
+          }
         }
 
         @Override public String toString() {
-          return "HttpRequestWrapper::setHeader";
+          return "HttpRequestWrapper::addHeader";
         }
       };
 
@@ -39,7 +51,7 @@ final class TracingMainExec implements ClientExecChain {
   TracingMainExec(HttpTracing httpTracing, ClientExecChain mainExec) {
     this.tracer = httpTracing.tracing().tracer();
     this.handler = HttpClientHandler.create(httpTracing, new HttpAdapter());
-    this.injector = httpTracing.tracing().propagation().injector(SETTER);
+    this.injector = HeaderBatch.injector(httpTracing.tracing().propagation(), WRITER);
     this.mainExec = mainExec;
   }
 
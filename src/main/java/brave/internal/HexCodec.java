@@ -1,5 +1,7 @@
 package brave.internal;
 
+import java.util.Arrays;
+
 // code originally imported from zipkin.Util
 public final class HexCodec {
 
@@ -30,19 +32,53 @@ public final class HexCodec {
 
   /** Like {@link #lowerHexToUnsignedLong(CharSequence, int)}, but returns zero on invalid input */
   public static long lenientLowerHexToUnsignedLong(CharSequence lowerHex, int index, int endIndex) {
+    if (endIndex - index == 16) { // the common case: a span ID or half of a 128-bit trace ID
+      long high = swarLowerHexToUnsignedInt(lowerHex, index);
+      long low = swarLowerHexToUnsignedInt(lowerHex, index + 8);
+      if ((high | low) < 0) return 0;
+      return (high << 32) | low;
+    }
     long result = 0;
+    int invalid = 0;
+    // Instead of branching on each character, accumulate invalid nibbles and check once at the end.
+    // Characters above 0x7f map to -1 via the sign of (0x7f - c).
     while (index < endIndex) {
       char c = lowerHex.charAt(index++);
-      result <<= 4;
-      if (c >= '0' && c <= '9') {
-        result |= c - '0';
-      } else if (c >= 'a' && c <= 'f') {
-        result |= c - 'a' + 10;
-      } else {
-        return 0;
-      }
+      int nibble = DECODE_NIBBLE[c & 0x7f] | ((0x7f - c) >> 31);
+      invalid |= nibble;
+      result = (result << 4) | (nibble & 0xf);
     }
-    return result;
+    return invalid < 0 ? 0 : result;
+  }
+
+  static final long ONES = 0x0101010101010101L, HIGH_BITS = ONES * 0x80;
+
+  /**
+   * Parses 8 lower-hex characters as one word: each character becomes a byte of a long, which is
+   * validated and converted to nibbles in a few arithmetic steps instead of 8 branches. Returns -1
+   * on invalid input.
+   */
+  static long swarLowerHexToUnsignedInt(CharSequence lowerHex, int index) {
+    long word = 0;
+    int or = 0;
+    for (int i = index, endIndex = index + 8; i < endIndex; i++) {
+      char c = lowerHex.charAt(i);
+      or |= c;
+      word = (word << 8) | c;
+    }
+    if ((or & 0xff80) != 0) return -1; // not ASCII
+
+    // As each byte is below 0x80, adding to it sets its high bit without carrying into the next.
+    long digit = (word + ONES * (0x80 - '0')) & ~(word + ONES * (0x80 - '9' - 1)) & HIGH_BITS;
+    long alpha = (word + ONES * (0x80 - 'a')) & ~(word + ONES * (0x80 - 'f' - 1)) & HIGH_BITS;
+    if ((digit | alpha) != HIGH_BITS) return -1;
+
+    // '0'-'9' and 'a'-'f' have values in their low nibble, except letters are 9 short.
+    long nibbles = (word & ONES * 0x0f) + (alpha >>> 7) * 9;
+    // pack the nibbles, halving the lanes each step
+    nibbles = (nibbles | (nibbles >>> 4)) & 0x00ff00ff00ff00ffL;
+    nibbles = (nibbles | (nibbles >>> 8)) & 0x0000ffff0000ffffL;
+    return (nibbles | (nibbles >>> 16)) & 0xffffffffL;
   }
 
   static NumberFormatException isntLowerHexLong(CharSequence lowerHex) {
@@ -69,24 +105,37 @@ public final class HexCodec {
     return new String(data);
   }
 
-  /** Inspired by {@code okio.Buffer.writeLong} */
+  /** Writes 16 lower-hex characters, two at a time from a table indexed by byte value. */
   public static void writeHexLong(char[] data, int pos, long v) {
-    writeHexByte(data, pos + 0, (byte) ((v >>> 56L) & 0xff));
-    writeHexByte(data, pos + 2, (byte) ((v >>> 48L) & 0xff));
-    writeHexByte(data, pos + 4, (byte) ((v >>> 40L) & 0xff));
-    writeHexByte(data, pos + 6, (byte) ((v >>> 32L) & 0xff));
-    writeHexByte(data, pos + 8, (byte) ((v >>> 24L) & 0xff));
-    writeHexByte(data, pos + 10, (byte) ((v >>> 16L) & 0xff));
-    writeHexByte(data, pos + 12, (byte) ((v >>> 8L) & 0xff));
-    writeHexByte(data, pos + 14, (byte) (v & 0xff));
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      int i = ((int) (v >>> shift) & 0xff) << 1;
+      data[pos++] = HEX_BYTES[i];
+      data[pos++] = HEX_BYTES[i + 1];
+    }
   }
 
   static final char[] HEX_DIGITS =
       {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+  /** Two lower-hex characters for each byte value, so that encoding is one lookup per byte. */
+  static final char[] HEX_BYTES = new char[512];
+  /** The value of each lower-hex ASCII character, or -1 if it isn't one. */
+  static final byte[] DECODE_NIBBLE = new byte[128];
+
+  static {
+    for (int b = 0; b < 256; b++) {
+      HEX_BYTES[b << 1] = HEX_DIGITS[b >> 4];
+      HEX_BYTES[(b << 1) + 1] = HEX_DIGITS[b & 0xf];
+    }
+    Arrays.fill(DECODE_NIBBLE, (byte) -1);
+    for (int i = 0; i < 16; i++) {
+      DECODE_NIBBLE[HEX_DIGITS[i]] = (byte) i;
+    }
+  }
 
   public static void writeHexByte(char[] data, int pos, byte b) {
-    data[pos + 0] = HEX_DIGITS[(b >> 4) & 0xf];
-    data[pos + 1] = HEX_DIGITS[b & 0xf];
+    int i = (b & 0xff) << 1;
+    data[pos + 0] = HEX_BYTES[i];
+    data[pos + 1] = HEX_BYTES[i + 1];
   }
 
   HexCodec() {
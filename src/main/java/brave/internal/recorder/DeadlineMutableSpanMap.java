@@ -0,0 +1,117 @@
+package brave.internal.recorder;
+
+import brave.Clock;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import zipkin2.Endpoint;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Like Finagle's deadline span map, orphaned spans are those older than a maximum age. A
+ * background thread periodically reports them, so get and remove don't do any bookkeeping nor
+ * involve garbage collection in reference processing.
+ *
+ * <p>Spans are keyed by their IDs as opposed to their context, so lookups don't allocate. This
+ * also means a span can be looked up without access to the context that created it.
+ */
+final class DeadlineMutableSpanMap extends MutableSpanMap {
+  /** Upper bound of time between a span reaching its maximum age and it being reported. */
+  static final long MAX_REAP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  final SpanIdMap<MutableSpan> delegate = new SpanIdMap<MutableSpan>();
+  final long maxAgeNanos;
+  final Thread reaper;
+  volatile boolean closed;
+
+  DeadlineMutableSpanMap(
+      Endpoint endpoint,
+      Clock clock,
+      Reporter<zipkin2.Span> reporter,
+      AtomicBoolean noop,
+      @Nullable MutableSpanPool pool,
+      long maxAgeNanos
+  ) {
+    super(endpoint, clock, reporter, noop, pool);
+    if (maxAgeNanos <= 0) throw new IllegalArgumentException("maxAgeNanos <= 0: " + maxAgeNanos);
+    this.maxAgeNanos = maxAgeNanos;
+    this.reaper = new Thread(new Reaper(), "brave-span-reaper");
+    this.reaper.setDaemon(true);
+    this.reaper.start();
+  }
+
+  @Override @Nullable MutableSpan get(TraceContext context) {
+    if (context == null) throw new NullPointerException("context == null");
+    return delegate.get(context.traceIdHigh(), context.traceId(), context.spanId());
+  }
+
+  @Override @Nullable MutableSpan putIfAbsent(TraceContext context, MutableSpan span) {
+    span.startTick = System.nanoTime();
+    return delegate.putIfAbsent(context.traceIdHigh(), context.traceId(), context.spanId(), span);
+  }
+
+  @Override @Nullable Clock maybeClockFromParent(TraceContext context) {
+    long parentId = context.parentIdAsLong();
+    if (parentId == 0L) return null;
+    MutableSpan parent = delegate.get(context.traceIdHigh(), context.traceId(), parentId);
+    return parent != null ? parent.clock : null;
+  }
+
+  @Override @Nullable MutableSpan remove(TraceContext context) {
+    if (context == null) throw new NullPointerException("context == null");
+    return delegate.remove(context.traceIdHigh(), context.traceId(), context.spanId());
+  }
+
+  @Override Collection<MutableSpan> values() {
+    return delegate.values();
+  }
+
+  /** Reports spans older than the maximum age, returning how many were reported. */
+  int reportExpiredSpans(long nowTick) {
+    int count = 0;
+    List<SpanIdMap.Entry<MutableSpan>> entries = delegate.entries();
+    for (int i = 0, length = entries.size(); i < length; i++) {
+      SpanIdMap.Entry<MutableSpan> entry = entries.get(i);
+      MutableSpan value = entry.value;
+      if (nowTick - value.startTick < maxAgeNanos) continue;
+      // conditional remove, in case the span finished and its key was reused concurrently
+      if (!delegate.remove(entry.traceIdHigh, entry.traceId, entry.spanId, value)) continue;
+      flushOrphan(null, value);
+      count++;
+    }
+    return count;
+  }
+
+  @Override public void close() {
+    closed = true;
+    reaper.interrupt();
+  }
+
+  final class Reaper implements Runnable {
+    @Override public void run() {
+      long intervalMillis =
+          TimeUnit.NANOSECONDS.toMillis(Math.min(maxAgeNanos / 2, MAX_REAP_INTERVAL_NANOS));
+      if (intervalMillis == 0L) intervalMillis = 1L;
+      while (!closed) {
+        try {
+          Thread.sleep(intervalMillis);
+        } catch (InterruptedException e) {
+          return; // closed
+        }
+        try {
+          reportExpiredSpans(System.nanoTime());
+        } catch (RuntimeException e) {
+          logger.log(Level.FINE, "error reporting expired spans", e);
+        }
+      }
+    }
+  }
+
+  @Override public String toString() {
+    return "DeadlineMutableSpanMap" + delegate.entries();
+  }
+}
@@ -2,102 +2,255 @@ package brave.internal.recorder;
 
 import brave.Clock;
 import brave.Span;
-import brave.internal.HexCodec;
 import brave.internal.Nullable;
 import brave.propagation.TraceContext;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import zipkin2.Endpoint;
 
+/**
+ * Buffers data about a span until it is finished.
+ *
+ * <p>Spans are usually mutated by one thread at a time, so instead of a monitor, a writer claims
+ * the span with a single uncontended compare-and-set, and releases it with an ordered write. If
+ * another thread is mid-mutation, the writer yields up to {@link #MAX_YIELDS} times, as mutations
+ * are short. After that, the writer that holds the span was likely descheduled, so the waiting one
+ * parks {@link #PARK_NANOS} at a time instead of burning a core. There is no queue of waiters:
+ * contention costs the waiter at least a scheduler round-trip, usually tens of microseconds once
+ * parked, and isn't fair. That is fine for the rare case of threads tagging the same span at once,
+ * but a span shouldn't be used as a point of coordination.
+ *
+ * <p>{@link #finish(Long)} hands off the span: it returns the data to report, after which any
+ * further mutations are ignored. This allows the caller to report outside any per-span lock.
+ *
+ * <p>When pooled, a finished span stays finished until {@link #reset} re-initializes it for
+ * another context, which increments its {@link #generation}. Mutations pass the generation read
+ * when they looked up the span, so that a thread which lost a race with finish can't write into
+ * the span once it is recycled.
+ */
 final class MutableSpan {
-  final Clock clock;
-  final zipkin2.Span.Builder span;
-  boolean finished;
+  static final int IDLE = 0, WRITING = 1, FINISHED = 2;
+  /** From {@link #generation(TraceContext)} when the span was recycled for another context */
+  static final int STALE = -1;
+  static final int MAX_YIELDS = 100;
+  static final long PARK_NANOS = 10000L; // 10 microseconds
+  static final AtomicIntegerFieldUpdater<MutableSpan> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(MutableSpan.class, "state");
+
+  final zipkin2.Span.Builder span = zipkin2.Span.newBuilder();
+  volatile Clock clock; // volatile as a pooled span can be re-initialized by another thread
+  volatile int state; // guards the fields below, see beginWrite
+  volatile int generation; // incremented by reset, so never STALE
+  long traceIdHigh, traceId, spanId; // of the context the span was last reset for
+  boolean finished; // true once the duration is known, which can precede finish(Long)
   long timestamp;
+  long startTick; // System.nanoTime() when added to a DeadlineMutableSpanMap
 
-  // Since this is not exposed, this class could be refactored later as needed to act in a pool
-  // to reduce GC churn. This would involve calling span.clear and resetting the fields below.
+  // Since this is not exposed, instances can be recycled by MutableSpanPool to reduce GC churn.
   MutableSpan(Clock clock, TraceContext context, Endpoint localEndpoint) {
+    reset(clock, context, localEndpoint);
+  }
+
+  /**
+   * Called before the span is published, so doesn't need to claim it. A recycled span is finished,
+   * so stale writers can't claim it until the generation is incremented and the state written.
+   */
+  void reset(Clock clock, TraceContext context, Endpoint localEndpoint) {
     this.clock = clock;
-    long parentId = context.parentIdAsLong();
-    this.span = zipkin2.Span.newBuilder()
-        .traceId(context.traceIdString())
-        .parentId(parentId != 0L ? HexCodec.toLowerHex(parentId) : null)
-        .id(HexCodec.toLowerHex(context.spanId()))
+    span.traceId(context.traceIdString())
+        .parentId(context.parentIdString())
+        .id(context.spanIdString())
         .debug(context.debug() ? true : null)
         .localEndpoint(localEndpoint);
     finished = false;
+    traceIdHigh = context.traceIdHigh();
+    traceId = context.traceId();
+    spanId = context.spanId();
+    generation = (generation + 1) & Integer.MAX_VALUE;
+    state = IDLE;
   }
 
-  MutableSpan start() {
-    return start(clock.currentTimeMicroseconds());
+  /**
+   * Clears data, retaining the builder's annotation list and tag map for the next span. The span
+   * is left finished, so that writers which looked it up before it was recycled can't claim it.
+   */
+  void recycle() {
+    beginWrite(generation); // waits for any writer, in case the span was abandoned, not finished
+    span.clear();
+    finished = false;
+    timestamp = 0L;
+    state = FINISHED;
   }
 
-  synchronized MutableSpan setShared() {
-    span.shared(true);
+  /**
+   * Returns the generation to pass to mutations on behalf of the context, or {@link #STALE} if the
+   * span was recycled for another one since it was looked up.
+   */
+  int generation(TraceContext context) {
+    int result = generation; // read before the IDs, which reset writes first
+    if (spanId != context.spanId() || traceId != context.traceId()
+        || traceIdHigh != context.traceIdHigh()) {
+      return STALE;
+    }
+    return result;
+  }
+
+  /**
+   * Returns false if the span was already finished, or recycled since the caller read the
+   * generation, in which case the caller must not write.
+   */
+  boolean beginWrite(int generation) {
+    for (int yields = 0; ; ) {
+      int current = state;
+      if (current == IDLE) {
+        if (STATE.compareAndSet(this, IDLE, WRITING)) {
+          if (this.generation == generation) return true;
+          STATE.lazySet(this, IDLE); // this belongs to another span now
+          return false;
+        }
+      } else if (current == FINISHED) {
+        return false;
+      } else if (yields++ < MAX_YIELDS) {
+        Thread.yield(); // another thread is mid-mutation
+      } else {
+        LockSupport.parkNanos(this, PARK_NANOS); // the other thread is likely descheduled
+      }
+    }
+  }
+
+  /** An ordered write suffices to publish our writes to the next thread that claims the span. */
+  void endWrite() {
+    STATE.lazySet(this, IDLE);
+  }
+
+  MutableSpan start(int generation) {
+    return start(generation, clock.currentTimeMicroseconds());
+  }
+
+  MutableSpan setShared(int generation) {
+    if (!beginWrite(generation)) return this;
+    try {
+      span.shared(true);
+    } finally {
+      endWrite();
+    }
     return this;
   }
 
-  synchronized MutableSpan start(long timestamp) {
-    span.timestamp(this.timestamp = timestamp);
+  MutableSpan start(int generation, long timestamp) {
+    if (!beginWrite(generation)) return this;
+    try {
+      span.timestamp(this.timestamp = timestamp);
+    } finally {
+      endWrite();
+    }
     return this;
   }
 
-  synchronized MutableSpan name(String name) {
-    span.name(name);
+  MutableSpan name(int generation, String name) {
+    if (!beginWrite(generation)) return this;
+    try {
+      span.name(name);
+    } finally {
+      endWrite();
+    }
     return this;
   }
 
-  synchronized MutableSpan kind(Span.Kind kind) {
+  MutableSpan kind(int generation, Span.Kind kind) {
+    zipkin2.Span.Kind zipkinKind;
     try {
-      span.kind(zipkin2.Span.Kind.valueOf(kind.name()));
+      zipkinKind = zipkin2.Span.Kind.valueOf(kind.name());
     } catch (IllegalArgumentException e) {
       // TODO: log
+      return this;
+    }
+    if (!beginWrite(generation)) return this;
+    try {
+      span.kind(zipkinKind);
+    } finally {
+      endWrite();
     }
     return this;
   }
 
-  MutableSpan annotate(String value) {
-    return annotate(clock.currentTimeMicroseconds(), value);
+  MutableSpan annotate(int generation, String value) {
+    return annotate(generation, clock.currentTimeMicroseconds(), value);
   }
 
-  synchronized MutableSpan annotate(long timestamp, String value) {
-    if ("cs".equals(value)) {
-      span.kind(zipkin2.Span.Kind.CLIENT).timestamp(this.timestamp = timestamp);
-    } else if ("sr".equals(value)) {
-      span.kind(zipkin2.Span.Kind.SERVER).timestamp(this.timestamp = timestamp);
-    } else if ("cr".equals(value)) {
-      span.kind(zipkin2.Span.Kind.CLIENT);
-      finish(timestamp);
-    } else if ("ss".equals(value)) {
-      span.kind(zipkin2.Span.Kind.SERVER);
-      finish(timestamp);
-    } else {
-      span.addAnnotation(timestamp, value);
+  MutableSpan annotate(int generation, long timestamp, String value) {
+    if (!beginWrite(generation)) return this;
+    try {
+      if ("cs".equals(value)) {
+        span.kind(zipkin2.Span.Kind.CLIENT).timestamp(this.timestamp = timestamp);
+      } else if ("sr".equals(value)) {
+        span.kind(zipkin2.Span.Kind.SERVER).timestamp(this.timestamp = timestamp);
+      } else if ("cr".equals(value)) {
+        span.kind(zipkin2.Span.Kind.CLIENT);
+        recordDuration(timestamp);
+      } else if ("ss".equals(value)) {
+        span.kind(zipkin2.Span.Kind.SERVER);
+        recordDuration(timestamp);
+      } else {
+        span.addAnnotation(timestamp, value);
+      }
+    } finally {
+      endWrite();
     }
     return this;
   }
 
-  synchronized MutableSpan tag(String key, String value) {
-    span.putTag(key, value);
+  MutableSpan tag(int generation, String key, String value) {
+    if (!beginWrite(generation)) return this;
+    try {
+      span.putTag(key, value);
+    } finally {
+      endWrite();
+    }
     return this;
   }
 
-  synchronized MutableSpan remoteEndpoint(Endpoint remoteEndpoint) {
-    span.remoteEndpoint(remoteEndpoint);
+  MutableSpan remoteEndpoint(int generation, Endpoint remoteEndpoint) {
+    if (!beginWrite(generation)) return this;
+    try {
+      span.remoteEndpoint(remoteEndpoint);
+    } finally {
+      endWrite();
+    }
     return this;
   }
 
-  /** Completes and reports the span */
-  synchronized MutableSpan finish(@Nullable Long finishTimestamp) {
-    if (finished) return this;
+  /**
+   * Completes the span, returning its data to report. This returns null if the span was already
+   * finished, for example by another thread. Only call this after removing the span from its map,
+   * so that it can't have been recycled in the mean time.
+   */
+  @Nullable zipkin2.Span finish(@Nullable Long finishTimestamp) {
+    if (!beginWrite(generation)) return null;
+    try {
+      recordDuration(finishTimestamp);
+      return span.build();
+    } finally {
+      STATE.lazySet(this, FINISHED);
+    }
+  }
+
+  void recordDuration(@Nullable Long finishTimestamp) {
+    if (finished) return;
     finished = true;
 
     if (timestamp != 0 && finishTimestamp != null) {
       span.duration(Math.max(finishTimestamp - timestamp, 1));
     }
-    return this;
   }
 
-  synchronized zipkin2.Span toSpan() {
-    return span.build();
+  /** Returns a snapshot of data recorded so far, or null if the span was already finished. */
+  @Nullable zipkin2.Span toSpan() {
+    if (!beginWrite(generation)) return null;
+    try {
+      return span.build();
+    } finally {
+      endWrite();
+    }
   }
 }
@@ -3,11 +3,8 @@ package brave.internal.recorder;
 import brave.Clock;
 import brave.internal.Nullable;
 import brave.propagation.TraceContext;
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.WeakReference;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.io.Closeable;
+import java.util.Collection;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -15,43 +12,44 @@ import zipkin2.Endpoint;
 import zipkin2.reporter.Reporter;
 
 /**
- * Similar to Finagle's deadline span map, except this is GC pressure as opposed to timeout driven.
- * This means there's no bookkeeping thread required in order to flush orphaned spans.
+ * Holds spans that are in-progress, reporting those orphaned when instrumentation forgot to finish
+ * them. Spans in this state will have a "brave.flush" annotation added to them.
  *
- * <p>Spans are weakly referenced by their owning context. When the keys are collected, they are
- * transferred to a queue, waiting to be reported. A call to modify any span will implicitly flush
- * orphans to Zipkin. Spans in this state will have a "brave.flush" annotation added to them.
- *
- * <p>The internal implementation is derived from WeakConcurrentMap by Rafael Winterhalter. See
- * https://github.com/raphw/weak-lock-free/blob/master/src/main/java/com/blogspot/mydailyjava/weaklockfree/WeakConcurrentMap.java
+ * <p>How orphans are detected is implementation specific. See {@link WeakMutableSpanMap} and
+ * {@link DeadlineMutableSpanMap}.
  */
-final class MutableSpanMap extends ReferenceQueue<TraceContext> {
+abstract class MutableSpanMap implements Closeable {
   static final Logger logger = Logger.getLogger(MutableSpanMap.class.getName());
 
-  // Eventhough we only put by RealKey, we allow get and remove by LookupKey
-  final ConcurrentMap<Object, MutableSpan> delegate = new ConcurrentHashMap<Object, MutableSpan>(64);
   final Endpoint endpoint;
   final Clock clock;
   final Reporter<zipkin2.Span> reporter;
   final AtomicBoolean noop;
+  @Nullable final MutableSpanPool pool;
 
   MutableSpanMap(
       Endpoint endpoint,
       Clock clock,
       Reporter<zipkin2.Span> reporter,
-      AtomicBoolean noop
+      AtomicBoolean noop,
+      @Nullable MutableSpanPool pool
   ) {
     this.endpoint = endpoint;
     this.clock = clock;
     this.reporter = reporter;
     this.noop = noop;
+    this.pool = pool;
   }
 
-  @Nullable MutableSpan get(TraceContext context) {
-    if (context == null) throw new NullPointerException("context == null");
-    reportOrphanedSpans();
-    return delegate.get(new LookupKey(context));
-  }
+  @Nullable abstract MutableSpan get(TraceContext context);
+
+  /** Returns the span already present, or null if the input was added. */
+  @Nullable abstract MutableSpan putIfAbsent(TraceContext context, MutableSpan span);
+
+  @Nullable abstract MutableSpan remove(TraceContext context);
+
+  /** Spans that are in-progress, mostly for testing. */
+  abstract Collection<MutableSpan> values();
 
   MutableSpan getOrCreate(TraceContext context) {
     MutableSpan result = get(context);
@@ -63,101 +61,44 @@ final class MutableSpanMap extends ReferenceQueue<TraceContext> {
       clock = new TickClock(this.clock.currentTimeMicroseconds(), System.nanoTime());
     }
 
-    MutableSpan newSpan = new MutableSpan(clock, context, endpoint);
-    MutableSpan previousSpan = delegate.putIfAbsent(new RealKey(context, this), newSpan);
-    if (previousSpan != null) return previousSpan; // lost race
+    MutableSpan newSpan = pool != null
+        ? pool.acquire(clock, context, endpoint)
+        : new MutableSpan(clock, context, endpoint);
+    MutableSpan previousSpan = putIfAbsent(context, newSpan);
+    if (previousSpan != null) { // lost race
+      release(newSpan);
+      return previousSpan;
+    }
     return newSpan;
   }
 
   /** Trace contexts are equal only on trace ID and span ID. try to get the parent's clock */
-  @Nullable Clock maybeClockFromParent(TraceContext context) {
-    long parentId = context.parentIdAsLong();
-    if (parentId == 0L) return null;
-    MutableSpan parent = delegate.get(new LookupKey(context.toBuilder().spanId(parentId).build()));
-    return parent != null ? parent.clock : null;
-  }
+  @Nullable abstract Clock maybeClockFromParent(TraceContext context);
 
-  @Nullable MutableSpan remove(TraceContext context) {
-    if (context == null) throw new NullPointerException("context == null");
-    MutableSpan result = delegate.remove(new LookupKey(context));
-    reportOrphanedSpans(); // also clears the reference relating to the recent remove
-    return result;
-  }
-
-  /** Reports spans orphaned by garbage collection. */
-  void reportOrphanedSpans() {
-    Reference<? extends TraceContext> reference;
-    while ((reference = poll()) != null) {
-      TraceContext context = reference.get();
-      MutableSpan value = delegate.remove(reference);
-      if (value == null || noop.get()) continue;
+  /** Adds a "brave.flush" annotation to the span and reports it, unless tracing is disabled. */
+  void flushOrphan(@Nullable TraceContext context, MutableSpan value) {
+    if (!noop.get()) {
       try {
-        value.annotate(value.clock.currentTimeMicroseconds(), "brave.flush");
-        reporter.report(value.toSpan());
+        value.annotate(value.generation, value.clock.currentTimeMicroseconds(), "brave.flush");
+        zipkin2.Span span = value.finish(null);
+        if (span != null) reporter.report(span);
       } catch (RuntimeException e) {
         // don't crash the caller if there was a problem reporting an unrelated span.
-        if (context != null && logger.isLoggable(Level.FINE)) {
-          logger.log(Level.FINE, "error flushing " + context, e);
+        if (logger.isLoggable(Level.FINE)) {
+          logger.log(Level.FINE, "error flushing " + (context != null ? context : value), e);
         }
       }
     }
+    release(value);
   }
 
-  /**
-   * Real keys contain a reference to the real context associated with a span. This is a weak
-   * reference, so that we get notified on GC pressure.
-   *
-   * <p>Since {@linkplain TraceContext}'s hash code is final, it is used directly both here and in
-   * lookup keys.
-   */
-  static final class RealKey extends WeakReference<TraceContext> {
-    final int hashCode;
-
-    RealKey(TraceContext context, ReferenceQueue<TraceContext> queue) {
-      super(context, queue);
-      hashCode = context.hashCode();
-    }
-
-    @Override public String toString() {
-      TraceContext context = get();
-      return context != null ? "WeakReference(" + context + ")" : "ClearedReference()";
-    }
-
-    @Override public int hashCode() {
-      return this.hashCode;
-    }
-
-    /** Resolves hash code collisions */
-    @Override public boolean equals(Object other) {
-      TraceContext thisContext = get(), thatContext = ((RealKey) other).get();
-      if (thisContext == null) {
-        return thatContext == null;
-      } else {
-        return thisContext.equals(thatContext);
-      }
-    }
+  /** Returns the span to the pool, if there is one, once its data is no longer needed. */
+  void release(MutableSpan span) {
+    if (pool != null) pool.release(span);
   }
 
-  /**
-   * Lookup keys are cheaper than real keys as reference tracking is not involved. We cannot use
-   * {@linkplain TraceContext} directly as a lookup key, as eventhough it has the same hash code as
-   * the real key, it would fail in equals comparison.
-   */
-  static final class LookupKey {
-    final TraceContext context;
-
-    LookupKey(TraceContext context) {
-      this.context = context;
-    }
-
-    @Override public int hashCode() {
-      return context.hashCode();
-    }
-
-    /** Resolves hash code collisions */
-    @Override public boolean equals(Object other) {
-      return context.equals(((RealKey) other).get());
-    }
+  /** Stops any background work. Spans in-progress are not flushed. */
+  @Override public void close() {
   }
 
   static final class TickClock implements Clock {
@@ -180,8 +121,4 @@ final class MutableSpanMap extends ReferenceQueue<TraceContext> {
           + "}";
     }
   }
-
-  @Override public String toString() {
-    return "MutableSpanMap" + delegate.keySet();
-  }
 }
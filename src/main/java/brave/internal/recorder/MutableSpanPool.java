@@ -0,0 +1,74 @@
+package brave.internal.recorder;
+
+import brave.Clock;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import zipkin2.Endpoint;
+
+/**
+ * Recycles {@link MutableSpan} instances, which otherwise allocate a span builder and its
+ * annotation list and tag map for every span recorded.
+ *
+ * <p>Spans are often started on one thread and finished on another, so this isn't thread-local.
+ * Instead, slots are striped by thread ID, and a few neighbouring slots are probed before giving
+ * up. A miss on acquire allocates a new span, and a miss on release leaves it for garbage
+ * collection, so the pool never blocks.
+ *
+ * <p>A released span stays finished while idle, and {@link MutableSpan#reset} increments its
+ * generation when it is acquired again. A thread which looked up the span, then lost the race to
+ * claim it with the thread finishing it, holds the old generation, so its write is dropped as
+ * opposed to landing in a span of another trace.
+ */
+final class MutableSpanPool {
+  static final int PROBES = 4;
+
+  final AtomicReferenceArray<MutableSpan> slots;
+  final int mask;
+
+  /** @param size upper bound of idle spans retained, rounded up to a power of two */
+  MutableSpanPool(int size) {
+    if (size <= 0) throw new IllegalArgumentException("size <= 0: " + size);
+    int capacity = Integer.highestOneBit(size);
+    if (capacity < size) capacity <<= 1;
+    slots = new AtomicReferenceArray<MutableSpan>(capacity);
+    mask = capacity - 1;
+  }
+
+  /** Returns a span initialized to the input, allocating one if none are idle. */
+  MutableSpan acquire(Clock clock, TraceContext context, Endpoint localEndpoint) {
+    MutableSpan result = poll();
+    if (result == null) return new MutableSpan(clock, context, localEndpoint);
+    result.reset(clock, context, localEndpoint);
+    return result;
+  }
+
+  @Nullable MutableSpan poll() {
+    int start = stripe();
+    for (int i = 0; i < PROBES; i++) {
+      int index = (start + i) & mask;
+      MutableSpan result = slots.get(index);
+      if (result != null && slots.compareAndSet(index, result, null)) return result;
+    }
+    return null;
+  }
+
+  /** Call only after the span's data was reported or abandoned. */
+  void release(MutableSpan span) {
+    span.recycle();
+    int start = stripe();
+    for (int i = 0; i < PROBES; i++) {
+      int index = (start + i) & mask;
+      if (slots.get(index) == null && slots.compareAndSet(index, null, span)) return;
+    }
+  }
+
+  int stripe() {
+    long id = Thread.currentThread().getId();
+    return (int) (id ^ (id >>> 32)) * PROBES;
+  }
+
+  @Override public String toString() {
+    return "MutableSpanPool{size=" + slots.length() + "}";
+  }
+}
@@ -18,7 +18,26 @@ public final class Recorder {
 	final AtomicBoolean noop;
 
 	public Recorder(Endpoint localEndpoint, Clock clock, Reporter<zipkin2.Span> reporter, AtomicBoolean noop) {
-		this.spanMap = new MutableSpanMap(localEndpoint, clock, reporter, noop);
+		this(localEndpoint, clock, reporter, noop, 0, 0L);
+	}
+
+	/**
+	 * @param spanPoolSize when positive, finished spans are recycled through a
+	 *        pool of this size
+	 * @param maxSpanAgeNanos when positive, spans older than this are reported
+	 *        as orphans by a background thread. Otherwise, orphans are detected
+	 *        when their context is garbage collected.
+	 */
+	public Recorder(Endpoint localEndpoint, Clock clock, Reporter<zipkin2.Span> reporter, AtomicBoolean noop,
+			int spanPoolSize, long maxSpanAgeNanos) {
+		if (spanPoolSize < 0)
+			throw new IllegalArgumentException("spanPoolSize < 0: " + spanPoolSize);
+		if (maxSpanAgeNanos < 0)
+			throw new IllegalArgumentException("maxSpanAgeNanos < 0: " + maxSpanAgeNanos);
+		MutableSpanPool pool = spanPoolSize > 0 ? new MutableSpanPool(spanPoolSize) : null;
+		this.spanMap = maxSpanAgeNanos > 0
+				? new DeadlineMutableSpanMap(localEndpoint, clock, reporter, noop, pool, maxSpanAgeNanos)
+				: new WeakMutableSpanMap(localEndpoint, clock, reporter, noop, pool);
 		this.clock = clock;
 		this.reporter = reporter;
 		this.noop = noop;
@@ -41,21 +60,24 @@ public final class Recorder {
 	public void setShared(TraceContext context) {
 		if (noop.get())
 			return;
-		spanMap.getOrCreate(context).setShared();
+		MutableSpan span = spanMap.getOrCreate(context);
+		span.setShared(span.generation(context));
 	}
 
 	/** @see brave.Span#start() */
 	public void start(TraceContext context) {
 		if (noop.get())
 			return;
-		spanMap.getOrCreate(context).start();
+		MutableSpan span = spanMap.getOrCreate(context);
+		span.start(span.generation(context));
 	}
 
 	/** @see brave.Span#start(long) */
 	public void start(TraceContext context, long timestamp) {
 		if (noop.get())
 			return;
-		spanMap.getOrCreate(context).start(timestamp);
+		MutableSpan span = spanMap.getOrCreate(context);
+		span.start(span.generation(context), timestamp);
 	}
 
 	/** @see brave.Span#name(String) */
@@ -64,7 +86,8 @@ public final class Recorder {
 			return;
 		if (name == null)
 			throw new NullPointerException("name == null");
-		spanMap.getOrCreate(context).name(name);
+		MutableSpan span = spanMap.getOrCreate(context);
+		span.name(span.generation(context), name);
 	}
 
 	/** @see brave.Span#kind(Span.Kind) */
@@ -73,7 +96,8 @@ public final class Recorder {
 			return;
 		if (kind == null)
 			throw new NullPointerException("kind == null");
-		spanMap.getOrCreate(context).kind(kind);
+		MutableSpan span = spanMap.getOrCreate(context);
+		span.kind(span.generation(context), kind);
 	}
 
 	/** @see brave.Span#annotate(String) */
@@ -82,7 +106,8 @@ public final class Recorder {
 			return;
 		if (value == null)
 			throw new NullPointerException("value == null");
-		spanMap.getOrCreate(context).annotate(value);
+		MutableSpan span = spanMap.getOrCreate(context);
+		span.annotate(span.generation(context), value);
 	}
 
 	/** @see brave.Span#annotate(long, String) */
@@ -91,7 +116,8 @@ public final class Recorder {
 			return;
 		if (value == null)
 			throw new NullPointerException("value == null");
-		spanMap.getOrCreate(context).annotate(timestamp, value);
+		MutableSpan span = spanMap.getOrCreate(context);
+		span.annotate(span.generation(context), timestamp, value);
 	}
 
 	/** @see brave.Span#tag(String, String) */
@@ -104,7 +130,8 @@ public final class Recorder {
 			throw new IllegalArgumentException("key is empty");
 		if (value == null)
 			throw new NullPointerException("value == null");
-		spanMap.getOrCreate(context).tag(key, value);
+		MutableSpan span = spanMap.getOrCreate(context);
+		span.tag(span.generation(context), key, value);
 	}
 
 	/** @see brave.Span#remoteEndpoint(Endpoint) */
@@ -113,52 +140,65 @@ public final class Recorder {
 			return;
 		if (remoteEndpoint == null)
 			throw new NullPointerException("remoteEndpoint == null");
-		spanMap.getOrCreate(context).remoteEndpoint(remoteEndpoint);
+		MutableSpan span = spanMap.getOrCreate(context);
+		span.remoteEndpoint(span.generation(context), remoteEndpoint);
 	}
 
 	/** @see Span#finish() */
 	public void finish(TraceContext context) {
 		MutableSpan span = spanMap.remove(context);
-		if (span == null || noop.get())
+		if (span == null)
 			return;
-		synchronized (span) {
-			span.finish(span.clock.currentTimeMicroseconds());
-			reporter.report(span.toSpan());
-		}
+		if (!noop.get())
+			report(span.finish(span.clock.currentTimeMicroseconds()));
+		spanMap.release(span);
 	}
 
 	/** @see Span#finish(long) */
 	public void finish(TraceContext context, long finishTimestamp) {
 		MutableSpan span = spanMap.remove(context);
-		if (span == null || noop.get())
+		if (span == null)
 			return;
-		synchronized (span) {
-			span.finish(finishTimestamp);
-			reporter.report(span.toSpan());
-		}
+		if (!noop.get())
+			report(span.finish(finishTimestamp));
+		spanMap.release(span);
 	}
 
 	/** @see Span#abandon() */
 	public void abandon(TraceContext context) {
-		spanMap.remove(context);
+		MutableSpan span = spanMap.remove(context);
+		if (span != null)
+			spanMap.release(span);
 	}
 
 	/** @see Span#flush() */
 	public void flush(TraceContext context) {
 		MutableSpan span = spanMap.remove(context);
-		if (span == null || noop.get())
+		if (span == null)
 			return;
-		synchronized (span) {
-			span.finish(null);
-			reporter.report(span.toSpan());
-		}
+		if (!noop.get())
+			report(span.finish(null));
+		spanMap.release(span);
+	}
+
+	/** Reports outside any lock, as the span was handed off by finishing it. */
+	void report(zipkin2.Span span) {
+		if (span != null)
+			reporter.report(span);
+	}
+
+	/** Stops any background work, such as reporting orphaned spans by age. */
+	public void close() {
+		spanMap.close();
 	}
 
 	/** Exposes which spans are in-flight, mostly for testing. */
 	public List<zipkin2.Span> snapshot() {
 		List<zipkin2.Span> result = new ArrayList<zipkin2.Span>();
-		for (MutableSpan value : spanMap.delegate.values()) {
-			result.add(value.toSpan());
+		for (MutableSpan value : spanMap.values()) {
+			zipkin2.Span span = value.toSpan();
+			if (span != null)
+				result.add(span);
 		}
 		return result;
 	}
@@ -0,0 +1,204 @@
+package brave.internal.recorder;
+
+import brave.internal.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent map keyed on the primitive IDs of a span: {@code (traceIdHigh, traceId, spanId)}.
+ * Unlike a {@link java.util.concurrent.ConcurrentHashMap}, looking up a span doesn't allocate a
+ * key object, nor does it dereference anything besides the entry itself.
+ *
+ * <p>Entries are spread across segments, each an open-addressing table with linear probing.
+ * Reads are lock-free: a table is an array of immutable entries, replaced wholesale when resized.
+ * Writes lock only the segment they hash to. Removed entries are replaced by a tombstone, so that
+ * probing continues past them, until the next resize discards it.
+ */
+final class SpanIdMap<V> {
+  static final int SEGMENT_BITS = 4, SEGMENTS = 1 << SEGMENT_BITS;
+  static final int INITIAL_CAPACITY = 16; // per segment
+  static final Object TOMBSTONE = new Object();
+
+  final Segment<V>[] segments;
+
+  SpanIdMap() {
+    segments = newSegments(SEGMENTS);
+    for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment<V>();
+  }
+
+  @SuppressWarnings("unchecked") // generic array creation: only ever holds Segment<V>
+  static <V> Segment<V>[] newSegments(int length) {
+    return (Segment<V>[]) new Segment<?>[length];
+  }
+
+  @Nullable V get(long traceIdHigh, long traceId, long spanId) {
+    int hash = hash(traceIdHigh, traceId, spanId);
+    Entry<V> entry = segmentFor(hash).find(hash, traceIdHigh, traceId, spanId);
+    return entry != null ? entry.value : null;
+  }
+
+  /** Returns the value already present, or null if the input was added. */
+  @Nullable V putIfAbsent(long traceIdHigh, long traceId, long spanId, V value) {
+    if (value == null) throw new NullPointerException("value == null");
+    int hash = hash(traceIdHigh, traceId, spanId);
+    return segmentFor(hash).putIfAbsent(new Entry<V>(hash, traceIdHigh, traceId, spanId, value));
+  }
+
+  @Nullable V remove(long traceIdHigh, long traceId, long spanId) {
+    int hash = hash(traceIdHigh, traceId, spanId);
+    return segmentFor(hash).remove(hash, traceIdHigh, traceId, spanId, null);
+  }
+
+  /** Removes the entry only if it is currently mapped to the value. */
+  boolean remove(long traceIdHigh, long traceId, long spanId, V value) {
+    if (value == null) throw new NullPointerException("value == null");
+    int hash = hash(traceIdHigh, traceId, spanId);
+    return segmentFor(hash).remove(hash, traceIdHigh, traceId, spanId, value) != null;
+  }
+
+  /** Returns a snapshot of entries, for iteration off the hot path. */
+  List<Entry<V>> entries() {
+    List<Entry<V>> result = new ArrayList<Entry<V>>();
+    for (Segment<V> segment : segments) segment.addEntriesTo(result);
+    return result;
+  }
+
+  /** Returns a snapshot of values, for iteration off the hot path. */
+  List<V> values() {
+    List<Entry<V>> entries = entries();
+    List<V> result = new ArrayList<V>(entries.size());
+    for (int i = 0, length = entries.size(); i < length; i++) result.add(entries.get(i).value);
+    return result;
+  }
+
+  int size() {
+    int result = 0;
+    for (Segment<V> segment : segments) result += segment.size;
+    return result;
+  }
+
+  Segment<V> segmentFor(int hash) {
+    return segments[hash >>> (32 - SEGMENT_BITS)];
+  }
+
+  /** Span IDs are usually random, but mix anyway, as the high bits pick the segment. */
+  static int hash(long traceIdHigh, long traceId, long spanId) {
+    long h = spanId ^ (traceId * 31) ^ (traceIdHigh * 961);
+    h *= 0x9E3779B97F4A7C15L; // golden ratio, as used in Fibonacci hashing
+    return (int) (h ^ (h >>> 32));
+  }
+
+  static final class Entry<V> {
+    final int hash;
+    final long traceIdHigh, traceId, spanId;
+    final V value;
+
+    Entry(int hash, long traceIdHigh, long traceId, long spanId, V value) {
+      this.hash = hash;
+      this.traceIdHigh = traceIdHigh;
+      this.traceId = traceId;
+      this.spanId = spanId;
+      this.value = value;
+    }
+
+    boolean matches(int hash, long traceIdHigh, long traceId, long spanId) {
+      return this.hash == hash
+          && this.spanId == spanId
+          && this.traceId == traceId
+          && this.traceIdHigh == traceIdHigh;
+    }
+
+    @Override public String toString() {
+      return "Entry{traceIdHigh=" + traceIdHigh + ", traceId=" + traceId + ", spanId=" + spanId
+          + ", value=" + value + "}";
+    }
+  }
+
+  /** Reads are lock-free, while writes hold the segment's monitor. */
+  @SuppressWarnings("unchecked") // table elements are either Entry<V> or TOMBSTONE
+  static final class Segment<V> {
+    volatile AtomicReferenceArray<Object> table =
+        new AtomicReferenceArray<Object>(INITIAL_CAPACITY);
+    volatile int size; // written under lock, volatile so size() doesn't need it
+    int tombstones; // guarded by this
+
+    @Nullable Entry<V> find(int hash, long traceIdHigh, long traceId, long spanId) {
+      AtomicReferenceArray<Object> table = this.table;
+      int mask = table.length() - 1;
+      for (int i = hash & mask; ; i = (i + 1) & mask) {
+        Object slot = table.get(i);
+        if (slot == null) return null; // tables always have a free slot, see ensureCapacity
+        if (slot == TOMBSTONE) continue;
+        Entry<V> entry = (Entry<V>) slot;
+        if (entry.matches(hash, traceIdHigh, traceId, spanId)) return entry;
+      }
+    }
+
+    synchronized V putIfAbsent(Entry<V> input) {
+      Entry<V> existing = find(input.hash, input.traceIdHigh, input.traceId, input.spanId);
+      if (existing != null) return existing.value;
+      ensureCapacity();
+      AtomicReferenceArray<Object> table = this.table;
+      int mask = table.length() - 1;
+      for (int i = input.hash & mask; ; i = (i + 1) & mask) {
+        Object slot = table.get(i);
+        if (slot == null || slot == TOMBSTONE) {
+          if (slot == TOMBSTONE) tombstones--;
+          table.set(i, input);
+          size++;
+          return null;
+        }
+      }
+    }
+
+    /** When expected is non-null, only removes if the entry's value is the same instance. */
+    synchronized V remove(int hash, long traceIdHigh, long traceId, long spanId, V expected) {
+      AtomicReferenceArray<Object> table = this.table;
+      int mask = table.length() - 1;
+      for (int i = hash & mask; ; i = (i + 1) & mask) {
+        Object slot = table.get(i);
+        if (slot == null) return null;
+        if (slot == TOMBSTONE) continue;
+        Entry<V> entry = (Entry<V>) slot;
+        if (!entry.matches(hash, traceIdHigh, traceId, spanId)) continue;
+        if (expected != null && entry.value != expected) return null;
+        table.set(i, TOMBSTONE);
+        tombstones++;
+        size--;
+        return entry.value;
+      }
+    }
+
+    /** Keeps the load factor at or below one half, counting tombstones as used. */
+    void ensureCapacity() {
+      AtomicReferenceArray<Object> table = this.table;
+      if ((size + tombstones + 1) * 2 <= table.length()) return;
+      int capacity = INITIAL_CAPACITY;
+      while (capacity < (size + 1) * 4) capacity <<= 1; // leave room to grow before the next resize
+      AtomicReferenceArray<Object> newTable = new AtomicReferenceArray<Object>(capacity);
+      int mask = capacity - 1;
+      for (int i = 0, length = table.length(); i < length; i++) {
+        Object slot = table.get(i);
+        if (slot == null || slot == TOMBSTONE) continue;
+        int j = ((Entry<V>) slot).hash & mask;
+        while (newTable.get(j) != null) j = (j + 1) & mask;
+        newTable.set(j, slot);
+      }
+      tombstones = 0;
+      this.table = newTable; // publish after it is fully populated
+    }
+
+    void addEntriesTo(List<Entry<V>> out) {
+      AtomicReferenceArray<Object> table = this.table;
+      for (int i = 0, length = table.length(); i < length; i++) {
+        Object slot = table.get(i);
+        if (slot != null && slot != TOMBSTONE) out.add((Entry<V>) slot);
+      }
+    }
+  }
+
+  @Override public String toString() {
+    return "SpanIdMap{size=" + size() + "}";
+  }
+}
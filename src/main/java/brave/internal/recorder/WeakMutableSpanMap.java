@@ -0,0 +1,117 @@
+package brave.internal.recorder;
+
+import brave.Clock;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import zipkin2.Endpoint;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Similar to Finagle's deadline span map, except this is GC pressure as opposed to timeout driven.
+ * This means there's no bookkeeping thread required in order to flush orphaned spans.
+ *
+ * <p>Spans are weakly referenced by their owning context. When the keys are collected, they are
+ * transferred to a queue, waiting to be reported. A call to modify any span will implicitly flush
+ * orphans to Zipkin.
+ *
+ * <p>Lookups are by the span's IDs, so don't allocate or dereference the weak reference.
+ *
+ * <p>The internal implementation is derived from WeakConcurrentMap by Rafael Winterhalter. See
+ * https://github.com/raphw/weak-lock-free/blob/master/src/main/java/com/blogspot/mydailyjava/weaklockfree/WeakConcurrentMap.java
+ */
+final class WeakMutableSpanMap extends MutableSpanMap {
+  final SpanIdMap<RealKey> delegate = new SpanIdMap<RealKey>();
+  final ReferenceQueue<TraceContext> queue = new ReferenceQueue<TraceContext>();
+
+  WeakMutableSpanMap(
+      Endpoint endpoint,
+      Clock clock,
+      Reporter<zipkin2.Span> reporter,
+      AtomicBoolean noop,
+      @Nullable MutableSpanPool pool
+  ) {
+    super(endpoint, clock, reporter, noop, pool);
+  }
+
+  @Override @Nullable MutableSpan get(TraceContext context) {
+    if (context == null) throw new NullPointerException("context == null");
+    reportOrphanedSpans();
+    RealKey result = delegate.get(context.traceIdHigh(), context.traceId(), context.spanId());
+    return result != null ? result.span : null;
+  }
+
+  @Override @Nullable MutableSpan putIfAbsent(TraceContext context, MutableSpan span) {
+    RealKey previous = delegate.putIfAbsent(context.traceIdHigh(), context.traceId(),
+        context.spanId(), new RealKey(context, span, queue));
+    return previous != null ? previous.span : null;
+  }
+
+  @Override @Nullable Clock maybeClockFromParent(TraceContext context) {
+    long parentId = context.parentIdAsLong();
+    if (parentId == 0L) return null;
+    RealKey parent = delegate.get(context.traceIdHigh(), context.traceId(), parentId);
+    return parent != null ? parent.span.clock : null;
+  }
+
+  @Override @Nullable MutableSpan remove(TraceContext context) {
+    if (context == null) throw new NullPointerException("context == null");
+    RealKey result = delegate.remove(context.traceIdHigh(), context.traceId(), context.spanId());
+    reportOrphanedSpans();
+    if (result == null) return null;
+    result.clear(); // the span is no longer orphaned, so don't enqueue it on collection
+    return result.span;
+  }
+
+  @Override Collection<MutableSpan> values() {
+    List<RealKey> keys = delegate.values();
+    List<MutableSpan> result = new ArrayList<MutableSpan>(keys.size());
+    for (int i = 0, length = keys.size(); i < length; i++) result.add(keys.get(i).span);
+    return result;
+  }
+
+  /** Reports spans orphaned by garbage collection. */
+  void reportOrphanedSpans() {
+    Reference<? extends TraceContext> reference;
+    while ((reference = queue.poll()) != null) {
+      RealKey key = (RealKey) reference;
+      // conditional remove, in case the span finished and its IDs were reused concurrently
+      if (!delegate.remove(key.traceIdHigh, key.traceId, key.spanId, key)) continue;
+      flushOrphan(null, key.span);
+    }
+  }
+
+  /**
+   * Real keys contain a reference to the real context associated with a span. This is a weak
+   * reference, so that we get notified on GC pressure.
+   *
+   * <p>The IDs are copied, so that the entry can be removed after the context is collected.
+   */
+  static final class RealKey extends WeakReference<TraceContext> {
+    final long traceIdHigh, traceId, spanId;
+    final MutableSpan span;
+
+    RealKey(TraceContext context, MutableSpan span, ReferenceQueue<TraceContext> queue) {
+      super(context, queue);
+      this.traceIdHigh = context.traceIdHigh();
+      this.traceId = context.traceId();
+      this.spanId = context.spanId();
+      this.span = span;
+    }
+
+    @Override public String toString() {
+      TraceContext context = get();
+      return context != null ? "WeakReference(" + context + ")" : "ClearedReference()";
+    }
+  }
+
+  @Override public String toString() {
+    return "WeakMutableSpanMap" + delegate.values();
+  }
+}
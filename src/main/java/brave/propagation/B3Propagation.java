@@ -4,16 +4,66 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import static brave.internal.HexCodec.toLowerHex;
+import static brave.propagation.B3SingleFormat.parseB3SingleFormat;
+import static brave.propagation.B3SingleFormat.writeB3SingleFormat;
+import static brave.propagation.B3SingleFormat.writeB3SingleFormatWithoutParentId;
 
 /**
  * Implements <a href="https://github.com/openzipkin/b3-propagation">B3 Propagation</a>
+ *
+ * <p>Extraction accepts both the "X-B3-" headers and the compact "b3" header. Use {@link
+ * #newFactoryBuilder()} to change which of these are injected.
  */
 public final class B3Propagation<K> implements Propagation<K> {
 
-  public static final Propagation.Factory FACTORY = new Propagation.Factory() {
+  public static final Propagation.Factory FACTORY = new Factory(Format.MULTI);
+
+  /** Which headers are written on injection. All formats are accepted on extraction. */
+  public enum Format {
+    /** The "X-B3-" prefixed headers, one per field. This is the default. */
+    MULTI,
+    /** The compact "b3" header, including the parent span ID when present. */
+    SINGLE,
+    /** Like {@link #SINGLE}, but skips the parent span ID. */
+    SINGLE_NO_PARENT
+  }
+
+  public static FactoryBuilder newFactoryBuilder() {
+    return new FactoryBuilder();
+  }
+
+  public static final class FactoryBuilder {
+    Format injectFormat = Format.MULTI;
+
+    /**
+     * Controls which headers are written downstream. Defaults to {@link Format#MULTI}.
+     *
+     * <p>Use {@link Format#SINGLE} when all receivers accept the "b3" header, as it is one header
+     * to write and one to look up instead of five.
+     */
+    public FactoryBuilder injectFormat(Format injectFormat) {
+      if (injectFormat == null) throw new NullPointerException("injectFormat == null");
+      this.injectFormat = injectFormat;
+      return this;
+    }
+
+    public Propagation.Factory build() {
+      return new Factory(injectFormat);
+    }
+
+    FactoryBuilder() {
+    }
+  }
+
+  static final class Factory extends Propagation.Factory {
+    final Format injectFormat;
+
+    Factory(Format injectFormat) {
+      this.injectFormat = injectFormat;
+    }
+
     @Override public <K> Propagation<K> create(KeyFactory<K> keyFactory) {
-      return new B3Propagation<K>(keyFactory);
+      return new B3Propagation<K>(keyFactory, injectFormat);
     }
 
     @Override public boolean supportsJoin() {
@@ -23,7 +73,13 @@ public final class B3Propagation<K> implements Propagation<K> {
     @Override public String toString() {
       return "B3PropagationFactory";
     }
-  };
+  }
+
+  /**
+   * The compact form of all fields below, as defined by {@link B3SingleFormat}. This is checked
+   * first on extraction.
+   */
+  static final String B3_NAME = "b3";
 
   /**
    * 128 or 64-bit trace ID lower-hex encoded into 32 or 16 characters (required)
@@ -46,22 +102,26 @@ public final class B3Propagation<K> implements Propagation<K> {
    * "1" implies sampled and is a request to override collection-tier sampling policy.
    */
   static final String FLAGS_NAME = "X-B3-Flags";
+  final K b3Key;
   final K traceIdKey;
   final K spanIdKey;
   final K parentSpanIdKey;
   final K sampledKey;
   final K debugKey;
   final List<K> fields;
+  final Format injectFormat;
 
-  B3Propagation(KeyFactory<K> keyFactory) {
+  B3Propagation(KeyFactory<K> keyFactory, Format injectFormat) {
+    this.b3Key = keyFactory.create(B3_NAME);
     this.traceIdKey = keyFactory.create(TRACE_ID_NAME);
     this.spanIdKey = keyFactory.create(SPAN_ID_NAME);
     this.parentSpanIdKey = keyFactory.create(PARENT_SPAN_ID_NAME);
     this.sampledKey = keyFactory.create(SAMPLED_NAME);
     this.debugKey = keyFactory.create(FLAGS_NAME);
     this.fields = Collections.unmodifiableList(
-        Arrays.asList(traceIdKey, spanIdKey, parentSpanIdKey, sampledKey, debugKey)
+        Arrays.asList(b3Key, traceIdKey, spanIdKey, parentSpanIdKey, sampledKey, debugKey)
     );
+    this.injectFormat = injectFormat;
   }
 
   @Override public List<K> keys() {
@@ -83,12 +143,20 @@ public final class B3Propagation<K> implements Propagation<K> {
     }
 
     @Override public void inject(TraceContext traceContext, C carrier) {
-      setter.put(carrier, propagation.traceIdKey, traceContext.traceIdString());
-      setter.put(carrier, propagation.spanIdKey, toLowerHex(traceContext.spanId()));
-      long parentId = traceContext.parentIdAsLong();
-      if (parentId != 0L) {
-        setter.put(carrier, propagation.parentSpanIdKey, toLowerHex(parentId));
+      switch (propagation.injectFormat) {
+        case SINGLE:
+          setter.put(carrier, propagation.b3Key, writeB3SingleFormat(traceContext));
+          return;
+        case SINGLE_NO_PARENT:
+          setter.put(carrier, propagation.b3Key,
+              writeB3SingleFormatWithoutParentId(traceContext));
+          return;
+        default:
       }
+      setter.put(carrier, propagation.traceIdKey, traceContext.traceIdString());
+      setter.put(carrier, propagation.spanIdKey, traceContext.spanIdString());
+      String parentId = traceContext.parentIdString();
+      if (parentId != null) setter.put(carrier, propagation.parentSpanIdKey, parentId);
       if (traceContext.debug()) {
         setter.put(carrier, propagation.debugKey, "1");
       } else if (traceContext.sampled() != null) {
@@ -113,6 +181,15 @@ public final class B3Propagation<K> implements Propagation<K> {
 
     @Override public TraceContextOrSamplingFlags extract(C carrier) {
       if (carrier == null) throw new NullPointerException("carrier == null");
+
+      // A single lookup is enough when the caller sent the compact form. Otherwise, or if it was
+      // malformed, fall back to the multi-header form.
+      String b3 = getter.get(carrier, propagation.b3Key);
+      if (b3 != null) {
+        TraceContextOrSamplingFlags result = parseB3SingleFormat(b3);
+        if (result != null) return result;
+      }
+
       // Start by looking at the sampled state as this is used regardless
       // Official sampled value is 1, though some old instrumentation send true
       String sampled = getter.get(carrier, propagation.sampledKey);
@@ -0,0 +1,200 @@
+package brave.propagation;
+
+import brave.internal.Nullable;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static brave.internal.HexCodec.lenientLowerHexToUnsignedLong;
+import static brave.internal.HexCodec.writeHexLong;
+import static brave.propagation.SamplingFlags.FLAG_DEBUG;
+import static brave.propagation.SamplingFlags.FLAG_SAMPLED;
+import static brave.propagation.SamplingFlags.FLAG_SAMPLED_SET;
+
+/**
+ * Implements the compact "b3" header: {@code {traceId}-{spanId}-{samplingState}-{parentSpanId}},
+ * where the last two fields are optional. The header can also hold only the sampling state, such
+ * as "0", when no trace is being propagated.
+ *
+ * <p>Unlike the multi-header form, this needs only one lookup per request. Parsing reads hex
+ * directly from the input, so no substrings are allocated.
+ *
+ * <p>Examples:
+ * <pre><ul>
+ *   <li>80f198ee56343ba864fe8b2a57d3eff7-e457b5a2e4d86bd1-1-05e3ac9a4f6e3b90</li>
+ *   <li>e457b5a2e4d86bd1-e457b5a2e4d86bd1-d</li>
+ *   <li>0</li>
+ * </ul></pre>
+ *
+ * @see B3Propagation
+ */
+public final class B3SingleFormat {
+  static final Logger LOG = Logger.getLogger(B3SingleFormat.class.getName());
+  static final int FORMAT_MAX_LENGTH = 32 + 1 + 16 + 2 + 2 + 16; // traceid128-spanid-1-parentid
+
+  /** Writes all B3 fields, including the parent span ID when present. */
+  public static String writeB3SingleFormat(TraceContext context) {
+    char[] result = new char[FORMAT_MAX_LENGTH];
+    int length = writeB3SingleFormat(context, context.parentIdAsLong(), result);
+    return new String(result, 0, length);
+  }
+
+  /**
+   * Like {@link #writeB3SingleFormat(TraceContext)}, but skips the parent span ID. This is smaller
+   * on the wire and is fine when the receiver doesn't need it, as is the case for messaging.
+   */
+  public static String writeB3SingleFormatWithoutParentId(TraceContext context) {
+    char[] result = new char[FORMAT_MAX_LENGTH];
+    int length = writeB3SingleFormat(context, 0L, result);
+    return new String(result, 0, length);
+  }
+
+  static int writeB3SingleFormat(TraceContext context, long parentId, char[] result) {
+    int pos = 0;
+    long traceIdHigh = context.traceIdHigh();
+    if (traceIdHigh != 0L) {
+      writeHexLong(result, pos, traceIdHigh);
+      pos += 16;
+    }
+    writeHexLong(result, pos, context.traceId());
+    pos += 16;
+    result[pos++] = '-';
+    writeHexLong(result, pos, context.spanId());
+    pos += 16;
+
+    Boolean sampled = context.sampled();
+    if (context.debug()) {
+      result[pos++] = '-';
+      result[pos++] = 'd';
+    } else if (sampled != null) {
+      result[pos++] = '-';
+      result[pos++] = sampled ? '1' : '0';
+    }
+
+    if (parentId != 0L) {
+      result[pos++] = '-';
+      writeHexLong(result, pos, parentId);
+      pos += 16;
+    }
+    return pos;
+  }
+
+  /** Returns null on malformed input. */
+  @Nullable public static TraceContextOrSamplingFlags parseB3SingleFormat(CharSequence b3) {
+    return parseB3SingleFormat(b3, 0, b3.length());
+  }
+
+  /**
+   * Parses the "b3" format between the indexes given, so that callers holding a larger buffer,
+   * such as a raw header line, need not copy out the value first.
+   *
+   * @param beginIndex the start index, inclusive
+   * @param endIndex the end index, exclusive
+   * @return null on malformed input
+   */
+  @Nullable public static TraceContextOrSamplingFlags parseB3SingleFormat(CharSequence b3,
+      int beginIndex, int endIndex) {
+    int length = endIndex - beginIndex;
+    if (length == 1) { // sampling state only
+      int flags = parseFlags(b3, beginIndex);
+      if (flags == 0) return null;
+      return TraceContextOrSamplingFlags.create(
+          (flags & FLAG_DEBUG) != 0 ? SamplingFlags.DEBUG
+              : (flags & FLAG_SAMPLED) != 0 ? SamplingFlags.SAMPLED : SamplingFlags.NOT_SAMPLED
+      );
+    }
+
+    // The trace ID is either 16 or 32 characters, followed by a hyphen and a 16 character span ID
+    int traceIdLength = indexOfHyphen(b3, beginIndex, endIndex) - beginIndex;
+    if (traceIdLength != 16 && traceIdLength != 32) {
+      maybeLog("Invalid input: expected a 16 or 32 character trace ID", b3, beginIndex, endIndex);
+      return null;
+    }
+
+    int pos = beginIndex;
+    long traceIdHigh = 0L;
+    if (traceIdLength == 32) {
+      traceIdHigh = lenientLowerHexToUnsignedLong(b3, pos, pos + 16);
+      if (traceIdHigh == 0L) return notLowerHex("trace ID", b3, beginIndex, endIndex);
+      pos += 16;
+    }
+    long traceId = lenientLowerHexToUnsignedLong(b3, pos, pos + 16);
+    if (traceId == 0L) return notLowerHex("trace ID", b3, beginIndex, endIndex);
+    pos += 17; // skip the hyphen
+
+    if (pos + 16 > endIndex) {
+      maybeLog("Invalid input: truncated span ID", b3, beginIndex, endIndex);
+      return null;
+    }
+    long spanId = lenientLowerHexToUnsignedLong(b3, pos, pos + 16);
+    if (spanId == 0L) return notLowerHex("span ID", b3, beginIndex, endIndex);
+    pos += 16;
+
+    int flags = 0;
+    long parentId = 0L;
+    if (pos < endIndex) {
+      if (b3.charAt(pos++) != '-' || pos == endIndex) {
+        maybeLog("Invalid input: expected a hyphen after the span ID", b3, beginIndex, endIndex);
+        return null;
+      }
+      // The sampling state is a single character, but is absent when the decision is deferred
+      boolean parentIdPresent = true;
+      if (pos + 1 == endIndex || b3.charAt(pos + 1) == '-') {
+        flags = parseFlags(b3, pos);
+        if (flags == 0) return null;
+        parentIdPresent = pos + 1 != endIndex;
+        pos += 2; // skip the sampling state and the hyphen before the parent, if present
+      }
+      if (parentIdPresent) {
+        if (pos + 16 != endIndex) {
+          maybeLog("Invalid input: expected a 16 character parent ID", b3, beginIndex, endIndex);
+          return null;
+        }
+        parentId = lenientLowerHexToUnsignedLong(b3, pos, endIndex);
+        if (parentId == 0L) return notLowerHex("parent ID", b3, beginIndex, endIndex);
+      }
+    }
+
+    return TraceContextOrSamplingFlags.create(new TraceContext(
+        flags, traceIdHigh, traceId, parentId, spanId, Collections.<Object>emptyList()
+    ));
+  }
+
+  /** Returns zero if the sampling state is invalid. */
+  static int parseFlags(CharSequence b3, int pos) {
+    char sampledChar = b3.charAt(pos);
+    if (sampledChar == 'd') {
+      return FLAG_SAMPLED_SET | FLAG_SAMPLED | FLAG_DEBUG;
+    } else if (sampledChar == '1') {
+      return FLAG_SAMPLED_SET | FLAG_SAMPLED;
+    } else if (sampledChar == '0') {
+      return FLAG_SAMPLED_SET;
+    }
+    if (LOG.isLoggable(Level.FINE)) {
+      LOG.fine("Invalid input: expected 0, 1 or d for sampled at offset " + pos);
+    }
+    return 0;
+  }
+
+  /** Returns {@code endIndex} when there is no hyphen, which will fail length checks. */
+  static int indexOfHyphen(CharSequence b3, int beginIndex, int endIndex) {
+    for (int i = beginIndex; i < endIndex; i++) {
+      if (b3.charAt(i) == '-') return i;
+    }
+    return endIndex;
+  }
+
+  static TraceContextOrSamplingFlags notLowerHex(String field, CharSequence b3, int beginIndex,
+      int endIndex) {
+    maybeLog("Invalid input: " + field + " is not a lower-hex string", b3, beginIndex, endIndex);
+    return null;
+  }
+
+  static void maybeLog(String message, CharSequence b3, int beginIndex, int endIndex) {
+    if (!LOG.isLoggable(Level.FINE)) return;
+    LOG.fine(message + ": " + b3.subSequence(beginIndex, endIndex));
+  }
+
+  B3SingleFormat() {
+  }
+}
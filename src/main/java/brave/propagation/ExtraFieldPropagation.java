@@ -14,6 +14,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
+import static brave.propagation.TraceContext.ensureImmutable;
+
 /**
  * Allows you to propagate predefined request-scoped fields, usually but not always HTTP headers.
  *
@@ -206,7 +208,17 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
     if (name == null) throw new NullPointerException("name == null");
     Extra extra = findExtra(context.extra());
     if (extra == null) return null;
-    int index = extra.indexOf(name.toLowerCase(Locale.ROOT));
+    int index = indexOf(extra.fieldNames, name.toLowerCase(Locale.ROOT));
+    return index != -1 ? extra.get(index) : null;
+  }
+
+  /** Like {@link #get(TraceContext, String)}, except the field's slot is already known */
+  @Nullable public static String get(TraceContext context, Field field) {
+    if (context == null) throw new NullPointerException("context == null");
+    if (field == null) throw new NullPointerException("field == null");
+    Extra extra = findExtra(context.extra());
+    if (extra == null) return null;
+    int index = extra.indexOf(field);
     return index != -1 ? extra.get(index) : null;
   }
 
@@ -217,20 +229,88 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
     if (value == null) throw new NullPointerException("value == null");
     Extra extra = findExtra(context.extra());
     if (extra == null) return;
-    int index = extra.indexOf(name.toLowerCase(Locale.ROOT));
+    int index = indexOf(extra.fieldNames, name.toLowerCase(Locale.ROOT));
+    if (index == -1) return;
+    extra.set(index, value);
+  }
+
+  /** Like {@link #set(TraceContext, String, String)}, except the field's slot is already known */
+  public static void set(TraceContext context, Field field, String value) {
+    if (context == null) throw new NullPointerException("context == null");
+    if (field == null) throw new NullPointerException("field == null");
+    if (value == null) throw new NullPointerException("value == null");
+    Extra extra = findExtra(context.extra());
+    if (extra == null) return;
+    int index = extra.indexOf(field);
     if (index == -1) return;
     extra.set(index, value);
   }
 
-  static final class Factory extends Propagation.Factory {
+  /**
+   * A field resolved to its slot when the factory was built. Reading or writing through a handle
+   * skips looking up the field by name, which matters when many fields are propagated.
+   *
+   * <p>Example use:
+   * <pre>{@code
+   * ExtraFieldPropagation.Factory factory =
+   *     ExtraFieldPropagation.newFactoryBuilder(B3Propagation.FACTORY)
+   *         .addPrefixedFields("baggage-", Arrays.asList("country-code", "user-id"))
+   *         .build();
+   * countryCode = factory.field("country-code");
+   *
+   * // later
+   * ExtraFieldPropagation.set(span.context(), countryCode, "FO");
+   * }</pre>
+   *
+   * @see Factory#field(String)
+   */
+  public static final class Field {
+    final String[] fieldNames; // identifies the configuration the index belongs to
+    final int index;
+
+    Field(String[] fieldNames, int index) {
+      this.fieldNames = fieldNames;
+      this.index = index;
+    }
+
+    /** The lower-case name of the field, without any prefix used on the wire */
+    public String name() {
+      return fieldNames[index];
+    }
+
+    @Override public String toString() {
+      return "Field{" + name() + "}";
+    }
+  }
+
+  public static final class Factory extends Propagation.Factory {
     final Propagation.Factory delegate;
     final String[] fieldNames;
     final String[] keyNames;
+    final Field[] fields;
 
     Factory(Propagation.Factory delegate, String[] fieldNames, String[] keyNames) {
       this.delegate = delegate;
       this.fieldNames = fieldNames;
       this.keyNames = keyNames;
+      this.fields = new Field[fieldNames.length];
+      for (int i = 0; i < fieldNames.length; i++) {
+        fields[i] = new Field(fieldNames, i);
+      }
+    }
+
+    /**
+     * Returns a handle to the field with the given name, for use in {@link
+     * ExtraFieldPropagation#get(TraceContext, Field)} and {@link
+     * ExtraFieldPropagation#set(TraceContext, Field, String)}.
+     *
+     * @throws IllegalArgumentException if the field isn't configured
+     */
+    public Field field(String name) {
+      if (name == null) throw new NullPointerException("name == null");
+      int index = indexOf(fieldNames, name.toLowerCase(Locale.ROOT));
+      if (index == -1) throw new IllegalArgumentException(name + " is not a configured field");
+      return fields[index];
     }
 
     @Override public boolean supportsJoin() {
@@ -258,8 +338,9 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
       int thisExtraIndex = -1, parentExtraIndex = -1;
       for (int i = 0, length = extras.size(); i < length; i++) {
         if (extras.get(i) instanceof Extra) {
-          Extra extra = (Extra) result.extra().get(i);
-          if (!Arrays.equals(extra.fieldNames, fieldNames)) {
+          Extra extra = (Extra) extras.get(i);
+          // Extra created by this factory shares its field names, so usually this is one comparison
+          if (extra.fieldNames != fieldNames && !Arrays.equals(extra.fieldNames, fieldNames)) {
             throw new IllegalStateException(
                 String.format("Mixed name configuration unsupported: found %s, expected %s",
                     Arrays.toString(extra.fieldNames), Arrays.toString(fieldNames))
@@ -277,19 +358,29 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
 
       if (thisExtraIndex != -1 && parentExtraIndex == -1) return context;
 
+      // The common case is a child of a context with only our extra. Share the parent's values
+      // until either side writes, avoiding a copy of the list or the values.
+      if (thisExtraIndex == -1 && parentExtraIndex != -1 && extras.size() == 1) {
+        Extra extra = new Extra((Extra) extras.get(0));
+        TraceContext resultContext = result.withExtra(Collections.<Object>singletonList(extra));
+        extra.context = resultContext;
+        return resultContext;
+      }
+
       // otherwise, we are creating a new instance
-      List<Object> copyOfExtra = new ArrayList<Object>(result.extra());
+      List<Object> copyOfExtra = new ArrayList<Object>(extras);
       Extra extra;
-      if (thisExtraIndex == -1 && parentExtraIndex != -1) { // clone then parent (for copy-on-write)
-        extra = ((Extra) copyOfExtra.get(parentExtraIndex)).clone();
+      if (thisExtraIndex == -1 && parentExtraIndex != -1) { // share the parent's values
+        extra = new Extra((Extra) copyOfExtra.get(parentExtraIndex));
         copyOfExtra.set(parentExtraIndex, extra);
       } else if (thisExtraIndex != -1 && parentExtraIndex != -1) { // merge with the parent
         extra = ((Extra) copyOfExtra.get(thisExtraIndex));
         Extra parent = (Extra) copyOfExtra.remove(parentExtraIndex); // ensures only one extra
-        if (parent.values != null) { // then values were added to our parent
-          for (int i = 0; i < parent.values.length; i++) {
-            if (parent.values[i] != null && extra.get(i) == null) { // extracted wins vs parent
-              extra.set(i, parent.values[i]);
+        String[] parentValues = parent.values;
+        if (parentValues != null) { // then values were added to our parent
+          for (int i = 0; i < parentValues.length; i++) {
+            if (parentValues[i] != null && extra.get(i) == null) { // extracted wins vs parent
+              extra.set(i, parentValues[i]);
             }
           }
         }
@@ -297,8 +388,7 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
         extra = new Extra(fieldNames);
         copyOfExtra.add(extra);
       }
-      TraceContext resultContext =
-          result.toBuilder().extra(Collections.unmodifiableList(copyOfExtra)).build();
+      TraceContext resultContext = result.withExtra(ensureImmutable(copyOfExtra));
       extra.context = resultContext; // associate this with the new context
       return resultContext;
     }
@@ -329,16 +419,26 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
     return new ExtraFieldExtractor<C, K>(this, getter);
   }
 
-  /** Copy-on-write keeps propagation changes in a child context from affecting its parent */
-  static final class Extra implements Cloneable {
+  /**
+   * Values are indexed by the slot of their field. A child shares its parent's array until either
+   * writes, and copy-on-write keeps the change from affecting the other. As arrays are never
+   * modified once published, reads need no lock.
+   */
+  static final class Extra {
     final String[] fieldNames;
-    volatile String[] values; // guarded by this, copy on write
+    volatile String[] values; // writes guarded by this, copy on write
     TraceContext context; // guarded by this
 
     Extra(String[] fieldNames) {
       this.fieldNames = fieldNames;
     }
 
+    /** Creates an unassociated extra which shares the parent's values until a write */
+    Extra(Extra parent) {
+      this.fieldNames = parent.fieldNames;
+      this.values = parent.values;
+    }
+
     /** Extra data are extracted before a context is created. We need to lazy set the context */
     boolean tryAssociate(TraceContext newContext) {
       synchronized (this) {
@@ -351,11 +451,10 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
       }
     }
 
-    int indexOf(String name) {
-      for (int i = 0, length = fieldNames.length; i < length; i++) {
-        if (fieldNames[i].equals(name)) return i;
-      }
-      return -1;
+    /** Returns the slot of the field, which is only looked up if it is from another factory */
+    int indexOf(Field field) {
+      if (field.fieldNames == fieldNames) return field.index;
+      return ExtraFieldPropagation.indexOf(fieldNames, field.name());
     }
 
     void set(int index, String value) {
@@ -368,25 +467,20 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
           // this is the copy-on-write part
           elements = Arrays.copyOf(elements, elements.length);
           elements[index] = value;
+        } else {
+          return;
         }
         values = elements;
       }
     }
 
     String get(int index) {
-      final String result;
-      synchronized (this) {
-        String[] elements = values;
-        result = elements != null ? elements[index] : null;
-      }
-      return result;
+      String[] elements = values;
+      return elements != null ? elements[index] : null;
     }
 
     @Override public String toString() {
-      String[] elements;
-      synchronized (this) {
-        elements = values;
-      }
+      String[] elements = values;
 
       if (elements == null) return "ExtraFieldPropagation{}";
 
@@ -398,12 +492,6 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
       }
       return "ExtraFieldPropagation" + contents;
     }
-
-    @Override public Extra clone() {
-      Extra result = new Extra(fieldNames);
-      result.values = values;
-      return result;
-    }
   }
 
   static final class ExtraFieldInjector<C, K> implements Injector<C> {
@@ -462,6 +550,13 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
     return i != -1 ? (Extra) extra.get(i) : null;
   }
 
+  static int indexOf(String[] fieldNames, String name) {
+    for (int i = 0, length = fieldNames.length; i < length; i++) {
+      if (fieldNames[i].equals(name)) return i;
+    }
+    return -1;
+  }
+
   static int indexOfExtra(List<Object> extra) {
     for (int i = 0, length = extra.size(); i < length; i++) {
       if (extra.get(i) instanceof Extra) return i;
@@ -0,0 +1,213 @@
+package brave.propagation;
+
+import brave.internal.Nullable;
+import java.util.List;
+
+/**
+ * Holds the values of all {@link Propagation#keys() propagation keys} for one carrier, so that
+ * headers can be read or written in a single pass instead of one lookup per key.
+ *
+ * <p>Most http libraries look up a header by scanning all headers, ignoring case. Using a {@link
+ * Propagation.Getter}, extraction scans once per key, and a trace with baggage can have many keys.
+ * With a batch, the carrier's headers are enumerated once, and each name is matched against a
+ * case-insensitive index of keys built when the extractor or injector is created. This relies on
+ * {@link Propagation#keys()} listing every key the propagation reads or writes.
+ *
+ * <p>Example use:
+ * <pre>{@code
+ * extractor = HeaderBatch.extractor(tracing.propagation(), new HeaderBatch.Reader<Request>() {
+ *   @Override public void read(Request carrier, HeaderBatch batch) {
+ *     for (Header header : carrier.headers()) {
+ *       int slot = batch.slot(header.name());
+ *       if (slot != -1) batch.set(slot, header.value());
+ *     }
+ *   }
+ * });
+ * }</pre>
+ */
+public final class HeaderBatch {
+
+  /** Reads the carrier's headers, calling {@link #set(int, String)} for those with a slot. */
+  public interface Reader<C> {
+    void read(C carrier, HeaderBatch batch);
+  }
+
+  /**
+   * Writes the non-null values to the carrier, replacing any headers with the same names,
+   * ignoring case, like {@link Propagation.Setter} would. Headers named like a slot whose value is
+   * null must be left alone, as the application could have set them itself.
+   */
+  public interface Writer<C> {
+    void write(C carrier, HeaderBatch batch);
+  }
+
+  /** Returns an extractor which reads all headers the propagation needs in one pass. */
+  public static <C> TraceContext.Extractor<C> extractor(Propagation<String> propagation,
+      Reader<C> reader) {
+    if (propagation == null) throw new NullPointerException("propagation == null");
+    if (reader == null) throw new NullPointerException("reader == null");
+    return new BatchExtractor<C>(new KeyIndex(propagation.keys()),
+        propagation.extractor(GETTER), reader);
+  }
+
+  /** Returns an injector which writes all headers the propagation sets in one pass. */
+  public static <C> TraceContext.Injector<C> injector(Propagation<String> propagation,
+      Writer<C> writer) {
+    if (propagation == null) throw new NullPointerException("propagation == null");
+    if (writer == null) throw new NullPointerException("writer == null");
+    return new BatchInjector<C>(new KeyIndex(propagation.keys()),
+        propagation.injector(SETTER), writer);
+  }
+
+  final KeyIndex index;
+  final String[] values;
+
+  HeaderBatch(KeyIndex index) {
+    this.index = index;
+    this.values = new String[index.names.length];
+  }
+
+  /** Returns the count of slots, one per propagation key. */
+  public int size() {
+    return values.length;
+  }
+
+  /** Returns the propagation key of the slot, as it should be written on the wire. */
+  public String name(int slot) {
+    return index.names[slot];
+  }
+
+  /** Returns the value of the slot or null if it wasn't read or set. */
+  @Nullable public String value(int slot) {
+    return values[slot];
+  }
+
+  /**
+   * Returns the slot of the header, ignoring case, or -1 if it isn't a propagation key. This is a
+   * hash lookup, so doesn't depend on how many keys are propagated.
+   */
+  public int slot(String name) {
+    if (name == null) throw new NullPointerException("name == null");
+    return index.slot(name);
+  }
+
+  /** Sets the value of the slot, unless one was already set. */
+  public void set(int slot, @Nullable String value) {
+    if (values[slot] == null) values[slot] = value;
+  }
+
+  @Override public String toString() {
+    StringBuilder result = new StringBuilder("HeaderBatch{");
+    boolean first = true;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] == null) continue;
+      if (!first) result.append(", ");
+      result.append(index.names[i]).append('=').append(values[i]);
+      first = false;
+    }
+    return result.append('}').toString();
+  }
+
+  static final Propagation.Getter<HeaderBatch, String> GETTER =
+      new Propagation.Getter<HeaderBatch, String>() {
+        @Override public String get(HeaderBatch carrier, String key) {
+          int slot = carrier.index.slot(key);
+          return slot != -1 ? carrier.values[slot] : null;
+        }
+
+        @Override public String toString() {
+          return "HeaderBatch::value";
+        }
+      };
+
+  static final Propagation.Setter<HeaderBatch, String> SETTER =
+      new Propagation.Setter<HeaderBatch, String>() {
+        @Override public void put(HeaderBatch carrier, String key, String value) {
+          int slot = carrier.index.slot(key);
+          if (slot != -1) carrier.values[slot] = value; // replaces, like a setter should
+        }
+
+        @Override public String toString() {
+          return "HeaderBatch::set";
+        }
+      };
+
+  static final class BatchExtractor<C> implements TraceContext.Extractor<C> {
+    final KeyIndex index;
+    final TraceContext.Extractor<HeaderBatch> delegate;
+    final Reader<C> reader;
+
+    BatchExtractor(KeyIndex index, TraceContext.Extractor<HeaderBatch> delegate, Reader<C> reader) {
+      this.index = index;
+      this.delegate = delegate;
+      this.reader = reader;
+    }
+
+    @Override public TraceContextOrSamplingFlags extract(C carrier) {
+      if (carrier == null) throw new NullPointerException("carrier == null");
+      HeaderBatch batch = new HeaderBatch(index);
+      reader.read(carrier, batch);
+      return delegate.extract(batch);
+    }
+  }
+
+  static final class BatchInjector<C> implements TraceContext.Injector<C> {
+    final KeyIndex index;
+    final TraceContext.Injector<HeaderBatch> delegate;
+    final Writer<C> writer;
+
+    BatchInjector(KeyIndex index, TraceContext.Injector<HeaderBatch> delegate, Writer<C> writer) {
+      this.index = index;
+      this.delegate = delegate;
+      this.writer = writer;
+    }
+
+    @Override public void inject(TraceContext traceContext, C carrier) {
+      HeaderBatch batch = new HeaderBatch(index);
+      delegate.inject(traceContext, batch);
+      writer.write(carrier, batch);
+    }
+  }
+
+  /**
+   * Open-addressed table of key names, hashed with ASCII case folded. Header names are ASCII, so
+   * this avoids lower-casing each name read from the carrier.
+   */
+  static final class KeyIndex {
+    final String[] names;
+    final int[] table; // slot + 1, or zero when empty
+    final int mask;
+
+    KeyIndex(List<String> keys) {
+      names = keys.toArray(new String[0]);
+      int capacity = Integer.highestOneBit(Math.max(names.length, 1) * 4); // load factor < 0.5
+      table = new int[capacity];
+      mask = capacity - 1;
+      for (int i = 0; i < names.length; i++) {
+        if (slot(names[i]) != -1) continue; // duplicate key: keep the first slot
+        int bucket = hash(names[i]) & mask;
+        while (table[bucket] != 0) bucket = (bucket + 1) & mask;
+        table[bucket] = i + 1;
+      }
+    }
+
+    int slot(String name) {
+      int bucket = hash(name) & mask;
+      for (int entry; (entry = table[bucket]) != 0; bucket = (bucket + 1) & mask) {
+        String candidate = names[entry - 1];
+        if (candidate == name || candidate.equalsIgnoreCase(name)) return entry - 1;
+      }
+      return -1;
+    }
+
+    static int hash(String name) {
+      int h = 0;
+      for (int i = 0, length = name.length(); i < length; i++) {
+        char c = name.charAt(i);
+        if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+        h = 31 * h + c;
+      }
+      return h ^ (h >>> 16);
+    }
+  }
+}
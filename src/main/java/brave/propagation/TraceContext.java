@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.logging.Logger;
 
 import static brave.internal.HexCodec.lenientLowerHexToUnsignedLong;
+import static brave.internal.HexCodec.toLowerHex;
 import static brave.internal.HexCodec.writeHexLong;
 
 /**
@@ -135,17 +136,44 @@ public final class TraceContext extends SamplingFlags {
     return new Builder(this);
   }
 
-  /** Returns the hex representation of the span's trace ID */
+  /**
+   * Returns the hex representation of the span's trace ID. This is computed once and shared with
+   * children, which have the same trace ID.
+   */
   public String traceIdString() {
-    if (traceIdHigh != 0) {
-      char[] result = new char[32];
-      writeHexLong(result, 0, traceIdHigh);
-      writeHexLong(result, 16, traceId);
-      return new String(result);
+    String r = traceIdString;
+    if (r == null) {
+      r = traceIdHigh != 0 ? toLowerHex(traceIdHigh, traceId) : toLowerHex(traceId);
+      traceIdString = r;
     }
-    char[] result = new char[16];
-    writeHexLong(result, 0, traceId);
-    return new String(result);
+    return r;
+  }
+
+  /** Returns the hex representation of {@link #parentIdAsLong()} or null if this is a root span */
+  @Nullable public String parentIdString() {
+    String r = parentIdString;
+    if (r == null && parentId != 0L) {
+      r = parentIdString = toLowerHex(parentId);
+    }
+    return r;
+  }
+
+  /** Returns the hex representation of {@link #spanId()}. This is computed once. */
+  public String spanIdString() {
+    String r = spanIdString;
+    if (r == null) {
+      r = spanIdString = toLowerHex(spanId);
+    }
+    return r;
+  }
+
+  /** Returns a copy with different extra data, retaining any hex strings computed so far. */
+  TraceContext withExtra(List<Object> extra) {
+    TraceContext result = new TraceContext(flags, traceIdHigh, traceId, parentId, spanId, extra);
+    result.traceIdString = traceIdString;
+    result.parentIdString = parentIdString;
+    result.spanIdString = spanIdString;
+    return result;
   }
 
   /** Returns {@code $traceId/$spanId} */
@@ -167,8 +195,10 @@ public final class TraceContext extends SamplingFlags {
 
   public static final class Builder extends InternalBuilder {
     List<Object> extra = Collections.emptyList();
+    TraceContext source; // to share hex strings when IDs are unchanged
 
     Builder(TraceContext context) { // no external implementations
+      source = context;
       traceIdHigh = context.traceIdHigh;
       traceId = context.traceId;
       parentId = context.parentId;
@@ -253,6 +283,8 @@ public final class TraceContext extends SamplingFlags {
   final long traceIdHigh, traceId, parentId, spanId;
   final int flags; // bit field for sampled and debug
   final List<Object> extra;
+  // Lazily computed hex strings. Races are benign as all threads compute the same value.
+  String traceIdString, parentIdString, spanIdString;
 
   TraceContext(Builder builder) { // no external implementations
     traceIdHigh = builder.traceIdHigh;
@@ -261,6 +293,29 @@ public final class TraceContext extends SamplingFlags {
     spanId = builder.spanId;
     flags = builder.flags;
     extra = builder.extra;
+    TraceContext source = builder.source;
+    if (source == null) return;
+    if (source.traceIdHigh == traceIdHigh && source.traceId == traceId) {
+      traceIdString = source.traceIdString;
+    }
+    // A child's parent ID is usually the span ID of the context it was built from
+    if (source.spanId == parentId) {
+      parentIdString = source.spanIdString;
+    } else if (source.parentId == parentId) {
+      parentIdString = source.parentIdString;
+    }
+    if (source.spanId == spanId) spanIdString = source.spanIdString;
+  }
+
+  /** Used by parsers that have already validated their input, to avoid allocating a builder */
+  TraceContext(int flags, long traceIdHigh, long traceId, long parentId, long spanId,
+      List<Object> extra) {
+    this.traceIdHigh = traceIdHigh;
+    this.traceId = traceId;
+    this.parentId = parentId;
+    this.spanId = spanId;
+    this.flags = flags;
+    this.extra = extra;
   }
 
   /** Only includes mandatory fields {@link #traceIdHigh()}, {@link #traceId()}, {@link #spanId()} */
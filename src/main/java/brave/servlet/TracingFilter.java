@@ -6,9 +6,10 @@ import brave.Tracer;
 import brave.Tracing;
 import brave.http.HttpServerHandler;
 import brave.http.HttpTracing;
-import brave.propagation.Propagation.Getter;
+import brave.propagation.HeaderBatch;
 import brave.propagation.TraceContext;
 import java.io.IOException;
+import java.util.Enumeration;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -19,15 +20,31 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 public final class TracingFilter implements Filter {
-	static final Getter<HttpServletRequest, String> GETTER = new Getter<HttpServletRequest, String>() {
+	/**
+	 * Reads all propagation headers in one pass over the header names, as
+	 * {@link HttpServletRequest#getHeader(String)} usually scans all headers.
+	 */
+	static final HeaderBatch.Reader<HttpServletRequest> READER = new HeaderBatch.Reader<HttpServletRequest>() {
 		@Override
-		public String get(HttpServletRequest carrier, String key) {
-			return carrier.getHeader(key);
+		public void read(HttpServletRequest carrier, HeaderBatch batch) {
+			Enumeration<String> names = carrier.getHeaderNames();
+			if (names == null) { // the container doesn't allow access, so look up each key
+				for (int i = 0, length = batch.size(); i < length; i++) {
+					batch.set(i, carrier.getHeader(batch.name(i)));
+				}
+				return;
+			}
+			while (names.hasMoreElements()) {
+				String name = names.nextElement();
+				int slot = batch.slot(name);
+				if (slot != -1)
+					batch.set(slot, carrier.getHeader(name));
+			}
 		}
 
 		@Override
 		public String toString() {
-			return "HttpServletRequest::getHeader";
+			return "HttpServletRequest::getHeaderNames";
 		}
 	};
 	static final HttpServletAdapter ADAPTER = new HttpServletAdapter();
@@ -48,7 +65,7 @@ public final class TracingFilter implements Filter {
 	TracingFilter(HttpTracing httpTracing) {
 		tracer = httpTracing.tracing().tracer();
 		handler = HttpServerHandler.create(httpTracing, ADAPTER);
-		extractor = httpTracing.tracing().propagation().extractor(GETTER);
+		extractor = HeaderBatch.extractor(httpTracing.tracing().propagation(), READER);
 	}
 
 	@Override
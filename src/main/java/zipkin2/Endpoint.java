@@ -57,6 +57,28 @@ public final class Endpoint implements Serializable { // for Spark and Flink job
     return ipv6;
   }
 
+  /**
+   * IPv4 packed into 4 bytes in network order, or null if unknown. This is computed once, so
+   * callers must not modify the result.
+   */
+  @Nullable public byte[] ipv4Bytes() {
+    if (ipv4 == null) return null;
+    byte[] result = ipv4Bytes;
+    if (result == null) ipv4Bytes = result = textToNumericFormatV4(ipv4);
+    return result;
+  }
+
+  /**
+   * IPv6 packed into 16 bytes in network order, or null if unknown. This is computed once, so
+   * callers must not modify the result.
+   */
+  @Nullable public byte[] ipv6Bytes() {
+    if (ipv6 == null) return null;
+    byte[] result = ipv6Bytes;
+    if (result == null) ipv6Bytes = result = textToNumericFormatV6(ipv6);
+    return result;
+  }
+
   /**
    * Port of the IP's socket or null, if not known.
    *
@@ -129,6 +151,28 @@ public final class Endpoint implements Serializable { // for Spark and Flink job
       return true;
     }
 
+    /**
+     * Like {@link #parseIp(InetAddress)}, except the input is an address packed into 4 or 16 bytes
+     * in network order. For example, from a binary encoding.
+     */
+    public final boolean parseIp(@Nullable byte[] ipBytes) {
+      if (ipBytes == null) return false;
+      if (ipBytes.length == 4) {
+        ipv4 = String.valueOf(ipBytes[0] & 0xff) + '.' + (ipBytes[1] & 0xff) + '.'
+          + (ipBytes[2] & 0xff) + '.' + (ipBytes[3] & 0xff);
+      } else if (ipBytes.length == 16) {
+        String ipv4 = parseEmbeddedIPv4(ipBytes);
+        if (ipv4 != null) {
+          this.ipv4 = ipv4;
+        } else {
+          ipv6 = writeIpV6(ipBytes);
+        }
+      } else {
+        return false;
+      }
+      return true;
+    }
+
     /** Chaining variant of {@link #parseIp(String)} */
     public Builder ip(@Nullable String ipString) {
       parseIp(ipString);
@@ -329,6 +373,23 @@ public final class Endpoint implements Serializable { // for Spark and Flink job
   static final char[] HEX_DIGITS =
     {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 
+  /** Packs an address already validated by {@link Builder#parseIp(String)}. */
+  static byte[] textToNumericFormatV4(String ipString) {
+    byte[] result = new byte[4];
+    int octet = 0, value = 0;
+    for (int i = 0, length = ipString.length(); i < length; i++) {
+      char c = ipString.charAt(i);
+      if (c == '.') {
+        result[octet++] = (byte) value;
+        value = 0;
+      } else {
+        value = value * 10 + (c - '0');
+      }
+    }
+    result[octet] = (byte) value;
+    return result;
+  }
+
   // Begin code from com.google.common.net.InetAddresses 23
   private static final int IPV6_PART_COUNT = 8;
 
@@ -441,6 +502,7 @@ public final class Endpoint implements Serializable { // for Spark and Flink job
   // See https://github.com/openzipkin/zipkin/issues/1879
   final String serviceName, ipv4, ipv6;
   final Integer port;
+  transient byte[] ipv4Bytes, ipv6Bytes; // lazily computed for binary encoding
 
   Endpoint(Builder builder) {
     serviceName = builder.serviceName;
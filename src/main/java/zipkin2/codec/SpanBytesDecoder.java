@@ -13,12 +13,20 @@
  */
 package zipkin2.codec;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import zipkin2.Span;
 import zipkin2.internal.JsonCodec;
 import zipkin2.internal.Nullable;
-import zipkin2.internal.V2SpanReader;
+import zipkin2.internal.Proto3Codec;
+import zipkin2.internal.Proto3SpanReader;
+import zipkin2.internal.SpanStreamIterator;
+import zipkin2.internal.V2SpanBytesReader;
 
 /** This is separate from {@link SpanBytesEncoder}, as it isn't needed for instrumentation */
 @SuppressWarnings("ImmutableEnumChecker") // because span is immutable
@@ -31,21 +39,71 @@ public enum SpanBytesDecoder implements BytesDecoder<Span> {
 
     @Override
     public boolean decode(byte[] span, Collection<Span> out) { // ex decode span in dependencies job
-      return JsonCodec.read(new V2SpanReader(), span, out);
+      return JsonCodec.read(new V2SpanBytesReader(), span, out);
     }
 
     @Override public boolean decodeList(byte[] spans, Collection<Span> out) { // ex getTrace
-      return JsonCodec.readList(new V2SpanReader(), spans, out);
+      return JsonCodec.readList(new V2SpanBytesReader(), spans, out);
     }
 
     /** Visible for testing. This returns the first span parsed from the serialized object or null */
     @Override @Nullable public Span decodeOne(byte[] span) {
-      return JsonCodec.readOne(new V2SpanReader(), span);
+      return JsonCodec.readOne(new V2SpanBytesReader(), span);
     }
 
     /** Convenience method for {@link #decode(byte[], Collection)} */
     @Override public List<Span> decodeList(byte[] spans) {
-      return JsonCodec.readList(new V2SpanReader(), spans);
+      return JsonCodec.readList(new V2SpanBytesReader(), spans);
     }
+
+    @Override public Iterator<Span> decodeList(InputStream spans) {
+      return SpanStreamIterator.json(spans);
+    }
+  },
+  /** Corresponds to the message {@code zipkin.proto3.Span} in zipkin2's proto3 schema */
+  PROTO3 {
+    @Override public Encoding encoding() {
+      return Encoding.PROTO3;
+    }
+
+    @Override public boolean decode(byte[] span, Collection<Span> out) {
+      return Proto3Codec.read(new Proto3SpanReader(), span, out);
+    }
+
+    /** Decodes the message {@code zipkin.proto3.ListOfSpans} */
+    @Override public boolean decodeList(byte[] spans, Collection<Span> out) {
+      return Proto3Codec.readList(new Proto3SpanReader(), spans, out);
+    }
+
+    @Override @Nullable public Span decodeOne(byte[] span) {
+      return Proto3Codec.readOne(new Proto3SpanReader(), span);
+    }
+
+    @Override public List<Span> decodeList(byte[] spans) {
+      return Proto3Codec.readList(new Proto3SpanReader(), spans);
+    }
+
+    @Override public Iterator<Span> decodeList(InputStream spans) {
+      return SpanStreamIterator.proto3(spans);
+    }
+  };
+
+  /**
+   * Lazily decodes a list of spans, one at a time, such that memory is bounded by the largest span
+   * instead of the size of the input. The stream is not closed.
+   *
+   * <p>Malformed input raises {@link IllegalArgumentException} when iterated, and errors reading
+   * the stream raise {@link IllegalStateException}.
+   */
+  public abstract Iterator<Span> decodeList(InputStream spans);
+
+  /** Like {@link #decodeList(InputStream)}, except reading from a channel */
+  public Iterator<Span> decodeList(ReadableByteChannel spans) {
+    return decodeList(Channels.newInputStream(spans));
+  }
+
+  /** Like {@link #decodeList(InputStream)}, except consuming the remaining bytes of the buffer */
+  public Iterator<Span> decodeList(ByteBuffer spans) {
+    return decodeList(SpanStreamIterator.inputStream(spans));
   }
 }
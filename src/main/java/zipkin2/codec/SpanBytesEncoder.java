@@ -13,10 +13,13 @@
  */
 package zipkin2.codec;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import zipkin2.Span;
 import zipkin2.internal.Buffer;
 import zipkin2.internal.JsonCodec;
+import zipkin2.internal.Proto3Codec;
+import zipkin2.internal.Proto3SpanWriter;
 import zipkin2.internal.V1SpanWriter;
 import zipkin2.internal.V2SpanWriter;
 
@@ -46,6 +49,10 @@ public enum SpanBytesEncoder implements BytesEncoder<Span> {
     @Override public int encodeList(List<Span> spans, byte[] out, int pos) {
       return JsonCodec.writeList(writer, spans, out, pos);
     }
+
+    @Override public int encodeList(List<Span> spans, ByteBuffer out) {
+      return JsonCodec.writeList(writer, spans, out);
+    }
   },
   /** Corresponds to the Zipkin v2 json format */
   JSON_V2 {
@@ -70,8 +77,51 @@ public enum SpanBytesEncoder implements BytesEncoder<Span> {
     @Override public int encodeList(List<Span> spans, byte[] out, int pos) {
       return JsonCodec.writeList(writer, spans, out, pos);
     }
+
+    @Override public int encodeList(List<Span> spans, ByteBuffer out) {
+      return JsonCodec.writeList(writer, spans, out);
+    }
+  },
+  /** Corresponds to the message {@code zipkin.proto3.Span} in zipkin2's proto3 schema */
+  PROTO3 {
+    final Proto3SpanWriter writer = new Proto3SpanWriter();
+
+    @Override public Encoding encoding() {
+      return Encoding.PROTO3;
+    }
+
+    @Override public int sizeInBytes(Span input) {
+      return writer.sizeInBytes(input);
+    }
+
+    @Override public byte[] encode(Span span) {
+      return Proto3Codec.write(writer, span);
+    }
+
+    /** Encodes the message {@code zipkin.proto3.ListOfSpans} */
+    @Override public byte[] encodeList(List<Span> spans) {
+      return Proto3Codec.writeList(writer, spans);
+    }
+
+    @Override public int encodeList(List<Span> spans, byte[] out, int pos) {
+      return Proto3Codec.writeList(writer, spans, out, pos);
+    }
+
+    @Override public int encodeList(List<Span> spans, ByteBuffer out) {
+      return Proto3Codec.writeList(writer, spans, out);
+    }
   };
 
   /** Allows you to encode a list of spans onto a specific offset. For example, when nesting */
   public abstract int encodeList(List<Span> spans, byte[] out, int pos);
+
+  /**
+   * Like {@link #encodeList(List, byte[], int)}, except encoding at the position of the buffer,
+   * which is advanced by the count of bytes returned. When the buffer is direct, each span is
+   * encoded on the heap then copied into it, so the message can be written to a channel without
+   * a further copy.
+   *
+   * <p>The buffer must have at least {@link Encoding#listSizeInBytes(List)} bytes remaining.
+   */
+  public abstract int encodeList(List<Span> spans, ByteBuffer out);
 }
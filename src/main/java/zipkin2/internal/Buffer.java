@@ -13,9 +13,22 @@
  */
 package zipkin2.internal;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
-public final class Buffer {
+/**
+ * Writes encoded values at a position that advances. This targets a heap array, either one given
+ * or one that grows as needed.
+ *
+ * <p>There are only two implementations, so that calls such as {@link #writeByte(int)} from
+ * writers stay at most bimorphic, and can be inlined. A direct {@link ByteBuffer} is not wrapped:
+ * each value is instead encoded into a {@link GrowableBuffer}, then bulk copied into it.
+ *
+ * <p>Writers are expected to size values in advance, so there are no bounds checks beyond those
+ * of the underlying storage.
+ */
+public abstract class Buffer {
   static final Charset UTF_8 = Charset.forName("UTF-8");
 
   public interface Writer<T> {
@@ -24,29 +37,50 @@ public final class Buffer {
     void write(T value, Buffer buffer);
   }
 
-  private final byte[] buf;
-  int pos; // visible for testing
-
-  public Buffer(int size) {
-    buf = new byte[size];
+  /** Returns a buffer backed by a new array of the given size. */
+  public static Buffer allocate(int size) {
+    return new ArrayBuffer(new byte[size], 0);
   }
 
-  Buffer(byte[] buf, int pos) {
-    this.buf = buf;
-    this.pos = pos;
+  /** Returns a buffer that writes into the given array, starting at the offset. */
+  public static Buffer wrap(byte[] buf, int pos) {
+    return new ArrayBuffer(buf, pos);
   }
 
-  public Buffer writeByte(int v) {
-    buf[pos++] = (byte) v;
-    return this;
+  /**
+   * Returns a buffer that writes into the array of the given one, starting at its position. The
+   * position of the input is not changed: when done, advance it to {@link #pos()}.
+   *
+   * @throws IllegalArgumentException if the input isn't backed by an accessible array, such as
+   * when it is direct
+   */
+  public static Buffer wrap(ByteBuffer buf) {
+    if (!buf.hasArray()) throw new IllegalArgumentException("buf isn't backed by an array");
+    return new ArrayBuffer(buf.array(), buf.arrayOffset() + buf.position(), buf.arrayOffset());
   }
 
+  /** Returns the position in the target, which is the index of the next byte written. */
+  public abstract int pos();
+
+  public abstract Buffer writeByte(int v);
+
   public Buffer write(byte[] v) {
-    System.arraycopy(v, 0, buf, pos, v.length);
-    pos += v.length;
-    return this;
+    return write(v, 0, v.length);
   }
 
+  public abstract Buffer write(byte[] v, int offset, int length);
+
+  /**
+   * Advances the position by count bytes, returning an index after them. These bytes are then
+   * filled backwards with {@link #setByte(int, int)}.
+   */
+  abstract int reserve(int count);
+
+  abstract void setByte(int index, int v);
+
+  /** Returns the array this wrote into, or a copy of the bytes written if it can grow. */
+  public abstract byte[] toByteArray();
+
   static int utf8SizeInBytes(String string) {
     // Adapted from http://stackoverflow.com/questions/8511490/calculating-length-in-utf-8-of-java-string-without-actually-encoding-it
     int sizeInBytes = 0;
@@ -74,9 +108,8 @@ public final class Buffer {
   }
 
   public Buffer writeAscii(String v) {
-    int length = v.length();
-    for (int i = 0; i < length; i++) {
-      buf[pos++] = (byte) v.charAt(i);
+    for (int i = 0, length = v.length(); i < length; i++) {
+      writeByte(v.charAt(i));
     }
     return this;
   }
@@ -138,7 +171,7 @@ public final class Buffer {
     if (v == Long.MIN_VALUE) return writeAscii("-9223372036854775808");
 
     int width = asciiSizeInBytes(v);
-    int pos = this.pos += width; // We write backwards from right to left.
+    int pos = reserve(width); // We write backwards from right to left.
 
     boolean negative = false;
     if (v < 0) {
@@ -147,17 +180,229 @@ public final class Buffer {
     }
     while (v != 0) {
       int digit = (int) (v % 10);
-      buf[--pos] = DIGITS[digit];
+      setByte(--pos, DIGITS[digit]);
       v /= 10;
     }
-    if (negative) buf[--pos] = '-';
+    if (negative) setByte(--pos, '-');
     return this;
   }
 
   static final byte[] DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
 
-  public byte[] toByteArray() {
-    //assert pos == buf.length;
-    return buf;
+  /**
+   * A base 128 varint encodes 7 bits at a time, this checks how many bytes are needed to represent
+   * the value.
+   *
+   * <p>See https://developers.google.com/protocol-buffers/docs/encoding#varints
+   */
+  public static int varintSizeInBytes(int v) {
+    if ((v & (0xffffffff << 7)) == 0) return 1;
+    if ((v & (0xffffffff << 14)) == 0) return 2;
+    if ((v & (0xffffffff << 21)) == 0) return 3;
+    if ((v & (0xffffffff << 28)) == 0) return 4;
+    return 5;
+  }
+
+  /** Like {@link #varintSizeInBytes(int)}, except for uint64. */
+  public static int varintSizeInBytes(long v) {
+    if ((v & (0xffffffffffffffffL << 7)) == 0) return 1;
+    if ((v & (0xffffffffffffffffL << 14)) == 0) return 2;
+    if ((v & (0xffffffffffffffffL << 21)) == 0) return 3;
+    if ((v & (0xffffffffffffffffL << 28)) == 0) return 4;
+    if ((v & (0xffffffffffffffffL << 35)) == 0) return 5;
+    if ((v & (0xffffffffffffffffL << 42)) == 0) return 6;
+    if ((v & (0xffffffffffffffffL << 49)) == 0) return 7;
+    if ((v & (0xffffffffffffffffL << 56)) == 0) return 8;
+    if ((v & (0xffffffffffffffffL << 63)) == 0) return 9;
+    return 10;
+  }
+
+  /** Writes a protobuf base 128 varint. */
+  public Buffer writeVarint(int v) {
+    while ((v & ~0x7f) != 0) {
+      writeByte((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    writeByte(v);
+    return this;
+  }
+
+  /** Like {@link #writeVarint(int)}, except for uint64. */
+  public Buffer writeVarint(long v) {
+    while ((v & ~0x7fL) != 0) {
+      writeByte((int) ((v & 0x7f) | 0x80));
+      v >>>= 7;
+    }
+    writeByte((int) v);
+    return this;
+  }
+
+  /** Writes a protobuf fixed64, which is little-endian. */
+  public Buffer writeLongLe(long v) {
+    for (int i = 0; i < 8; i++) {
+      writeByte((int) (v & 0xff));
+      v >>>= 8;
+    }
+    return this;
+  }
+
+  /** Writes lower-hex, such as a trace ID, as the bytes it represents. Two characters per byte. */
+  public Buffer writeLowerHexAsBytes(String lowerHex) {
+    for (int i = 0, length = lowerHex.length(); i < length; i += 2) {
+      writeByte(hexValue(lowerHex.charAt(i)) << 4 | hexValue(lowerHex.charAt(i + 1)));
+    }
+    return this;
+  }
+
+  static int hexValue(char c) {
+    return c <= '9' ? c - '0' : c - 'a' + 10; // ids are already validated as lower-hex
+  }
+
+  static final class ArrayBuffer extends Buffer {
+    final byte[] buf;
+    final int offset; // non-zero when wrapping a ByteBuffer that is a slice of its array
+    int pos;
+
+    ArrayBuffer(byte[] buf, int pos) {
+      this(buf, pos, 0);
+    }
+
+    ArrayBuffer(byte[] buf, int pos, int offset) {
+      this.buf = buf;
+      this.pos = pos;
+      this.offset = offset;
+    }
+
+    @Override public int pos() {
+      return pos - offset;
+    }
+
+    @Override public Buffer writeByte(int v) {
+      buf[pos++] = (byte) v;
+      return this;
+    }
+
+    @Override public Buffer write(byte[] v, int offset, int length) {
+      System.arraycopy(v, offset, buf, pos, length);
+      pos += length;
+      return this;
+    }
+
+    @Override int reserve(int count) {
+      return pos += count;
+    }
+
+    @Override void setByte(int index, int v) {
+      buf[index] = (byte) v;
+    }
+
+    @Override public Buffer writeAscii(String v) {
+      int length = v.length();
+      for (int i = 0; i < length; i++) {
+        buf[pos++] = (byte) v.charAt(i);
+      }
+      return this;
+    }
+
+    @Override public byte[] toByteArray() {
+      //assert pos == buf.length;
+      return buf;
+    }
+  }
+
+  /**
+   * Grows as needed, for encoding in one pass when the size isn't known up-front. The result is
+   * then copied out, which is cheaper than walking the value a second time to size it. This also
+   * stages values written to a direct {@link ByteBuffer}, with one bulk copy per value.
+   */
+  static final class GrowableBuffer extends Buffer {
+    static final int INITIAL_CAPACITY = 1024;
+    static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+    static final ThreadLocal<GrowableBuffer> SCRATCH = new ThreadLocal<GrowableBuffer>() {
+      @Override protected GrowableBuffer initialValue() {
+        return new GrowableBuffer();
+      }
+    };
+
+    /**
+     * Returns an empty buffer reused by this thread, or a new one if it is already in use, such as
+     * when encoding is reentrant. Call {@link #release()} when done.
+     */
+    static GrowableBuffer acquire() {
+      GrowableBuffer result = SCRATCH.get();
+      if (result.inUse) return new GrowableBuffer();
+      result.inUse = true;
+      result.pos = 0;
+      return result;
+    }
+
+    byte[] buf = new byte[INITIAL_CAPACITY];
+    int pos;
+    boolean inUse;
+
+    /** Allows reuse of this buffer, dropping its array if a large value made it grow. */
+    void release() {
+      inUse = false;
+      if (buf.length > MAX_RETAINED_CAPACITY) buf = new byte[INITIAL_CAPACITY];
+    }
+
+    @Override public int pos() {
+      return pos;
+    }
+
+    void ensureCapacity(int count) {
+      if (pos + count > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + count));
+    }
+
+    /**
+     * Grows to fit {@code remaining} more values, guessing each is {@code sizeInBytes}, so that a
+     * list doesn't double repeatedly. The guess is computed in long and capped to what a released
+     * buffer retains, so a large list grows as usual past that.
+     */
+    void ensureCapacityFor(int remaining, int sizeInBytes) {
+      long guess = Math.min((long) remaining * sizeInBytes, MAX_RETAINED_CAPACITY - pos);
+      if (guess > 0) ensureCapacity((int) guess);
+    }
+
+    @Override public Buffer writeByte(int v) {
+      if (pos == buf.length) ensureCapacity(1);
+      buf[pos++] = (byte) v;
+      return this;
+    }
+
+    @Override public Buffer write(byte[] v, int offset, int length) {
+      ensureCapacity(length);
+      System.arraycopy(v, offset, buf, pos, length);
+      pos += length;
+      return this;
+    }
+
+    @Override public Buffer writeAscii(String v) {
+      int length = v.length();
+      ensureCapacity(length);
+      for (int i = 0; i < length; i++) {
+        buf[pos++] = (byte) v.charAt(i);
+      }
+      return this;
+    }
+
+    @Override int reserve(int count) {
+      ensureCapacity(count);
+      return pos += count;
+    }
+
+    @Override void setByte(int index, int v) {
+      buf[index] = (byte) v;
+    }
+
+    /** Copies the bytes written into the target at its position, which is advanced. */
+    void writeTo(ByteBuffer target) {
+      target.put(buf, 0, pos);
+    }
+
+    /** Returns a copy of the bytes written. */
+    @Override public byte[] toByteArray() {
+      return Arrays.copyOf(buf, pos);
+    }
   }
 }
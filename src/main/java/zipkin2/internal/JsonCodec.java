@@ -16,11 +16,13 @@ package zipkin2.internal;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import zipkin2.Span;
 
 import static java.lang.String.format;
 
@@ -149,56 +151,78 @@ public final class JsonCodec {
     return out;
   }
 
-  static <T> int sizeInBytes(Buffer.Writer<T> writer, List<T> value) {
-    int length = value.size();
-    int sizeInBytes = 2; // []
-    if (length > 1) sizeInBytes += length - 1; // comma to join elements
-    for (int i = 0; i < length; i++) {
-      sizeInBytes += writer.sizeInBytes(value.get(i));
+  public static boolean read(V2SpanBytesReader reader, byte[] bytes, Collection<Span> out) {
+    if (bytes.length == 0) return false;
+    try {
+      out.add(reader.read(bytes));
+      return true;
+    } catch (RuntimeException e) {
+      throw exceptionReading(reader.toString(), e);
+    }
+  }
+
+  public static @Nullable Span readOne(V2SpanBytesReader reader, byte[] bytes) {
+    if (bytes.length == 0) return null;
+    try {
+      return reader.read(bytes);
+    } catch (RuntimeException e) {
+      throw exceptionReading(reader.toString(), e);
+    }
+  }
+
+  public static boolean readList(V2SpanBytesReader reader, byte[] bytes, Collection<Span> out) {
+    try {
+      return reader.readList(bytes, out);
+    } catch (RuntimeException e) {
+      throw exceptionReading("List<" + reader + ">", e);
     }
-    return sizeInBytes;
+  }
+
+  public static List<Span> readList(V2SpanBytesReader reader, byte[] bytes) {
+    List<Span> out = new ArrayList<Span>();
+    if (!readList(reader, bytes, out)) return Collections.emptyList();
+    return out;
   }
 
   /** Inability to encode is a programming bug. */
   public static <T> byte[] write(Buffer.Writer<T> writer, T value) {
-    Buffer b = new Buffer(writer.sizeInBytes(value));
+    Buffer.GrowableBuffer b = Buffer.GrowableBuffer.acquire();
     try {
       writer.write(value, b);
+      return b.toByteArray(); // single pass: copying is cheaper than sizing the value first
     } catch (RuntimeException e) {
-      byte[] bytes = b.toByteArray();
-      int lengthWritten = bytes.length;
-      for (int i = 0; i < bytes.length; i++) {
-        if (bytes[i] == 0) {
-          lengthWritten = i;
-          break;
-        }
-      }
-
-      final byte[] bytesWritten;
-      if (lengthWritten == bytes.length) {
-        bytesWritten = bytes;
-      } else {
-        bytesWritten = new byte[lengthWritten];
-        System.arraycopy(bytes, 0, bytesWritten, 0, lengthWritten);
-      }
-
-      String written = new String(bytesWritten, UTF_8);
+      String written = new String(b.buf, 0, b.pos, UTF_8);
       // Don't use value directly in the message, as its toString might be implemented using this
       // method. If that's the case, we'd stack overflow. Instead, emit what we've written so far.
       String message = format(
-        "Bug found using %s to write %s as json. Wrote %s/%s bytes: %s",
+        "Bug found using %s to write %s as json. Wrote %s bytes: %s",
         writer.getClass().getSimpleName().replace("AutoValue_", ""),
-        value.getClass().getSimpleName(), lengthWritten, bytes.length, written);
+        value.getClass().getSimpleName(), b.pos, written);
       throw Platform.get().assertionError(message, e);
+    } finally {
+      b.release();
     }
-    return b.toByteArray();
   }
 
   public static <T> byte[] writeList(Buffer.Writer<T> writer, List<T> value) {
     if (value.isEmpty()) return new byte[] {'[', ']'};
-    Buffer result = new Buffer(sizeInBytes(writer, value));
-    writeList(writer, value, result);
-    return result.toByteArray();
+    Buffer.GrowableBuffer result = Buffer.GrowableBuffer.acquire();
+    try {
+      writeList(writer, value, result);
+      return result.toByteArray();
+    } finally {
+      result.release();
+    }
+  }
+
+  static <T> void writeList(Buffer.Writer<T> writer, List<T> value, Buffer.GrowableBuffer b) {
+    b.writeByte('[');
+    for (int i = 0, length = value.size(); i < length; ) {
+      writer.write(value.get(i++), b);
+      if (i == 1) b.ensureCapacityFor(length - 1, b.pos); // guess the rest are similar
+      if (i < length) b.writeByte(',');
+    }
+    b.writeByte(']');
   }
 
   public static <T> int writeList(Buffer.Writer<T> writer, List<T> value, byte[] out, int pos) {
@@ -207,12 +231,46 @@ public final class JsonCodec {
       out[pos++] = ']';
       return 2;
     }
-    int length = sizeInBytes(writer, value);
-    Buffer result = new Buffer(out, pos);
+    Buffer result = Buffer.wrap(out, pos);
+    writeList(writer, value, result);
+    return result.pos() - pos; // avoids walking the spans a second time to compute their size
+  }
+
+  /**
+   * Like {@link #writeList(Buffer.Writer, List, byte[], int)}, except writing at the position of
+   * the buffer, which is advanced by the count of bytes written.
+   */
+  public static <T> int writeList(Buffer.Writer<T> writer, List<T> value, ByteBuffer out) {
+    if (!out.hasArray()) return writeListStaged(writer, value, out);
+    Buffer result = Buffer.wrap(out);
     writeList(writer, value, result);
+    int length = result.pos() - out.position();
+    out.position(result.pos());
     return length;
   }
 
+  /**
+   * Direct output is staged on the heap, so writers only see array buffers. Each value is copied
+   * when written, so the scratch only grows to the size of the largest value, not the message.
+   */
+  static <T> int writeListStaged(Buffer.Writer<T> writer, List<T> value, ByteBuffer out) {
+    int start = out.position();
+    out.put((byte) '[');
+    Buffer.GrowableBuffer b = Buffer.GrowableBuffer.acquire();
+    try {
+      for (int i = 0, length = value.size(); i < length; ) {
+        b.pos = 0;
+        writer.write(value.get(i++), b);
+        if (i < length) b.writeByte(',');
+        b.writeTo(out);
+      }
+    } finally {
+      b.release();
+    }
+    out.put((byte) ']');
+    return out.position() - start;
+  }
+
   public static <T> void writeList(Buffer.Writer<T> writer, List<T> value, Buffer b) {
     b.writeByte('[');
     for (int i = 0, length = value.size(); i < length; ) {
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import zipkin2.Span;
+
+import static java.lang.String.format;
+import static zipkin2.internal.Proto3SpanWriter.LIST_OF_SPANS_SPAN;
+import static zipkin2.internal.Proto3SpanWriter.sizeOfLengthDelimitedField;
+
+/**
+ * Like {@link JsonCodec}, except for the protobuf encoding of spans. A list is the message {@code
+ * zipkin.proto3.ListOfSpans}, which is each span prefixed by its field key and length.
+ */
+public final class Proto3Codec {
+
+  public static int sizeInBytes(Buffer.Writer<Span> writer, List<Span> value) {
+    int sizeInBytes = 0;
+    for (int i = 0, length = value.size(); i < length; i++) {
+      sizeInBytes += sizeOfLengthDelimitedField(writer.sizeInBytes(value.get(i)));
+    }
+    return sizeInBytes;
+  }
+
+  /** Inability to encode is a programming bug. */
+  public static byte[] write(Buffer.Writer<Span> writer, Span value) {
+    Buffer.GrowableBuffer b = Buffer.GrowableBuffer.acquire();
+    try {
+      writer.write(value, b);
+      return b.toByteArray(); // single pass: copying is cheaper than sizing the span first
+    } catch (RuntimeException e) {
+      throw bugWriting(writer, b, e);
+    } finally {
+      b.release();
+    }
+  }
+
+  public static byte[] writeList(Buffer.Writer<Span> writer, List<Span> value) {
+    if (value.isEmpty()) return new byte[0];
+    Buffer.GrowableBuffer b = Buffer.GrowableBuffer.acquire();
+    try {
+      writeList(writer, value, b);
+      return b.toByteArray();
+    } finally {
+      b.release();
+    }
+  }
+
+  /** Writes a list onto a specific offset, returning the count of bytes written. */
+  public static int writeList(Buffer.Writer<Span> writer, List<Span> value, byte[] out, int pos) {
+    return writeList(writer, value, Buffer.wrap(out, pos));
+  }
+
+  /** Like {@link #writeList(Buffer.Writer, List, byte[], int)}, except advancing the buffer. */
+  public static int writeList(Buffer.Writer<Span> writer, List<Span> value, ByteBuffer out) {
+    if (!out.hasArray()) return writeListStaged(writer, value, out);
+    Buffer b = Buffer.wrap(out);
+    int length = writeList(writer, value, b);
+    out.position(b.pos());
+    return length;
+  }
+
+  /**
+   * Direct output is staged on the heap, so writers only see array buffers. Each span is copied
+   * when written, so the scratch only grows to the size of the largest span, not the message.
+   */
+  static int writeListStaged(Buffer.Writer<Span> writer, List<Span> value, ByteBuffer out) {
+    int start = out.position();
+    Buffer.GrowableBuffer b = Buffer.GrowableBuffer.acquire();
+    try {
+      for (int i = 0, length = value.size(); i < length; i++) {
+        b.pos = 0;
+        writeSpanField(writer, value.get(i), b);
+        b.writeTo(out);
+      }
+    } finally {
+      b.release();
+    }
+    return out.position() - start;
+  }
+
+  /** Writes each span via scratch space, so that it only grows to the size of the largest span. */
+  static int writeList(Buffer.Writer<Span> writer, List<Span> value, Buffer out) {
+    int start = out.pos();
+    Buffer.GrowableBuffer b = Buffer.GrowableBuffer.acquire();
+    try {
+      for (int i = 0, length = value.size(); i < length; i++) {
+        b.pos = 0;
+        writeSpanField(writer, value.get(i), b);
+        out.write(b.buf, 0, b.pos);
+      }
+    } finally {
+      b.release();
+    }
+    return out.pos() - start;
+  }
+
+  static void writeList(Buffer.Writer<Span> writer, List<Span> value, Buffer.GrowableBuffer b) {
+    int start = b.pos;
+    for (int i = 0, length = value.size(); i < length; i++) {
+      writeSpanField(writer, value.get(i), b);
+      if (i == 0) b.ensureCapacityFor(length - 1, b.pos - start); // guess the rest are similar
+    }
+  }
+
+  /**
+   * Writes a span field in one pass. As its length prefix isn't known until the span is written, a
+   * gap the size of the largest prefix is left, then closed by shifting the span left.
+   */
+  static void writeSpanField(Buffer.Writer<Span> writer, Span value, Buffer.GrowableBuffer b) {
+    b.writeByte(LIST_OF_SPANS_SPAN);
+    int prefixPos = b.pos;
+    int start = b.reserve(5); // max size of a varint32
+    try {
+      writer.write(value, b);
+    } catch (RuntimeException e) {
+      throw bugWriting(writer, b, e);
+    }
+    int sizeInBytes = b.pos - start;
+    int prefixSize = Buffer.varintSizeInBytes(sizeInBytes);
+    if (prefixSize < 5) System.arraycopy(b.buf, start, b.buf, prefixPos + prefixSize, sizeInBytes);
+    b.pos = prefixPos;
+    b.writeVarint(sizeInBytes);
+    b.pos += sizeInBytes;
+  }
+
+  public static boolean read(Proto3SpanReader reader, byte[] bytes, Collection<Span> out) {
+    if (bytes.length == 0) return false;
+    try {
+      out.add(reader.read(bytes, 0, bytes.length));
+      return true;
+    } catch (RuntimeException e) {
+      throw exceptionReading("Span", e);
+    }
+  }
+
+  public static @Nullable Span readOne(Proto3SpanReader reader, byte[] bytes) {
+    List<Span> out = new ArrayList<Span>(1);
+    if (!read(reader, bytes, out)) return null;
+    return out.get(0);
+  }
+
+  public static boolean readList(Proto3SpanReader reader, byte[] bytes, Collection<Span> out) {
+    int length = bytes.length;
+    if (length == 0) return false;
+    try {
+      int pos = 0;
+      while (pos < length) {
+        if ((bytes[pos++] & 0xff) != LIST_OF_SPANS_SPAN) {
+          throw new IllegalArgumentException("Expected field 1 of ListOfSpans at " + (pos - 1));
+        }
+        int spanLength = 0;
+        for (int shift = 0; ; shift += 7) {
+          if (pos >= length || shift > 28) throw new IllegalArgumentException("Malformed length");
+          byte b = bytes[pos++];
+          spanLength |= (b & 0x7f) << shift;
+          if ((b & 0x80) == 0) break;
+        }
+        if (spanLength < 0 || pos + spanLength > length) {
+          throw new IllegalArgumentException("Truncated span at " + pos);
+        }
+        out.add(reader.read(bytes, pos, pos + spanLength));
+        pos += spanLength;
+      }
+      return true;
+    } catch (RuntimeException e) {
+      throw exceptionReading("List<Span>", e);
+    }
+  }
+
+  public static List<Span> readList(Proto3SpanReader reader, byte[] bytes) {
+    List<Span> out = new ArrayList<Span>();
+    if (!readList(reader, bytes, out)) return Collections.emptyList();
+    return out;
+  }
+
+  static AssertionError bugWriting(Buffer.Writer<Span> writer, Buffer b, RuntimeException e) {
+    // Don't use the span in the message, as its toString uses an encoder.
+    String message = format("Bug found using %s to write Span as proto3. Wrote %s bytes",
+      writer.getClass().getSimpleName(), b.pos());
+    return Platform.get().assertionError(message, e);
+  }
+
+  static IllegalArgumentException exceptionReading(String type, Exception e) {
+    String cause = e.getMessage() == null ? "Error" : e.getMessage();
+    String message = format("%s reading %s from proto3", cause, type);
+    throw new IllegalArgumentException(message, e);
+  }
+}
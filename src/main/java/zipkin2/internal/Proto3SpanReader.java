@@ -0,0 +1,272 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static zipkin2.internal.Proto3SpanWriter.WIRETYPE_FIXED64;
+import static zipkin2.internal.Proto3SpanWriter.WIRETYPE_LENGTH_DELIMITED;
+import static zipkin2.internal.Proto3SpanWriter.WIRETYPE_VARINT;
+
+/**
+ * Reads the message {@code zipkin.proto3.Span} directly from a byte array. Like {@link
+ * V2SpanReader}, the span builder is reused, so this type is not thread-safe.
+ *
+ * <p>Unknown fields are skipped, so that this can read messages from newer versions of the schema.
+ */
+public final class Proto3SpanReader {
+  static final int WIRETYPE_FIXED32 = 5;
+  static final Span.Kind[] KINDS = Span.Kind.values();
+  static final char[] HEX_DIGITS =
+    {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  Span.Builder builder;
+  byte[] bytes;
+  int pos;
+
+  /** Reads all fields in {@code bytes[pos, limit)} as a span. */
+  public Span read(byte[] bytes, int pos, int limit) {
+    if (builder == null) {
+      builder = Span.newBuilder();
+    } else {
+      builder.clear();
+    }
+    this.bytes = bytes;
+    this.pos = pos;
+    while (this.pos < limit) {
+      int key = readVarint();
+      int fieldNumber = key >>> 3;
+      switch (fieldNumber) {
+        case 1:
+          builder.traceId(readHex(key));
+          break;
+        case 2:
+          builder.parentId(readHex(key));
+          break;
+        case 3:
+          builder.id(readHex(key));
+          break;
+        case 4:
+          int kind = readVarint(key);
+          if (kind > 0 && kind <= KINDS.length) builder.kind(KINDS[kind - 1]);
+          break;
+        case 5:
+          builder.name(readString(key));
+          break;
+        case 6:
+          builder.timestamp(readFixed64(key));
+          break;
+        case 7:
+          builder.duration(readVarint64(key));
+          break;
+        case 8:
+          builder.localEndpoint(readEndpoint(key));
+          break;
+        case 9:
+          builder.remoteEndpoint(readEndpoint(key));
+          break;
+        case 10:
+          readAnnotation(key);
+          break;
+        case 11:
+          readTag(key);
+          break;
+        case 12:
+          if (readVarint(key) != 0) builder.debug(true);
+          break;
+        case 13:
+          if (readVarint(key) != 0) builder.shared(true);
+          break;
+        default:
+          skipValue(key & 7);
+      }
+    }
+    if (this.pos != limit) throw new IllegalArgumentException("Truncated span at " + this.pos);
+    this.bytes = null; // don't retain the input
+    return builder.build();
+  }
+
+  Endpoint readEndpoint(int key) {
+    int limit = readLengthPrefix(key);
+    Endpoint.Builder result = Endpoint.newBuilder();
+    while (pos < limit) {
+      int nextKey = readVarint();
+      switch (nextKey >>> 3) {
+        case 1:
+          result.serviceName(readString(nextKey));
+          break;
+        case 2:
+        case 3:
+          int length = readLengthPrefix(nextKey) - pos;
+          byte[] ip = new byte[length];
+          System.arraycopy(bytes, pos, ip, 0, length);
+          pos += length;
+          result.parseIp(ip);
+          break;
+        case 4:
+          result.port(readVarint(nextKey));
+          break;
+        default:
+          skipValue(nextKey & 7);
+      }
+    }
+    return result.build();
+  }
+
+  void readAnnotation(int key) {
+    int limit = readLengthPrefix(key);
+    long timestamp = 0L;
+    String value = null;
+    while (pos < limit) {
+      int nextKey = readVarint();
+      switch (nextKey >>> 3) {
+        case 1:
+          timestamp = readFixed64(nextKey);
+          break;
+        case 2:
+          value = readString(nextKey);
+          break;
+        default:
+          skipValue(nextKey & 7);
+      }
+    }
+    if (timestamp == 0L || value == null) {
+      throw new IllegalArgumentException("Incomplete annotation at " + pos);
+    }
+    builder.addAnnotation(timestamp, value);
+  }
+
+  void readTag(int key) {
+    int limit = readLengthPrefix(key);
+    String tagKey = null, value = "";
+    while (pos < limit) {
+      int nextKey = readVarint();
+      switch (nextKey >>> 3) {
+        case 1:
+          tagKey = readString(nextKey);
+          break;
+        case 2:
+          value = readString(nextKey);
+          break;
+        default:
+          skipValue(nextKey & 7);
+      }
+    }
+    if (tagKey == null) throw new IllegalArgumentException("Tag without a key at " + pos);
+    builder.putTag(tagKey, value);
+  }
+
+  /** Reads the length of a nested field and returns the position after it. */
+  int readLengthPrefix(int key) {
+    checkWireType(key, WIRETYPE_LENGTH_DELIMITED);
+    int length = readVarint();
+    if (length < 0 || pos + length > bytes.length) {
+      throw new IllegalArgumentException("Truncated field " + (key >>> 3) + " at " + pos);
+    }
+    return pos + length;
+  }
+
+  String readHex(int key) {
+    int limit = readLengthPrefix(key);
+    char[] result = new char[(limit - pos) * 2];
+    for (int i = 0; pos < limit; pos++) {
+      int b = bytes[pos];
+      result[i++] = HEX_DIGITS[(b >> 4) & 0xf];
+      result[i++] = HEX_DIGITS[b & 0xf];
+    }
+    return new String(result);
+  }
+
+  String readString(int key) {
+    int limit = readLengthPrefix(key);
+    int length = limit - pos;
+    String result = new String(bytes, pos, length, Buffer.UTF_8);
+    pos = limit;
+    return result;
+  }
+
+  long readFixed64(int key) {
+    checkWireType(key, WIRETYPE_FIXED64);
+    if (pos + 8 > bytes.length) throw new IllegalArgumentException("Truncated fixed64 at " + pos);
+    long result = 0L;
+    for (int i = 0; i < 8; i++) {
+      result |= (bytes[pos++] & 0xffL) << (i * 8);
+    }
+    return result;
+  }
+
+  int readVarint(int key) {
+    checkWireType(key, WIRETYPE_VARINT);
+    return readVarint();
+  }
+
+  long readVarint64(int key) {
+    checkWireType(key, WIRETYPE_VARINT);
+    long result = 0L;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (pos >= bytes.length) throw new IllegalArgumentException("Truncated varint at " + pos);
+      byte b = bytes[pos++];
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    throw new IllegalArgumentException("Malformed varint at " + pos);
+  }
+
+  int readVarint() {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (pos >= bytes.length) throw new IllegalArgumentException("Truncated varint at " + pos);
+      byte b = bytes[pos++];
+      result |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    // Skip the upper bytes of a negative int32, which is encoded as 10 bytes
+    for (int i = 0; i < 5; i++) {
+      if (pos >= bytes.length) throw new IllegalArgumentException("Truncated varint at " + pos);
+      if ((bytes[pos++] & 0x80) == 0) return result;
+    }
+    throw new IllegalArgumentException("Malformed varint at " + pos);
+  }
+
+  void skipValue(int wireType) {
+    switch (wireType) {
+      case WIRETYPE_VARINT:
+        readVarint64(WIRETYPE_VARINT);
+        break;
+      case WIRETYPE_FIXED64:
+        pos += 8;
+        break;
+      case WIRETYPE_LENGTH_DELIMITED:
+        pos = readLengthPrefix(WIRETYPE_LENGTH_DELIMITED);
+        break;
+      case WIRETYPE_FIXED32:
+        pos += 4;
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported wire type " + wireType + " at " + pos);
+    }
+  }
+
+  static void checkWireType(int key, int wireType) {
+    if ((key & 7) != wireType) {
+      throw new IllegalArgumentException(
+        "Field " + (key >>> 3) + " has wire type " + (key & 7) + ", expected " + wireType);
+    }
+  }
+
+  @Override public String toString() {
+    return "Span";
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.List;
+import java.util.Map;
+import zipkin2.Annotation;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static zipkin2.internal.Buffer.utf8SizeInBytes;
+import static zipkin2.internal.Buffer.varintSizeInBytes;
+
+/**
+ * Writes a span as the message {@code zipkin.proto3.Span}, defined in zipkin-api's zipkin2.proto.
+ * Like {@link V2SpanWriter}, sizes are computed exactly, so the encoded form is written directly
+ * into a right-sized buffer.
+ *
+ * <p>Fields are only written when they are not the proto3 default value. IDs are written as the
+ * bytes they represent, which is half the size of their hex form in json.
+ */
+//@Immutable
+public final class Proto3SpanWriter implements Buffer.Writer<Span> {
+  // The key of a field is its number shifted left three bits, or'ed with its wire type.
+  static final int WIRETYPE_VARINT = 0, WIRETYPE_FIXED64 = 1, WIRETYPE_LENGTH_DELIMITED = 2;
+
+  static final int SPAN_TRACE_ID = key(1, WIRETYPE_LENGTH_DELIMITED);
+  static final int SPAN_PARENT_ID = key(2, WIRETYPE_LENGTH_DELIMITED);
+  static final int SPAN_ID = key(3, WIRETYPE_LENGTH_DELIMITED);
+  static final int SPAN_KIND = key(4, WIRETYPE_VARINT);
+  static final int SPAN_NAME = key(5, WIRETYPE_LENGTH_DELIMITED);
+  static final int SPAN_TIMESTAMP = key(6, WIRETYPE_FIXED64);
+  static final int SPAN_DURATION = key(7, WIRETYPE_VARINT);
+  static final int SPAN_LOCAL_ENDPOINT = key(8, WIRETYPE_LENGTH_DELIMITED);
+  static final int SPAN_REMOTE_ENDPOINT = key(9, WIRETYPE_LENGTH_DELIMITED);
+  static final int SPAN_ANNOTATION = key(10, WIRETYPE_LENGTH_DELIMITED);
+  static final int SPAN_TAG = key(11, WIRETYPE_LENGTH_DELIMITED);
+  static final int SPAN_DEBUG = key(12, WIRETYPE_VARINT);
+  static final int SPAN_SHARED = key(13, WIRETYPE_VARINT);
+
+  static final int ENDPOINT_SERVICE_NAME = key(1, WIRETYPE_LENGTH_DELIMITED);
+  static final int ENDPOINT_IPV4 = key(2, WIRETYPE_LENGTH_DELIMITED);
+  static final int ENDPOINT_IPV6 = key(3, WIRETYPE_LENGTH_DELIMITED);
+  static final int ENDPOINT_PORT = key(4, WIRETYPE_VARINT);
+
+  static final int ANNOTATION_TIMESTAMP = key(1, WIRETYPE_FIXED64);
+  static final int ANNOTATION_VALUE = key(2, WIRETYPE_LENGTH_DELIMITED);
+
+  static final int MAP_KEY = key(1, WIRETYPE_LENGTH_DELIMITED);
+  static final int MAP_VALUE = key(2, WIRETYPE_LENGTH_DELIMITED);
+
+  /** The only field of {@code zipkin.proto3.ListOfSpans} is its repeated spans. */
+  static final int LIST_OF_SPANS_SPAN = key(1, WIRETYPE_LENGTH_DELIMITED);
+
+  static int key(int fieldNumber, int wireType) {
+    return fieldNumber << 3 | wireType;
+  }
+
+  @Override public int sizeInBytes(Span value) {
+    int sizeInBytes = sizeOfLengthDelimitedField(value.traceId().length() / 2);
+    if (value.parentId() != null) {
+      sizeInBytes += 10; // key, length and 8 bytes
+    }
+    sizeInBytes += 10; // key, length and 8 bytes
+    if (value.kind() != null) {
+      sizeInBytes += 2; // key and enum value
+    }
+    if (value.name() != null) {
+      sizeInBytes += sizeOfStringField(value.name());
+    }
+    if (value.timestampAsLong() != 0L) {
+      sizeInBytes += 9; // key and fixed64
+    }
+    if (value.durationAsLong() != 0L) {
+      sizeInBytes += 1 + varintSizeInBytes(value.durationAsLong());
+    }
+    sizeInBytes += sizeOfEndpointField(value.localEndpoint());
+    sizeInBytes += sizeOfEndpointField(value.remoteEndpoint());
+    List<Annotation> annotations = value.annotations();
+    for (int i = 0, length = annotations.size(); i < length; i++) {
+      sizeInBytes += sizeOfLengthDelimitedField(annotationSizeInBytes(annotations.get(i)));
+    }
+    for (Map.Entry<String, String> entry : value.tags().entrySet()) {
+      sizeInBytes += sizeOfLengthDelimitedField(tagSizeInBytes(entry.getKey(), entry.getValue()));
+    }
+    if (Boolean.TRUE.equals(value.debug())) {
+      sizeInBytes += 2; // key and true
+    }
+    if (Boolean.TRUE.equals(value.shared())) {
+      sizeInBytes += 2; // key and true
+    }
+    return sizeInBytes;
+  }
+
+  @Override public void write(Span value, Buffer b) {
+    writeHexField(SPAN_TRACE_ID, value.traceId(), b);
+    if (value.parentId() != null) {
+      writeHexField(SPAN_PARENT_ID, value.parentId(), b);
+    }
+    writeHexField(SPAN_ID, value.id(), b);
+    if (value.kind() != null) {
+      b.writeByte(SPAN_KIND).writeByte(value.kind().ordinal() + 1); // 0 is SPAN_KIND_UNSPECIFIED
+    }
+    if (value.name() != null) {
+      writeStringField(SPAN_NAME, value.name(), b);
+    }
+    if (value.timestampAsLong() != 0L) {
+      b.writeByte(SPAN_TIMESTAMP).writeLongLe(value.timestampAsLong());
+    }
+    if (value.durationAsLong() != 0L) {
+      b.writeByte(SPAN_DURATION).writeVarint(value.durationAsLong());
+    }
+    writeEndpointField(SPAN_LOCAL_ENDPOINT, value.localEndpoint(), b);
+    writeEndpointField(SPAN_REMOTE_ENDPOINT, value.remoteEndpoint(), b);
+    List<Annotation> annotations = value.annotations();
+    for (int i = 0, length = annotations.size(); i < length; i++) {
+      Annotation annotation = annotations.get(i);
+      b.writeByte(SPAN_ANNOTATION).writeVarint(annotationSizeInBytes(annotation));
+      b.writeByte(ANNOTATION_TIMESTAMP).writeLongLe(annotation.timestamp());
+      writeStringField(ANNOTATION_VALUE, annotation.value(), b);
+    }
+    for (Map.Entry<String, String> entry : value.tags().entrySet()) {
+      String key = entry.getKey(), tagValue = entry.getValue();
+      b.writeByte(SPAN_TAG).writeVarint(tagSizeInBytes(key, tagValue));
+      writeStringField(MAP_KEY, key, b);
+      writeStringField(MAP_VALUE, tagValue, b);
+    }
+    if (Boolean.TRUE.equals(value.debug())) {
+      b.writeByte(SPAN_DEBUG).writeByte(1);
+    }
+    if (Boolean.TRUE.equals(value.shared())) {
+      b.writeByte(SPAN_SHARED).writeByte(1);
+    }
+  }
+
+  @Override public String toString() {
+    return "Span";
+  }
+
+  /** Returns the size of a length-delimited field with a key under 128, such as a nested span. */
+  static int sizeOfLengthDelimitedField(int sizeInBytes) {
+    return 1 + varintSizeInBytes(sizeInBytes) + sizeInBytes;
+  }
+
+  static int sizeOfStringField(String value) {
+    return sizeOfLengthDelimitedField(utf8SizeInBytes(value));
+  }
+
+  /** An empty endpoint is the proto3 default value, so it is skipped like a null one. */
+  static int sizeOfEndpointField(@Nullable Endpoint value) {
+    int sizeInBytes = value != null ? endpointSizeInBytes(value) : 0;
+    return sizeInBytes != 0 ? sizeOfLengthDelimitedField(sizeInBytes) : 0;
+  }
+
+  static int endpointSizeInBytes(Endpoint value) {
+    int sizeInBytes = 0;
+    if (value.serviceName() != null) sizeInBytes += sizeOfStringField(value.serviceName());
+    if (value.ipv4() != null) sizeInBytes += 6; // key, length and 4 bytes
+    if (value.ipv6() != null) sizeInBytes += 18; // key, length and 16 bytes
+    if (value.port() != null) sizeInBytes += 1 + varintSizeInBytes(value.port());
+    return sizeInBytes;
+  }
+
+  static int annotationSizeInBytes(Annotation value) {
+    return 9 + sizeOfStringField(value.value()); // fixed64 timestamp and value
+  }
+
+  static int tagSizeInBytes(String key, String value) {
+    return sizeOfStringField(key) + sizeOfStringField(value);
+  }
+
+  static void writeHexField(int key, String lowerHex, Buffer b) {
+    b.writeByte(key).writeByte(lowerHex.length() / 2).writeLowerHexAsBytes(lowerHex);
+  }
+
+  static void writeStringField(int key, String value, Buffer b) {
+    b.writeByte(key).writeVarint(utf8SizeInBytes(value)).writeUtf8(value);
+  }
+
+  static void writeEndpointField(int key, @Nullable Endpoint value, Buffer b) {
+    int sizeInBytes = value != null ? endpointSizeInBytes(value) : 0;
+    if (sizeInBytes == 0) return;
+    b.writeByte(key).writeVarint(sizeInBytes);
+    if (value.serviceName() != null) {
+      writeStringField(ENDPOINT_SERVICE_NAME, value.serviceName(), b);
+    }
+    if (value.ipv4() != null) {
+      b.writeByte(ENDPOINT_IPV4).writeByte(4).write(value.ipv4Bytes());
+    }
+    if (value.ipv6() != null) {
+      b.writeByte(ENDPOINT_IPV6).writeByte(16).write(value.ipv6Bytes());
+    }
+    if (value.port() != null) {
+      b.writeByte(ENDPOINT_PORT).writeVarint(value.port());
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import zipkin2.Span;
+
+import static zipkin2.internal.Proto3SpanWriter.LIST_OF_SPANS_SPAN;
+
+/**
+ * Decodes a list of spans incrementally from a stream, so that memory is bounded by the size of
+ * the largest span as opposed to the size of the input.
+ *
+ * <p>Each span is framed in a buffer, then decoded with the same reader used for byte arrays. The
+ * buffer only grows as data arrives, so a corrupt length prefix can't provoke a large allocation.
+ *
+ * <p>As {@link Iterator} methods can't throw checked exceptions, an {@link IOException} reading the
+ * stream is rethrown as an {@link IllegalStateException}. Malformed input raises an {@link
+ * IllegalArgumentException}, like decoding a byte array would. The caller owns the stream, so
+ * should close it when done.
+ */
+public abstract class SpanStreamIterator implements Iterator<Span> {
+  static final int INITIAL_BUFFER_SIZE = 8192;
+
+  public static Iterator<Span> json(InputStream in) {
+    return new JsonSpanStreamIterator(in);
+  }
+
+  public static Iterator<Span> proto3(InputStream in) {
+    return new Proto3SpanStreamIterator(in);
+  }
+
+  /** Adapts the remaining bytes in the buffer, advancing its position as they are read. */
+  public static InputStream inputStream(final ByteBuffer buffer) {
+    return new InputStream() {
+      @Override public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+      }
+
+      @Override public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        if (!buffer.hasRemaining()) return -1;
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+      }
+
+      @Override public int available() {
+        return buffer.remaining();
+      }
+    };
+  }
+
+  final InputStream in;
+  byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+  int pos, limit; // unread bytes are buf[pos, limit)
+  boolean eof;
+  Span next;
+  boolean done;
+
+  SpanStreamIterator(InputStream in) {
+    if (in == null) throw new NullPointerException("in == null");
+    this.in = in;
+  }
+
+  /** Returns the next span or null if there are no more. */
+  @Nullable abstract Span readNext() throws IOException;
+
+  /** Used in exception messages, like {@code List<Span>}. */
+  abstract IllegalArgumentException exceptionReading(RuntimeException e);
+
+  @Override public boolean hasNext() {
+    if (next != null) return true;
+    if (done) return false;
+    try {
+      next = readNext();
+    } catch (IOException e) {
+      done = true;
+      throw new IllegalStateException("Error reading spans: " + e.getMessage(), e);
+    } catch (RuntimeException e) {
+      done = true;
+      throw exceptionReading(e);
+    }
+    if (next == null) {
+      done = true;
+      buf = null; // release the buffer early
+    }
+    return next != null;
+  }
+
+  @Override public Span next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    Span result = next;
+    next = null;
+    return result;
+  }
+
+  @Override public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Ensures at least {@code count} unread bytes are buffered, returning false if the stream ended
+   * before that.
+   */
+  boolean require(int count) throws IOException {
+    while (limit - pos < count) {
+      if (eof) return false;
+      if (limit == buf.length) makeRoom();
+      int read = in.read(buf, limit, buf.length - limit);
+      if (read == -1) {
+        eof = true;
+      } else {
+        limit += read;
+      }
+    }
+    return true;
+  }
+
+  /** Discards consumed bytes, then doubles the buffer if it is still full. */
+  void makeRoom() {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      limit -= pos;
+      onCompact(pos);
+      pos = 0;
+    }
+    if (limit == buf.length) {
+      byte[] grown = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, grown, 0, limit);
+      buf = grown;
+    }
+  }
+
+  /** Called when buffered bytes shift left by the given amount. */
+  void onCompact(int shift) {
+  }
+
+  /** Skips whitespace, returning the next byte without consuming it, or -1 at end of stream. */
+  int peekNonWhitespace() throws IOException {
+    while (require(1)) {
+      byte b = buf[pos];
+      if (b != ' ' && b != '\n' && b != '\r' && b != '\t') return b;
+      pos++;
+    }
+    return -1;
+  }
+
+  /** Frames each element of a json array, decoding them with {@link V2SpanBytesReader}. */
+  static final class JsonSpanStreamIterator extends SpanStreamIterator {
+    final V2SpanBytesReader reader = new V2SpanBytesReader();
+    boolean started;
+    int scan; // how far the current element has been scanned, relative to buf
+
+    JsonSpanStreamIterator(InputStream in) {
+      super(in);
+    }
+
+    @Override Span readNext() throws IOException {
+      int b = peekNonWhitespace();
+      if (!started) {
+        if (b == -1) return null; // empty input, like decodeList(new byte[0])
+        if (b != '[') throw malformed("Expected '['");
+        pos++;
+        started = true;
+        b = peekNonWhitespace();
+        if (b == ']') return finish();
+      } else if (b == ',') {
+        pos++;
+        b = peekNonWhitespace();
+      } else if (b == ']') {
+        return finish();
+      } else {
+        throw malformed("Expected ',' or ']'");
+      }
+      if (b != '{') throw malformed("Expected '{'");
+
+      int end = scanObject();
+      Span result = reader.read(buf, pos, end);
+      pos = end;
+      return result;
+    }
+
+    /** Like decoding a byte array, bytes after the array are ignored, so aren't read. */
+    @Nullable Span finish() {
+      pos++;
+      return null;
+    }
+
+    /** Buffers the object starting at pos, returning the index after its closing brace. */
+    int scanObject() throws IOException {
+      int depth = 0;
+      boolean inString = false, escaped = false;
+      scan = pos;
+      while (true) {
+        if (scan == limit) {
+          if (!require(limit - pos + 1)) throw malformed("Unexpected end of input");
+        }
+        byte b = buf[scan++];
+        if (inString) {
+          if (escaped) {
+            escaped = false;
+          } else if (b == '\\') {
+            escaped = true;
+          } else if (b == '"') {
+            inString = false;
+          }
+        } else if (b == '"') {
+          inString = true;
+        } else if (b == '{' || b == '[') {
+          depth++;
+        } else if (b == '}' || b == ']') {
+          if (--depth == 0) return scan;
+        }
+      }
+    }
+
+    @Override void onCompact(int shift) {
+      scan -= shift;
+    }
+
+    IllegalArgumentException malformed(String reason) {
+      return new IllegalArgumentException("Malformed json: " + reason);
+    }
+
+    @Override IllegalArgumentException exceptionReading(RuntimeException e) {
+      return JsonCodec.exceptionReading("List<Span>", e);
+    }
+  }
+
+  /** Reads each length-prefixed span of the message {@code zipkin.proto3.ListOfSpans}. */
+  static final class Proto3SpanStreamIterator extends SpanStreamIterator {
+    final Proto3SpanReader reader = new Proto3SpanReader();
+
+    Proto3SpanStreamIterator(InputStream in) {
+      super(in);
+    }
+
+    @Override Span readNext() throws IOException {
+      if (!require(1)) return null;
+      int key = buf[pos++] & 0xff;
+      if (key != LIST_OF_SPANS_SPAN) {
+        throw new IllegalArgumentException("Expected field 1 of ListOfSpans");
+      }
+      int length = 0;
+      for (int shift = 0; ; shift += 7) {
+        if (shift > 28 || !require(1)) throw new IllegalArgumentException("Malformed length");
+        byte b = buf[pos++];
+        length |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) break;
+      }
+      if (length < 0) throw new IllegalArgumentException("Malformed length");
+      if (!require(length)) throw new IllegalArgumentException("Truncated span");
+      Span result = reader.read(buf, pos, pos + length);
+      pos += length;
+      return result;
+    }
+
+    @Override IllegalArgumentException exceptionReading(RuntimeException e) {
+      return Proto3Codec.exceptionReading("List<Span>", e);
+    }
+  }
+}
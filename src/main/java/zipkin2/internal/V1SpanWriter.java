@@ -186,7 +186,7 @@ public final class V1SpanWriter implements Buffer.Writer<Span> {
 
   static byte[] legacyEndpointBytes(@Nullable Endpoint localEndpoint) {
     if (localEndpoint == null) return null;
-    Buffer buffer = new Buffer(V2SpanWriter.endpointSizeInBytes(localEndpoint));
+    Buffer buffer = Buffer.allocate(V2SpanWriter.endpointSizeInBytes(localEndpoint));
     V2SpanWriter.writeEndpoint(localEndpoint, buffer);
     byte[] endpointBytes = buffer.toByteArray();
     if (localEndpoint.serviceName() != null) return endpointBytes;
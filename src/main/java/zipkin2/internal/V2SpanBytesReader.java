@@ -0,0 +1,669 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.Collection;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+/**
+ * Reads the Zipkin v2 json format directly from UTF-8 bytes. Unlike {@link V2SpanReader}, this
+ * doesn't decode the input into characters first: field names are matched by byte comparison, and
+ * numbers and IDs are parsed without intermediate strings.
+ *
+ * <p>Messages usually repeat the same service names, span names and tag keys. Each reader caches
+ * recently read strings and endpoints, so repeated values are not decoded twice. Like {@link
+ * V2SpanReader}, the span builder is reused, so this type is not thread-safe.
+ *
+ * <p>This accepts what {@link V2SpanReader} accepts. For example, where a string is expected, a
+ * number is read as its text, and any bytes after the span or list are ignored.
+ */
+public final class V2SpanBytesReader {
+  static final byte[]
+    TRACE_ID = ascii("traceId"),
+    PARENT_ID = ascii("parentId"),
+    ID = ascii("id"),
+    KIND = ascii("kind"),
+    NAME = ascii("name"),
+    TIMESTAMP = ascii("timestamp"),
+    DURATION = ascii("duration"),
+    LOCAL_ENDPOINT = ascii("localEndpoint"),
+    REMOTE_ENDPOINT = ascii("remoteEndpoint"),
+    ANNOTATIONS = ascii("annotations"),
+    TAGS = ascii("tags"),
+    DEBUG = ascii("debug"),
+    SHARED = ascii("shared"),
+    VALUE = ascii("value"),
+    SERVICE_NAME = ascii("serviceName"),
+    IPV4 = ascii("ipv4"),
+    IPV6 = ascii("ipv6"),
+    PORT = ascii("port");
+  static final Span.Kind[] KINDS = Span.Kind.values();
+
+  // Caches are direct-mapped: a collision replaces the prior entry
+  static final int STRING_CACHE_SIZE = 128, MAX_CACHED_STRING_LENGTH = 64;
+  static final int ENDPOINT_CACHE_SIZE = 16, MAX_CACHED_ENDPOINT_LENGTH = 256;
+
+  Span.Builder builder;
+  byte[] bytes;
+  int pos, limit;
+  // the last field name read. Aliases the input unless the name included escapes.
+  byte[] name;
+  int nameOffset, nameLength;
+  char[] chars;
+  String[] strings;
+  byte[][] endpointKeys;
+  Endpoint[] endpoints;
+
+  /** Reads a single span object, returning null if the input is empty. */
+  @Nullable public Span read(byte[] bytes) {
+    if (bytes.length == 0) return null;
+    return read(bytes, 0, bytes.length);
+  }
+
+  /** Reads a single span object from {@code bytes[pos, limit)}. */
+  public Span read(byte[] bytes, int pos, int limit) {
+    this.bytes = bytes;
+    this.pos = pos;
+    this.limit = limit;
+    try {
+      return readSpan();
+    } finally {
+      this.bytes = null; // don't retain the input
+    }
+  }
+
+  /** Reads an array of span objects, returning false if the input is empty or an empty array. */
+  public boolean readList(byte[] bytes, Collection<Span> out) {
+    if (bytes.length == 0) return false;
+    this.bytes = bytes;
+    this.pos = 0;
+    this.limit = bytes.length;
+    try {
+      expect('[');
+      if (peek() == ']') {
+        pos++;
+        return false;
+      }
+      do {
+        out.add(readSpan());
+      } while (nextInArray());
+      return true;
+    } finally {
+      this.bytes = null;
+    }
+  }
+
+  Span readSpan() {
+    if (builder == null) {
+      builder = Span.newBuilder();
+    } else {
+      builder.clear();
+    }
+    expect('{');
+    if (peek() == '}') {
+      pos++;
+      return builder.build(); // will fail on missing fields
+    }
+    do {
+      readName();
+      if (nameIs(TRACE_ID)) {
+        builder.traceId(readHex(32));
+      } else if (nameIs(ID)) {
+        builder.id(readHex(16));
+      } else if (peekNull()) {
+        continue;
+      } else if (nameIs(PARENT_ID)) {
+        builder.parentId(readHex(16));
+      } else if (nameIs(KIND)) {
+        builder.kind(readKind());
+      } else if (nameIs(NAME)) {
+        builder.name(readString(true));
+      } else if (nameIs(TIMESTAMP)) {
+        builder.timestamp(readLong());
+      } else if (nameIs(DURATION)) {
+        builder.duration(readLong());
+      } else if (nameIs(LOCAL_ENDPOINT)) {
+        builder.localEndpoint(readEndpoint());
+      } else if (nameIs(REMOTE_ENDPOINT)) {
+        builder.remoteEndpoint(readEndpoint());
+      } else if (nameIs(ANNOTATIONS)) {
+        readAnnotations();
+      } else if (nameIs(TAGS)) {
+        readTags();
+      } else if (nameIs(DEBUG)) {
+        if (readBoolean()) builder.debug(true);
+      } else if (nameIs(SHARED)) {
+        if (readBoolean()) builder.shared(true);
+      } else {
+        skipValue();
+      }
+    } while (nextInObject());
+    return builder.build();
+  }
+
+  void readAnnotations() {
+    expect('[');
+    if (peek() == ']') {
+      pos++;
+      return;
+    }
+    do {
+      int start = pos;
+      expect('{');
+      long timestamp = 0L;
+      String value = null;
+      if (peek() != '}') {
+        do {
+          readName();
+          if (nameIs(TIMESTAMP)) {
+            timestamp = readLong();
+          } else if (nameIs(VALUE)) {
+            value = readString(true);
+          } else {
+            skipValue();
+          }
+        } while (nextInObject());
+      } else {
+        pos++;
+      }
+      if (timestamp == 0L || value == null) {
+        throw new IllegalArgumentException("Incomplete annotation at " + start);
+      }
+      builder.addAnnotation(timestamp, value);
+    } while (nextInArray());
+  }
+
+  void readTags() {
+    expect('{');
+    if (peek() == '}') {
+      pos++;
+      return;
+    }
+    do {
+      String key = readString(true);
+      expect(':');
+      if (peekNull()) throw new IllegalArgumentException("No value for tag " + key + " at " + pos);
+      builder.putTag(key, readString(false));
+    } while (nextInObject());
+  }
+
+  /** Endpoints usually repeat within a message, so are cached by their json. */
+  Endpoint readEndpoint() {
+    if (peek() != '{') throw malformed("Expected an endpoint");
+    int start = pos;
+    skipValue();
+    int end = pos, length = end - start;
+    int index = -1;
+    if (length <= MAX_CACHED_ENDPOINT_LENGTH) {
+      if (endpoints == null) {
+        endpoints = new Endpoint[ENDPOINT_CACHE_SIZE];
+        endpointKeys = new byte[ENDPOINT_CACHE_SIZE][];
+      }
+      index = hash(bytes, start, length) & (ENDPOINT_CACHE_SIZE - 1);
+      byte[] key = endpointKeys[index];
+      if (key != null && regionMatches(key, 0, key.length, bytes, start, length)) {
+        return endpoints[index];
+      }
+    }
+    pos = start;
+    Endpoint result = readEndpointFields();
+    if (index != -1) {
+      byte[] key = new byte[length];
+      System.arraycopy(bytes, start, key, 0, length);
+      endpointKeys[index] = key;
+      endpoints[index] = result;
+    }
+    return result;
+  }
+
+  Endpoint readEndpointFields() {
+    int start = pos;
+    expect('{');
+    Endpoint.Builder result = Endpoint.newBuilder();
+    boolean readField = false;
+    if (peek() != '}') {
+      do {
+        readName();
+        if (peekNull()) continue;
+        if (nameIs(SERVICE_NAME)) {
+          result.serviceName(readString(true));
+          readField = true;
+        } else if (nameIs(IPV4) || nameIs(IPV6)) {
+          result.parseIp(readString(false));
+          readField = true;
+        } else if (nameIs(PORT)) {
+          long port = readLong();
+          if (port > Integer.MAX_VALUE || port < Integer.MIN_VALUE) {
+            throw new IllegalArgumentException("Invalid port " + port + " at " + start);
+          }
+          result.port((int) port);
+          readField = true;
+        } else {
+          skipValue();
+        }
+      } while (nextInObject());
+    } else {
+      pos++;
+    }
+    if (!readField) throw new IllegalArgumentException("Empty endpoint at " + start);
+    return result.build();
+  }
+
+  Span.Kind readKind() {
+    expect('"');
+    int start = pos, length = indexOfQuote() - start;
+    pos += length + 1;
+    for (Span.Kind kind : KINDS) {
+      String name = kind.name();
+      if (name.length() != length) continue;
+      int i = 0;
+      while (i < length && bytes[start + i] == name.charAt(i)) i++;
+      if (i == length) return kind;
+    }
+    throw new IllegalArgumentException(
+      "Unknown kind " + new String(bytes, start, length, JsonCodec.UTF_8) + " at " + start);
+  }
+
+  /** Reads a lower-hex ID, left-padding it to 16 or 32 characters as the span builder would. */
+  String readHex(int maxLength) {
+    int start, length;
+    if (peek() == '"') {
+      start = ++pos;
+      length = indexOfQuote() - start;
+      pos += length + 1;
+    } else if (isNumberStart()) { // ex. "id":1, which Gson reads as the string "1"
+      start = pos;
+      skipNumber();
+      length = pos - start;
+    } else {
+      throw malformed("Expected a lower-hex string");
+    }
+    if (length == 0 || length > maxLength) {
+      throw new IllegalArgumentException("Invalid ID length " + length + " at " + start);
+    }
+    int paddedLength = length <= 16 ? 16 : 32;
+    char[] result = new char[paddedLength];
+    int padding = paddedLength - length;
+    for (int i = 0; i < padding; i++) result[i] = '0';
+    for (int i = 0; i < length; i++) {
+      byte b = bytes[start + i];
+      if ((b < '0' || b > '9') && (b < 'a' || b > 'f')) {
+        throw new IllegalArgumentException(
+          new String(bytes, start, length, JsonCodec.UTF_8)
+            + " should be lower-hex encoded with no prefix");
+      }
+      result[padding + i] = (char) b;
+    }
+    return new String(result);
+  }
+
+  /**
+   * Reads a string value, optionally looking it up in the cache of recently read strings. Like
+   * Gson's {@code JsonReader.nextString()}, a number is read as its text, ex. a tag value of 200.
+   */
+  String readString(boolean cache) {
+    if (peek() != '"') {
+      if (!isNumberStart()) throw malformed("Expected a string");
+      int start = pos;
+      skipNumber();
+      return asciiString(start, pos - start);
+    }
+    int start = ++pos;
+    boolean ascii = true;
+    while (true) {
+      if (pos >= limit) throw malformed("Unterminated string");
+      byte b = bytes[pos];
+      if (b == '"') break;
+      if (b == '\\') return readEscapedString(start);
+      if (b < 0) ascii = false;
+      pos++;
+    }
+    int length = pos++ - start;
+    if (!ascii) return new String(bytes, start, length, JsonCodec.UTF_8);
+    if (!cache || length > MAX_CACHED_STRING_LENGTH) return asciiString(start, length);
+
+    if (strings == null) strings = new String[STRING_CACHE_SIZE];
+    int index = hash(bytes, start, length) & (STRING_CACHE_SIZE - 1);
+    String cached = strings[index];
+    if (cached != null && asciiMatches(cached, start, length)) return cached;
+    return strings[index] = asciiString(start, length);
+  }
+
+  String asciiString(int start, int length) {
+    if (chars == null || chars.length < length) chars = new char[Math.max(length, 64)];
+    for (int i = 0; i < length; i++) chars[i] = (char) bytes[start + i];
+    return new String(chars, 0, length);
+  }
+
+  boolean asciiMatches(String cached, int start, int length) {
+    if (cached.length() != length) return false;
+    for (int i = 0; i < length; i++) {
+      if (cached.charAt(i) != bytes[start + i]) return false;
+    }
+    return true;
+  }
+
+  /** Slow path for strings with escapes, which are rare in span data. */
+  String readEscapedString(int start) {
+    StringBuilder result = new StringBuilder();
+    int segmentStart = start;
+    while (true) {
+      if (pos >= limit) throw malformed("Unterminated string");
+      byte b = bytes[pos];
+      if (b == '"') {
+        result.append(new String(bytes, segmentStart, pos - segmentStart, JsonCodec.UTF_8));
+        pos++;
+        return result.toString();
+      }
+      if (b != '\\') {
+        pos++;
+        continue;
+      }
+      result.append(new String(bytes, segmentStart, pos - segmentStart, JsonCodec.UTF_8));
+      if (++pos >= limit) throw malformed("Unterminated escape");
+      switch (bytes[pos++]) {
+        case '"':
+          result.append('"');
+          break;
+        case '\'': // not json, but Gson accepts it
+          result.append('\'');
+          break;
+        case '\n': // an escaped line break, which Gson also accepts
+          result.append('\n');
+          break;
+        case '\\':
+          result.append('\\');
+          break;
+        case '/':
+          result.append('/');
+          break;
+        case 'b':
+          result.append('\b');
+          break;
+        case 'f':
+          result.append('\f');
+          break;
+        case 'n':
+          result.append('\n');
+          break;
+        case 'r':
+          result.append('\r');
+          break;
+        case 't':
+          result.append('\t');
+          break;
+        case 'u':
+          if (pos + 4 > limit) throw malformed("Unterminated escape");
+          int c = 0;
+          for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(bytes[pos++], 16);
+            if (digit == -1) throw malformed("Invalid unicode escape");
+            c = (c << 4) | digit;
+          }
+          result.append((char) c);
+          break;
+        default:
+          throw malformed("Invalid escape");
+      }
+      segmentStart = pos;
+    }
+  }
+
+  /** Reads an integral number, which may be quoted as Gson allows. */
+  long readLong() {
+    boolean quoted = peek() == '"';
+    if (quoted) pos++;
+    int start = pos;
+    boolean negative = pos < limit && bytes[pos] == '-';
+    if (negative) pos++;
+    long result = 0L; // accumulated negatively, so that Long.MIN_VALUE can be read
+    int digits = 0;
+    while (pos < limit) {
+      int digit = bytes[pos] - '0';
+      if (digit < 0 || digit > 9) break;
+      if (result < (Long.MIN_VALUE + digit) / 10) throw malformed("Number too large");
+      result = result * 10 - digit;
+      pos++;
+      digits++;
+    }
+    if (pos < limit && (bytes[pos] == '.' || bytes[pos] == 'e' || bytes[pos] == 'E')) {
+      result = readIntegralDouble(start); // ex. 1.0 or 1e3, which are still integers
+    } else if (digits == 0) {
+      throw malformed("Expected a number");
+    } else if (!negative) {
+      if (result == Long.MIN_VALUE) throw malformed("Number too large");
+      result = -result;
+    }
+    if (quoted) expect('"');
+    return result;
+  }
+
+  long readIntegralDouble(int start) {
+    while (pos < limit) {
+      byte b = bytes[pos];
+      if ((b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '-' || b == '+') {
+        pos++;
+      } else {
+        break;
+      }
+    }
+    double value;
+    try {
+      value = Double.parseDouble(new String(bytes, start, pos - start, JsonCodec.UTF_8));
+    } catch (NumberFormatException e) {
+      throw malformed("Expected a number");
+    }
+    long result = (long) value;
+    if (result != value) throw malformed("Expected an integer");
+    return result;
+  }
+
+  boolean isNumberStart() {
+    byte b = bytes[pos]; // called after peek(), so pos < limit
+    return b == '-' || (b >= '0' && b <= '9');
+  }
+
+  /** Skips a number, validating it as strictly as Gson does when it isn't lenient. */
+  void skipNumber() {
+    if (bytes[pos] == '-') pos++;
+    int start = pos;
+    if (skipDigits() == 0) throw malformed("Expected a number");
+    if (bytes[start] == '0' && pos - start > 1) throw malformed("Leading zero in number");
+    if (pos < limit && bytes[pos] == '.') {
+      pos++;
+      if (skipDigits() == 0) throw malformed("Expected a digit after '.'");
+    }
+    if (pos < limit && (bytes[pos] == 'e' || bytes[pos] == 'E')) {
+      pos++;
+      if (pos < limit && (bytes[pos] == '+' || bytes[pos] == '-')) pos++;
+      if (skipDigits() == 0) throw malformed("Expected a digit in the exponent");
+    }
+  }
+
+  int skipDigits() {
+    int start = pos;
+    while (pos < limit && bytes[pos] >= '0' && bytes[pos] <= '9') pos++;
+    return pos - start;
+  }
+
+  boolean readBoolean() {
+    byte b = peek();
+    if (b == 't' && literal("true")) return true;
+    if (b == 'f' && literal("false")) return false;
+    throw malformed("Expected a boolean");
+  }
+
+  /** Consumes a null literal if present. */
+  boolean peekNull() {
+    return peek() == 'n' && literal("null");
+  }
+
+  boolean literal(String value) {
+    int length = value.length();
+    if (pos + length > limit) return false;
+    for (int i = 0; i < length; i++) {
+      if (bytes[pos + i] != value.charAt(i)) return false;
+    }
+    pos += length;
+    return true;
+  }
+
+  /** Reads the next field name and the colon after it. */
+  void readName() {
+    if (peek() != '"') throw malformed("Expected a field name");
+    int start = pos + 1, end = start;
+    while (end < limit && bytes[end] != '"' && bytes[end] != '\\') end++;
+    if (end < limit && bytes[end] == '"') {
+      name = bytes;
+      nameOffset = start;
+      nameLength = end - start;
+      pos = end + 1;
+    } else { // escaped, so decode it
+      name = readString(false).getBytes(JsonCodec.UTF_8);
+      nameOffset = 0;
+      nameLength = name.length;
+    }
+    expect(':');
+  }
+
+  boolean nameIs(byte[] expected) {
+    return regionMatches(expected, 0, expected.length, name, nameOffset, nameLength);
+  }
+
+  /** Consumes a comma, returning true, or the end of the object, returning false. */
+  boolean nextInObject() {
+    byte b = peek();
+    pos++;
+    if (b == ',') return true;
+    if (b == '}') return false;
+    throw malformed("Expected ',' or '}'");
+  }
+
+  /** Consumes a comma, returning true, or the end of the array, returning false. */
+  boolean nextInArray() {
+    byte b = peek();
+    pos++;
+    if (b == ',') return true;
+    if (b == ']') return false;
+    throw malformed("Expected ',' or ']'");
+  }
+
+  void skipValue() {
+    byte b = peek();
+    switch (b) {
+      case '"':
+        pos++;
+        while (true) {
+          if (pos >= limit) throw malformed("Unterminated string");
+          byte next = bytes[pos++];
+          if (next == '"') return;
+          if (next == '\\') pos++;
+        }
+      case '{':
+        pos++;
+        if (peek() == '}') {
+          pos++;
+          return;
+        }
+        do {
+          readName();
+          skipValue();
+        } while (nextInObject());
+        return;
+      case '[':
+        pos++;
+        if (peek() == ']') {
+          pos++;
+          return;
+        }
+        do {
+          skipValue();
+        } while (nextInArray());
+        return;
+      case 't':
+      case 'f':
+        readBoolean();
+        return;
+      case 'n':
+        if (!peekNull()) throw malformed("Expected null");
+        return;
+      default:
+        int start = pos;
+        while (pos < limit) {
+          byte next = bytes[pos];
+          if ((next >= '0' && next <= '9') || next == '-' || next == '+' || next == '.'
+            || next == 'e' || next == 'E') {
+            pos++;
+          } else {
+            break;
+          }
+        }
+        if (pos == start) throw malformed("Unexpected character");
+    }
+  }
+
+  int indexOfQuote() {
+    for (int i = pos; i < limit; i++) {
+      if (bytes[i] == '"') return i;
+      if (bytes[i] == '\\') throw malformed("Unexpected escape");
+    }
+    throw malformed("Unterminated string");
+  }
+
+  void expect(char c) {
+    if (peek() != c) throw malformed("Expected '" + c + "'");
+    pos++;
+  }
+
+  /** Skips whitespace, returning the next byte without consuming it. */
+  byte peek() {
+    while (pos < limit) {
+      byte b = bytes[pos];
+      if (b != ' ' && b != '\n' && b != '\r' && b != '\t') return b;
+      pos++;
+    }
+    throw malformed("Unexpected end of input");
+  }
+
+  IllegalArgumentException malformed(String reason) {
+    return new IllegalArgumentException("Malformed json: " + reason + " at " + pos);
+  }
+
+  static boolean regionMatches(byte[] a, int aOffset, int aLength, byte[] b, int bOffset,
+    int bLength) {
+    if (aLength != bLength) return false;
+    for (int i = 0; i < aLength; i++) {
+      if (a[aOffset + i] != b[bOffset + i]) return false;
+    }
+    return true;
+  }
+
+  static int hash(byte[] bytes, int offset, int length) {
+    int h = 0x811c9dc5; // FNV-1a
+    for (int i = offset, end = offset + length; i < end; i++) {
+      h ^= bytes[i];
+      h *= 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+
+  static byte[] ascii(String value) {
+    return value.getBytes(JsonCodec.UTF_8);
+  }
+
+  @Override public String toString() {
+    return "Span";
+  }
+}
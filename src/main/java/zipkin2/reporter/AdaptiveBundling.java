@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sizes messages by how long the sender takes to send them, as opposed to always bundling up to
+ * the maximum size or the message timeout.
+ *
+ * <p>When no message is in flight, bundled spans are sent immediately, so spans only wait while
+ * the sender is busy. While busy, spans are bundled up to a target size, which grows additively
+ * while sends complete within the latency target, and halves when they don't (AIMD).
+ *
+ * <p>This is shared between the flush thread and sender workers.
+ */
+final class AdaptiveBundling {
+  /** The target size isn't reduced below this, unless the maximum message size is smaller. */
+  static final int MIN_TARGET_BYTES = 1024;
+  /** While the sender is busy, we check at least this often whether it became idle. */
+  static final long MIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  final int maxBytes, minBytes, increment;
+  final long latencyTargetNanos;
+  final DetailedReporterMetrics metrics;
+  final AtomicInteger inFlight = new AtomicInteger();
+
+  volatile int targetBytes;
+  volatile long roundTripNanos; // smoothed, zero until the first message completes
+
+  AdaptiveBundling(int maxBytes, long latencyTargetNanos, DetailedReporterMetrics metrics) {
+    this.maxBytes = maxBytes;
+    this.minBytes = Math.min(maxBytes, MIN_TARGET_BYTES);
+    this.increment = Math.max(maxBytes / 16, 1);
+    this.latencyTargetNanos = latencyTargetNanos;
+    this.metrics = metrics;
+    this.targetBytes = maxBytes;
+    metrics.updateMessageTargetBytes(maxBytes);
+  }
+
+  /** The size in bytes a message should be sent at, when the sender is busy. */
+  int targetBytes() {
+    return targetBytes;
+  }
+
+  /** Returns true if no message is in flight, so the next should be sent without waiting. */
+  boolean idle() {
+    return inFlight.get() == 0;
+  }
+
+  /**
+   * Returns how long the flush thread should wait for more spans, given the time remaining before
+   * the message timeout. While busy, this is shortened to the expected time until the sender
+   * completes, so that we notice when it is idle.
+   */
+  long pollNanos(long remainingNanos) {
+    if (idle()) return remainingNanos;
+    return Math.min(remainingNanos, Math.max(roundTripNanos, MIN_POLL_NANOS));
+  }
+
+  /** Call before a message is sent or dispatched to a sender worker. */
+  void messageStarted() {
+    inFlight.incrementAndGet();
+  }
+
+  /** Call when a message was not sent after {@link #messageStarted()}, for example on rejection. */
+  void messageAbandoned() {
+    inFlight.decrementAndGet();
+  }
+
+  /** Call after a message started completes, successfully or not. */
+  void messageFinished(long elapsedNanos, boolean success) {
+    int target;
+    long smoothed;
+    synchronized (this) {
+      // like TCP's smoothed round-trip time, weighting the last sample by 1/8
+      smoothed = roundTripNanos == 0
+          ? elapsedNanos
+          : roundTripNanos + (elapsedNanos - roundTripNanos) / 8;
+      roundTripNanos = smoothed;
+
+      if (success && elapsedNanos <= latencyTargetNanos) {
+        target = (int) Math.min((long) targetBytes + increment, maxBytes);
+      } else { // the message was too slow, or failed, possibly due to its size
+        target = Math.max(targetBytes / 2, minBytes);
+      }
+      targetBytes = target;
+    }
+    inFlight.decrementAndGet();
+    metrics.updateMessageTargetBytes(target);
+    metrics.updateMessageRoundTripMicros((int) Math.min(smoothed / 1000, Integer.MAX_VALUE));
+  }
+}
@@ -14,22 +14,33 @@
 package zipkin2.reporter;
 
 import java.io.Flushable;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import zipkin2.Call;
 import zipkin2.CheckResult;
 import zipkin2.Component;
 import zipkin2.Span;
 import zipkin2.codec.BytesEncoder;
+import zipkin2.codec.Encoding;
 import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.internal.Platform;
 
 import static java.lang.String.format;
 import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
 
 /**
  * As spans are reported, they are encoded and added to a pending queue. The
@@ -90,12 +101,22 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 
 	public static final class Builder {
 		final Sender sender;
-		ReporterMetrics metrics = ReporterMetrics.NOOP_METRICS;
+		DetailedReporterMetrics metrics = DetailedMetrics.of(ReporterMetrics.NOOP_METRICS);
 		int messageMaxBytes;
 		long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+		long messageLatencyTargetNanos = 0;
 		long closeTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
 		int queuedMaxSpans = 10000;
 		int queuedMaxBytes = onePercentOfMemory();
+		boolean lockFreeQueue = false;
+		int maxInFlightMessages = 1;
+		boolean directBuffers = false;
+		boolean encodeOnReport = false;
+		boolean prioritizeSpans = false;
+		float shedTracesAbove = 0;
+		File spillDirectory;
+		int spillMaxBytes = 64 * 1024 * 1024;
+		int spillReplayPerSecond = 10;
 
 		static int onePercentOfMemory() {
 			long result = (long) (Runtime.getRuntime().totalMemory() * 0.01);
@@ -113,12 +134,13 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 
 		/**
 		 * Aggregates and reports reporter metrics to a monitoring system.
-		 * Defaults to no-op.
+		 * Defaults to no-op. Implement {@link DetailedReporterMetrics} to also
+		 * receive callbacks about spilling, prioritization and compression.
 		 */
 		public Builder metrics(ReporterMetrics metrics) {
 			if (metrics == null)
 				throw new NullPointerException("metrics == null");
-			this.metrics = metrics;
+			this.metrics = DetailedMetrics.of(metrics);
 			return this;
 		}
 
@@ -155,6 +177,31 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 			return this;
 		}
 
+		/**
+		 * When positive, messages are sized adaptively, aiming to send each
+		 * within this latency. Default zero, which bundles until the message is
+		 * full or the {@link #messageTimeout(long, TimeUnit) message timeout}.
+		 *
+		 * <p>
+		 * When adaptive, spans are sent as soon as no message is in flight, so
+		 * they only wait while the sender is busy. Meanwhile, spans are bundled
+		 * up to a target size. The target grows by a sixteenth of
+		 * {@link #messageMaxBytes(int)} each time a message is sent within this
+		 * latency, and halves when one is slower or fails. The message timeout
+		 * still bounds how long a span waits. The target size and the smoothed
+		 * round-trip time of messages are reported to
+		 * {@link ReporterMetrics}. Has no effect when the message timeout is
+		 * zero.
+		 */
+		public Builder messageLatencyTarget(long latency, TimeUnit unit) {
+			if (latency < 0)
+				throw new IllegalArgumentException("messageLatencyTarget < 0: " + latency);
+			if (unit == null)
+				throw new NullPointerException("unit == null");
+			this.messageLatencyTargetNanos = unit.toNanos(latency);
+			return this;
+		}
+
 		/**
 		 * How long to block for in-flight spans to send out-of-process on
 		 * close. Default 1 second
@@ -182,6 +229,165 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 			return this;
 		}
 
+		/**
+		 * When true, reported spans are queued without taking a lock. Default
+		 * false.
+		 *
+		 * <p>
+		 * The default queue takes a lock on each {@link Reporter#report(Object)
+		 * report}, which can contend when many threads finish spans at the same
+		 * time. The lock-free queue reserves capacity with compare-and-set, and
+		 * the flush thread drains it without blocking reporting threads. Both
+		 * queues honor {@link #queuedMaxSpans(int)} and
+		 * {@link #queuedMaxBytes(int)}.
+		 */
+		public Builder lockFreeQueue(boolean lockFreeQueue) {
+			this.lockFreeQueue = lockFreeQueue;
+			return this;
+		}
+
+		/**
+		 * Maximum count of messages sent concurrently. Default 1.
+		 *
+		 * <p>
+		 * By default, the flush thread both bundles spans into messages and
+		 * sends them, so a slow collector stalls the drain of reported spans.
+		 * When more than one, the flush thread only bundles, and hands each
+		 * message to one of this count of sender threads. Messages may then
+		 * arrive out of order. Has no effect when {@link #messageTimeout(long,
+		 * TimeUnit) message timeout} is zero, as then spans are sent by the
+		 * caller of {@link AsyncReporter#flush()}.
+		 */
+		public Builder maxInFlightMessages(int maxInFlightMessages) {
+			if (maxInFlightMessages < 1) {
+				throw new IllegalArgumentException("maxInFlightMessages < 1: " + maxInFlightMessages);
+			}
+			this.maxInFlightMessages = maxInFlightMessages;
+			return this;
+		}
+
+		/**
+		 * When true, messages are encoded into direct buffers sliced from one
+		 * off-heap slab, as opposed to heap arrays. Default false.
+		 *
+		 * <p>
+		 * This only applies when the encoder is a {@link SpanBytesEncoder} and
+		 * the sender {@link Sender#supportsMessages() supports messages}. A
+		 * sender that overrides {@link Sender#sendMessage(ByteBuffer)}
+		 * can then write each message to a channel without copying it onto the
+		 * heap. Other senders pay a copy per message.
+		 */
+		public Builder directBuffers(boolean directBuffers) {
+			this.directBuffers = directBuffers;
+			return this;
+		}
+
+		/**
+		 * When true, spans are queued by {@link SpanPriority priority}, so that
+		 * under overload, debug spans, spans tagged "error" and root server
+		 * spans are kept in preference to routine ones. Default false, which
+		 * drops the newest span when the queue is full, regardless of priority.
+		 *
+		 * <p>
+		 * Routine spans can use at most three quarters of
+		 * {@link #queuedMaxSpans(int)} and {@link #queuedMaxBytes(int)}. High
+		 * priority spans can use the rest, and evict the oldest routine spans
+		 * when the queue is full. They are also sent first. Drops are counted
+		 * by priority in {@link DetailedReporterMetrics}. Only {@link Span zipkin2.Span}
+		 * is classified, and {@link #lockFreeQueue(boolean)} has no effect in
+		 * this mode.
+		 */
+		public Builder prioritizeSpans(boolean prioritizeSpans) {
+			this.prioritizeSpans = prioritizeSpans;
+			return this;
+		}
+
+		/**
+		 * When positive, whole traces are shed once the queue is more than
+		 * this fraction full, by {@link #queuedMaxSpans(int) count} or
+		 * {@link #queuedMaxBytes(int) size}. Default zero, which drops the
+		 * newest span when the queue is full, leaving traces incomplete.
+		 *
+		 * <p>
+		 * Trace IDs are hashed into sixteen buckets. While the queue is above
+		 * this mark, the flush thread sheds two more buckets every 100
+		 * milliseconds. Below half the mark, it sheds one fewer. Spans of
+		 * shed traces are dropped on {@link Reporter#report(Object) report},
+		 * before they are sized or encoded, so all spans of a trace are kept
+		 * or dropped together unless the level changes in between. Debug spans
+		 * are never shed. Shed spans are counted by
+		 * {@link DetailedReporterMetrics#incrementSpansShed(int)}. Only
+		 * {@link Span zipkin2.Span} can be shed.
+		 */
+		public Builder shedTracesAbove(float queueFraction) {
+			if (queueFraction < 0 || queueFraction > 1)
+				throw new IllegalArgumentException("shedTracesAbove should be between 0 and 1: " + queueFraction);
+			this.shedTracesAbove = queueFraction;
+			return this;
+		}
+
+		/**
+		 * When true, spans are encoded on the calling thread of
+		 * {@link Reporter#report(Object) report}, and queued as bytes. Default
+		 * false.
+		 *
+		 * <p>
+		 * By default, spans are queued as objects until the flush thread
+		 * encodes them, which can keep large object graphs reachable for up to
+		 * the {@link #messageTimeout(long, TimeUnit) message timeout}, and
+		 * promote them to the old generation. When true, each span is copied
+		 * into a ring of records in one buffer, direct if
+		 * {@link #directBuffers(boolean)} is set. Queued bytes are then exact,
+		 * and the flush thread only concatenates. The cost is encoding on the
+		 * application thread, as opposed to only sizing there.
+		 * {@link #lockFreeQueue(boolean)} has no effect in this mode.
+		 */
+		public Builder encodeOnReport(boolean encodeOnReport) {
+			this.encodeOnReport = encodeOnReport;
+			return this;
+		}
+
+		/**
+		 * When set, spans that could not be queued or sent are written to
+		 * files in this directory, and replayed once {@link Sender#check()} is
+		 * ok. Default null, which drops these spans.
+		 *
+		 * <p>
+		 * This helps spans survive a collector restart. Files left by a prior
+		 * process are replayed, too. Only one reporter should use a directory
+		 * at a time.
+		 */
+		public Builder spillDirectory(File spillDirectory) {
+			if (spillDirectory == null)
+				throw new NullPointerException("spillDirectory == null");
+			this.spillDirectory = spillDirectory;
+			return this;
+		}
+
+		/**
+		 * Maximum bytes on disk used by the {@link #spillDirectory(File) spill
+		 * directory}. Spans that would exceed this are dropped. Default 64MiB
+		 */
+		public Builder spillMaxBytes(int spillMaxBytes) {
+			if (spillMaxBytes <= 0)
+				throw new IllegalArgumentException("spillMaxBytes <= 0: " + spillMaxBytes);
+			this.spillMaxBytes = spillMaxBytes;
+			return this;
+		}
+
+		/**
+		 * Maximum messages per second replayed from the
+		 * {@link #spillDirectory(File) spill directory}, so that a recovering
+		 * collector isn't flooded. Default 10
+		 */
+		public Builder spillReplayPerSecond(int spillReplayPerSecond) {
+			if (spillReplayPerSecond <= 0) {
+				throw new IllegalArgumentException("spillReplayPerSecond <= 0: " + spillReplayPerSecond);
+			}
+			this.spillReplayPerSecond = spillReplayPerSecond;
+			return this;
+		}
+
 		/**
 		 * Builds an async reporter that encodes zipkin spans as they are
 		 * reported.
@@ -190,6 +396,8 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 			switch (sender.encoding()) {
 			case JSON:
 				return build(SpanBytesEncoder.JSON_V2);
+			case PROTO3:
+				return build(SpanBytesEncoder.PROTO3);
 			default:
 				throw new UnsupportedOperationException(sender.encoding().name());
 			}
@@ -208,18 +416,37 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 						String.format("Encoder doesn't match Sender: %s %s", encoder.encoding(), sender.encoding()));
 			}
 
-			final BoundedAsyncReporter<S> result = new BoundedAsyncReporter<S>(this, encoder);
+			if (encodeOnReport) {
+				SpanQueue<byte[]> pending = prioritizeSpans
+						? new PrioritySpanQueue<byte[]>(queuedMaxSpans, queuedMaxBytes, metrics)
+						: new EncodedSpanQueue(queuedMaxSpans, queuedMaxBytes, directBuffers);
+				BytesEncoder<byte[]> encoded = new EncodedSpanEncoder(encoder.encoding());
+				return new EncodingAsyncReporter<S>(encoder, start(new BoundedAsyncReporter<byte[]>(this, encoded,
+						pending)));
+			}
+			SpanQueue<S> pending;
+			if (prioritizeSpans) {
+				pending = new PrioritySpanQueue<S>(queuedMaxSpans, queuedMaxBytes, metrics);
+			} else if (lockFreeQueue) {
+				pending = new LockFreeByteBoundedQueue<S>(queuedMaxSpans, queuedMaxBytes);
+			} else {
+				pending = new ByteBoundedQueue<S>(queuedMaxSpans, queuedMaxBytes);
+			}
+			return start(new BoundedAsyncReporter<S>(this, encoder, pending));
+		}
 
+		/** Starts threads that flush the reporter's queue, and replay spilled spans, as configured. */
+		<S> BoundedAsyncReporter<S> start(final BoundedAsyncReporter<S> result) {
 			if (messageTimeoutNanos > 0) { // Start a thread that flushes the
 											// queue in a loop.
 				final BufferNextMessage<S> consumer = BufferNextMessage.create(sender, messageMaxBytes,
-						messageTimeoutNanos);
+						messageTimeoutNanos, result.bundling, result.compressor);
 				final Thread flushThread = new Thread("AsyncReporter{" + sender + "}") {
 					@Override
 					public void run() {
 						try {
 							while (!result.closed.get()) {
-								result.flush(consumer);
+								result.flush(consumer, true);
 							}
 						} finally {
 							int count = consumer.count();
@@ -228,6 +455,7 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 								BoundedAsyncReporter.logger
 										.warning("Dropped " + count + " spans due to AsyncReporter.close()");
 							}
+							result.awaitInFlightMessages();
 							result.close.countDown();
 						}
 					}
@@ -235,24 +463,76 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 				flushThread.setDaemon(true);
 				flushThread.start();
 			}
+
+			if (result.spill != null) { // Start a thread that replays spilled spans
+				final Thread replayThread = new Thread("AsyncReporter{" + sender + "}-spill") {
+					@Override
+					public void run() {
+						try {
+							while (!result.closed.get()) {
+								try {
+									result.replaySpilled();
+								} catch (RuntimeException e) {
+									// Don't let a bug or a bad record stop replay for the life of the process
+									BoundedAsyncReporter.logger.log(WARNING, "Unexpected error replaying spilled spans",
+											e);
+									Thread.sleep(BoundedAsyncReporter.SPILL_CHECK_INTERVAL_MILLIS);
+								}
+							}
+						} catch (InterruptedException e) {
+							// exit
+						}
+					}
+				};
+				replayThread.setDaemon(true);
+				replayThread.start();
+			}
 			return result;
 		}
 	}
 
 	static final class BoundedAsyncReporter<S> extends AsyncReporter<S> {
 		static final Logger logger = Logger.getLogger(BoundedAsyncReporter.class.getName());
+		static final long SPILL_CHECK_INTERVAL_MILLIS = 1000;
+		static final int MAX_REPLAY_ATTEMPTS = 3;
 		final AtomicBoolean closed = new AtomicBoolean(false);
 		final BytesEncoder<S> encoder;
-		final ByteBoundedQueue<S> pending;
+		final SpanQueue<S> pending;
+		// When non-null, spans of some traces are dropped due to overload
+		final TraceShedder shedder;
+		final int queuedMaxSpans, queuedMaxBytes;
+		// When non-null, the same as pending, and spans are offered by priority
+		final PrioritySpanQueue<S> prioritized;
 		final Sender sender;
 		final int messageMaxBytes;
 		final long messageTimeoutNanos;
 		final long closeTimeoutNanos;
 		final CountDownLatch close;
-		final ReporterMetrics metrics;
+		final DetailedReporterMetrics metrics;
+		// When either is non-null, spans are encoded directly into a pooled
+		// message buffer. The latter is used when spans were encoded on report.
+		final SpanBytesEncoder messageEncoder;
+		final BytesMessageEncoder encodedMessageEncoder;
+		final MessageBufferPool bufferPool;
+		// When non-null, pooled messages are compressed before they are sent
+		final MessageCompressor compressor;
+		// When non-null, messages from the flush thread are sent by workers
+		final ExecutorService sendExecutor;
+		final Semaphore sendPermits;
+		// When non-null, messages are sized by how long the sender takes
+		final AdaptiveBundling bundling;
+		// When non-null, spans that would otherwise be dropped are written here
+		final DiskSpill spill;
+		final long spillReplayIntervalNanos;
+		int replayAttempts; // only accessed by the replay thread
+		boolean replayFailed; // only accessed by the replay thread
 
-		BoundedAsyncReporter(Builder builder, BytesEncoder<S> encoder) {
-			this.pending = new ByteBoundedQueue<S>(builder.queuedMaxSpans, builder.queuedMaxBytes);
+		BoundedAsyncReporter(Builder builder, BytesEncoder<S> encoder, SpanQueue<S> pending) {
+			this.pending = pending;
+			this.shedder = builder.shedTracesAbove > 0 ? new TraceShedder(builder.shedTracesAbove) : null;
+			this.queuedMaxSpans = builder.queuedMaxSpans;
+			this.queuedMaxBytes = builder.queuedMaxBytes;
+			this.prioritized = pending instanceof PrioritySpanQueue ? (PrioritySpanQueue<S>) pending : null;
 			this.sender = builder.sender;
 			this.messageMaxBytes = builder.messageMaxBytes;
 			this.messageTimeoutNanos = builder.messageTimeoutNanos;
@@ -260,6 +540,48 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 			this.close = new CountDownLatch(builder.messageTimeoutNanos > 0 ? 1 : 0);
 			this.metrics = builder.metrics;
 			this.encoder = encoder;
+			int maxInFlightMessages = builder.messageTimeoutNanos > 0 ? builder.maxInFlightMessages : 1;
+			if (maxInFlightMessages > 1) {
+				this.sendExecutor = Executors.newFixedThreadPool(maxInFlightMessages,
+						new SenderThreadFactory(sender));
+				this.sendPermits = new Semaphore(maxInFlightMessages);
+			} else {
+				this.sendExecutor = null;
+				this.sendPermits = null;
+			}
+			if (builder.messageTimeoutNanos > 0 && builder.messageLatencyTargetNanos > 0) {
+				this.bundling = new AdaptiveBundling(messageMaxBytes, builder.messageLatencyTargetNanos, metrics);
+			} else {
+				this.bundling = null;
+			}
+			boolean encodedOnReport = encoder instanceof EncodedSpanEncoder;
+			if (sender.supportsMessages() && (encoder instanceof SpanBytesEncoder || encodedOnReport)) {
+				this.messageEncoder = encodedOnReport ? null : (SpanBytesEncoder) encoder;
+				this.encodedMessageEncoder = encodedOnReport ? BytesMessageEncoder.forEncoding(encoder.encoding())
+						: null;
+				// one per in-flight message and one for an external call to flush()
+				this.bufferPool = new MessageBufferPool(messageMaxBytes, maxInFlightMessages + 1,
+						builder.directBuffers);
+				this.compressor = sender.compression() != Compression.NONE
+						? new MessageCompressor(sender.compression(), messageMaxBytes, metrics)
+						: null;
+			} else {
+				this.messageEncoder = null;
+				this.encodedMessageEncoder = null;
+				this.bufferPool = null;
+				this.compressor = null;
+			}
+			if (builder.spillDirectory != null) {
+				try {
+					this.spill = DiskSpill.open(builder.spillDirectory, builder.spillMaxBytes, messageMaxBytes,
+							sender.encoding(), messageCompression());
+				} catch (IOException e) {
+					throw Platform.get().uncheckedIOException(e);
+				}
+			} else {
+				this.spill = null;
+			}
+			this.spillReplayIntervalNanos = TimeUnit.SECONDS.toNanos(1) / builder.spillReplayPerSecond;
 		}
 
 		/** Returns true if the was encoded and accepted onto the queue. */
@@ -267,45 +589,144 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 		public void report(S next) {
 			if (next == null)
 				throw new NullPointerException("span == null");
+			if (shed(next))
+				return;
+			report(next, priority(next));
+		}
+
+		/** Returns true if the span was dropped, as its trace is being shed. */
+		boolean shed(Object span) {
+			if (shedder == null || !shedder.shed(span))
+				return false;
+			metrics.incrementSpans(1);
+			metrics.incrementSpansDropped(1);
+			metrics.incrementSpansShed(1);
+			return true;
+		}
+
+		/** Classifies the span, unless spans aren't prioritized. */
+		SpanPriority priority(Object span) {
+			return prioritized != null ? SpanPriority.classify(span) : SpanPriority.ROUTINE;
+		}
+
+		/** Like {@link #report(Object)}, except the priority was classified already. */
+		void report(S next, SpanPriority priority) {
 			metrics.incrementSpans(1);
 			int nextSizeInBytes = encoder.sizeInBytes(next);
 			int messageSizeOfNextSpan = sender.messageSizeInBytes(nextSizeInBytes);
 			metrics.incrementSpanBytes(nextSizeInBytes);
 			if (closed.get() ||
 			// don't enqueue something larger than we can drain
-					messageSizeOfNextSpan > messageMaxBytes || !pending.offer(next, nextSizeInBytes)) {
-				metrics.incrementSpansDropped(1);
+					messageSizeOfNextSpan > messageMaxBytes) {
+				spanDropped(priority);
+			} else if (prioritized != null ? !prioritized.offer(next, nextSizeInBytes, priority)
+					: !pending.offer(next, nextSizeInBytes)) {
+				// The queue is full, so we encode on this thread in order to spill. Don't wait if
+				// another thread is spilling, as that could be a large message: drop instead.
+				if (spill != null && spill.tryAppendSpans(Collections.singletonList(encoder.encode(next)))) {
+					metrics.incrementSpansSpilled(1);
+					metrics.updateSpilledBytes(spill.sizeInBytes());
+				} else {
+					spanDropped(priority);
+				}
 			}
 		}
 
+		void spanDropped(SpanPriority priority) {
+			metrics.incrementSpansDropped(1);
+			if (prioritized != null)
+				metrics.incrementSpansDropped(priority, 1);
+		}
+
 		@Override
 		public final void flush() {
-			flush((BufferNextMessage<S>) BufferNextMessage.create(sender, messageMaxBytes, 0));
+			flush(BufferNextMessage.<S>create(sender, messageMaxBytes, 0, null, compressor));
 		}
 
 		void flush(BufferNextMessage<S> bundler) {
+			flush(bundler, false);
+		}
+
+		/**
+		 * @param dispatch
+		 *            true if the message should be sent on a sender worker, if
+		 *            any. Otherwise, the message is sent on the calling thread.
+		 */
+		void flush(BufferNextMessage<S> bundler, boolean dispatch) {
 			if (closed.get())
 				throw new IllegalStateException("closed");
 
-			pending.drainTo(bundler, bundler.remainingNanos());
+			pending.drainTo(bundler, bundler.pollNanos());
 
 			// record after flushing reduces the amount of gauge events vs on
 			// doing this on report
-			metrics.updateQueuedSpans(pending.count);
-			metrics.updateQueuedBytes(pending.sizeInBytes);
+			int queuedSpans = pending.count(), queuedBytes = pending.sizeInBytes();
+			metrics.updateQueuedSpans(queuedSpans);
+			metrics.updateQueuedBytes(queuedBytes);
+			if (shedder != null)
+				shedder.update(queuedSpans, queuedMaxSpans, queuedBytes, queuedMaxBytes);
 
 			// loop around if we are running, and the bundle isn't full
 			// if we are closed, try to send what's pending
 			if (!bundler.isReady() && !closed.get())
 				return;
 
+			if (!dispatch || sendExecutor == null) {
+				NextMessage message = nextMessage(bundler);
+				if (message == null)
+					return;
+				if (bundling != null)
+					bundling.messageStarted();
+				message.send();
+				return;
+			}
+
+			// Block bundling while all workers are busy, so that backlog stays
+			// in the bounded queue as opposed to accumulating here.
+			sendPermits.acquireUninterruptibly();
+			boolean dispatched = false;
+			try {
+				NextMessage message = nextMessage(bundler);
+				if (message == null)
+					return;
+				if (bundling != null)
+					bundling.messageStarted();
+				try {
+					sendExecutor.execute(message);
+					dispatched = true;
+				} finally {
+					if (!dispatched && bundling != null)
+						bundling.messageAbandoned();
+				}
+			} finally {
+				if (!dispatched)
+					sendPermits.release();
+			}
+		}
+
+		/**
+		 * Encodes the bundled spans into the next message. Since we are outside
+		 * the lock shared with writers, we can encode. Returns null if there
+		 * is nothing to send, as the spans were dropped.
+		 */
+		NextMessage nextMessage(BufferNextMessage<S> bundler) {
 			// Signal that we are about to send a message of a known size in
-			// bytes
+			// bytes. When compressed, the size is known after compression.
+			// Count after encoding, as a message of dropped spans isn't sent.
+			int sizeInBytes = bundler.sizeInBytes();
+			NextMessage result = doNextMessage(bundler);
+			if (result == null)
+				return null;
 			metrics.incrementMessages();
-			metrics.incrementMessageBytes(bundler.sizeInBytes());
+			if (compressor == null)
+				metrics.incrementMessageBytes(sizeInBytes);
+			return result;
+		}
+
+		NextMessage doNextMessage(BufferNextMessage<S> bundler) {
+			if (bufferPool != null)
+				return encodeMessage(bundler);
 
-			// Create the next message. Since we are outside the lock shared
-			// with writers, we can encode
 			final ArrayList<byte[]> nextMessage = new ArrayList<byte[]>(bundler.count());
 			bundler.drain(new SpanWithSizeConsumer<S>() {
 				@Override
@@ -322,26 +743,164 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 					return true;
 				}
 			});
+			return new NextMessage(nextMessage);
+		}
 
+		/**
+		 * Encodes the bundled spans directly into a pooled buffer, which is
+		 * sent as a pre-framed message. The bundler already accounted for the
+		 * exact size of the message, so there is no need to ask the sender.
+		 */
+		NextMessage encodeMessage(BufferNextMessage<S> bundler) {
+			if (compressor != null)
+				return compressMessage(bundler);
+			int count = bundler.count();
+			ByteBuffer buffer = bufferPool.acquire();
+			boolean encoded = false;
 			try {
-				sender.sendSpans(nextMessage).execute();
-			} catch (IOException t) {
-				handException(nextMessage, t);
-			} catch (RuntimeException t) {
-				handException(nextMessage, t);
-			} catch (Error t) {
-				handException(nextMessage, t);
+				encodeSpans(bundler.spans, buffer);
+				buffer.flip();
+				bundler.clear();
+				encoded = true;
+				return new NextMessage(null, buffer, count);
+			} finally {
+				if (!encoded)
+					bufferPool.release(buffer);
+			}
+		}
+
+		/**
+		 * Like {@link #encodeMessage}, except the message is encoded into a
+		 * staging buffer, then compressed into the pooled buffer. As the
+		 * bundler only estimates the compressed size, the message might not
+		 * fit. If so, we retry with half the spans, leaving the rest for the
+		 * next message. A span that doesn't fit on its own is dropped.
+		 */
+		NextMessage compressMessage(BufferNextMessage<S> bundler) {
+			ByteBuffer uncompressed = compressor.acquireUncompressed();
+			ByteBuffer buffer = bufferPool.acquire();
+			boolean encoded = false;
+			try {
+				int count = bundler.count();
+				while (count > 0) {
+					uncompressed.clear();
+					encodeSpans(bundler.spans.subList(0, count), uncompressed);
+					uncompressed.flip();
+					buffer.clear();
+					if (compressor.compress(uncompressed, buffer)) {
+						buffer.flip();
+						bundler.clear(count);
+						encoded = true;
+						return new NextMessage(null, buffer, count);
+					}
+					if (count == 1) {
+						bundler.clear(1);
+						metrics.incrementSpansDropped(1);
+						logger.fine("Dropped a span that compresses larger than messageMaxBytes");
+						count = bundler.count();
+					} else {
+						count /= 2;
+					}
+				}
+				return null;
+			} finally {
+				compressor.releaseUncompressed(uncompressed);
+				if (!encoded)
+					bufferPool.release(buffer);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		void encodeSpans(List<S> spans, ByteBuffer buffer) {
+			if (messageEncoder != null) {
+				messageEncoder.encodeList((List<Span>) spans, buffer);
+			} else {
+				encodedMessageEncoder.encode((List<byte[]>) spans, buffer);
+			}
+		}
+
+		/**
+		 * An encoded message, either as a list of encoded spans, or as a
+		 * pre-framed message in a pooled buffer. When run, this is sent on a
+		 * sender worker.
+		 */
+		final class NextMessage implements Runnable {
+			final List<byte[]> encodedSpans;
+			final ByteBuffer buffer; // ready to read
+			final int count;
+
+			NextMessage(List<byte[]> encodedSpans) {
+				this(encodedSpans, null, encodedSpans.size());
+			}
+
+			NextMessage(List<byte[]> encodedSpans, ByteBuffer buffer, int count) {
+				this.encodedSpans = encodedSpans;
+				this.buffer = buffer;
+				this.count = count;
+			}
+
+			/** Sends this message on the current thread. */
+			void send() {
+				long startNanos = System.nanoTime();
+				boolean success = false;
+				try {
+					Call<Void> call = buffer != null ? sender.sendMessage(buffer.duplicate())
+							: sender.sendSpans(encodedSpans);
+					call.execute();
+					success = true;
+				} catch (IOException t) {
+					handException(this, t);
+				} catch (RuntimeException t) {
+					handException(this, t);
+				} catch (Error t) {
+					handException(this, t);
+				} finally {
+					if (buffer != null)
+						bufferPool.release(buffer);
+					if (bundling != null)
+						bundling.messageFinished(System.nanoTime() - startNanos, success);
+				}
+			}
+
+			/** Returns true if this message was written to disk for replay. */
+			boolean spill() {
+				if (spill == null)
+					return false;
+				if (buffer != null)
+					return spill.appendMessage(buffer, count);
+				return spill.appendSpans(encodedSpans);
+			}
+
+			@Override
+			public void run() {
+				try {
+					send();
+				} catch (IllegalStateException e) {
+					// The sender was closed out-of-band. The message is already
+					// counted as dropped, so there's nothing else to do.
+				} finally {
+					sendPermits.release();
+				}
 			}
 		}
 
-		private void handException(final ArrayList<byte[]> nextMessage, Throwable t) {
-			// In failure case, we increment messages and spans dropped.
-			int count = nextMessage.size();
+		private void handException(NextMessage message, Throwable t) {
+			// In failure case, we increment messages dropped, and spans
+			// spilled or dropped.
 			Call.propagateIfFatal(t);
 			metrics.incrementMessagesDropped(t);
-			metrics.incrementSpansDropped(count);
+			int count = message.count;
+			String action;
+			if (message.spill()) {
+				action = "Spilled";
+				metrics.incrementSpansSpilled(count);
+				metrics.updateSpilledBytes(spill.sizeInBytes());
+			} else {
+				action = "Dropped";
+				metrics.incrementSpansDropped(count);
+			}
 			if (logger.isLoggable(FINE)) {
-				logger.log(FINE, format("Dropped %s spans due to %s(%s)", count, t.getClass().getSimpleName(),
+				logger.log(FINE, format("%s %s spans due to %s(%s)", action, count, t.getClass().getSimpleName(),
 						t.getMessage() == null ? "" : t.getMessage()), t);
 			}
 			// Raise in case the sender was closed out-of-band.
@@ -349,6 +908,126 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 				throw (IllegalStateException) t;
 		}
 
+		/**
+		 * Waits up to the close timeout for messages sent by workers. Messages
+		 * still in-flight afterwards are accounted for by their worker.
+		 */
+		void awaitInFlightMessages() {
+			if (sendExecutor == null)
+				return;
+			sendExecutor.shutdown();
+			try {
+				if (!sendExecutor.awaitTermination(closeTimeoutNanos, TimeUnit.NANOSECONDS)) {
+					logger.warning("Timed out waiting for in-flight messages to send");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Replays the oldest spilled spans, waiting if there are none or, after
+		 * a failure, the sender isn't ok. Consecutive spilled spans are merged into one
+		 * message. Replay is rate limited, and a message that repeatedly fails
+		 * while the sender is ok is dropped.
+		 */
+		void replaySpilled() throws InterruptedException {
+			List<DiskSpill.Record> records = spill.peek(messageMaxBytes);
+			if (records.isEmpty()) {
+				spill.awaitRecord(SPILL_CHECK_INTERVAL_MILLIS);
+				return;
+			}
+			DiskSpill.Record first = records.get(0);
+			if (!replayable(first)) {
+				spill.remove(1);
+				metrics.incrementSpansDropped(first.count);
+				metrics.updateSpilledBytes(spill.sizeInBytes());
+				logger.log(FINE, format("Dropped %s spilled spans written as %s %s", first.count,
+						first.encoding, first.compression));
+				return;
+			}
+			// Only check the sender after a failure, as a check is usually a remote call
+			if (replayFailed && !sender.check().ok()) {
+				Thread.sleep(SPILL_CHECK_INTERVAL_MILLIS);
+				return;
+			}
+			TimeUnit.NANOSECONDS.sleep(spillReplayIntervalNanos);
+			if (closed.get())
+				return;
+
+			int recordCount = records.size(), count = 0;
+			try {
+				Call<Void> call;
+				int messageSizeInBytes;
+				if (first.message != null) {
+					count = first.count;
+					messageSizeInBytes = first.message.length;
+					call = sender.sendMessage(first.message, 0, messageSizeInBytes);
+				} else {
+					List<byte[]> encodedSpans = new ArrayList<byte[]>();
+					for (int i = 0; i < recordCount; i++) {
+						encodedSpans.addAll(records.get(i).encodedSpans);
+					}
+					messageSizeInBytes = sender.messageSizeInBytes(encodedSpans);
+					// in case message overhead is larger than record overhead
+					while (messageSizeInBytes > messageMaxBytes && recordCount > 1) {
+						int last = records.get(--recordCount).encodedSpans.size();
+						encodedSpans.subList(encodedSpans.size() - last, encodedSpans.size()).clear();
+						messageSizeInBytes = sender.messageSizeInBytes(encodedSpans);
+					}
+					count = encodedSpans.size();
+					call = sender.sendSpans(encodedSpans);
+				}
+
+				metrics.incrementMessages();
+				metrics.incrementMessageBytes(messageSizeInBytes);
+				call.execute();
+				spill.remove(recordCount);
+				replayAttempts = 0;
+				replayFailed = false;
+				metrics.incrementSpansReplayed(count);
+			} catch (IOException t) {
+				handReplayException(recordCount, count, t);
+			} catch (RuntimeException t) {
+				handReplayException(recordCount, count, t);
+			} catch (Error t) {
+				handReplayException(recordCount, count, t);
+			} finally {
+				metrics.updateSpilledBytes(spill.sizeInBytes());
+			}
+		}
+
+		/**
+		 * Returns false if a record was spilled by a process configured
+		 * differently, as it would be garbled if sent by this one.
+		 */
+		boolean replayable(DiskSpill.Record record) {
+			if (record.encoding != sender.encoding())
+				return false;
+			return record.message == null || (bufferPool != null && record.compression == messageCompression());
+		}
+
+		/** The compression of messages in the buffer pool, which are only compressed if supported. */
+		Compression messageCompression() {
+			return compressor != null ? compressor.compression : Compression.NONE;
+		}
+
+		private void handReplayException(int recordCount, int count, Throwable t) {
+			Call.propagateIfFatal(t);
+			metrics.incrementMessagesDropped(t);
+			replayFailed = true;
+			if (++replayAttempts < MAX_REPLAY_ATTEMPTS)
+				return; // retry later
+			replayAttempts = 0;
+			spill.remove(recordCount);
+			metrics.incrementSpansDropped(count);
+			if (logger.isLoggable(FINE)) {
+				logger.log(FINE, format("Dropped %s spilled spans after %s attempts due to %s(%s)", count,
+						MAX_REPLAY_ATTEMPTS, t.getClass().getSimpleName(), t.getMessage() == null ? "" : t.getMessage()),
+						t);
+			}
+		}
+
 		@Override
 		public CheckResult check() {
 			return sender.check();
@@ -372,6 +1051,8 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 				metrics.incrementSpansDropped(count);
 				logger.warning("Dropped " + count + " spans due to AsyncReporter.close()");
 			}
+			if (spill != null)
+				spill.close(); // unsent spans remain on disk for the next process
 		}
 
 		@Override
@@ -379,4 +1060,93 @@ public abstract class AsyncReporter<S> extends Component implements Reporter<S>,
 			return "AsyncReporter{" + sender + "}";
 		}
 	}
+
+	/**
+	 * Encodes spans on the calling thread, then queues the bytes on a reporter
+	 * of encoded spans.
+	 */
+	static final class EncodingAsyncReporter<S> extends AsyncReporter<S> {
+		final BytesEncoder<S> encoder;
+		final BoundedAsyncReporter<byte[]> delegate;
+
+		EncodingAsyncReporter(BytesEncoder<S> encoder, BoundedAsyncReporter<byte[]> delegate) {
+			this.encoder = encoder;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void report(S next) {
+			if (next == null)
+				throw new NullPointerException("span == null");
+			if (delegate.shed(next))
+				return;
+			delegate.report(encoder.encode(next), delegate.priority(next));
+		}
+
+		@Override
+		public void flush() {
+			delegate.flush();
+		}
+
+		@Override
+		public CheckResult check() {
+			return delegate.check();
+		}
+
+		@Override
+		public void close() {
+			delegate.close();
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+	}
+
+	/** Passes through spans already encoded, so that they only need to be concatenated. */
+	static final class EncodedSpanEncoder implements BytesEncoder<byte[]> {
+		final Encoding encoding;
+
+		EncodedSpanEncoder(Encoding encoding) {
+			this.encoding = encoding;
+		}
+
+		@Override
+		public Encoding encoding() {
+			return encoding;
+		}
+
+		@Override
+		public int sizeInBytes(byte[] input) {
+			return input.length;
+		}
+
+		@Override
+		public byte[] encode(byte[] input) {
+			return input;
+		}
+
+		@Override
+		public byte[] encodeList(List<byte[]> input) {
+			return BytesMessageEncoder.forEncoding(encoding).encode(input);
+		}
+	}
+
+	/** Names sender workers after the reporter and makes them daemons. */
+	static final class SenderThreadFactory implements ThreadFactory {
+		final Sender sender;
+		final AtomicInteger threadCount = new AtomicInteger();
+
+		SenderThreadFactory(Sender sender) {
+			this.sender = sender;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread result = new Thread(r, "AsyncReporter{" + sender + "}-sender-" + threadCount.incrementAndGet());
+			result.setDaemon(true);
+			return result;
+		}
+	}
 }
@@ -14,17 +14,31 @@
 package zipkin2.reporter;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import zipkin2.codec.Encoding;
+import zipkin2.internal.Nullable;
 
 /** Use of this type happens off the application's main thread. This type is not thread-safe */
 abstract class BufferNextMessage<S> implements SpanWithSizeConsumer<S> {
 
   static <S> BufferNextMessage<S> create(Sender sender, int maxBytes, long timeoutNanos) {
-    if (sender.encoding() != Encoding.JSON) { // TODO update this once we support protobuf
-      throw new UnsupportedOperationException("sender.encoding() != Encoding.JSON");
+    return create(sender, maxBytes, timeoutNanos, null, null);
+  }
+
+  /**
+   * @param adaptive when non-null, decides when a message is ready before it is full or timed out
+   * @param compressor when non-null, max bytes is compared against the estimated compressed size
+   */
+  static <S> BufferNextMessage<S> create(Sender sender, int maxBytes, long timeoutNanos,
+      AdaptiveBundling adaptive, MessageCompressor compressor) {
+    switch (sender.encoding()) {
+      case JSON:
+        return new BufferNextJsonMessage<S>(sender, maxBytes, timeoutNanos, adaptive, compressor);
+      case PROTO3:
+        return new BufferNextProto3Message<S>(sender, maxBytes, timeoutNanos, adaptive,
+            compressor);
+      default:
+        throw new UnsupportedOperationException(sender.encoding().name());
     }
-    return new BufferNextJsonMessage<S>(sender, maxBytes, timeoutNanos);
   }
 
   final Sender sender;
@@ -32,15 +46,20 @@ abstract class BufferNextMessage<S> implements SpanWithSizeConsumer<S> {
   final long timeoutNanos;
   final ArrayList<S> spans = new ArrayList<S>();
   final ArrayList<Integer> sizes = new ArrayList<Integer>();
+  @Nullable final AdaptiveBundling adaptive;
+  @Nullable final MessageCompressor compressor;
 
   long deadlineNanoTime;
   int messageSizeInBytes;
   boolean bufferFull;
 
-  BufferNextMessage(Sender sender, int maxBytes, long timeoutNanos) {
+  BufferNextMessage(Sender sender, int maxBytes, long timeoutNanos, AdaptiveBundling adaptive,
+      MessageCompressor compressor) {
     this.sender = sender;
     this.maxBytes = maxBytes;
     this.timeoutNanos = timeoutNanos;
+    this.adaptive = adaptive;
+    this.compressor = compressor;
   }
 
   abstract int messageSizeInBytes(int nextSizeInBytes);
@@ -50,8 +69,9 @@ abstract class BufferNextMessage<S> implements SpanWithSizeConsumer<S> {
   static final class BufferNextJsonMessage<S> extends BufferNextMessage<S> {
     boolean hasAtLeastOneSpan;
 
-    BufferNextJsonMessage(Sender sender, int maxBytes, long timeoutNanos) {
-      super(sender, maxBytes, timeoutNanos);
+    BufferNextJsonMessage(Sender sender, int maxBytes, long timeoutNanos,
+        AdaptiveBundling adaptive, MessageCompressor compressor) {
+      super(sender, maxBytes, timeoutNanos, adaptive, compressor);
       messageSizeInBytes = 2;
       hasAtLeastOneSpan = false;
     }
@@ -62,8 +82,9 @@ abstract class BufferNextMessage<S> implements SpanWithSizeConsumer<S> {
 
     @Override void resetMessageSizeInBytes() {
       int length = sizes.size();
-      messageSizeInBytes = 2 + length - 1; // [] and commas
-      hasAtLeastOneSpan = length > 2;
+      messageSizeInBytes = 2; // []
+      if (length > 1) messageSizeInBytes += length - 1; // commas
+      hasAtLeastOneSpan = length > 0;
 
       for (int i = 0; i < length; i++) {
         messageSizeInBytes += sizes.get(i);
@@ -74,21 +95,50 @@ abstract class BufferNextMessage<S> implements SpanWithSizeConsumer<S> {
       super.addSpanToBuffer(next, nextSizeInBytes);
       hasAtLeastOneSpan = true;
     }
+  }
 
-    @Override void drain(SpanWithSizeConsumer<S> consumer) {
-      super.drain(consumer);
-      messageSizeInBytes = 2;
-      hasAtLeastOneSpan = false;
+  /** A ListOfSpans message has no framing: each span is a length-prefixed field */
+  static final class BufferNextProto3Message<S> extends BufferNextMessage<S> {
+
+    BufferNextProto3Message(Sender sender, int maxBytes, long timeoutNanos,
+        AdaptiveBundling adaptive, MessageCompressor compressor) {
+      super(sender, maxBytes, timeoutNanos, adaptive, compressor);
+    }
+
+    @Override int messageSizeInBytes(int nextSizeInBytes) {
+      return messageSizeInBytes + Encoding.PROTO3.listSizeInBytes(nextSizeInBytes);
+    }
+
+    @Override void resetMessageSizeInBytes() {
+      messageSizeInBytes = 0;
+      for (int i = 0, length = sizes.size(); i < length; i++) {
+        messageSizeInBytes += Encoding.PROTO3.listSizeInBytes(sizes.get(i));
+      }
     }
   }
 
   /** This is done inside a lock that holds up writers, so has to be fast. No encoding! */
   @Override public boolean offer(S next, int nextSizeInBytes) {
-    int x = messageSizeInBytes(nextSizeInBytes);
+    int x = messageSizeInBytes(nextSizeInBytes), estimate = x;
     int y = maxBytes;
-    int includingNextVsMaxBytes = (x < y) ? -1 : ((x == y) ? 0 : 1); // Integer.compare, but JRE 6
+    // the first span is always accepted, as the reporter already dropped those larger than max
+    if (!spans.isEmpty()) {
+      if (adaptive != null) y = Math.min(y, adaptive.targetBytes());
+      if (compressor != null) {
+        if (x > compressor.maxUncompressedBytes) { // too large to compress in one go
+          bufferFull = true;
+          return false;
+        }
+        estimate = compressor.estimateSizeInBytes(x);
+      }
+    }
+    // Integer.compare, but JRE 6
+    int includingNextVsMaxBytes = (estimate < y) ? -1 : ((estimate == y) ? 0 : 1);
 
-    if (includingNextVsMaxBytes > 0) return false; // can't fit the next message into this buffer
+    if (includingNextVsMaxBytes > 0) { // can't fit the next message into this buffer
+      bufferFull = true; // so don't wait for the timeout
+      return false;
+    }
 
     addSpanToBuffer(next, nextSizeInBytes);
     messageSizeInBytes = x;
@@ -109,32 +159,75 @@ abstract class BufferNextMessage<S> implements SpanWithSizeConsumer<S> {
     return Math.max(deadlineNanoTime - System.nanoTime(), 0);
   }
 
+  /**
+   * Returns how long to wait for more spans. This is the time remaining before the timeout, unless
+   * adaptive bundling needs to check sooner whether the sender became idle.
+   */
+  long pollNanos() {
+    long remainingNanos = remainingNanos();
+    if (adaptive == null || spans.isEmpty()) return remainingNanos;
+    return adaptive.pollNanos(remainingNanos);
+  }
+
   boolean isReady() {
-    return bufferFull || remainingNanos() <= 0;
+    if (bufferFull) return true;
+    if (adaptive != null && !spans.isEmpty()) {
+      if (adaptive.idle() || estimatedSizeInBytes() >= adaptive.targetBytes()) return true;
+    }
+    return remainingNanos() <= 0;
   }
 
   // this occurs off the application thread
   void drain(SpanWithSizeConsumer<S> consumer) {
-    Iterator<S> spanIterator = spans.iterator();
-    Iterator<Integer> sizeIterator = sizes.iterator();
-    while (spanIterator.hasNext()) {
-      if (consumer.offer(spanIterator.next(), sizeIterator.next())) {
+    // compact in place, as removing from the head of an array list one-by-one is quadratic
+    int length = spans.size(), kept = 0;
+    for (int i = 0; i < length; i++) {
+      S next = spans.get(i);
+      Integer nextSizeInBytes = sizes.get(i);
+      if (consumer.offer(next, nextSizeInBytes)) {
         bufferFull = false;
-        spanIterator.remove();
-        sizeIterator.remove();
+      } else {
+        spans.set(kept, next);
+        sizes.set(kept++, nextSizeInBytes);
       }
     }
+    spans.subList(kept, length).clear();
+    sizes.subList(kept, length).clear();
 
     resetMessageSizeInBytes();
     // regardless, reset the clock
     deadlineNanoTime = 0;
   }
 
+  /** Drops all buffered spans. For example, after they were encoded directly into a message. */
+  void clear() {
+    clear(spans.size());
+  }
+
+  /**
+   * Drops the first count buffered spans. For example, when only those fit into a compressed
+   * message. Any remaining are ready to send.
+   */
+  void clear(int count) {
+    spans.subList(0, count).clear();
+    sizes.subList(0, count).clear();
+    bufferFull = false;
+    resetMessageSizeInBytes();
+    deadlineNanoTime = 0;
+  }
+
   int count() {
     return spans.size();
   }
 
+  /** The size of the message before compression, if any. */
   int sizeInBytes() {
     return messageSizeInBytes;
   }
+
+  /** Like {@link #sizeInBytes()}, except estimating the size after compression, if any. */
+  int estimatedSizeInBytes() {
+    if (compressor == null) return messageSizeInBytes;
+    return compressor.estimateSizeInBytes(messageSizeInBytes);
+  }
 }
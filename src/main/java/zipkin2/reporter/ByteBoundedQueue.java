@@ -22,7 +22,7 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * <p>This is similar to {@link java.util.concurrent.ArrayBlockingQueue} in implementation.
  */
-final class ByteBoundedQueue<S> implements SpanWithSizeConsumer<S> {
+final class ByteBoundedQueue<S> implements SpanQueue<S> {
 
   final ReentrantLock lock = new ReentrantLock(false);
   final Condition available = lock.newCondition();
@@ -69,7 +69,7 @@ final class ByteBoundedQueue<S> implements SpanWithSizeConsumer<S> {
   }
 
   /** Blocks for up to nanosTimeout for spans to appear. Then, consume as many as possible. */
-  int drainTo(SpanWithSizeConsumer<S> consumer, long nanosTimeout) {
+  @Override public int drainTo(SpanWithSizeConsumer<S> consumer, long nanosTimeout) {
     try {
       // This may be called by multiple threads. If one is holding a lock, another is waiting. We
       // use lockInterruptibly to ensure the one waiting can be interrupted.
@@ -90,7 +90,7 @@ final class ByteBoundedQueue<S> implements SpanWithSizeConsumer<S> {
   }
 
   /** Clears the queue unconditionally and returns count of spans cleared. */
-  int clear() {
+  @Override public int clear() {
     lock.lock();
     try {
       int result = count;
@@ -102,6 +102,15 @@ final class ByteBoundedQueue<S> implements SpanWithSizeConsumer<S> {
     }
   }
 
+  // Like before SpanQueue, metrics read these without the lock, so that reporting doesn't contend
+  @Override public int count() {
+    return count;
+  }
+
+  @Override public int sizeInBytes() {
+    return sizeInBytes;
+  }
+
   int doDrain(SpanWithSizeConsumer<S> consumer) {
     int drainedCount = 0;
     int drainedSizeInBytes = 0;
@@ -125,8 +134,3 @@ final class ByteBoundedQueue<S> implements SpanWithSizeConsumer<S> {
     return drainedCount;
   }
 }
-
-interface SpanWithSizeConsumer<S> {
-  /** Returns true if the element could be added or false if it could not due to its size. */
-  boolean offer(S next, int nextSizeInBytes);
-}
\ No newline at end of file
@@ -13,6 +13,7 @@
  */
 package zipkin2.reporter;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import zipkin2.codec.BytesEncoder;
 import zipkin2.codec.Encoding;
@@ -43,6 +44,50 @@ public enum BytesMessageEncoder {
       buf[pos] = ']';
       return buf;
     }
+
+    @Override public void encode(List<byte[]> values, ByteBuffer out) {
+      out.put((byte) '[');
+      for (int i = 0, length = values.size(); i < length; ) {
+        out.put(values.get(i++));
+        if (i < length) out.put((byte) ',');
+      }
+      out.put((byte) ']');
+    }
+  },
+  /** Encodes the message {@code zipkin.proto3.ListOfSpans}: each span is a length-prefixed field */
+  PROTO3 {
+    @Override public byte[] encode(List<byte[]> values) {
+      int length = values.size();
+      byte[] buf = new byte[Encoding.PROTO3.listSizeInBytes(values)];
+      int pos = 0;
+      for (int i = 0; i < length; i++) {
+        byte[] v = values.get(i);
+        buf[pos++] = 0x0a; // field 1, wire type 2 (length-delimited)
+        int size = v.length;
+        while ((size & ~0x7f) != 0) {
+          buf[pos++] = (byte) ((size & 0x7f) | 0x80);
+          size >>>= 7;
+        }
+        buf[pos++] = (byte) size;
+        System.arraycopy(v, 0, buf, pos, v.length);
+        pos += v.length;
+      }
+      return buf;
+    }
+
+    @Override public void encode(List<byte[]> values, ByteBuffer out) {
+      for (int i = 0, length = values.size(); i < length; i++) {
+        byte[] v = values.get(i);
+        out.put((byte) 0x0a); // field 1, wire type 2 (length-delimited)
+        int size = v.length;
+        while ((size & ~0x7f) != 0) {
+          out.put((byte) ((size & 0x7f) | 0x80));
+          size >>>= 7;
+        }
+        out.put((byte) size);
+        out.put(v);
+      }
+    }
   };
 
   /**
@@ -55,11 +100,19 @@ public enum BytesMessageEncoder {
    */
   public abstract byte[] encode(List<byte[]> encodedSpans);
 
+  /**
+   * Like {@link #encode(List)}, except writing at the position of the buffer, which is advanced.
+   * The buffer must have at least {@link Encoding#listSizeInBytes(List)} bytes remaining.
+   */
+  public abstract void encode(List<byte[]> encodedSpans, ByteBuffer out);
+
   public static BytesMessageEncoder forEncoding(Encoding encoding) {
     if (encoding == null) throw new NullPointerException("encoding == null");
     switch (encoding) {
       case JSON:
         return JSON;
+      case PROTO3:
+        return PROTO3;
       default:
         throw new UnsupportedOperationException(encoding.name());
     }
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+/**
+ * Compression {@link AsyncReporter} applies to messages before they are passed to {@link
+ * Sender#sendMessage(java.nio.ByteBuffer)}.
+ *
+ * @see Sender#compression()
+ */
+public enum Compression {
+  /** Messages are sent as encoded. */
+  NONE("identity"),
+  /** Messages are in gzip format (RFC 1952). */
+  GZIP("gzip"),
+  /** Messages are in zlib format (RFC 1950), which is what http calls "deflate". */
+  DEFLATE("deflate");
+
+  final String contentEncoding;
+
+  Compression(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  /** The value of the http "Content-Encoding" header for messages compressed this way. */
+  public String contentEncoding() {
+    return contentEncoding;
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+/**
+ * Adapts {@link ReporterMetrics} which don't implement {@link DetailedReporterMetrics}, so that the
+ * reporter can invoke either type of callback without checking each time.
+ */
+final class DetailedMetrics implements DetailedReporterMetrics {
+
+  static DetailedReporterMetrics of(ReporterMetrics metrics) {
+    if (metrics instanceof DetailedReporterMetrics) return (DetailedReporterMetrics) metrics;
+    return new DetailedMetrics(metrics);
+  }
+
+  final ReporterMetrics delegate;
+
+  DetailedMetrics(ReporterMetrics delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override public void incrementMessages() {
+    delegate.incrementMessages();
+  }
+
+  @Override public void incrementMessagesDropped(Throwable cause) {
+    delegate.incrementMessagesDropped(cause);
+  }
+
+  @Override public void incrementSpans(int quantity) {
+    delegate.incrementSpans(quantity);
+  }
+
+  @Override public void incrementSpanBytes(int quantity) {
+    delegate.incrementSpanBytes(quantity);
+  }
+
+  @Override public void incrementMessageBytes(int quantity) {
+    delegate.incrementMessageBytes(quantity);
+  }
+
+  @Override public void incrementSpansDropped(int quantity) {
+    delegate.incrementSpansDropped(quantity);
+  }
+
+  @Override public void updateQueuedSpans(int update) {
+    delegate.updateQueuedSpans(update);
+  }
+
+  @Override public void updateQueuedBytes(int update) {
+    delegate.updateQueuedBytes(update);
+  }
+
+  @Override public void incrementSpansDropped(SpanPriority priority, int quantity) {
+  }
+
+  @Override public void incrementSpansShed(int quantity) {
+  }
+
+  @Override public void incrementSpansSpilled(int quantity) {
+  }
+
+  @Override public void incrementSpansReplayed(int quantity) {
+  }
+
+  @Override public void updateSpilledBytes(int update) {
+  }
+
+  @Override public void updateMessageTargetBytes(int update) {
+  }
+
+  @Override public void updateMessageRoundTripMicros(int update) {
+  }
+
+  @Override public void incrementUncompressedMessageBytes(int quantity) {
+  }
+
+  @Override public void incrementCompressionMicros(int quantity) {
+  }
+
+  @Override public String toString() {
+    return delegate.toString();
+  }
+}
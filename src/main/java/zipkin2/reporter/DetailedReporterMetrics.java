@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+/**
+ * Optional callbacks about features of {@link AsyncReporter} such as spilling, prioritization and
+ * compression. These are only invoked when the {@link AsyncReporter.Builder#metrics(ReporterMetrics)
+ * metrics} passed to the reporter implement this type, so existing implementations of {@link
+ * ReporterMetrics} are unaffected.
+ */
+public interface DetailedReporterMetrics extends ReporterMetrics {
+
+  /**
+   * Increments the count of spans of the given priority dropped before they were queued, or
+   * evicted from the queue for a span of higher priority. These are also counted by {@link
+   * #incrementSpansDropped(int)}.
+   *
+   * @see AsyncReporter.Builder#prioritizeSpans(boolean)
+   */
+  void incrementSpansDropped(SpanPriority priority, int quantity);
+
+  /**
+   * Increments the count of spans dropped on report, as their trace was shed due to overload. These
+   * are also counted by {@link #incrementSpansDropped(int)}.
+   *
+   * @see AsyncReporter.Builder#shedTracesAbove(float)
+   */
+  void incrementSpansShed(int quantity);
+
+  /**
+   * Increments the count of spans written to disk, as they could neither be queued nor sent. These
+   * are not counted as dropped unless they later fail to replay.
+   */
+  void incrementSpansSpilled(int quantity);
+
+  /** Increments the count of spans written to disk which were later sent successfully. */
+  void incrementSpansReplayed(int quantity);
+
+  /** Updates the bytes on disk waiting to be replayed, following a spill or replay activity. */
+  void updateSpilledBytes(int update);
+
+  /**
+   * Updates the size in bytes messages are bundled up to while the sender is busy, following a
+   * message sent with adaptive bundling.
+   *
+   * @see AsyncReporter.Builder#messageLatencyTarget
+   */
+  void updateMessageTargetBytes(int update);
+
+  /**
+   * Updates the smoothed round-trip time of messages in microseconds, following a message sent with
+   * adaptive bundling.
+   *
+   * @see AsyncReporter.Builder#messageLatencyTarget
+   */
+  void updateMessageRoundTripMicros(int update);
+
+  /**
+   * Increments the number of bytes in messages before they were compressed. The compression ratio
+   * is this divided by {@link #incrementMessageBytes(int) message bytes}.
+   *
+   * @see Sender#compression()
+   */
+  void incrementUncompressedMessageBytes(int quantity);
+
+  /**
+   * Increments the time spent compressing messages in microseconds. This is on the flush thread.
+   *
+   * @see Sender#compression()
+   */
+  void incrementCompressionMicros(int quantity);
+}
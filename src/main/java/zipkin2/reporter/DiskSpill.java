@@ -0,0 +1,479 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import zipkin2.codec.Encoding;
+import zipkin2.internal.Nullable;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Durable overflow for encoded spans that could not be queued or sent. This is an append-only log
+ * split into fixed-size, memory-mapped segment files, oldest first.
+ *
+ * <p>Each segment starts with the position of the next record to replay, followed by records. A
+ * record is its total length, a type, its format, a count of spans, then the body. The format is
+ * the encoding and compression of the body, so that a process configured differently than the one
+ * that wrote a record doesn't replay it as-is. The length is written last,
+ * and is followed by a zero terminator, so a partially written record is never replayed after a
+ * crash. Segments are deleted once replayed, and are recovered from the directory on startup.
+ *
+ * <p>This type is thread-safe. As it is only used when spans would otherwise be dropped, it favors
+ * simplicity over concurrency: one lock guards everything. Application threads only {@link
+ * #tryAppendSpans(List) try} that lock, so that they never wait on disk I/O of another thread.
+ */
+final class DiskSpill implements Closeable {
+  static final Logger logger = Logger.getLogger(DiskSpill.class.getName());
+
+  static final int SEGMENT_HEADER = 4; // position of the next record to replay
+  static final int RECORD_HEADER = 10; // length, type, format, count
+  static final byte TYPE_SPANS = 0; // body is a sequence of length-prefixed encoded spans
+  static final byte TYPE_MESSAGE = 1; // body is a message framed by the sender's encoding
+  static final String PREFIX = "spill-", SUFFIX = ".seg";
+  static final int DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+
+  /**
+   * Opens the spill in the given directory, recovering any segments left by a prior process.
+   *
+   * @param encoding the encoding of spans and messages appended
+   * @param messageCompression the compression of messages appended. Spans are never compressed.
+   */
+  static DiskSpill open(File directory, int maxBytes, int messageMaxBytes, Encoding encoding,
+      Compression messageCompression) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("couldn't create spill directory " + directory);
+    }
+    // A segment must fit the largest message, and is otherwise capped by the disk budget
+    int minSegmentBytes = SEGMENT_HEADER + RECORD_HEADER + messageMaxBytes + 4;
+    int segmentBytes = Math.max(minSegmentBytes, Math.min(maxBytes, DEFAULT_SEGMENT_BYTES));
+    DiskSpill result = new DiskSpill(directory, segmentBytes, Math.max(1, maxBytes / segmentBytes),
+        encoding, messageCompression);
+    result.recover();
+    return result;
+  }
+
+  final File directory;
+  final int segmentBytes;
+  final int maxSegments;
+  final byte spansFormat, messageFormat;
+  final ReentrantLock lock = new ReentrantLock(); // guards the fields below
+  final Condition appended = lock.newCondition();
+  final LinkedList<Segment> segments = new LinkedList<Segment>();
+  long nextSegmentId;
+  volatile int sizeInBytes; // bytes of records not yet replayed, only written under the lock
+  boolean closed;
+
+  DiskSpill(File directory, int segmentBytes, int maxSegments, Encoding encoding,
+      Compression messageCompression) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+    this.spansFormat = format(encoding, Compression.NONE);
+    this.messageFormat = format(encoding, messageCompression);
+  }
+
+  /** Ordinals are stable as constants are only ever added, and each fits in 4 bits. */
+  static byte format(Encoding encoding, Compression compression) {
+    return (byte) (encoding.ordinal() << 4 | compression.ordinal());
+  }
+
+  /** Returns false if the spans could not be written, for example as the disk budget was used. */
+  boolean appendSpans(List<byte[]> encodedSpans) {
+    lock.lock();
+    try {
+      return doAppendSpans(encodedSpans);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Like {@link #appendSpans(List)}, except returns false without waiting if another thread is
+   * using the spill.
+   */
+  boolean tryAppendSpans(List<byte[]> encodedSpans) {
+    if (!lock.tryLock()) return false;
+    try {
+      return doAppendSpans(encodedSpans);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean doAppendSpans(List<byte[]> encodedSpans) {
+    int bodyBytes = 0;
+    for (int i = 0, length = encodedSpans.size(); i < length; i++) {
+      bodyBytes += 4 + encodedSpans.get(i).length;
+    }
+    MappedByteBuffer buffer = reserve(RECORD_HEADER + bodyBytes);
+    if (buffer == null) return false;
+    int pos = buffer.position();
+    buffer.position(pos + 4);
+    buffer.put(TYPE_SPANS).put(spansFormat).putInt(encodedSpans.size());
+    for (int i = 0, length = encodedSpans.size(); i < length; i++) {
+      byte[] next = encodedSpans.get(i);
+      buffer.putInt(next.length).put(next);
+    }
+    commit(buffer, pos);
+    return true;
+  }
+
+  /**
+   * Like {@link #appendSpans(List)}, except the remaining bytes of a buffer holding a message
+   * framed by the sender, and compressed as configured.
+   */
+  boolean appendMessage(ByteBuffer message, int count) {
+    lock.lock();
+    try {
+      MappedByteBuffer buffer = reserve(RECORD_HEADER + message.remaining());
+      if (buffer == null) return false;
+      int pos = buffer.position();
+      buffer.position(pos + 4);
+      buffer.put(TYPE_MESSAGE).put(messageFormat).putInt(count).put(message.duplicate());
+      commit(buffer, pos);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns a buffer positioned where a record of the given size can be written, or null if there
+   * is no room. The last segment is only writable if it was created by this process.
+   */
+  @Nullable MappedByteBuffer reserve(int recordBytes) {
+    if (closed) return null;
+    if (SEGMENT_HEADER + recordBytes + 4 > segmentBytes) return null; // can never fit
+    Segment last = segments.isEmpty() ? null : segments.getLast();
+    if (last == null || !last.writable || last.writePos + recordBytes + 4 > last.capacity) {
+      if (segments.size() >= maxSegments) return null; // disk budget exhausted
+      try {
+        last = Segment.create(new File(directory, PREFIX + nextSegmentId++ + SUFFIX), segmentBytes);
+      } catch (IOException e) {
+        logger.log(FINE, "couldn't create spill segment", e);
+        return null;
+      }
+      segments.add(last);
+    }
+    last.buffer.position(last.writePos);
+    return last.buffer;
+  }
+
+  /** Writes the length of the record at pos last, so that it is only visible when complete. */
+  void commit(MappedByteBuffer buffer, int pos) {
+    Segment last = segments.getLast();
+    int end = buffer.position();
+    buffer.putInt(end, 0); // terminator, in case this segment was written before
+    buffer.putInt(pos, end - pos);
+    sizeInBytes += end - pos;
+    last.writePos = end;
+    appended.signalAll();
+  }
+
+  /**
+   * Returns the oldest records not yet replayed, up to maxBytes of them on disk, but at least one.
+   * Pre-framed messages are always returned alone, as they cannot be merged with other records, and
+   * spans are only merged with those of the same encoding.
+   */
+  List<Record> peek(int maxBytes) {
+    lock.lock();
+    try {
+      return doPeek(maxBytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  List<Record> doPeek(int maxBytes) {
+    if (closed) return Collections.emptyList();
+    List<Record> result = new ArrayList<Record>();
+    int bytes = 0;
+    restart:
+    while (true) {
+      for (Segment segment : segments) {
+        int pos = segment.readPos;
+        while (pos < segment.writePos) {
+          Record next = segment.read(pos);
+          if (next == null) { // corrupt: drop it once it is the oldest
+            if (!result.isEmpty()) return result;
+            logger.warning("Dropped a corrupt spill record in " + segment.file);
+            doRemove(1);
+            continue restart;
+          }
+          if (!result.isEmpty()) {
+            Record first = result.get(0);
+            if (next.message != null || first.message != null) return result;
+            if (next.encoding != first.encoding) return result;
+            if (bytes + next.sizeInBytes > maxBytes) return result;
+          }
+          result.add(next);
+          bytes += next.sizeInBytes;
+          pos += next.sizeInBytes;
+        }
+      }
+      return result;
+    }
+  }
+
+  /** Blocks up to the timeout for a record to be appended, if there are none. */
+  void awaitRecord(long timeoutMillis) throws InterruptedException {
+    lock.lock();
+    try {
+      if (sizeInBytes == 0 && !closed) appended.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Removes the oldest records, for example after they were replayed. */
+  void remove(int count) {
+    lock.lock();
+    try {
+      doRemove(count);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void doRemove(int count) {
+    Iterator<Segment> i = segments.iterator();
+    while (count > 0 && i.hasNext()) {
+      Segment segment = i.next();
+      while (count > 0 && segment.readPos < segment.writePos) {
+        int recordBytes = segment.buffer.getInt(segment.readPos);
+        if (recordBytes < RECORD_HEADER || recordBytes > segment.writePos - segment.readPos) {
+          recordBytes = segment.writePos - segment.readPos; // corrupt: drop the rest of the segment
+        }
+        segment.readPos += recordBytes;
+        sizeInBytes -= recordBytes;
+        count--;
+      }
+      if (segment.readPos < segment.writePos) {
+        segment.buffer.putInt(0, segment.readPos); // persist progress
+      } else if (segment.writable && !i.hasNext()) {
+        segment.reset(); // reuse the segment being written as opposed to creating a new file
+      } else {
+        segment.delete();
+        i.remove();
+      }
+    }
+  }
+
+  /** Doesn't lock, so that an application thread reading this for metrics never waits. */
+  int sizeInBytes() {
+    return sizeInBytes;
+  }
+
+  /** Loads segments left by a prior process. These are replayed, but not written to. */
+  void recover() throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    long[] ids = new long[files.length];
+    int idCount = 0;
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+      try {
+        // parse before incrementing, as the index is evaluated before the value is
+        long id = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        ids[idCount++] = id;
+      } catch (NumberFormatException e) {
+        // not ours
+      }
+    }
+    Arrays.sort(ids, 0, idCount);
+    for (int i = 0; i < idCount; i++) {
+      File file = new File(directory, PREFIX + ids[i] + SUFFIX);
+      if (file.length() < SEGMENT_HEADER + RECORD_HEADER) { // truncated, so there are no records
+        if (!file.delete()) logger.log(FINE, "couldn't delete " + file);
+        continue;
+      }
+      Segment segment = Segment.recover(file);
+      if (segment.readPos >= segment.writePos) {
+        segment.delete();
+        continue;
+      }
+      segments.add(segment);
+      sizeInBytes += segment.writePos - segment.readPos;
+    }
+    if (idCount > 0) nextSegmentId = ids[idCount - 1] + 1;
+  }
+
+  /** Flushes segments to disk and releases them. Records not yet replayed are kept for later. */
+  @Override public void close() {
+    lock.lock();
+    try {
+      if (closed) return;
+      closed = true;
+      for (Segment segment : segments) segment.close();
+      segments.clear();
+      appended.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public String toString() {
+    return "DiskSpill{" + directory + "}";
+  }
+
+  /** A record copied out of a segment for replay. */
+  static final class Record {
+    final int sizeInBytes; // on disk
+    final Encoding encoding;
+    final Compression compression; // always NONE for spans
+    final int count;
+    @Nullable final List<byte[]> encodedSpans; // when TYPE_SPANS
+    @Nullable final byte[] message; // when TYPE_MESSAGE
+
+    Record(int sizeInBytes, Encoding encoding, Compression compression, int count,
+        List<byte[]> encodedSpans, byte[] message) {
+      this.sizeInBytes = sizeInBytes;
+      this.encoding = encoding;
+      this.compression = compression;
+      this.count = count;
+      this.encodedSpans = encodedSpans;
+      this.message = message;
+    }
+  }
+
+  static final class Segment {
+    static Segment create(File file, int capacity) throws IOException {
+      Segment result = new Segment(file, capacity, true);
+      result.buffer.putInt(0, SEGMENT_HEADER);
+      result.buffer.putInt(SEGMENT_HEADER, 0);
+      return result;
+    }
+
+    static Segment recover(File file) throws IOException {
+      Segment result = new Segment(file, (int) Math.min(file.length(), Integer.MAX_VALUE), false);
+      MappedByteBuffer buffer = result.buffer;
+      // Scan for the end of complete records. The read position is the last record boundary not
+      // after the one persisted, so that a damaged header can't point into the middle of a record.
+      int persistedReadPos = buffer.getInt(0), readPos = SEGMENT_HEADER;
+      int pos = SEGMENT_HEADER;
+      while (pos + RECORD_HEADER <= result.capacity) {
+        int recordBytes = buffer.getInt(pos);
+        if (recordBytes < RECORD_HEADER || recordBytes > result.capacity - pos) break;
+        pos += recordBytes;
+        if (pos <= persistedReadPos) readPos = pos;
+      }
+      result.writePos = pos;
+      result.readPos = readPos;
+      return result;
+    }
+
+    final File file;
+    final int capacity;
+    final boolean writable;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    int readPos = SEGMENT_HEADER, writePos = SEGMENT_HEADER;
+
+    Segment(File file, int capacity, boolean writable) throws IOException {
+      this.file = file;
+      this.capacity = capacity;
+      this.writable = writable;
+      this.raf = new RandomAccessFile(file, "rw");
+      try {
+        if (writable) raf.setLength(capacity);
+        this.channel = raf.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      } catch (IOException e) {
+        raf.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Returns the record at pos or null if it is corrupt, for example a file damaged while the
+     * process wasn't running. Lengths are checked before allocating, as they could be anything.
+     */
+    @Nullable Record read(int pos) {
+      int recordBytes = buffer.getInt(pos);
+      if (recordBytes < RECORD_HEADER || recordBytes > writePos - pos) return null;
+      byte type = buffer.get(pos + 4);
+      int format = buffer.get(pos + 5) & 0xff;
+      int count = buffer.getInt(pos + 6);
+      int bodyPos = pos + RECORD_HEADER, end = pos + recordBytes;
+      if (count < 0) return null;
+      Encoding[] encodings = Encoding.values();
+      Compression[] compressions = Compression.values();
+      if ((format >>> 4) >= encodings.length || (format & 0xf) >= compressions.length) return null;
+      Encoding encoding = encodings[format >>> 4];
+      Compression compression = compressions[format & 0xf];
+      ByteBuffer view = buffer.duplicate(); // leaves the write position alone
+      view.position(bodyPos);
+      if (type == TYPE_MESSAGE) {
+        byte[] message = new byte[end - bodyPos];
+        view.get(message);
+        return new Record(recordBytes, encoding, compression, count, null, message);
+      } else if (type != TYPE_SPANS || compression != Compression.NONE) {
+        return null;
+      } else if (count > (end - bodyPos) / 4) {
+        return null; // each span needs at least its length prefix
+      }
+      List<byte[]> encodedSpans = new ArrayList<byte[]>(count);
+      for (int i = 0; i < count; i++) {
+        if (end - view.position() < 4) return null;
+        int length = view.getInt();
+        if (length < 0 || length > end - view.position()) return null;
+        byte[] next = new byte[length];
+        view.get(next);
+        encodedSpans.add(next);
+      }
+      if (view.position() != end) return null;
+      return new Record(recordBytes, encoding, compression, count, encodedSpans, null);
+    }
+
+    void reset() {
+      readPos = writePos = SEGMENT_HEADER;
+      buffer.putInt(SEGMENT_HEADER, 0);
+      buffer.putInt(0, SEGMENT_HEADER);
+    }
+
+    void close() {
+      try {
+        buffer.force();
+        channel.close();
+        raf.close();
+      } catch (IOException e) {
+        logger.log(FINE, "error closing " + file, e);
+      }
+    }
+
+    void delete() {
+      close();
+      if (!file.delete()) logger.log(FINE, "couldn't delete " + file);
+    }
+  }
+}
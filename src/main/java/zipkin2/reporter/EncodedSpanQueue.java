@@ -0,0 +1,223 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multi-producer, multi-consumer queue of encoded spans, bounded by both count and size.
+ *
+ * <p>Unlike {@link ByteBoundedQueue}, this doesn't retain an object per span. Each span is copied
+ * into a ring of records in a single buffer, where each record is a 4-byte length followed by the
+ * encoded span. This keeps backlog out of the old generation, and makes the byte bound exact. A
+ * span is only copied out into an array when it is drained.
+ *
+ * <p>The ring is allocated small, and grows up to what the bounds require, so that an idle
+ * reporter doesn't reserve {@link AsyncReporter.Builder#queuedMaxBytes(int) queued max bytes}.
+ */
+final class EncodedSpanQueue implements SpanQueue<byte[]> {
+  static final int RECORD_HEADER = 4;
+  static final int INITIAL_CAPACITY = 64 * 1024;
+
+  final ReentrantLock lock = new ReentrantLock(false);
+  final Condition available = lock.newCondition();
+
+  final int maxSize;
+  final int maxBytes;
+  final int maxCapacity;
+  final boolean direct;
+
+  ByteBuffer ring;
+  int count;
+  int sizeInBytes; // excludes record headers
+  int writePos;
+  int readPos;
+
+  EncodedSpanQueue(int maxSize, int maxBytes, boolean direct) {
+    this.maxSize = maxSize;
+    this.maxBytes = maxBytes;
+    this.maxCapacity = (int) Math.min(Integer.MAX_VALUE, maxBytes + (long) RECORD_HEADER * maxSize);
+    this.direct = direct;
+    this.ring = allocate(Math.min(INITIAL_CAPACITY, maxCapacity));
+  }
+
+  ByteBuffer allocate(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  /** Returns true if the element could be added or false if it could not due to its size. */
+  @Override public boolean offer(byte[] next, int nextSizeInBytes) {
+    lock.lock();
+    try {
+      if (count == maxSize) return false;
+      if (sizeInBytes + nextSizeInBytes > maxBytes) return false;
+
+      int recordSize = RECORD_HEADER + nextSizeInBytes;
+      if (usedCapacity() + recordSize > ring.capacity() && !grow(recordSize)) return false;
+
+      writeInt(nextSizeInBytes);
+      write(next, nextSizeInBytes);
+      count++;
+      sizeInBytes += nextSizeInBytes;
+
+      available.signal(); // alert any drainers
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Blocks for up to nanosTimeout for spans to appear. Then, consume as many as possible. */
+  @Override public int drainTo(SpanWithSizeConsumer<byte[]> consumer, long nanosTimeout) {
+    try {
+      // This may be called by multiple threads. If one is holding a lock, another is waiting. We
+      // use lockInterruptibly to ensure the one waiting can be interrupted.
+      lock.lockInterruptibly();
+      try {
+        long nanosLeft = nanosTimeout;
+        while (count == 0) {
+          if (nanosLeft <= 0) return 0;
+          nanosLeft = available.awaitNanos(nanosLeft);
+        }
+        return doDrain(consumer);
+      } finally {
+        lock.unlock();
+      }
+    } catch (InterruptedException e) {
+      return 0;
+    }
+  }
+
+  /** Clears the queue unconditionally and returns count of spans cleared. */
+  @Override public int clear() {
+    lock.lock();
+    try {
+      int result = count;
+      count = sizeInBytes = readPos = writePos = 0;
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public int count() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public int sizeInBytes() {
+    lock.lock();
+    try {
+      return sizeInBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int doDrain(SpanWithSizeConsumer<byte[]> consumer) {
+    int drainedCount = 0;
+    int drainedSizeInBytes = 0;
+    while (drainedCount < count) {
+      int nextSizeInBytes = readInt(readPos);
+      byte[] next = new byte[nextSizeInBytes];
+      read(advance(readPos, RECORD_HEADER), next);
+      if (!consumer.offer(next, nextSizeInBytes)) break;
+
+      drainedCount++;
+      drainedSizeInBytes += nextSizeInBytes;
+      readPos = advance(readPos, RECORD_HEADER + nextSizeInBytes);
+    }
+    count -= drainedCount;
+    sizeInBytes -= drainedSizeInBytes;
+    if (count == 0) readPos = writePos = 0; // keeps records contiguous when lightly loaded
+    return drainedCount;
+  }
+
+  int usedCapacity() {
+    return sizeInBytes + RECORD_HEADER * count;
+  }
+
+  /** Copies records in order into a larger ring, returning false if the record can never fit. */
+  boolean grow(int recordSize) {
+    int used = usedCapacity();
+    if ((long) used + recordSize > maxCapacity) return false;
+    int capacity = (int) Math.min(maxCapacity, Math.max(2L * ring.capacity(), used + recordSize));
+    ByteBuffer grown = allocate(capacity);
+    if (used > 0) {
+      int firstPart = Math.min(used, ring.capacity() - readPos);
+      grown.put(slice(readPos, firstPart));
+      if (firstPart < used) grown.put(slice(0, used - firstPart));
+    }
+    ring = grown;
+    readPos = 0;
+    writePos = used;
+    return true;
+  }
+
+  ByteBuffer slice(int pos, int length) {
+    ByteBuffer result = ring.duplicate();
+    result.limit(pos + length).position(pos);
+    return result;
+  }
+
+  int advance(int pos, int count) {
+    pos += count;
+    return pos >= ring.capacity() ? pos - ring.capacity() : pos;
+  }
+
+  void writeInt(int v) {
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      ring.put(writePos, (byte) (v >>> shift));
+      writePos = advance(writePos, 1);
+    }
+  }
+
+  int readInt(int pos) {
+    int result = 0;
+    for (int i = 0; i < RECORD_HEADER; i++) {
+      result = (result << 8) | (ring.get(pos) & 0xff);
+      pos = advance(pos, 1);
+    }
+    return result;
+  }
+
+  void write(byte[] v, int length) {
+    int firstPart = Math.min(length, ring.capacity() - writePos);
+    ByteBuffer target = ring.duplicate();
+    target.position(writePos);
+    target.put(v, 0, firstPart);
+    if (firstPart < length) {
+      target.position(0);
+      target.put(v, firstPart, length - firstPart);
+    }
+    writePos = advance(writePos, length);
+  }
+
+  void read(int pos, byte[] out) {
+    int firstPart = Math.min(out.length, ring.capacity() - pos);
+    ByteBuffer source = ring.duplicate();
+    source.position(pos);
+    source.get(out, 0, firstPart);
+    if (firstPart < out.length) {
+      source.position(0);
+      source.get(out, firstPart, out.length - firstPart);
+    }
+  }
+}
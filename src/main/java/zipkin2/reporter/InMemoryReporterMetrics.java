@@ -18,21 +18,31 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
-public final class InMemoryReporterMetrics implements ReporterMetrics {
+public final class InMemoryReporterMetrics implements DetailedReporterMetrics {
   enum MetricKey {
     messages,
     messageBytes,
     spans,
     spanBytes,
     spansDropped,
+    spansShed,
     spansPending,
-    spanBytesPending;
+    spanBytesPending,
+    spansSpilled,
+    spansReplayed,
+    spilledBytes,
+    messageTargetBytes,
+    messageRoundTripMicros,
+    uncompressedMessageBytes,
+    compressionMicros;
   }
 
   private final ConcurrentHashMap<MetricKey, AtomicLong> metrics =
       new ConcurrentHashMap<MetricKey, AtomicLong>();
   private final ConcurrentHashMap<Throwable, AtomicLong> messagesDropped =
       new ConcurrentHashMap<Throwable, AtomicLong>();
+  private final ConcurrentHashMap<SpanPriority, AtomicLong> spansDroppedByPriority =
+      new ConcurrentHashMap<SpanPriority, AtomicLong>();
 
   @Override public void incrementMessages() {
     increment(MetricKey.messages, 1);
@@ -95,6 +105,23 @@ public final class InMemoryReporterMetrics implements ReporterMetrics {
     return get(MetricKey.spansDropped);
   }
 
+  @Override public void incrementSpansDropped(SpanPriority priority, int quantity) {
+    increment(spansDroppedByPriority, priority, quantity);
+  }
+
+  public long spansDropped(SpanPriority priority) {
+    AtomicLong atomic = spansDroppedByPriority.get(priority);
+    return atomic == null ? 0 : atomic.get();
+  }
+
+  @Override public void incrementSpansShed(int quantity) {
+    increment(MetricKey.spansShed, quantity);
+  }
+
+  public long spansShed() {
+    return get(MetricKey.spansShed);
+  }
+
   @Override public void updateQueuedSpans(int update) {
     update(MetricKey.spansPending, update);
   }
@@ -111,8 +138,71 @@ public final class InMemoryReporterMetrics implements ReporterMetrics {
     return get(MetricKey.spanBytesPending);
   }
 
+  @Override public void incrementSpansSpilled(int quantity) {
+    increment(MetricKey.spansSpilled, quantity);
+  }
+
+  public long spansSpilled() {
+    return get(MetricKey.spansSpilled);
+  }
+
+  @Override public void incrementSpansReplayed(int quantity) {
+    increment(MetricKey.spansReplayed, quantity);
+  }
+
+  public long spansReplayed() {
+    return get(MetricKey.spansReplayed);
+  }
+
+  @Override public void updateSpilledBytes(int update) {
+    update(MetricKey.spilledBytes, update);
+  }
+
+  public long spilledBytes() {
+    return get(MetricKey.spilledBytes);
+  }
+
+  @Override public void updateMessageTargetBytes(int update) {
+    update(MetricKey.messageTargetBytes, update);
+  }
+
+  public long messageTargetBytes() {
+    return get(MetricKey.messageTargetBytes);
+  }
+
+  @Override public void updateMessageRoundTripMicros(int update) {
+    update(MetricKey.messageRoundTripMicros, update);
+  }
+
+  public long messageRoundTripMicros() {
+    return get(MetricKey.messageRoundTripMicros);
+  }
+
+  @Override public void incrementUncompressedMessageBytes(int quantity) {
+    increment(MetricKey.uncompressedMessageBytes, quantity);
+  }
+
+  public long uncompressedMessageBytes() {
+    return get(MetricKey.uncompressedMessageBytes);
+  }
+
+  /** Returns uncompressed message bytes over message bytes, or zero if nothing was compressed. */
+  public double compressionRatio() {
+    long uncompressed = uncompressedMessageBytes(), compressed = messageBytes();
+    return uncompressed == 0 || compressed == 0 ? 0 : (double) uncompressed / compressed;
+  }
+
+  @Override public void incrementCompressionMicros(int quantity) {
+    increment(MetricKey.compressionMicros, quantity);
+  }
+
+  public long compressionMicros() {
+    return get(MetricKey.compressionMicros);
+  }
+
   public void clear() {
     metrics.clear();
+    spansDroppedByPriority.clear();
   }
 
   private long get(MetricKey key) {
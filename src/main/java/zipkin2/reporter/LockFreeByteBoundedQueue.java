@@ -0,0 +1,227 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multi-producer, single-consumer queue that is bounded by both count and size.
+ *
+ * <p>Unlike {@link ByteBoundedQueue}, producers never take a lock. A producer first reserves
+ * capacity by compare-and-set on a single word holding both the count and the size in bytes, so
+ * both bounds are enforced atomically. Once capacity is reserved, the producer claims the next slot
+ * of a ring buffer and publishes its element with a volatile write.
+ *
+ * <p>The consumer reads slots in order, stopping at the first one not yet published. Consumers
+ * serialize on a lock that producers never touch, so a call to {@link AsyncReporter#flush()} can
+ * safely overlap the flush thread.
+ *
+ * <p>The ring and reservation design is similar to that of the LMAX Disruptor and JCTools
+ * MpscArrayQueue.
+ */
+final class LockFreeByteBoundedQueue<S> implements SpanQueue<S> {
+  static final int COUNT_SHIFT = 32;
+  static final long BYTES_MASK = 0xffffffffL;
+
+  // Only used to serialize consumers: producers never block
+  final ReentrantLock consumerLock = new ReentrantLock(false);
+
+  final int maxSize;
+  final int maxBytes;
+  final int mask;
+
+  final AtomicReferenceArray<S> elements;
+  final int[] sizesInBytes;
+
+  /** The upper 32 bits are the count of reserved spans, the lower are their size in bytes. */
+  final PaddedAtomicLong state = new PaddedAtomicLong();
+  final PaddedAtomicLong producerIndex = new PaddedAtomicLong();
+  // Only read or written while holding the consumer lock
+  long consumerIndex;
+  // If non-null, the consumer is parked waiting for a span to be published
+  volatile Thread waiter;
+
+  LockFreeByteBoundedQueue(int maxSize, int maxBytes) {
+    int capacity = roundToPowerOfTwo(Math.max(maxSize, 1));
+    this.elements = new AtomicReferenceArray<S>(capacity);
+    this.sizesInBytes = new int[capacity];
+    this.mask = capacity - 1;
+    this.maxSize = maxSize;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns true if the element could be added or false if it could not due to its size.
+   */
+  @Override public boolean offer(S next, int nextSizeInBytes) {
+    if (next == null) throw new NullPointerException("next == null");
+    if (nextSizeInBytes < 0) return false;
+
+    // Reserve capacity for both the count and size in bytes with a single compare-and-set.
+    long reservation = (1L << COUNT_SHIFT) + nextSizeInBytes;
+    while (true) {
+      long current = state.get();
+      if ((int) (current >>> COUNT_SHIFT) >= maxSize) return false;
+      if ((current & BYTES_MASK) + nextSizeInBytes > maxBytes) return false;
+      if (state.compareAndSet(current, current + reservation)) break;
+    }
+
+    // Capacity is reserved, so the slot we claim was already released by the consumer.
+    int offset = (int) producerIndex.getAndIncrement() & mask;
+    sizesInBytes[offset] = nextSizeInBytes;
+    // A volatile write publishes the size, too. An ordered (lazy) write could move after the
+    // read of waiter below, missing a consumer that set waiter and then re-checked the slot.
+    elements.set(offset, next);
+
+    Thread waiter = this.waiter;
+    if (waiter != null) LockSupport.unpark(waiter); // alert any drainers
+    return true;
+  }
+
+  /** Parks for up to nanosTimeout for spans to appear. Then, consume as many as possible. */
+  @Override public int drainTo(SpanWithSizeConsumer<S> consumer, long nanosTimeout) {
+    try {
+      // This may be called by multiple threads. We use lockInterruptibly to ensure the one waiting
+      // can be interrupted.
+      consumerLock.lockInterruptibly();
+      try {
+        if (!awaitPublished(nanosTimeout)) return 0;
+        return doDrain(consumer);
+      } finally {
+        consumerLock.unlock();
+      }
+    } catch (InterruptedException e) {
+      return 0;
+    }
+  }
+
+  /** Returns true if the next element is published within nanosTimeout. */
+  boolean awaitPublished(long nanosTimeout) throws InterruptedException {
+    if (elements.get((int) consumerIndex & mask) != null) return true;
+    if (nanosTimeout <= 0) return false;
+
+    long deadline = System.nanoTime() + nanosTimeout;
+    waiter = Thread.currentThread();
+    try {
+      while (true) {
+        // check after setting the waiter, so that we don't miss a producer's unpark
+        if (elements.get((int) consumerIndex & mask) != null) return true;
+        long nanosLeft = deadline - System.nanoTime();
+        if (nanosLeft <= 0) return false;
+        LockSupport.parkNanos(this, nanosLeft);
+        if (Thread.interrupted()) throw new InterruptedException();
+      }
+    } finally {
+      waiter = null;
+    }
+  }
+
+  /** Clears the queue unconditionally and returns count of spans cleared. */
+  @Override public int clear() {
+    consumerLock.lock();
+    try {
+      return doDrain(new SpanWithSizeConsumer<S>() {
+        @Override public boolean offer(S next, int nextSizeInBytes) {
+          return true;
+        }
+      });
+    } finally {
+      consumerLock.unlock();
+    }
+  }
+
+  @Override public int count() {
+    return (int) (state.get() >>> COUNT_SHIFT);
+  }
+
+  @Override public int sizeInBytes() {
+    return (int) (state.get() & BYTES_MASK);
+  }
+
+  /** Consumes published elements in order, without blocking producers. */
+  int doDrain(SpanWithSizeConsumer<S> consumer) {
+    int drainedCount = 0;
+    long drainedSizeInBytes = 0;
+    long index = consumerIndex;
+    while (true) {
+      int offset = (int) index & mask;
+      S next = elements.get(offset);
+      if (next == null) break; // not yet published
+
+      int nextSizeInBytes = sizesInBytes[offset];
+      if (!consumer.offer(next, nextSizeInBytes)) break;
+
+      elements.lazySet(offset, null);
+      index++;
+      drainedCount++;
+      drainedSizeInBytes += nextSizeInBytes;
+    }
+    consumerIndex = index;
+    // Release capacity only after slots are cleared, so producers never overwrite a live slot
+    if (drainedCount > 0) {
+      state.addAndGet(-(((long) drainedCount << COUNT_SHIFT) + drainedSizeInBytes));
+    }
+    return drainedCount;
+  }
+
+  static int roundToPowerOfTwo(int value) {
+    int result = Integer.highestOneBit(value);
+    if (result == value) return result;
+    if (result == 1 << 30) throw new IllegalArgumentException("capacity too large: " + value);
+    return result << 1;
+  }
+
+  /**
+   * Pads the value on both sides so that producers contending on it don't falsely share a cache
+   * line with neighbouring fields. Fields of a subclass are laid out after those of its superclass,
+   * so the value is declared in the middle of a three-class hierarchy. This doesn't extend {@link
+   * AtomicLong}, as the value of a subclass of that could only be padded after.
+   */
+  @SuppressWarnings("unused")
+  static final class PaddedAtomicLong extends PaddedValue {
+    static final AtomicLongFieldUpdater<PaddedValue> VALUE =
+        AtomicLongFieldUpdater.newUpdater(PaddedValue.class, "value");
+
+    long p9, p10, p11, p12, p13, p14, p15;
+
+    long get() {
+      return value;
+    }
+
+    boolean compareAndSet(long expect, long update) {
+      return VALUE.compareAndSet(this, expect, update);
+    }
+
+    long getAndIncrement() {
+      return VALUE.getAndIncrement(this);
+    }
+
+    long addAndGet(long delta) {
+      return VALUE.addAndGet(this, delta);
+    }
+  }
+
+  abstract static class PaddedValue extends PadBefore {
+    volatile long value;
+  }
+
+  @SuppressWarnings("unused")
+  abstract static class PadBefore {
+    long p1, p2, p3, p4, p5, p6, p7;
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles buffers that hold an encoded message, so that a full message costs no allocation once
+ * the pool is warm. Each buffer is {@link Sender#messageMaxBytes() message max bytes} long, so any
+ * message accepted by {@link BufferNextMessage} fits.
+ *
+ * <p>When direct, all pooled buffers are slices of one off-heap slab allocated up-front, as direct
+ * memory is expensive to allocate and only freed by GC. Should the pool run dry, heap buffers are
+ * used until a slice is released.
+ */
+final class MessageBufferPool {
+  final int bufferSize;
+  final int maxPooled;
+  final boolean direct;
+  final ConcurrentLinkedQueue<ByteBuffer> pooled = new ConcurrentLinkedQueue<ByteBuffer>();
+  final AtomicInteger pooledCount = new AtomicInteger();
+
+  MessageBufferPool(int bufferSize, int maxPooled, boolean direct) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+    this.direct = direct;
+    if (!direct) return;
+    if ((long) bufferSize * maxPooled > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "direct buffers too large: " + maxPooled + " x " + bufferSize + " bytes");
+    }
+    ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * maxPooled);
+    for (int i = 0; i < maxPooled; i++) {
+      slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+      pooled.offer(slab.slice());
+    }
+    pooledCount.set(maxPooled);
+  }
+
+  /** Returns a cleared, pooled buffer, or allocates one if none are available. */
+  ByteBuffer acquire() {
+    ByteBuffer result = pooled.poll();
+    if (result == null) return ByteBuffer.allocate(bufferSize);
+    pooledCount.decrementAndGet();
+    result.clear();
+    return result;
+  }
+
+  /** Call once the message is no longer needed. Buffers in excess of the max are left to GC. */
+  void release(ByteBuffer buffer) {
+    if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) return;
+    if (pooledCount.incrementAndGet() > maxPooled) {
+      pooledCount.decrementAndGet();
+      return;
+    }
+    pooled.offer(buffer);
+  }
+}
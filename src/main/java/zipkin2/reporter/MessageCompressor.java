@@ -0,0 +1,183 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses encoded messages according to {@link Sender#compression()}, and estimates how large a
+ * message will be once compressed.
+ *
+ * <p>Deflaters hold native memory and are costly to create, so they are pooled. Usually, only the
+ * flush thread compresses, so there is one in the pool. An external call to {@link
+ * AsyncReporter#flush()} may need another.
+ */
+final class MessageCompressor {
+  /** Messages are bundled uncompressed up to this multiple of the maximum message size. */
+  static final int MAX_RATIO = 8;
+  /** Upper bound of the size of a message before compression, regardless of ratio. */
+  static final int MAX_UNCOMPRESSED_BYTES = 16 * 1024 * 1024;
+  /** Estimates are padded by this fraction, to reduce retries when data compresses worse. */
+  static final float ESTIMATE_PADDING = 1.1f;
+  static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+  static final int GZIP_TRAILER = 8; // CRC32 and size of the input, little endian
+  static final int ZLIB_OVERHEAD = 6; // 2 byte header and an Adler-32 trailer
+  static final int MAX_POOLED = 2;
+
+  final Compression compression;
+  final int maxBytes, maxUncompressedBytes, overhead;
+  final DetailedReporterMetrics metrics;
+  final ConcurrentLinkedQueue<PooledDeflater> pool = new ConcurrentLinkedQueue<PooledDeflater>();
+  /** Holds uncompressed messages until they are compressed into a pooled message buffer. */
+  final MessageBufferPool uncompressedPool;
+
+  // compressed size over uncompressed, as a moving average of recent messages
+  volatile float ratio = 1f;
+
+  MessageCompressor(Compression compression, int maxBytes, DetailedReporterMetrics metrics) {
+    if (compression == Compression.NONE) throw new IllegalArgumentException("compression == NONE");
+    this.compression = compression;
+    this.maxBytes = maxBytes;
+    this.maxUncompressedBytes =
+        (int) Math.max(maxBytes, Math.min((long) maxBytes * MAX_RATIO, MAX_UNCOMPRESSED_BYTES));
+    this.overhead = compression == Compression.GZIP
+        ? GZIP_HEADER.length + GZIP_TRAILER
+        : ZLIB_OVERHEAD;
+    this.metrics = metrics;
+    this.uncompressedPool = new MessageBufferPool(maxUncompressedBytes, MAX_POOLED, false);
+  }
+
+  /** Estimates the size of a message after compression, based on recent messages. */
+  int estimateSizeInBytes(int uncompressedSizeInBytes) {
+    long estimate = overhead + (long) Math.ceil(uncompressedSizeInBytes * ratio * ESTIMATE_PADDING);
+    return (int) Math.min(estimate, Integer.MAX_VALUE);
+  }
+
+  /** Returns a cleared heap buffer of {@link #maxUncompressedBytes}. */
+  ByteBuffer acquireUncompressed() {
+    return uncompressedPool.acquire();
+  }
+
+  void releaseUncompressed(ByteBuffer buffer) {
+    uncompressedPool.release(buffer);
+  }
+
+  /**
+   * Compresses the remaining bytes of the heap buffer into the output buffer, which is advanced.
+   * Returns false if the compressed message doesn't fit within {@link #maxBytes}, in which case
+   * the output buffer is undefined.
+   */
+  boolean compress(ByteBuffer uncompressed, ByteBuffer out) {
+    long startNanos = System.nanoTime();
+    int start = out.position(), length = uncompressed.remaining();
+    if (out.remaining() > maxBytes) out.limit(start + maxBytes);
+
+    PooledDeflater pooled = acquire();
+    boolean compressed;
+    try {
+      compressed = compress(pooled, uncompressed, out);
+    } finally {
+      release(pooled);
+      long elapsedMicros = (System.nanoTime() - startNanos) / 1000;
+      metrics.incrementCompressionMicros((int) Math.min(elapsedMicros, Integer.MAX_VALUE));
+    }
+
+    if (!compressed) { // we only know the message compressed worse than would fit
+      ratio = Math.max(ratio, (float) maxBytes / length);
+      return false;
+    }
+    int compressedSize = out.position() - start;
+    float lastRatio = length == 0 ? 1f : (float) compressedSize / length;
+    ratio += (lastRatio - ratio) / 4; // weight the last message by a quarter
+    metrics.incrementUncompressedMessageBytes(length);
+    metrics.incrementMessageBytes(compressedSize);
+    return true;
+  }
+
+  boolean compress(PooledDeflater pooled, ByteBuffer uncompressed, ByteBuffer out) {
+    byte[] input = uncompressed.array();
+    int offset = uncompressed.arrayOffset() + uncompressed.position();
+    int length = uncompressed.remaining();
+    pooled.deflater.setInput(input, offset, length);
+    pooled.deflater.finish();
+    if (compression == Compression.GZIP) {
+      if (out.remaining() < GZIP_HEADER.length) return false;
+      out.put(GZIP_HEADER);
+    }
+    if (!deflate(pooled, out)) return false;
+    if (compression == Compression.GZIP) {
+      if (out.remaining() < GZIP_TRAILER) return false;
+      pooled.crc.update(input, offset, length);
+      out.order(ByteOrder.LITTLE_ENDIAN);
+      out.putInt((int) pooled.crc.getValue()).putInt(length);
+      out.order(ByteOrder.BIG_ENDIAN);
+    }
+    return true;
+  }
+
+  /** Deflates into the buffer until finished. Returns false if there wasn't room. */
+  static boolean deflate(PooledDeflater pooled, ByteBuffer out) {
+    Deflater deflater = pooled.deflater;
+    if (out.hasArray()) {
+      byte[] array = out.array();
+      int offset = out.arrayOffset();
+      while (!deflater.finished()) {
+        if (!out.hasRemaining()) return false;
+        int position = out.position();
+        out.position(position + deflater.deflate(array, offset + position, out.remaining()));
+      }
+      return true;
+    }
+    // Deflater only writes to arrays, so stage output for direct buffers
+    if (pooled.chunk == null) pooled.chunk = new byte[8192];
+    byte[] chunk = pooled.chunk;
+    while (!deflater.finished()) {
+      if (!out.hasRemaining()) return false;
+      int length = deflater.deflate(chunk, 0, Math.min(chunk.length, out.remaining()));
+      out.put(chunk, 0, length);
+    }
+    return true;
+  }
+
+  PooledDeflater acquire() {
+    PooledDeflater result = pool.poll();
+    if (result != null) return result;
+    // gzip frames raw deflate data itself, while zlib framing is done by the deflater
+    return new PooledDeflater(new Deflater(Deflater.BEST_SPEED, compression == Compression.GZIP));
+  }
+
+  void release(PooledDeflater pooled) {
+    pooled.deflater.reset();
+    pooled.crc.reset();
+    if (pool.size() < MAX_POOLED) {
+      pool.offer(pooled);
+    } else {
+      pooled.deflater.end(); // release native memory now, as opposed to on finalization
+    }
+  }
+
+  static final class PooledDeflater {
+    final Deflater deflater;
+    final CRC32 crc = new CRC32();
+    byte[] chunk; // lazily allocated when compressing into a direct buffer
+
+    PooledDeflater(Deflater deflater) {
+      this.deflater = deflater;
+    }
+  }
+}
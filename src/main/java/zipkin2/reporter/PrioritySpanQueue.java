@@ -0,0 +1,191 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Like {@link ByteBoundedQueue}, except spans of {@link SpanPriority#HIGH high priority} are kept
+ * in preference to routine ones.
+ *
+ * <p>Each priority has its own ring and budget. Routine spans can use at most three quarters of
+ * the count and size bounds, which reserves room for high priority spans. High priority spans can
+ * use the whole queue, evicting the oldest routine spans when full. They are also drained first.
+ */
+final class PrioritySpanQueue<S> implements SpanQueue<S> {
+  static final int ROUTINE_QUARTERS = 3;
+
+  final ReentrantLock lock = new ReentrantLock(false);
+  final Condition available = lock.newCondition();
+
+  final int maxSize;
+  final int maxBytes;
+  final DetailedReporterMetrics metrics;
+  final Ring<S> high, routine;
+
+  PrioritySpanQueue(int maxSize, int maxBytes, DetailedReporterMetrics metrics) {
+    this.maxSize = maxSize;
+    this.maxBytes = maxBytes;
+    this.metrics = metrics;
+    this.high = new Ring<S>(maxSize, maxBytes);
+    this.routine = new Ring<S>(Math.max(1, (int) ((long) maxSize * ROUTINE_QUARTERS / 4)),
+        (int) ((long) maxBytes * ROUTINE_QUARTERS / 4));
+  }
+
+  /** Offers the span as {@link SpanPriority#ROUTINE routine}. */
+  @Override public boolean offer(S next, int nextSizeInBytes) {
+    return offer(next, nextSizeInBytes, SpanPriority.ROUTINE);
+  }
+
+  /**
+   * Returns true if the element could be added or false if it could not due to its size. Routine
+   * spans evicted to make room are counted as dropped.
+   */
+  boolean offer(S next, int nextSizeInBytes, SpanPriority priority) {
+    int evicted = 0;
+    lock.lock();
+    try {
+      if (priority == SpanPriority.ROUTINE) {
+        if (!fits(nextSizeInBytes) || !routine.fits(nextSizeInBytes)) return false;
+        routine.add(next, nextSizeInBytes);
+      } else {
+        if (!high.fits(nextSizeInBytes)) return false;
+        while (!fits(nextSizeInBytes) && routine.count > 0) {
+          routine.removeFirst();
+          evicted++;
+        }
+        if (!fits(nextSizeInBytes)) return false;
+        high.add(next, nextSizeInBytes);
+      }
+      available.signal(); // alert any drainers
+      return true;
+    } finally {
+      lock.unlock();
+      if (evicted > 0) {
+        metrics.incrementSpansDropped(evicted);
+        metrics.incrementSpansDropped(SpanPriority.ROUTINE, evicted);
+      }
+    }
+  }
+
+  boolean fits(int nextSizeInBytes) {
+    return high.count + routine.count < maxSize
+        && high.sizeInBytes + routine.sizeInBytes + nextSizeInBytes <= maxBytes;
+  }
+
+  /** Blocks for up to nanosTimeout for spans to appear. Then, consume as many as possible. */
+  @Override public int drainTo(SpanWithSizeConsumer<S> consumer, long nanosTimeout) {
+    try {
+      // This may be called by multiple threads. If one is holding a lock, another is waiting. We
+      // use lockInterruptibly to ensure the one waiting can be interrupted.
+      lock.lockInterruptibly();
+      try {
+        long nanosLeft = nanosTimeout;
+        while (high.count + routine.count == 0) {
+          if (nanosLeft <= 0) return 0;
+          nanosLeft = available.awaitNanos(nanosLeft);
+        }
+        int result = high.drainTo(consumer);
+        if (high.count == 0) result += routine.drainTo(consumer);
+        return result;
+      } finally {
+        lock.unlock();
+      }
+    } catch (InterruptedException e) {
+      return 0;
+    }
+  }
+
+  /** Clears the queue unconditionally and returns count of spans cleared. */
+  @Override public int clear() {
+    lock.lock();
+    try {
+      return high.clear() + routine.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public int count() {
+    lock.lock();
+    try {
+      return high.count + routine.count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public int sizeInBytes() {
+    lock.lock();
+    try {
+      return high.sizeInBytes + routine.sizeInBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** A circular array of spans bounded by count and size. Guarded by the queue's lock. */
+  static final class Ring<S> {
+    final S[] elements;
+    final int[] sizesInBytes;
+    final int maxBytes;
+    int count;
+    int sizeInBytes;
+    int writePos;
+    int readPos;
+
+    @SuppressWarnings("unchecked") Ring(int maxSize, int maxBytes) {
+      this.elements = (S[]) new Object[maxSize];
+      this.sizesInBytes = new int[maxSize];
+      this.maxBytes = maxBytes;
+    }
+
+    boolean fits(int nextSizeInBytes) {
+      return count < elements.length && sizeInBytes + nextSizeInBytes <= maxBytes;
+    }
+
+    void add(S next, int nextSizeInBytes) {
+      elements[writePos] = next;
+      sizesInBytes[writePos++] = nextSizeInBytes;
+      if (writePos == elements.length) writePos = 0; // circle back to the front of the array
+      count++;
+      sizeInBytes += nextSizeInBytes;
+    }
+
+    void removeFirst() {
+      elements[readPos] = null;
+      sizeInBytes -= sizesInBytes[readPos];
+      if (++readPos == elements.length) readPos = 0;
+      count--;
+    }
+
+    int drainTo(SpanWithSizeConsumer<S> consumer) {
+      int drainedCount = 0;
+      while (count > 0 && consumer.offer(elements[readPos], sizesInBytes[readPos])) {
+        removeFirst();
+        drainedCount++;
+      }
+      return drainedCount;
+    }
+
+    int clear() {
+      int result = count;
+      count = sizeInBytes = readPos = writePos = 0;
+      Arrays.fill(elements, null);
+      return result;
+    }
+  }
+}
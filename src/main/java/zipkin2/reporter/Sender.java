@@ -13,6 +13,7 @@
  */
 package zipkin2.reporter;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import zipkin2.Call;
@@ -51,6 +52,8 @@ public abstract class Sender extends Component {
   /**
    * Maximum bytes sendable per message including overhead. This can be calculated using {@link
    * #messageSizeInBytes(List)}
+   *
+   * <p>When {@link #compression()} is used, this bounds the size of the compressed message.
    */
   public abstract int messageMaxBytes();
 
@@ -84,4 +87,68 @@ public abstract class Sender extends Component {
    * @throws IllegalStateException if {@link #close() close} was called.
    */
   public abstract Call<Void> sendSpans(List<byte[]> encodedSpans);
+
+  /**
+   * Returns true if this sender implements {@link #sendMessage(byte[], int, int)}. Defaults to
+   * false.
+   *
+   * <p>Only return true when the message overhead of this sender is the list overhead of its
+   * {@link #encoding() encoding}. For example, a json sender that posts the list as-is.
+   */
+  public boolean supportsMessages() {
+    return false;
+  }
+
+  /**
+   * Returns the compression {@link AsyncReporter} should apply to messages passed to {@link
+   * #sendMessage(ByteBuffer)}. Defaults to {@link Compression#NONE}. Ignored unless {@link
+   * #supportsMessages()} is true.
+   *
+   * <p>Compression is done on the reporter's flush thread, so that a message can bundle more spans
+   * than would fit uncompressed, while staying under {@link #messageMaxBytes()}. Implementations
+   * send the message as-is, but label it accordingly. For example, an http sender would add the
+   * header "Content-Encoding" with the value {@link Compression#contentEncoding()}.
+   */
+  public Compression compression() {
+    return Compression.NONE;
+  }
+
+  /**
+   * Like {@link #sendSpans(List)}, except the spans are already framed into a message according to
+   * {@link #encoding()}. For example, in json this is a list of spans enclosed in brackets.
+   *
+   * <p>This allows a reporter to encode spans directly into a reused buffer. As the caller reuses
+   * the array once the call completes, implementations must not retain it after that.
+   *
+   * @param message array holding the encoded message, possibly larger than the message.
+   * @param offset index of the first byte of the message
+   * @param length count of bytes in the message
+   * @throws IllegalStateException if {@link #close() close} was called.
+   * @throws UnsupportedOperationException unless {@link #supportsMessages()} is true.
+   */
+  public Call<Void> sendMessage(byte[] message, int offset, int length) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't send messages");
+  }
+
+  /**
+   * Like {@link #sendMessage(byte[], int, int)}, except the message is the remaining bytes of the
+   * buffer, which is direct when {@link AsyncReporter.Builder#directBuffers(boolean)} is set. NIO
+   * senders can override this to write the buffer without a heap copy, for example as part of a
+   * gathering write that also includes their own framing.
+   *
+   * <p>The default implementation passes a heap buffer's array as-is, and otherwise copies the
+   * message into an array. The same rules about not retaining the message apply.
+   *
+   * @throws IllegalStateException if {@link #close() close} was called.
+   * @throws UnsupportedOperationException unless {@link #supportsMessages()} is true.
+   */
+  public Call<Void> sendMessage(ByteBuffer message) {
+    if (message.hasArray()) {
+      return sendMessage(message.array(), message.arrayOffset() + message.position(),
+          message.remaining());
+    }
+    byte[] copy = new byte[message.remaining()];
+    message.duplicate().get(copy);
+    return sendMessage(copy, 0, copy.length);
+  }
 }
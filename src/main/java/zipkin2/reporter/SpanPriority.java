@@ -0,0 +1,37 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import zipkin2.Span;
+
+/**
+ * When {@link AsyncReporter.Builder#prioritizeSpans(boolean) prioritizing}, spans are queued
+ * according to how valuable they are when the reporter is overloaded.
+ */
+public enum SpanPriority {
+  /** Debug spans, spans tagged "error" and root server spans. Kept in preference to routine. */
+  HIGH,
+  /** All other spans, such as child spans that completed normally. */
+  ROUTINE;
+
+  /** Only {@link Span zipkin2.Span} can be classified. Other types are routine. */
+  static SpanPriority classify(Object span) {
+    if (!(span instanceof Span)) return ROUTINE;
+    Span s = (Span) span;
+    if (Boolean.TRUE.equals(s.debug())) return HIGH;
+    if (s.tags().containsKey("error")) return HIGH;
+    if (s.parentId() == null && s.kind() == Span.Kind.SERVER) return HIGH;
+    return ROUTINE;
+  }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+/**
+ * Spans reported, but not yet bundled into a message. Implementations are bounded by both count and
+ * size in bytes, and are safe for concurrent {@link #offer(Object, int) offers}.
+ */
+interface SpanQueue<S> extends SpanWithSizeConsumer<S> {
+
+  /** Blocks for up to nanosTimeout for spans to appear. Then, consume as many as possible. */
+  int drainTo(SpanWithSizeConsumer<S> consumer, long nanosTimeout);
+
+  /** Clears the queue unconditionally and returns count of spans cleared. */
+  int clear();
+
+  /** Returns the count of spans pending. This is a snapshot, intended for metrics. */
+  int count();
+
+  /** Returns the encoded size of spans pending. This is a snapshot, intended for metrics. */
+  int sizeInBytes();
+}
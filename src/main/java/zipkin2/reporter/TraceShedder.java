@@ -0,0 +1,78 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.concurrent.TimeUnit;
+import zipkin2.Span;
+
+/**
+ * Sheds whole traces when the queue is filling up, as dropping random spans leaves every trace
+ * incomplete.
+ *
+ * <p>Trace IDs are hashed into one of {@link #LEVELS} buckets, and spans in buckets below the shed
+ * level are dropped. As the decision only depends on the trace ID and the level, all spans of a
+ * trace reported at the same level are kept or shed together. To keep levels stable across the
+ * lifetime of most traces, the flush thread changes the level at most every {@link
+ * #ADJUST_INTERVAL_NANOS}: up two while the queue is above the high-water mark, and down one while
+ * it is below half that. The level stops short of {@link #LEVELS}, so that the traces in the top
+ * bucket are always kept.
+ *
+ * <p>Debug spans are never shed, as debug is a property of the whole trace.
+ */
+final class TraceShedder {
+  static final int LEVELS = 16;
+  static final long ADJUST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  final float highWaterMark, lowWaterMark;
+  volatile int level; // spans of traces in buckets below this are shed
+  long lastAdjustNanoTime; // guarded by this
+
+  TraceShedder(float highWaterMark) {
+    this.highWaterMark = highWaterMark;
+    this.lowWaterMark = highWaterMark / 2;
+    this.lastAdjustNanoTime = System.nanoTime() - ADJUST_INTERVAL_NANOS;
+  }
+
+  /** Returns true if the span should be dropped, as its trace is being shed. */
+  boolean shed(Object span) {
+    int level = this.level;
+    if (level == 0 || !(span instanceof Span)) return false;
+    Span s = (Span) span;
+    if (Boolean.TRUE.equals(s.debug())) return false;
+    return bucket(s.traceId()) < level;
+  }
+
+  /** String hash codes are cached, and the same across processes. */
+  static int bucket(String traceId) {
+    // spread the hash with a multiplicative (Fibonacci) hash, then take the top bits
+    return (int) ((traceId.hashCode() * 0x9E3779B97F4A7C15L) >>> 60);
+  }
+
+  /** Call after draining the queue, with its current size and bounds. */
+  synchronized void update(int count, int maxCount, int sizeInBytes, int maxBytes) {
+    long now = System.nanoTime();
+    if (now - lastAdjustNanoTime < ADJUST_INTERVAL_NANOS) return;
+
+    float fullness = Math.max((float) count / maxCount, (float) sizeInBytes / maxBytes);
+    int level = this.level;
+    if (fullness > highWaterMark) {
+      level = Math.min(level + 2, LEVELS - 1);
+    } else if (fullness < lowWaterMark) {
+      level = Math.max(level - 1, 0);
+    }
+    if (level == this.level) return;
+    this.level = level;
+    lastAdjustNanoTime = now;
+  }
+}
@@ -0,0 +1,101 @@
+package brave.httpclient;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.ExtraFieldPropagation;
+import brave.propagation.HeaderBatch;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TracingMainExecTest {
+  Propagation.Factory factory = ExtraFieldPropagation.newFactoryBuilder(B3Propagation.FACTORY)
+      .addPrefixedFields("baggage-", Arrays.asList("country-code", "user-id"))
+      .build();
+  TraceContext.Injector<HttpRequestWrapper> injector =
+      HeaderBatch.injector(factory.create(Propagation.KeyFactory.STRING), TracingMainExec.WRITER);
+  TraceContext context = factory.decorate(
+      TraceContext.newBuilder().traceId(5L).spanId(6L).sampled(true).build());
+  HttpRequestWrapper request = HttpRequestWrapper.wrap(new HttpGet("http://localhost/"));
+
+  @Test public void addsHeaders() {
+    injector.inject(context, request);
+
+    assertEquals(Arrays.asList(
+        "X-B3-TraceId=0000000000000005",
+        "X-B3-SpanId=0000000000000006",
+        "X-B3-Sampled=1"
+    ), headers());
+  }
+
+  /** Stale values are removed regardless of case, and only the new ones remain */
+  @Test public void replacesHeaders_ignoringCase() {
+    request.addHeader("x-b3-traceid", "0000000000000001");
+    request.addHeader("X-B3-SPANID", "0000000000000002");
+    request.addHeader("X-B3-Sampled", "0");
+
+    injector.inject(context, request);
+
+    assertEquals(Arrays.asList(
+        "X-B3-TraceId=0000000000000005",
+        "X-B3-SpanId=0000000000000006",
+        "X-B3-Sampled=1"
+    ), headers());
+  }
+
+  /** Each copy of a duplicated header is removed, not just the first */
+  @Test public void replacesDuplicateHeaders() {
+    request.addHeader("X-B3-TraceId", "0000000000000001");
+    request.addHeader("Accept", "*/*");
+    request.addHeader("x-b3-traceid", "0000000000000002");
+
+    injector.inject(context, request);
+
+    assertEquals(Arrays.asList(
+        "Accept=*/*",
+        "X-B3-TraceId=0000000000000005",
+        "X-B3-SpanId=0000000000000006",
+        "X-B3-Sampled=1"
+    ), headers());
+  }
+
+  /**
+   * Headers the propagation doesn't set this time are left alone, even if they are propagation
+   * keys, as the application could have added them itself.
+   */
+  @Test public void leavesOtherHeadersAlone() {
+    request.addHeader("Accept", "*/*");
+    request.addHeader("X-B3-ParentSpanId", "0000000000000001"); // no parent in this context
+    request.addHeader("baggage-user-id", "bob"); // not set in this context
+    request.addHeader("Host", "localhost");
+    ExtraFieldPropagation.set(context, "country-code", "FO");
+
+    injector.inject(context, request);
+
+    assertEquals(Arrays.asList(
+        "Accept=*/*",
+        "X-B3-ParentSpanId=0000000000000001",
+        "baggage-user-id=bob",
+        "Host=localhost",
+        "X-B3-TraceId=0000000000000005",
+        "X-B3-SpanId=0000000000000006",
+        "X-B3-Sampled=1",
+        "baggage-country-code=FO"
+    ), headers());
+  }
+
+  List<String> headers() {
+    List<String> result = new ArrayList<String>();
+    for (Header header : request.getAllHeaders()) {
+      result.add(header.getName() + "=" + header.getValue());
+    }
+    return result;
+  }
+}
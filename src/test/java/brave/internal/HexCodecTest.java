@@ -0,0 +1,133 @@
+package brave.internal;
+
+import java.util.Random;
+import org.junit.Test;
+
+import static brave.internal.HexCodec.lenientLowerHexToUnsignedLong;
+import static brave.internal.HexCodec.lowerHexToUnsignedLong;
+import static brave.internal.HexCodec.toLowerHex;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HexCodecTest {
+  /** Characters either side of each lower-hex range, and some which alias it outside ASCII. */
+  static final char[] EDGE_CHARS = {'/', '0', '9', ':', '`', 'a', 'f', 'g', 'A', 'F', '@', ' ',
+      '\0', '\u007f', '\u0080', '\u00ff', '\u0130', '\u0161', '\uff10', '\uffff'};
+
+  Random random = new Random(1);
+
+  @Test public void lowerHexToUnsignedLong_examples() {
+    assertEquals(0x463ac35c9f6413adL, lowerHexToUnsignedLong("463ac35c9f6413ad"));
+    assertEquals(0x463ac35c9f6413adL, lowerHexToUnsignedLong("48485a3953bb6124463ac35c9f6413ad"));
+    assertEquals(0xffffffffffffffffL, lowerHexToUnsignedLong("ffffffffffffffff"));
+    assertEquals(1L, lowerHexToUnsignedLong("1"));
+    assertEquals(0xabcL, lowerHexToUnsignedLong("abc"));
+  }
+
+  @Test public void lowerHexToUnsignedLong_rejectsMalformed() {
+    String[] inputs = {"", "463ac35c9f6413aD", "463ac35c9f6413a-", "0x463ac35c9f641",
+        "48485a3953bb6124463ac35c9f6413ad0", "0000000000000000"};
+    for (String input : inputs) {
+      try {
+        lowerHexToUnsignedLong(input);
+        fail("accepted " + input);
+      } catch (NumberFormatException expected) {
+      }
+    }
+  }
+
+  /** Every character at every position of a 16 character ID, against a simple loop. */
+  @Test public void lenient_singleCharacterMutations() {
+    char[] chars = toLowerHex(0x463ac35c9f6413adL).toCharArray();
+    for (int pos = 0; pos < 16; pos++) {
+      char original = chars[pos];
+      for (char c = 0; c < 0x400; c++) {
+        chars[pos] = c;
+        assertDecodesLikeLoop(new String(chars));
+      }
+      for (char c : EDGE_CHARS) {
+        chars[pos] = c;
+        assertDecodesLikeLoop(new String(chars));
+      }
+      chars[pos] = original;
+    }
+  }
+
+  /** Random strings of every length, biased towards valid hex so some of them parse. */
+  @Test public void lenient_randomInput() {
+    for (int i = 0; i < 100000; i++) {
+      char[] chars = new char[1 + random.nextInt(32)];
+      boolean mostlyValid = random.nextBoolean();
+      for (int j = 0; j < chars.length; j++) {
+        if (mostlyValid && random.nextInt(64) != 0) {
+          chars[j] = HexCodec.HEX_DIGITS[random.nextInt(16)];
+        } else {
+          chars[j] = random.nextBoolean()
+              ? EDGE_CHARS[random.nextInt(EDGE_CHARS.length)]
+              : (char) random.nextInt(0x10000);
+        }
+      }
+      assertDecodesLikeLoop(new String(chars));
+    }
+  }
+
+  @Test public void lenient_range() {
+    String line = "x-b3-traceid: 463ac35c9f6413ad\r\n";
+
+    assertEquals(0x463ac35c9f6413adL, lenientLowerHexToUnsignedLong(line, 14, 30));
+    assertEquals(0x463aL, lenientLowerHexToUnsignedLong(line, 14, 18));
+    assertEquals(0L, lenientLowerHexToUnsignedLong(line, 13, 29));
+  }
+
+  @Test public void toLowerHex_matchesLongToHexString() {
+    for (int i = 0; i < 10000; i++) {
+      long v = random.nextLong() >>> random.nextInt(64);
+      String hex = Long.toHexString(v);
+      while (hex.length() < 16) hex = "0" + hex;
+
+      assertEquals(hex, toLowerHex(v));
+      if (v == 0) continue;
+      assertEquals(hex + hex, toLowerHex(v, v));
+      assertEquals(v, lowerHexToUnsignedLong(hex));
+    }
+    assertEquals(16, toLowerHex(0L, 1L).length());
+  }
+
+  @Test public void writeHexByte() {
+    char[] data = new char[2];
+    for (int b = 0; b < 256; b++) {
+      HexCodec.writeHexByte(data, 0, (byte) b);
+      assertEquals(String.format("%02x", b), new String(data));
+    }
+  }
+
+  static void assertDecodesLikeLoop(String input) {
+    for (int length = 1, max = Math.min(16, input.length()); length <= max; length++) {
+      String message = input.substring(0, length);
+      assertEquals(message, simpleDecode(input, 0, length),
+          lenientLowerHexToUnsignedLong(input, 0, length));
+    }
+    if (input.length() >= 16) {
+      int index = input.length() - 16;
+      assertEquals(input, simpleDecode(input, index, input.length()),
+          lenientLowerHexToUnsignedLong(input, index, input.length()));
+    }
+  }
+
+  /** The obvious implementation, returning zero on any character that isn't lower-hex. */
+  static long simpleDecode(CharSequence lowerHex, int index, int endIndex) {
+    long result = 0;
+    for (int i = index; i < endIndex; i++) {
+      char c = lowerHex.charAt(i);
+      result <<= 4;
+      if (c >= '0' && c <= '9') {
+        result |= c - '0';
+      } else if (c >= 'a' && c <= 'f') {
+        result |= c - 'a' + 10;
+      } else {
+        return 0;
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,151 @@
+package brave.internal.recorder;
+
+import brave.Clock;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import zipkin2.Endpoint;
+import zipkin2.reporter.Reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MutableSpanTest {
+  static final Clock CLOCK = new Clock() {
+    @Override public long currentTimeMicroseconds() {
+      return 1L;
+    }
+  };
+  static final Endpoint ENDPOINT = Endpoint.newBuilder().serviceName("favistar").build();
+
+  TraceContext context1 = TraceContext.newBuilder().traceId(1L).spanId(1L).build();
+  TraceContext context2 = TraceContext.newBuilder().traceId(2L).spanId(2L).build();
+  MutableSpan span = new MutableSpan(CLOCK, context1, ENDPOINT);
+
+  @Test public void finish_ignoresLaterMutations() {
+    int generation = span.generation(context1);
+    span.tag(generation, "a", "1");
+
+    assertEquals("1", span.finish(2L).tags().get("a"));
+    span.tag(generation, "b", "2");
+    assertNull(span.finish(3L));
+    assertNull(span.toSpan());
+  }
+
+  /** A pooled span stays finished, so a writer holding it still can't claim it */
+  @Test public void recycle_staysFinished() {
+    int generation = span.generation(context1);
+    span.finish(2L);
+
+    span.recycle();
+
+    span.tag(generation, "a", "1");
+    assertNull(span.toSpan());
+  }
+
+  /** An abandoned span isn't finished, but must be once it is recycled */
+  @Test public void recycle_abandoned() {
+    int generation = span.generation(context1);
+
+    span.recycle();
+
+    span.tag(generation, "a", "1");
+    assertNull(span.toSpan());
+  }
+
+  @Test public void reset_incrementsGeneration() {
+    int generation = span.generation(context1);
+    span.finish(2L);
+    span.recycle();
+
+    span.reset(CLOCK, context2, ENDPOINT);
+
+    assertEquals(MutableSpan.STALE, span.generation(context1));
+    assertEquals(generation + 1, span.generation(context2));
+    span.tag(generation, "stale", "1"); // dropped
+    span.tag(span.generation(context2), "a", "2");
+
+    zipkin2.Span result = span.finish(3L);
+    assertEquals(context2.spanIdString(), result.id());
+    assertEquals(1, result.tags().size());
+    assertEquals("2", result.tags().get("a"));
+  }
+
+  @Test public void generation_neverStale() {
+    span.generation = Integer.MAX_VALUE;
+    span.finish(2L);
+    span.recycle();
+
+    span.reset(CLOCK, context2, ENDPOINT);
+
+    assertEquals(0, span.generation(context2));
+  }
+
+  /**
+   * One thread starts and finishes spans back to back, so each finished span is recycled for the
+   * next. Another thread tags whichever span is current with its own ID. Writes which lose the race
+   * with finish must be dropped, as opposed to landing in the next span.
+   */
+  @Test public void mutationRacingFinish_neverLandsInRecycledSpan() throws Exception {
+    final int spanCount = 1000000;
+    final TraceContext[] contexts = new TraceContext[spanCount];
+    for (int i = 0; i < spanCount; i++) {
+      contexts[i] = TraceContext.newBuilder().traceId(i + 1).spanId(i + 1).build();
+    }
+    final List<zipkin2.Span> reported = new ArrayList<zipkin2.Span>();
+    final Recorder recorder = new Recorder(ENDPOINT, CLOCK, new Reporter<zipkin2.Span>() {
+      @Override public void report(zipkin2.Span span) {
+        reported.add(span); // only called by the finishing thread
+      }
+    }, new AtomicBoolean(), 1, 0L);
+    final AtomicInteger current = new AtomicInteger(-1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    Thread tagger = new Thread() {
+      @Override public void run() {
+        try {
+          int i;
+          while ((i = current.get()) < spanCount - 1) {
+            if (i < 0) continue;
+            recorder.tag(contexts[i], "id", contexts[i].spanIdString());
+          }
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    };
+    tagger.start();
+    for (int i = 0; i < spanCount; i++) {
+      recorder.start(contexts[i], 1L);
+      current.set(i);
+      recorder.finish(contexts[i], 2L);
+    }
+    tagger.join(10000L);
+
+    assertNull(failure.get());
+    assertEquals(spanCount, reported.size());
+    int tagged = 0;
+    for (zipkin2.Span span : reported) {
+      String id = span.tags().get("id");
+      if (id == null) continue;
+      assertEquals(span.id(), id);
+      tagged++;
+    }
+    assertTrue("no tags won the race: " + tagged, tagged > 0);
+  }
+
+  @Test public void beginWrite_rejectsOtherGeneration() {
+    int generation = span.generation(context1);
+
+    assertTrue(!span.beginWrite(generation + 1));
+    assertTrue(span.beginWrite(generation));
+    span.endWrite();
+    assertNotNull(span.toSpan());
+  }
+}
@@ -0,0 +1,128 @@
+package brave.internal.recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SpanIdMapTest {
+  SpanIdMap<String> map = new SpanIdMap<String>();
+
+  @Test public void putIfAbsent_returnsExisting() {
+    assertNull(map.putIfAbsent(0L, 1L, 2L, "a"));
+    assertEquals("a", map.putIfAbsent(0L, 1L, 2L, "b"));
+
+    assertEquals("a", map.get(0L, 1L, 2L));
+    assertEquals(1, map.size());
+  }
+
+  @Test public void get_considersAllIds() {
+    map.putIfAbsent(0L, 1L, 2L, "a");
+
+    assertNull(map.get(1L, 1L, 2L));
+    assertNull(map.get(0L, 2L, 2L));
+    assertNull(map.get(0L, 1L, 1L));
+  }
+
+  @Test public void remove() {
+    map.putIfAbsent(0L, 1L, 2L, "a");
+
+    assertEquals("a", map.remove(0L, 1L, 2L));
+    assertNull(map.remove(0L, 1L, 2L));
+    assertNull(map.get(0L, 1L, 2L));
+    assertEquals(0, map.size());
+  }
+
+  @Test public void remove_onlyWhenValueMatches() {
+    String value = new String("a");
+    map.putIfAbsent(0L, 1L, 2L, value);
+
+    assertFalse(map.remove(0L, 1L, 2L, new String("a"))); // equal isn't enough
+    assertSame(value, map.get(0L, 1L, 2L));
+
+    assertTrue(map.remove(0L, 1L, 2L, value));
+    assertNull(map.get(0L, 1L, 2L));
+  }
+
+  /** Removing an entry leaves a tombstone, so entries probed past it are still found. */
+  @Test public void remove_leavesTombstoneInProbeSequence() {
+    long[] spanIds = collidingSpanIds(3);
+    for (long spanId : spanIds) map.putIfAbsent(0L, 1L, spanId, "s" + spanId);
+
+    map.remove(0L, 1L, spanIds[1]);
+
+    SpanIdMap.Segment<String> segment = segmentOf(spanIds[0]);
+    assertEquals(1, segment.tombstones);
+    assertNull(map.get(0L, 1L, spanIds[1]));
+    assertEquals("s" + spanIds[2], map.get(0L, 1L, spanIds[2]));
+    assertEquals("s" + spanIds[2], map.remove(0L, 1L, spanIds[2]));
+  }
+
+  @Test public void putIfAbsent_reusesTombstone() {
+    long[] spanIds = collidingSpanIds(3);
+    for (long spanId : spanIds) map.putIfAbsent(0L, 1L, spanId, "s" + spanId);
+    map.remove(0L, 1L, spanIds[1]);
+
+    // the entry after the tombstone must not be duplicated when re-adding before it
+    assertEquals("s" + spanIds[2], map.putIfAbsent(0L, 1L, spanIds[2], "other"));
+    assertNull(map.putIfAbsent(0L, 1L, spanIds[1], "again"));
+
+    assertEquals(0, segmentOf(spanIds[0]).tombstones);
+    assertEquals("again", map.get(0L, 1L, spanIds[1]));
+    assertEquals(3, map.size());
+  }
+
+  /** Tombstones count towards the load factor, so churn can't fill a table with them. */
+  @Test public void churn_resizeDiscardsTombstones() {
+    for (long i = 1; i <= 10000; i++) {
+      map.putIfAbsent(0L, 1L, i, "a");
+      map.remove(0L, 1L, i);
+    }
+
+    assertEquals(0, map.size());
+    for (SpanIdMap.Segment<String> segment : map.segments) {
+      assertEquals(SpanIdMap.INITIAL_CAPACITY, segment.table.length());
+      assertTrue(segment.tombstones * 2 <= segment.table.length());
+    }
+    assertNull(map.get(0L, 1L, 10001L)); // terminates, as there's still a free slot
+  }
+
+  @Test public void grows_keepingAllEntries() {
+    for (long i = 1; i <= 1000; i++) map.putIfAbsent(0L, i, i, "s" + i);
+    for (long i = 1; i <= 1000; i += 2) map.remove(0L, i, i);
+    for (long i = 1001; i <= 2000; i++) map.putIfAbsent(0L, i, i, "s" + i);
+
+    assertEquals(1500, map.size());
+    assertEquals(1500, map.values().size());
+    for (long i = 1; i <= 2000; i++) {
+      String expected = i <= 1000 && i % 2 == 1 ? null : "s" + i;
+      assertEquals(expected, map.get(0L, i, i));
+    }
+  }
+
+  SpanIdMap.Segment<String> segmentOf(long spanId) {
+    return map.segmentFor(SpanIdMap.hash(0L, 1L, spanId));
+  }
+
+  /** Finds span IDs whose hashes land on the same segment and the same initial bucket. */
+  static long[] collidingSpanIds(int count) {
+    List<Long> result = new ArrayList<Long>();
+    int first = SpanIdMap.hash(0L, 1L, 1L);
+    int mask = SpanIdMap.INITIAL_CAPACITY - 1;
+    for (long spanId = 1L; result.size() < count; spanId++) {
+      int hash = SpanIdMap.hash(0L, 1L, spanId);
+      if (hash >>> (32 - SpanIdMap.SEGMENT_BITS) != first >>> (32 - SpanIdMap.SEGMENT_BITS)) {
+        continue;
+      }
+      if ((hash & mask) == (first & mask)) result.add(spanId);
+    }
+    long[] array = new long[count];
+    for (int i = 0; i < count; i++) array[i] = result.get(i);
+    return array;
+  }
+}
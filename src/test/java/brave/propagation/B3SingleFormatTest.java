@@ -0,0 +1,122 @@
+package brave.propagation;
+
+import org.junit.Test;
+
+import static brave.propagation.B3SingleFormat.parseB3SingleFormat;
+import static brave.propagation.B3SingleFormat.writeB3SingleFormat;
+import static brave.propagation.B3SingleFormat.writeB3SingleFormatWithoutParentId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class B3SingleFormatTest {
+  String traceIdHigh = "80f198ee56343ba8";
+  String traceId = "64fe8b2a57d3eff7";
+  String parentId = "05e3ac9a4f6e3b90";
+  String spanId = "e457b5a2e4d86bd1";
+
+  @Test public void roundTrip() {
+    String[] inputs = {
+        traceIdHigh + traceId + "-" + spanId + "-1-" + parentId,
+        traceId + "-" + spanId + "-1-" + parentId,
+        traceId + "-" + spanId + "-0-" + parentId,
+        traceId + "-" + spanId + "-d-" + parentId,
+        traceId + "-" + spanId + "-" + parentId, // deferred sampling decision
+        traceId + "-" + spanId + "-1",
+        traceId + "-" + spanId + "-0",
+        traceId + "-" + spanId + "-d",
+        traceId + "-" + spanId
+    };
+    for (String input : inputs) {
+      assertEquals(input, writeB3SingleFormat(parseB3SingleFormat(input).context()));
+    }
+  }
+
+  @Test public void parse_fields() {
+    TraceContext context =
+        parseB3SingleFormat(traceIdHigh + traceId + "-" + spanId + "-1-" + parentId).context();
+
+    assertEquals(0x80f198ee56343ba8L, context.traceIdHigh());
+    assertEquals(0x64fe8b2a57d3eff7L, context.traceId());
+    assertEquals(0x05e3ac9a4f6e3b90L, context.parentIdAsLong());
+    assertEquals(0xe457b5a2e4d86bd1L, context.spanId());
+    assertEquals(Boolean.TRUE, context.sampled());
+    assertEquals(false, context.debug());
+  }
+
+  @Test public void parse_sampling() {
+    assertEquals(Boolean.FALSE, parse(traceId + "-" + spanId + "-0").sampled());
+    assertEquals(null, parse(traceId + "-" + spanId).sampled());
+
+    TraceContext debug = parse(traceId + "-" + spanId + "-d");
+    assertEquals(Boolean.TRUE, debug.sampled());
+    assertEquals(true, debug.debug());
+  }
+
+  @Test public void parse_samplingStateOnly() {
+    assertEquals(SamplingFlags.NOT_SAMPLED, parseB3SingleFormat("0").samplingFlags());
+    assertEquals(SamplingFlags.SAMPLED, parseB3SingleFormat("1").samplingFlags());
+    assertEquals(SamplingFlags.DEBUG, parseB3SingleFormat("d").samplingFlags());
+  }
+
+  @Test public void parse_range() {
+    String input = traceId + "-" + spanId + "-1";
+    String line = "b3: " + input + "\r\n";
+
+    TraceContext context = parseB3SingleFormat(line, 4, 4 + input.length()).context();
+    assertEquals(traceId, context.traceIdString());
+    assertEquals(Boolean.TRUE, context.sampled());
+
+    assertEquals(SamplingFlags.SAMPLED, parseB3SingleFormat("b3=1;", 3, 4).samplingFlags());
+  }
+
+  @Test public void parse_malformed() {
+    String[] inputs = {
+        "",
+        "-",
+        "2",
+        "D",
+        traceId,
+        traceId + "-",
+        traceId + "-" + spanId.substring(1),
+        traceId + "-" + spanId + "-",
+        traceId + "-" + spanId + "-1-",
+        traceId + "-" + spanId + "-2",
+        traceId + "-" + spanId + "-11",
+        traceId + "-" + spanId + "x1",
+        traceId + "-" + spanId + "-1x" + parentId,
+        traceId + "-" + spanId + "-1-" + parentId.substring(1),
+        traceId + "-" + spanId + "-1-" + parentId + "0",
+        traceId.substring(1) + "-" + spanId,
+        traceId + "0-" + spanId,
+        traceId + spanId + "0",
+        traceId.toUpperCase() + "-" + spanId,
+        "0000000000000000-" + spanId,
+        "0000000000000000" + traceId + "-" + spanId,
+        traceId + "-0000000000000000",
+        traceId + "-" + spanId + "-1-0000000000000000",
+        traceId + "-" + spanId.replace('e', 'g')
+    };
+    for (String input : inputs) {
+      assertNull(input, parseB3SingleFormat(input));
+    }
+  }
+
+  @Test public void writeWithoutParentId() {
+    TraceContext context = parse(traceIdHigh + traceId + "-" + spanId + "-d-" + parentId);
+
+    assertEquals(traceIdHigh + traceId + "-" + spanId + "-d",
+        writeB3SingleFormatWithoutParentId(context));
+  }
+
+  @Test public void write_maxLength() {
+    String input = traceIdHigh + traceId + "-" + spanId + "-d-" + parentId;
+
+    assertEquals(input, writeB3SingleFormat(parse(input)));
+    assertTrue(input.length() <= B3SingleFormat.FORMAT_MAX_LENGTH);
+  }
+
+  static TraceContext parse(String b3) {
+    return parseB3SingleFormat(b3).context();
+  }
+}
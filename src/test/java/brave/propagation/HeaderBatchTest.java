@@ -0,0 +1,185 @@
+package brave.propagation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderBatchTest {
+  static final List<String> FIELDS = new ArrayList<String>();
+
+  static {
+    for (int i = 0; i < 24; i++) FIELDS.add("f" + i);
+  }
+
+  Propagation.Factory factory = ExtraFieldPropagation.newFactoryBuilder(B3Propagation.FACTORY)
+      .addField("x-vcap-request-id")
+      .addPrefixedFields("baggage-", FIELDS)
+      .build();
+  Propagation<String> propagation = factory.create(Propagation.KeyFactory.STRING);
+
+  /** Reads a list of name, value pairs in one pass, like a typical http library would */
+  static final HeaderBatch.Reader<List<String[]>> READER =
+      new HeaderBatch.Reader<List<String[]>>() {
+        @Override public void read(List<String[]> carrier, HeaderBatch batch) {
+          for (String[] header : carrier) {
+            int slot = batch.slot(header[0]);
+            if (slot != -1) batch.set(slot, header[1]);
+          }
+        }
+      };
+
+  static final HeaderBatch.Writer<Map<String, String>> WRITER =
+      new HeaderBatch.Writer<Map<String, String>>() {
+        @Override public void write(Map<String, String> carrier, HeaderBatch batch) {
+          for (int i = 0, length = batch.size(); i < length; i++) {
+            if (batch.value(i) != null) carrier.put(batch.name(i), batch.value(i));
+          }
+        }
+      };
+
+  @Test public void keyIndex_ignoresCase() {
+    List<String> keys = propagation.keys();
+    HeaderBatch.KeyIndex index = new HeaderBatch.KeyIndex(keys);
+
+    assertTrue(keys.size() > 24);
+    for (int i = 0; i < keys.size(); i++) {
+      assertEquals(i, index.slot(keys.get(i)));
+      assertEquals(i, index.slot(keys.get(i).toUpperCase()));
+      assertEquals(i, index.slot(new String(keys.get(i)))); // not the same instance
+    }
+    assertEquals(-1, index.slot("accept"));
+    assertEquals(-1, index.slot(""));
+    assertEquals(-1, index.slot("x-b3-traceid2"));
+    assertEquals(-1, index.slot("x-b3-traceI")); // prefix of a key
+  }
+
+  /** Only ASCII letters are folded, so names differing by other characters don't match */
+  @Test public void keyIndex_onlyFoldsLetters() {
+    HeaderBatch.KeyIndex index = new HeaderBatch.KeyIndex(Arrays.asList("a-b", "a_b", "[]"));
+
+    assertEquals(0, index.slot("A-B"));
+    assertEquals(1, index.slot("A_B"));
+    assertEquals(2, index.slot("[]"));
+    assertEquals(-1, index.slot("{}")); // '[' + 32 is '{'
+  }
+
+  @Test public void keyIndex_duplicateKeyKeepsFirstSlot() {
+    HeaderBatch.KeyIndex index = new HeaderBatch.KeyIndex(Arrays.asList("a", "A", "b"));
+
+    assertEquals(0, index.slot("a"));
+    assertEquals(2, index.slot("b"));
+  }
+
+  @Test public void keyIndex_empty() {
+    HeaderBatch.KeyIndex index = new HeaderBatch.KeyIndex(Collections.<String>emptyList());
+
+    assertEquals(-1, index.slot("x-b3-traceid"));
+  }
+
+  @Test(expected = NullPointerException.class) public void slot_null() {
+    new HeaderBatch(new HeaderBatch.KeyIndex(propagation.keys())).slot(null);
+  }
+
+  /** Like a getter scanning headers, the first of duplicate headers wins */
+  @Test public void set_keepsFirstValue() {
+    HeaderBatch batch = new HeaderBatch(new HeaderBatch.KeyIndex(Arrays.asList("a")));
+
+    batch.set(0, null);
+    batch.set(0, "1");
+    batch.set(0, "2");
+
+    assertEquals("1", batch.value(0));
+    assertEquals("HeaderBatch{a=1}", batch.toString());
+  }
+
+  @Test public void extractor() {
+    List<String[]> headers = Arrays.asList(
+        new String[] {"Accept", "*/*"},
+        new String[] {"X-B3-TRACEID", "463ac35c9f6413ad48485a3953bb6124"},
+        new String[] {"x-b3-spanid", "a2fb4a1d1a96d312"},
+        new String[] {"X-B3-Sampled", "1"},
+        new String[] {"x-b3-spanid", "0000000000000001"}, // duplicate: ignored
+        new String[] {"Baggage-F7", "seven"},
+        new String[] {"X-Vcap-Request-Id", "r"});
+
+    TraceContextOrSamplingFlags extracted =
+        HeaderBatch.extractor(propagation, READER).extract(headers);
+
+    TraceContext context = extracted.context();
+    assertEquals("463ac35c9f6413ad48485a3953bb6124", context.traceIdString());
+    assertEquals("a2fb4a1d1a96d312", context.spanIdString());
+    assertEquals(Boolean.TRUE, context.sampled());
+    Map<String, String> extra = ExtraFieldPropagation.getAll(factory.decorate(context));
+    assertEquals("r", extra.get("x-vcap-request-id"));
+    assertEquals("seven", extra.get("f7"));
+    assertEquals(2, extra.size());
+  }
+
+  /** Extracts the same as a getter which scans headers, ignoring case, for each key */
+  @Test public void extractor_matchesGetter() {
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+    headers.put("x-b3-traceid", "0000000000000005");
+    headers.put("x-b3-spanid", "0000000000000006");
+    headers.put("x-b3-flags", "1");
+    headers.put("baggage-f23", "last");
+    List<String[]> pairs = new ArrayList<String[]>();
+    for (Map.Entry<String, String> entry : headers.entrySet()) {
+      pairs.add(new String[] {entry.getKey(), entry.getValue()});
+    }
+
+    TraceContextOrSamplingFlags expected = propagation.extractor(
+        new Propagation.Getter<Map<String, String>, String>() {
+          @Override public String get(Map<String, String> carrier, String key) {
+            for (Map.Entry<String, String> entry : carrier.entrySet()) {
+              if (entry.getKey().equalsIgnoreCase(key)) return entry.getValue();
+            }
+            return null;
+          }
+        }).extract(headers);
+
+    assertEquals(expected, HeaderBatch.extractor(propagation, READER).extract(pairs));
+  }
+
+  @Test public void extractor_noHeaders() {
+    TraceContextOrSamplingFlags extracted = HeaderBatch.extractor(propagation, READER)
+        .extract(Collections.<String[]>emptyList());
+
+    assertNull(extracted.context());
+  }
+
+  @Test public void injector_writesOnlySetValues() {
+    TraceContext context = factory.decorate(
+        TraceContext.newBuilder().traceId(5L).spanId(6L).sampled(true).build());
+    ExtraFieldPropagation.set(context, "f3", "three");
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    HeaderBatch.injector(propagation, WRITER).inject(context, headers);
+
+    Map<String, String> expected = new LinkedHashMap<String, String>();
+    expected.put("X-B3-TraceId", "0000000000000005");
+    expected.put("X-B3-SpanId", "0000000000000006");
+    expected.put("X-B3-Sampled", "1");
+    expected.put("baggage-f3", "three");
+    assertEquals(expected, headers);
+  }
+
+  @Test(expected = NullPointerException.class) public void extractor_nullReader() {
+    HeaderBatch.extractor(propagation, null);
+  }
+
+  @Test(expected = NullPointerException.class) public void injector_nullWriter() {
+    HeaderBatch.injector(propagation, null);
+  }
+
+  @Test(expected = NullPointerException.class) public void extract_nullCarrier() {
+    HeaderBatch.extractor(propagation, READER).extract(null);
+  }
+}
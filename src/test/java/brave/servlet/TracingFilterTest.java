@@ -0,0 +1,82 @@
+package brave.servlet;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.ExtraFieldPropagation;
+import brave.propagation.HeaderBatch;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TracingFilterTest {
+  Propagation.Factory factory = ExtraFieldPropagation.newFactory(B3Propagation.FACTORY,
+      "x-vcap-request-id");
+  TraceContext.Extractor<HttpServletRequest> extractor =
+      HeaderBatch.extractor(factory.create(Propagation.KeyFactory.STRING), TracingFilter.READER);
+  Map<String, String> headers = new LinkedHashMap<String, String>();
+  int getHeaderCalls;
+
+  /** Header names are enumerated once, and only propagation keys are looked up */
+  @Test public void read_enumeratesNames() {
+    addHeaders();
+
+    assertExtracted(request(true));
+    assertEquals(4, getHeaderCalls);
+  }
+
+  /** Containers can deny access to header names, in which case each key is looked up */
+  @Test public void read_namesHidden() {
+    addHeaders();
+
+    assertExtracted(request(false));
+    assertEquals(factory.create(Propagation.KeyFactory.STRING).keys().size(), getHeaderCalls);
+  }
+
+  void addHeaders() {
+    headers.put("Accept", "*/*");
+    headers.put("X-B3-TRACEID", "463ac35c9f6413ad48485a3953bb6124");
+    headers.put("x-b3-spanid", "a2fb4a1d1a96d312");
+    headers.put("User-Agent", "curl");
+    headers.put("X-B3-Sampled", "1");
+    headers.put("X-Vcap-Request-Id", "r");
+  }
+
+  void assertExtracted(HttpServletRequest request) {
+    TraceContextOrSamplingFlags extracted = extractor.extract(request);
+
+    TraceContext context = extracted.context();
+    assertEquals("463ac35c9f6413ad48485a3953bb6124", context.traceIdString());
+    assertEquals("a2fb4a1d1a96d312", context.spanIdString());
+    assertEquals(Boolean.TRUE, context.sampled());
+    assertEquals("r", ExtraFieldPropagation.get(factory.decorate(context), "x-vcap-request-id"));
+  }
+
+  /** Looks up headers ignoring case, like a servlet container does */
+  HttpServletRequest request(final boolean exposeNames) {
+    return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class[] {HttpServletRequest.class}, new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getHeaderNames")) {
+              return exposeNames ? Collections.enumeration(headers.keySet()) : null;
+            }
+            if (method.getName().equals("getHeader")) {
+              getHeaderCalls++;
+              for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase((String) args[0])) return entry.getValue();
+              }
+              return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JsonCodecTest {
+  static final List<Span> SPANS = new ArrayList<Span>();
+
+  static {
+    SPANS.add(Proto3CodecTest.SPAN);
+    SPANS.add(Proto3CodecTest.MINIMAL);
+    char[] large = new char[Buffer.GrowableBuffer.MAX_RETAINED_CAPACITY];
+    Arrays.fill(large, '\u20ac'); // three bytes each in UTF-8
+    SPANS.add(Proto3CodecTest.MINIMAL.toBuilder().name(new String(large)).build());
+  }
+
+  /** Direct buffers are staged on the heap, which must write the same bytes as the heap path */
+  @Test public void writeList_byteBuffer() {
+    for (SpanBytesEncoder encoder : SpanBytesEncoder.values()) {
+      for (List<Span> spans : Arrays.asList(SPANS, SPANS.subList(0, 1),
+          Collections.<Span>emptyList())) {
+        byte[] expected = encoder.encodeList(spans);
+        for (ByteBuffer out : Arrays.asList(ByteBuffer.allocate(expected.length + 2),
+            ByteBuffer.allocateDirect(expected.length + 2))) {
+          out.position(2);
+          String message = encoder + " direct=" + out.isDirect() + " size=" + spans.size();
+          assertEquals(message, expected.length, encoder.encodeList(spans, out));
+          assertEquals(message, expected.length + 2, out.position());
+          byte[] written = new byte[expected.length];
+          out.position(2);
+          out.get(written);
+          assertArrayEquals(expected, written);
+        }
+      }
+    }
+  }
+
+  /** The staging scratch is released even when the output is too small */
+  @Test public void writeList_directOverflow() {
+    for (SpanBytesEncoder encoder : SpanBytesEncoder.values()) {
+      try {
+        encoder.encodeList(SPANS, ByteBuffer.allocateDirect(10));
+        fail(encoder + " wrote past the limit");
+      } catch (BufferOverflowException expected) {
+      }
+      assertEquals(false, Buffer.GrowableBuffer.SCRATCH.get().inUse);
+    }
+  }
+}
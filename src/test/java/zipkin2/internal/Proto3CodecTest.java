@@ -0,0 +1,194 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Proto3CodecTest {
+  static final Span SPAN = Span.newBuilder()
+      .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+      .parentId("6b221d5bc9e6496c")
+      .id("5b4185666d50f68b")
+      .kind(Span.Kind.CLIENT)
+      .name("get")
+      .timestamp(1472470996199000L)
+      .duration(207000L)
+      .localEndpoint(Endpoint.newBuilder().serviceName("frontend").ip("127.0.0.1").build())
+      .remoteEndpoint(Endpoint.newBuilder()
+          .serviceName("backend").ip("192.168.99.101").port(9000).build())
+      .addAnnotation(1472470996238000L, "ws")
+      .putTag("http.path", "/api")
+      .debug(true)
+      .shared(true)
+      .build();
+
+  /**
+   * {@link #SPAN} as the message zipkin.proto3.Span, field by field in number order. This was
+   * derived from zipkin2.proto, not from the writer under test.
+   */
+  static final byte[] SPAN_BYTES = hex(""
+      + "0a107180c278b62e8f6a216a2aea45d08fc9" // 1: trace_id
+      + "12086b221d5bc9e6496c" // 2: parent_id
+      + "1a085b4185666d50f68b" // 3: id
+      + "2001" // 4: kind CLIENT
+      + "2a03676574" // 5: name
+      + "3158a6ab5e343b0500" // 6: timestamp fixed64
+      + "3898d10c" // 7: duration varint
+      + "42100a0866726f6e74656e6412047f000001" // 8: local_endpoint
+      + "4a120a076261636b656e641204c0a8636520a846" // 9: remote_endpoint
+      + "520d09b03eac5e343b050012027773" // 10: annotations
+      + "5a110a09687474702e7061746812042f617069" // 11: tags
+      + "6001" // 12: debug
+      + "6801"); // 13: shared
+
+  /** A span with only the required fields, which all have a length prefix */
+  static final Span MINIMAL = Span.newBuilder().traceId("1").id("2").build();
+  static final byte[] MINIMAL_BYTES = hex("0a0800000000000000011a080000000000000002");
+
+  @Test public void encode_matchesFixture() {
+    assertArrayEquals(SPAN_BYTES, SpanBytesEncoder.PROTO3.encode(SPAN));
+    assertEquals(SPAN_BYTES.length, SpanBytesEncoder.PROTO3.sizeInBytes(SPAN));
+
+    assertArrayEquals(MINIMAL_BYTES, SpanBytesEncoder.PROTO3.encode(MINIMAL));
+  }
+
+  /** ListOfSpans is each span as field 1, here with a two byte length prefix */
+  @Test public void encodeList_matchesFixture() {
+    byte[] expected = concat(hex("0a8601"), SPAN_BYTES, hex("0a14"), MINIMAL_BYTES);
+    List<Span> spans = Arrays.asList(SPAN, MINIMAL);
+
+    assertArrayEquals(expected, SpanBytesEncoder.PROTO3.encodeList(spans));
+
+    for (ByteBuffer out : Arrays.asList(
+        ByteBuffer.allocate(expected.length + 2), ByteBuffer.allocateDirect(expected.length + 2))) {
+      out.position(2);
+      assertEquals(expected.length, SpanBytesEncoder.PROTO3.encodeList(spans, out));
+      assertEquals(expected.length + 2, out.position());
+      byte[] written = new byte[expected.length];
+      out.position(2);
+      out.get(written);
+      assertArrayEquals(expected, written);
+    }
+  }
+
+  @Test public void decode_fixture() {
+    assertEquals(SPAN, SpanBytesDecoder.PROTO3.decodeOne(SPAN_BYTES));
+    assertEquals(MINIMAL, SpanBytesDecoder.PROTO3.decodeOne(MINIMAL_BYTES));
+
+    byte[] list = concat(hex("0a8601"), SPAN_BYTES, hex("0a14"), MINIMAL_BYTES);
+    assertEquals(Arrays.asList(SPAN, MINIMAL), SpanBytesDecoder.PROTO3.decodeList(list));
+  }
+
+  /** The reference encoder doesn't write a nested message which has only default values */
+  @Test public void emptyEndpoint_isSkipped() {
+    Endpoint empty = Endpoint.newBuilder().build();
+    Span span = MINIMAL.toBuilder().localEndpoint(empty).remoteEndpoint(empty).build();
+
+    assertArrayEquals(MINIMAL_BYTES, SpanBytesEncoder.PROTO3.encode(span));
+    assertEquals(MINIMAL_BYTES.length, SpanBytesEncoder.PROTO3.sizeInBytes(span));
+    assertArrayEquals(concat(hex("0a14"), MINIMAL_BYTES),
+        SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(span)));
+  }
+
+  /** Newer versions of zipkin2.proto can add fields, which must be skipped by their wire type */
+  @Test public void decode_skipsUnknownFields() {
+    byte[] bytes = concat(MINIMAL_BYTES,
+        hex("a001ac02"), // 20: varint
+        hex("ad0101020304"), // 21: fixed32
+        hex("b201020a0b"), // 22: length-delimited
+        hex("b9010102030405060708")); // 23: fixed64
+
+    assertEquals(MINIMAL, SpanBytesDecoder.PROTO3.decodeOne(bytes));
+  }
+
+  @Test public void roundTrip() {
+    List<Span> spans = Arrays.asList(
+        SPAN,
+        MINIMAL,
+        MINIMAL.toBuilder().kind(Span.Kind.CONSUMER).duration(Long.MAX_VALUE).build(),
+        MINIMAL.toBuilder().name("\u0444\u0440\u0443\u043a\u0442\u044b \ud83d\ude00").build(),
+        MINIMAL.toBuilder().remoteEndpoint(Endpoint.newBuilder()
+            .ip("2001:db8::c001").port(65535).build()).build(),
+        MINIMAL.toBuilder().localEndpoint(Endpoint.newBuilder().serviceName("a").build())
+            .addAnnotation(1L, "")
+            .putTag("", "")
+            .build());
+    for (Span span : spans) {
+      byte[] encoded = SpanBytesEncoder.PROTO3.encode(span);
+      assertEquals(encoded.length, SpanBytesEncoder.PROTO3.sizeInBytes(span));
+      assertEquals(span, SpanBytesDecoder.PROTO3.decodeOne(encoded));
+    }
+    assertEquals(spans,
+        SpanBytesDecoder.PROTO3.decodeList(SpanBytesEncoder.PROTO3.encodeList(spans)));
+  }
+
+  @Test public void decode_malformed() {
+    byte[] list = concat(hex("0a8601"), SPAN_BYTES);
+    byte[][] inputs = {
+        Arrays.copyOf(SPAN_BYTES, SPAN_BYTES.length - 1), // truncated varint
+        Arrays.copyOf(SPAN_BYTES, 20), // truncated in the middle of the parent ID
+        hex("0a"), // key without a length
+    };
+    for (byte[] input : inputs) {
+      try {
+        SpanBytesDecoder.PROTO3.decodeOne(input);
+        fail("accepted " + Arrays.toString(input));
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    byte[][] lists = {
+        Arrays.copyOf(list, list.length - 1), // truncated span
+        hex("12020a00"), // not field 1 of ListOfSpans
+    };
+    for (byte[] input : lists) {
+      try {
+        SpanBytesDecoder.PROTO3.decodeList(input);
+        fail("accepted " + Arrays.toString(input));
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  static byte[] concat(byte[]... arrays) {
+    int length = 0;
+    for (byte[] array : arrays) length += array.length;
+    byte[] result = new byte[length];
+    int pos = 0;
+    for (byte[] array : arrays) {
+      System.arraycopy(array, 0, result, pos, array.length);
+      pos += array.length;
+    }
+    return result;
+  }
+
+  static byte[] hex(String hex) {
+    byte[] result = new byte[hex.length() / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpanStreamIteratorTest {
+  static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+  static final List<Span> SPANS = new ArrayList<Span>();
+
+  static {
+    for (int i = 1; i <= 10; i++) {
+      SPANS.add(Span.newBuilder()
+          .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+          .id(Integer.toHexString(i))
+          .name("get /" + i)
+          .timestamp(1472470996199000L + i)
+          .duration(207000L)
+          .localEndpoint(FRONTEND)
+          .putTag("path", "/api/{\"" + i + "\"}") // braces and quotes in a string
+          .build());
+    }
+  }
+
+  /** Larger than the initial buffer, so it is grown, and spans straddle compaction */
+  static final List<Span> LARGE_SPANS = new ArrayList<Span>();
+
+  static {
+    char[] value = new char[SpanStreamIterator.INITIAL_BUFFER_SIZE * 3];
+    Arrays.fill(value, 'a');
+    for (int i = 1; i <= 3; i++) {
+      LARGE_SPANS.add(SPANS.get(i).toBuilder().putTag("large", new String(value, 0, i * 5000))
+          .build());
+    }
+  }
+
+  @Test public void splitAcrossReads() {
+    for (SpanBytesEncoder encoder : Arrays.asList(SpanBytesEncoder.JSON_V2,
+        SpanBytesEncoder.PROTO3)) {
+      for (List<Span> spans : Arrays.asList(SPANS, LARGE_SPANS)) {
+        byte[] bytes = encoder.encodeList(spans);
+        for (int chunk : new int[] {1, 2, 3, 7, 64, 4096, bytes.length}) {
+          String message = encoder + " in chunks of " + chunk;
+          assertEquals(message, spans, toList(decoder(encoder).decodeList(chunked(bytes, chunk))));
+        }
+      }
+    }
+  }
+
+  @Test public void json_whitespace() {
+    String span1 = new String(SpanBytesEncoder.JSON_V2.encode(SPANS.get(0)), JsonCodec.UTF_8);
+    String span2 = new String(SpanBytesEncoder.JSON_V2.encode(SPANS.get(1)), JsonCodec.UTF_8);
+    byte[] bytes = (" \n[ " + span1 + " ,\t" + span2 + "\r\n] ").getBytes(JsonCodec.UTF_8);
+
+    assertEquals(SPANS.subList(0, 2),
+        toList(SpanBytesDecoder.JSON_V2.decodeList(chunked(bytes, 1))));
+  }
+
+  @Test public void emptyStream() {
+    for (SpanBytesDecoder decoder : SpanBytesDecoder.values()) {
+      Iterator<Span> spans = decoder.decodeList(new ByteArrayInputStream(new byte[0]));
+      assertFalse(spans.hasNext());
+      assertFalse(spans.hasNext());
+    }
+    assertFalse(SpanBytesDecoder.JSON_V2.decodeList(stream("[]")).hasNext());
+    assertFalse(SpanBytesDecoder.JSON_V2.decodeList(stream(" [ ] ")).hasNext());
+  }
+
+  /** Like decoding a byte array, bytes after the array are ignored */
+  @Test public void json_trailingBytes() {
+    String json = new String(SpanBytesEncoder.JSON_V2.encodeList(SPANS), JsonCodec.UTF_8);
+
+    assertEquals(SPANS, toList(SpanBytesDecoder.JSON_V2.decodeList(stream(json + " x"))));
+  }
+
+  /** The spans before a truncated element are returned, then the truncation is raised */
+  @Test public void truncatedLastElement() {
+    for (SpanBytesEncoder encoder : Arrays.asList(SpanBytesEncoder.JSON_V2,
+        SpanBytesEncoder.PROTO3)) {
+      byte[] bytes = encoder.encodeList(SPANS.subList(0, 3));
+      for (int cut : new int[] {1, 10, SpanBytesEncoder.PROTO3.sizeInBytes(SPANS.get(2))}) {
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - cut);
+        Iterator<Span> spans = decoder(encoder).decodeList(chunked(truncated, 5));
+
+        // for json, cutting one byte only drops the closing bracket, so all three spans are intact
+        int intact = encoder == SpanBytesEncoder.JSON_V2 && cut == 1 ? 3 : 2;
+        for (int i = 0; i < intact; i++) {
+          assertEquals(SPANS.get(i), spans.next());
+        }
+        try {
+          spans.hasNext();
+          fail(encoder + " accepted input truncated by " + cut);
+        } catch (IllegalArgumentException expected) {
+          assertTrue(expected.getMessage(), expected.getMessage().contains("List<Span>"));
+        }
+        assertFalse(spans.hasNext()); // the error ends iteration
+      }
+    }
+  }
+
+  @Test public void json_malformed() {
+    String span = new String(SpanBytesEncoder.JSON_V2.encode(SPANS.get(0)), JsonCodec.UTF_8);
+    String[] inputs = {
+        span,
+        "[" + span + span + "]",
+        "[" + span + ",]",
+        "[" + span + ",1]",
+        "[" + span.replace("\"name\"", "\"name\" x") + "]",
+    };
+    for (String input : inputs) {
+      Iterator<Span> spans = SpanBytesDecoder.JSON_V2.decodeList(stream(input));
+      try {
+        while (spans.hasNext()) spans.next();
+        fail("accepted " + input);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test public void proto3_malformed() {
+    byte[][] inputs = {
+        {0x12, 0x00}, // not field 1 of ListOfSpans
+        {0x0a}, // no length
+        {0x0a, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f}, // negative length
+        {0x0a, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x01}, // too long
+        {0x0a, 0x7f, 0x0a}, // longer than the input, which doesn't provoke a large buffer
+    };
+    for (byte[] input : inputs) {
+      try {
+        toList(SpanBytesDecoder.PROTO3.decodeList(new ByteArrayInputStream(input)));
+        fail("accepted " + Arrays.toString(input));
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test public void ioException() {
+    InputStream failing = new InputStream() {
+      @Override public int read() throws IOException {
+        throw new IOException("boom");
+      }
+    };
+    Iterator<Span> spans = SpanBytesDecoder.JSON_V2.decodeList(failing);
+    try {
+      spans.hasNext();
+      fail();
+    } catch (IllegalStateException expected) {
+      assertEquals("Error reading spans: boom", expected.getMessage());
+    }
+    assertFalse(spans.hasNext());
+  }
+
+  @Test(expected = NoSuchElementException.class) public void next_afterEnd() {
+    Iterator<Span> spans = SpanBytesDecoder.JSON_V2.decodeList(stream("[]"));
+    spans.next();
+  }
+
+  @Test(expected = UnsupportedOperationException.class) public void remove() {
+    Iterator<Span> spans = SpanBytesDecoder.JSON_V2.decodeList(
+        new ByteArrayInputStream(SpanBytesEncoder.JSON_V2.encodeList(SPANS)));
+    spans.next();
+    spans.remove();
+  }
+
+  @Test public void decodeList_channel() {
+    for (SpanBytesEncoder encoder : Arrays.asList(SpanBytesEncoder.JSON_V2,
+        SpanBytesEncoder.PROTO3)) {
+      byte[] bytes = encoder.encodeList(LARGE_SPANS);
+      Iterator<Span> spans =
+          decoder(encoder).decodeList(Channels.newChannel(chunked(bytes, 1000)));
+      assertEquals(LARGE_SPANS, toList(spans));
+    }
+  }
+
+  /** The remaining bytes are read, advancing the buffer's position */
+  @Test public void decodeList_byteBuffer() {
+    for (SpanBytesEncoder encoder : Arrays.asList(SpanBytesEncoder.JSON_V2,
+        SpanBytesEncoder.PROTO3)) {
+      byte[] bytes = encoder.encodeList(SPANS);
+      for (ByteBuffer buffer : Arrays.asList(
+          ByteBuffer.allocate(bytes.length + 3), ByteBuffer.allocateDirect(bytes.length + 3))) {
+        buffer.position(3);
+        buffer.put(bytes).flip().position(3);
+
+        assertEquals(SPANS, toList(decoder(encoder).decodeList(buffer)));
+        assertFalse(buffer.hasRemaining());
+      }
+      assertFalse(decoder(encoder).decodeList(ByteBuffer.allocate(0)).hasNext());
+    }
+  }
+
+  static SpanBytesDecoder decoder(SpanBytesEncoder encoder) {
+    return encoder == SpanBytesEncoder.PROTO3 ? SpanBytesDecoder.PROTO3 : SpanBytesDecoder.JSON_V2;
+  }
+
+  static List<Span> toList(Iterator<Span> spans) {
+    List<Span> result = new ArrayList<Span>();
+    while (spans.hasNext()) result.add(spans.next());
+    return result;
+  }
+
+  static InputStream stream(String json) {
+    return new ByteArrayInputStream(json.getBytes(JsonCodec.UTF_8));
+  }
+
+  /** Returns at most chunk bytes per read, like a socket might */
+  static InputStream chunked(byte[] bytes, final int chunk) {
+    return new ByteArrayInputStream(bytes) {
+      @Override public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, chunk));
+      }
+    };
+  }
+}
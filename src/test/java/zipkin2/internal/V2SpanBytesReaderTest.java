@@ -0,0 +1,199 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Checks that {@link V2SpanBytesReader} accepts and rejects the same input as Gson */
+public class V2SpanBytesReaderTest {
+  static final String IDS = "\"traceId\":\"1\",\"id\":\"2\"";
+
+  @Test public void lenientValues() {
+    String[] spans = {
+        "{" + IDS + ",\"tags\":{\"http.status_code\":200}}",
+        "{" + IDS + ",\"tags\":{\"a\":-1.5e3,\"b\":0,\"c\":1E+2,\"d\":123456789012345678901}}",
+        "{" + IDS + ",\"name\":123}",
+        "{\"traceId\":1,\"id\":2}",
+        "{\"traceId\":\"1\",\"id\":1e5}",
+        "{" + IDS + ",\"annotations\":[{\"timestamp\":1,\"value\":2}]}",
+        "{" + IDS + ",\"localEndpoint\":{\"serviceName\":1,\"port\":\"8080\"}}",
+        "{" + IDS + ",\"timestamp\":\"1472470996199000\",\"duration\":2.07e5}",
+        "{" + IDS + ",\"timestamp\":1.0}",
+    };
+    for (String span : spans) assertParity(span, true);
+  }
+
+  @Test public void nonStringValues_rejected() {
+    String[] spans = {
+        "{" + IDS + ",\"tags\":{\"error\":true}}",
+        "{" + IDS + ",\"tags\":{\"a\":{}}}",
+        "{" + IDS + ",\"tags\":{\"a\":[]}}",
+        "{" + IDS + ",\"name\":false}",
+        "{" + IDS + ",\"kind\":1}",
+        "{\"traceId\":true,\"id\":\"2\"}",
+        "{" + IDS + ",\"tags\":{\"a\":01}}",
+        "{" + IDS + ",\"tags\":{\"a\":1.}}",
+        "{" + IDS + ",\"tags\":{\"a\":-}}",
+        "{" + IDS + ",\"tags\":{\"a\":1e}}",
+        "{" + IDS + ",\"tags\":{\"a\":+1}}",
+        "{" + IDS + ",\"tags\":{\"a\":.5}}",
+        "{" + IDS + ",\"tags\":{\"a\":1x}}",
+    };
+    for (String span : spans) assertParity(span, false);
+  }
+
+  @Test public void escapes() {
+    String[] spans = {
+        "{" + IDS + ",\"name\":\"a\\\"b\\\\c\\/d\\be\\ff\\ng\\rh\\ti\"}",
+        "{" + IDS + ",\"name\":\"\\u00e9\\u20AC\\ud83d\\ude00\"}",
+        "{" + IDS + ",\"name\":\"it\\'s\"}",
+        "{" + IDS + ",\"name\":\"line\\\ncontinued\"}",
+        "{" + IDS + ",\"tags\":{\"k\\u0065y\":\"\\\"quoted\\\"\"}}",
+        "{" + IDS + ",\"na\\u006de\":\"escaped field name\"}",
+        "{" + IDS + ",\"name\":\"\u00e9t\u00e9 \u20ac\"}", // not escaped, so UTF-8 in the input
+    };
+    for (String span : spans) assertParity(span, true);
+
+    String[] malformed = {
+        "{" + IDS + ",\"name\":\"\\x\"}",
+        "{" + IDS + ",\"name\":\"\\u00g0\"}",
+        "{" + IDS + ",\"name\":\"\\u00\"}",
+        "{" + IDS + ",\"name\":\"\\",
+    };
+    for (String span : malformed) assertParity(span, false);
+  }
+
+  @Test public void unknownNestedFields() {
+    String[] spans = {
+        "{" + IDS + ",\"extra\":{\"a\":[1,{\"b\":null},\"]\"],\"c\":\"}\",\"d\":{}}}",
+        "{\"extra\":[[],[[true,false,null]],-1.5e-3]," + IDS + "}",
+        "{" + IDS + ",\"localEndpoint\":{\"serviceName\":\"a\",\"extra\":{\"b\":[1]}}}",
+        "{" + IDS + ",\"annotations\":[{\"timestamp\":1,\"value\":\"a\",\"extra\":[{}]}]}",
+        "{" + IDS + ",\"extra\":\"escaped \\\" quote\"}",
+    };
+    for (String span : spans) assertParity(span, true);
+  }
+
+  @Test public void nulls() {
+    String[] spans = {
+        "{" + IDS + ",\"parentId\":null,\"kind\":null,\"name\":null,\"timestamp\":null}",
+        "{" + IDS + ",\"duration\":null,\"localEndpoint\":null,\"remoteEndpoint\":null}",
+        "{" + IDS + ",\"annotations\":null,\"tags\":null,\"debug\":null,\"shared\":null}",
+        "{" + IDS + ",\"localEndpoint\":{\"serviceName\":null,\"ipv4\":\"1.2.3.4\"}}",
+        "{" + IDS + ",\"extra\":null}",
+    };
+    for (String span : spans) assertParity(span, true);
+
+    String[] rejected = {
+        "{\"traceId\":null,\"id\":\"2\"}",
+        "{" + IDS + ",\"tags\":{\"a\":null}}",
+        "{" + IDS + ",\"annotations\":[{\"timestamp\":1,\"value\":null}]}",
+        "{" + IDS + ",\"annotations\":[null]}",
+        "{" + IDS + ",\"localEndpoint\":{\"serviceName\":null}}",
+    };
+    for (String span : rejected) assertParity(span, false);
+  }
+
+  @Test public void malformed() {
+    String[] spans = {
+        "{" + IDS,
+        "{" + IDS + ",}",
+        "{" + IDS + " \"name\":\"a\"}",
+        "{" + IDS + ",\"name\":\"a}",
+        "{" + IDS + ",\"name\"}",
+        "{" + IDS + ",\"debug\":tru}",
+        "{" + IDS + ",\"extra\":nul}",
+        "{" + IDS + ",\"extra\":unquoted}",
+        "{" + IDS + ",\"traceId\":\"0x1\"}",
+        "{" + IDS + ",\"localEndpoint\":{}}",
+        "{" + IDS + ",\"annotations\":[{\"timestamp\":1}]}",
+        "{\"id\":\"2\"}",
+        "[{" + IDS + "}]",
+    };
+    for (String span : spans) assertParity(span, false);
+  }
+
+  @Test public void emptyInput() {
+    assertParity("", true);
+    assertListParity("", true);
+  }
+
+  @Test public void lists() {
+    String[] lists = {
+        "[{" + IDS + "},{\"traceId\":\"3\",\"id\":\"4\",\"tags\":{\"a\":1}}]",
+        " [ { " + IDS + " } ] ",
+        "[]",
+        "[{" + IDS + "}] trailing bytes, ignored like Gson",
+    };
+    for (String list : lists) assertListParity(list, true);
+
+    String[] malformed = {
+        "[{" + IDS + "},]",
+        "[{" + IDS + "}",
+        "[{" + IDS + "}{" + IDS + "}]",
+        "[{" + IDS + "},{\"traceId\":\"3\"",
+        "[1]",
+        "{" + IDS + "}",
+        "[",
+    };
+    for (String list : malformed) assertListParity(list, false);
+  }
+
+  static void assertParity(String json, boolean valid) {
+    byte[] bytes = json.getBytes(JsonCodec.UTF_8);
+    Object expected = gson(json, false), actual;
+    try {
+      actual = JsonCodec.readOne(new V2SpanBytesReader(), bytes);
+    } catch (IllegalArgumentException e) {
+      actual = e;
+    }
+    assertParity(json, valid, expected, actual);
+  }
+
+  static void assertListParity(String json, boolean valid) {
+    Object expected = gson(json, true), actual;
+    try {
+      actual = JsonCodec.readList(new V2SpanBytesReader(), json.getBytes(JsonCodec.UTF_8));
+    } catch (IllegalArgumentException e) {
+      actual = e;
+    }
+    assertParity(json, valid, expected, actual);
+  }
+
+  static Object gson(String json, boolean list) {
+    byte[] bytes = json.getBytes(JsonCodec.UTF_8);
+    try {
+      if (list) return JsonCodec.readList(new V2SpanReader(), bytes);
+      return JsonCodec.readOne(new V2SpanReader(), bytes);
+    } catch (IllegalArgumentException e) {
+      return e;
+    }
+  }
+
+  static void assertParity(String json, boolean valid, Object expected, Object actual) {
+    if (expected instanceof Exception || actual instanceof Exception) {
+      if (expected instanceof Exception && actual instanceof Exception && !valid) return;
+      fail(json + ": gson " + expected + ", bytes reader " + actual);
+    }
+    assertTrue(json + " should be rejected", valid);
+    assertEquals(json, expected, actual);
+    if (!json.isEmpty()) assertTrue(json, expected instanceof Span || expected instanceof List);
+  }
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin2.codec.Encoding;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static zipkin2.reporter.DiskSpill.RECORD_HEADER;
+import static zipkin2.reporter.DiskSpill.SEGMENT_HEADER;
+
+public class DiskSpillTest {
+  File directory;
+  DiskSpill spill;
+
+  @Before public void open() throws IOException {
+    directory = File.createTempFile("spill", "");
+    if (!directory.delete() || !directory.mkdir()) throw new IOException("mkdir " + directory);
+    spill = open(Encoding.JSON);
+  }
+
+  @After public void delete() {
+    spill.close();
+    File[] files = directory.listFiles();
+    if (files != null) for (File file : files) file.delete();
+    directory.delete();
+  }
+
+  @Test public void reopen_replaysSpansAndMessages() throws IOException {
+    assertTrue(spill.appendSpans(spans(0, 3)));
+    assertTrue(spill.appendMessage(ByteBuffer.wrap(span(9, 20)), 2));
+    int sizeInBytes = spill.sizeInBytes();
+
+    reopen();
+
+    assertEquals(sizeInBytes, spill.sizeInBytes());
+    List<DiskSpill.Record> records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(1, records.size()); // a message is never merged with spans
+    assertSpans(records.get(0), 0, 3);
+    spill.remove(1);
+
+    records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(1, records.size());
+    assertNull(records.get(0).encodedSpans);
+    assertEquals(2, records.get(0).count);
+    assertArrayEquals(span(9, 20), records.get(0).message);
+  }
+
+  @Test public void reopen_honoursPersistedReadPosition() throws IOException {
+    for (int i = 0; i < 3; i++) spill.appendSpans(spans(i * 10, 2));
+    spill.remove(2);
+
+    reopen();
+
+    assertEquals(recordBytes(2), spill.sizeInBytes());
+    List<DiskSpill.Record> records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(1, records.size());
+    assertSpans(records.get(0), 20, 2);
+  }
+
+  /** A damaged header is rounded down to a record boundary, as opposed to read mid-record. */
+  @Test public void reopen_readPositionIntoRecord_roundsDown() throws IOException {
+    for (int i = 0; i < 3; i++) spill.appendSpans(spans(i * 10, 2));
+    spill.remove(1);
+    spill.close();
+
+    File segment = onlySegment();
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    try {
+      raf.writeInt(SEGMENT_HEADER + recordBytes(2) + 3);
+    } finally {
+      raf.close();
+    }
+    spill = open(Encoding.JSON);
+
+    List<DiskSpill.Record> records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(2, records.size());
+    assertSpans(records.get(0), 10, 2);
+    assertSpans(records.get(1), 20, 2);
+  }
+
+  /** For example, a process killed while the file was being extended. */
+  @Test public void reopen_truncatedMidRecord_replaysCompleteRecords() throws IOException {
+    for (int i = 0; i < 3; i++) spill.appendSpans(spans(i * 10, 2));
+    spill.close();
+
+    truncate(onlySegment(), SEGMENT_HEADER + recordBytes(2) * 2 + RECORD_HEADER + 1);
+    spill = open(Encoding.JSON);
+
+    assertEquals(recordBytes(2) * 2, spill.sizeInBytes());
+    List<DiskSpill.Record> records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(2, records.size());
+    assertSpans(records.get(0), 0, 2);
+    assertSpans(records.get(1), 10, 2);
+  }
+
+  @Test public void reopen_truncatedBeforeFirstRecord_deletesSegment() throws IOException {
+    spill.appendSpans(spans(0, 2));
+    spill.close();
+
+    File segment = onlySegment();
+    truncate(segment, SEGMENT_HEADER + RECORD_HEADER - 1);
+    spill = open(Encoding.JSON);
+
+    assertFalse(segment.exists());
+    assertEquals(0, spill.sizeInBytes());
+    assertTrue(spill.peek(Integer.MAX_VALUE).isEmpty());
+  }
+
+  @Test public void reopen_fullyReplayed_deletesSegment() throws IOException {
+    spill.appendMessage(ByteBuffer.wrap(span(0, 20)), 1);
+    spill.appendMessage(ByteBuffer.wrap(span(1, 20)), 1);
+    spill.remove(1);
+    spill.close();
+
+    // simulate a crash after the last record was sent, but before the header was written
+    File segment = onlySegment();
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    try {
+      raf.writeInt(SEGMENT_HEADER + (RECORD_HEADER + 20) * 2);
+    } finally {
+      raf.close();
+    }
+    spill = open(Encoding.JSON);
+
+    assertFalse(segment.exists());
+    assertEquals(0, spill.sizeInBytes());
+  }
+
+  /** Recovered segments aren't appended to, so new records go to a segment named after them. */
+  @Test public void reopen_appendsToNewSegment() throws IOException {
+    spill.appendSpans(spans(0, 2));
+    reopen();
+
+    spill.appendSpans(spans(10, 2));
+
+    assertTrue(new File(directory, DiskSpill.PREFIX + 0 + DiskSpill.SUFFIX).exists());
+    assertTrue(new File(directory, DiskSpill.PREFIX + 1 + DiskSpill.SUFFIX).exists());
+    List<DiskSpill.Record> records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(2, records.size());
+    assertSpans(records.get(0), 0, 2);
+    assertSpans(records.get(1), 10, 2);
+  }
+
+  /** Spans are replayed in the encoding they were spilled in, even if the reporter changed. */
+  @Test public void reopen_differentEncoding_keepsRecordEncoding() throws IOException {
+    spill.appendSpans(spans(0, 2));
+    spill.close();
+
+    spill = open(Encoding.PROTO3);
+    spill.appendSpans(spans(10, 2));
+
+    List<DiskSpill.Record> records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(1, records.size()); // not merged, as the encoding differs
+    assertEquals(Encoding.JSON, records.get(0).encoding);
+    spill.remove(1);
+    assertEquals(Encoding.PROTO3, spill.peek(Integer.MAX_VALUE).get(0).encoding);
+  }
+
+  @Test public void peek_skipsCorruptRecord_type() throws IOException {
+    corruptSecondRecord(4, 7);
+  }
+
+  @Test public void peek_skipsCorruptRecord_format() throws IOException {
+    corruptSecondRecord(5, 0xff);
+  }
+
+  @Test public void peek_skipsCorruptRecord_count() throws IOException {
+    corruptSecondRecord(9, 3); // two spans, but the count says three
+  }
+
+  @Test public void peek_skipsCorruptRecord_spanLength() throws IOException {
+    corruptSecondRecord(RECORD_HEADER, 0x7f); // first span length is now huge
+  }
+
+  /**
+   * The record before a corrupt one is still replayed, then the corrupt one is dropped once it is
+   * the oldest, then replay continues with the record after it.
+   */
+  void corruptSecondRecord(int offset, int value) throws IOException {
+    for (int i = 0; i < 3; i++) spill.appendSpans(spans(i * 10, 2));
+    spill.close();
+
+    RandomAccessFile raf = new RandomAccessFile(onlySegment(), "rw");
+    try {
+      raf.seek(SEGMENT_HEADER + recordBytes(2) + offset);
+      raf.write(value);
+    } finally {
+      raf.close();
+    }
+    spill = open(Encoding.JSON);
+
+    List<DiskSpill.Record> records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(1, records.size());
+    assertSpans(records.get(0), 0, 2);
+    spill.remove(1);
+
+    records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(1, records.size());
+    assertSpans(records.get(0), 20, 2);
+    assertEquals(recordBytes(2), spill.sizeInBytes());
+  }
+
+  /** A length which runs past the end of the file stops recovery, as nothing after can be found */
+  @Test public void reopen_corruptRecordLength_dropsTheRest() throws IOException {
+    for (int i = 0; i < 3; i++) spill.appendSpans(spans(i * 10, 2));
+    spill.close();
+
+    RandomAccessFile raf = new RandomAccessFile(onlySegment(), "rw");
+    try {
+      raf.seek(SEGMENT_HEADER + recordBytes(2));
+      raf.writeInt(Integer.MAX_VALUE);
+    } finally {
+      raf.close();
+    }
+    spill = open(Encoding.JSON);
+
+    assertEquals(recordBytes(2), spill.sizeInBytes());
+    List<DiskSpill.Record> records = spill.peek(Integer.MAX_VALUE);
+    assertEquals(1, records.size());
+    assertSpans(records.get(0), 0, 2);
+  }
+
+  @Test public void append_failsWhenSegmentsAreFull() {
+    int perSegment = (1024 - SEGMENT_HEADER - 4) / recordBytes(2);
+    for (int i = 0; i < perSegment * 2; i++) assertTrue(spill.appendSpans(spans(i, 2)));
+
+    assertFalse(spill.appendSpans(spans(0, 2)));
+    assertEquals(2, directory.listFiles().length);
+
+    spill.remove(perSegment); // deletes the first segment
+    assertEquals(1, directory.listFiles().length);
+    assertTrue(spill.appendSpans(spans(0, 2)));
+  }
+
+  @Test public void peek_mergesUpToMaxBytes() {
+    for (int i = 0; i < 3; i++) spill.appendSpans(spans(i * 10, 2));
+
+    assertEquals(2, spill.peek(recordBytes(2) * 2).size());
+    assertEquals(1, spill.peek(1).size()); // at least one
+  }
+
+  /** Uses the constructor, as {@link DiskSpill#open} only makes multiple segments over 8MiB. */
+  DiskSpill open(Encoding encoding) throws IOException {
+    DiskSpill result = new DiskSpill(directory, 1024, 2, encoding, Compression.NONE);
+    result.recover();
+    return result;
+  }
+
+  void reopen() throws IOException {
+    spill.close();
+    spill = open(Encoding.JSON);
+  }
+
+  File onlySegment() {
+    File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    return files[0];
+  }
+
+  static void truncate(File file, int length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  static void assertSpans(DiskSpill.Record record, int firstId, int count) {
+    assertEquals(Encoding.JSON, record.encoding);
+    assertEquals(count, record.count);
+    assertEquals(count, record.encodedSpans.size());
+    for (int i = 0; i < count; i++) {
+      assertArrayEquals(span(firstId + i, 10 + i), record.encodedSpans.get(i));
+    }
+  }
+
+  /** The size on disk of a record made by {@link #spans(int, int)} */
+  static int recordBytes(int count) {
+    int result = RECORD_HEADER;
+    for (int i = 0; i < count; i++) result += 4 + 10 + i;
+    return result;
+  }
+
+  static List<byte[]> spans(int firstId, int count) {
+    List<byte[]> result = new ArrayList<byte[]>();
+    for (int i = 0; i < count; i++) result.add(span(firstId + i, 10 + i));
+    return result;
+  }
+
+  static byte[] span(int id, int size) {
+    byte[] result = new byte[size];
+    Arrays.fill(result, (byte) id);
+    return result;
+  }
+}
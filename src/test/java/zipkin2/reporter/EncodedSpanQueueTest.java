@@ -0,0 +1,202 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedSpanQueueTest {
+  // max capacity is 40 + 4 * 4 = 56 bytes, or four 10-byte records
+  EncodedSpanQueue queue = new EncodedSpanQueue(4, 40, false);
+
+  @Test public void offer_failsWhenFull_count() {
+    for (int i = 0; i < 4; i++) assertTrue(queue.offer(span(i, 1), 1));
+
+    assertFalse(queue.offer(span(4, 1), 1));
+    assertEquals(4, queue.count());
+  }
+
+  @Test public void offer_failsWhenFull_size() {
+    assertTrue(queue.offer(span(0, 30), 30));
+
+    assertFalse(queue.offer(span(1, 11), 11));
+    assertTrue(queue.offer(span(1, 10), 10));
+    assertEquals(40, queue.sizeInBytes());
+  }
+
+  @Test public void drainTo_inOrder() {
+    for (int i = 0; i < 3; i++) queue.offer(span(i, 10), 10);
+
+    List<byte[]> drained = drain(queue, Integer.MAX_VALUE);
+
+    assertEquals(3, drained.size());
+    for (int i = 0; i < 3; i++) assertArrayEquals(span(i, 10), drained.get(i));
+    assertEquals(0, queue.count());
+    assertEquals(0, queue.sizeInBytes());
+  }
+
+  @Test public void drainTo_leavesWhatTheConsumerRejects() {
+    for (int i = 0; i < 3; i++) queue.offer(span(i, 10), 10);
+
+    assertEquals(2, drain(queue, 2).size());
+
+    assertEquals(1, queue.count());
+    assertEquals(10, queue.sizeInBytes());
+    assertArrayEquals(span(2, 10), drain(queue, Integer.MAX_VALUE).get(0));
+  }
+
+  @Test public void drainTo_timesOutWhenEmpty() {
+    assertEquals(0, queue.drainTo(new Collector(1), 1000L));
+  }
+
+  /** A record is split across the end of the ring, and read back intact. */
+  @Test public void ringWraps_body() {
+    for (int i = 0; i < 3; i++) queue.offer(span(i, 10), 10);
+    drain(queue, 2); // frees the first 28 bytes, leaving one record at 28..42
+
+    assertTrue(queue.offer(span(3, 20), 20)); // 42..56, then 0..10
+    assertEquals(10, queue.writePos);
+
+    List<byte[]> drained = drain(queue, Integer.MAX_VALUE);
+    assertArrayEquals(span(2, 10), drained.get(0));
+    assertArrayEquals(span(3, 20), drained.get(1));
+  }
+
+  /** The length prefix is split across the end of the ring. */
+  @Test public void ringWraps_header() {
+    queue.offer(span(0, 10), 10);
+    queue.offer(span(1, 30), 30); // 14..48
+    drain(queue, 1);
+
+    assertTrue(queue.offer(span(2, 3), 3)); // header at 48..52
+    assertTrue(queue.offer(span(3, 1), 1)); // header at 55..56, then 0..3
+    assertEquals(4, queue.writePos);
+
+    List<byte[]> drained = drain(queue, Integer.MAX_VALUE);
+    assertEquals(3, drained.size());
+    assertArrayEquals(span(1, 30), drained.get(0));
+    assertArrayEquals(span(2, 3), drained.get(1));
+    assertArrayEquals(span(3, 1), drained.get(2));
+  }
+
+  /** The ring starts small, and copies wrapped records in order when it grows. */
+  @Test public void grow_whileWrapped() {
+    queue = new EncodedSpanQueue(10000, 1024 * 1024, false);
+    int size = 1000, perRing = EncodedSpanQueue.INITIAL_CAPACITY / (size + 4);
+    for (int i = 0; i < perRing; i++) assertTrue(queue.offer(span(i, size), size));
+    drain(queue, perRing / 2);
+    for (int i = perRing; i < perRing * 2; i++) assertTrue(queue.offer(span(i, size), size));
+
+    assertEquals(2 * EncodedSpanQueue.INITIAL_CAPACITY, queue.ring.capacity());
+    List<byte[]> drained = drain(queue, Integer.MAX_VALUE);
+    assertEquals(perRing * 2 - perRing / 2, drained.size());
+    for (int i = 0; i < drained.size(); i++) {
+      assertArrayEquals(span(perRing / 2 + i, size), drained.get(i));
+    }
+  }
+
+  @Test public void grow_cappedAtMaxCapacity() {
+    queue = new EncodedSpanQueue(2, 200 * 1024, false);
+
+    assertEquals(EncodedSpanQueue.INITIAL_CAPACITY, queue.ring.capacity());
+    assertTrue(queue.offer(span(0, 100 * 1024), 100 * 1024));
+    assertEquals(2 * EncodedSpanQueue.INITIAL_CAPACITY, queue.ring.capacity());
+    assertTrue(queue.offer(span(1, 100 * 1024), 100 * 1024));
+    assertEquals(200 * 1024 + 8, queue.ring.capacity()); // not double
+  }
+
+  @Test public void clear() {
+    for (int i = 0; i < 3; i++) queue.offer(span(i, 10), 10);
+
+    assertEquals(3, queue.clear());
+
+    assertEquals(0, queue.count());
+    assertEquals(0, queue.sizeInBytes());
+    assertTrue(queue.offer(span(0, 40), 40));
+  }
+
+  @Test public void matchesSimpleQueue() {
+    matchesSimpleQueue(false);
+  }
+
+  @Test public void matchesSimpleQueue_direct() {
+    matchesSimpleQueue(true);
+  }
+
+  /** Random offers and partial drains, exercising wrapping and growth, against an array deque. */
+  static void matchesSimpleQueue(boolean direct) {
+    Random random = new Random(1);
+    EncodedSpanQueue queue = new EncodedSpanQueue(500, 100 * 1024, direct);
+    Deque<byte[]> expected = new ArrayDeque<byte[]>();
+    int expectedSize = 0;
+    for (int i = 0; i < 20000; i++) {
+      if (random.nextInt(3) != 0) {
+        int size = random.nextInt(random.nextBoolean() ? 50 : 2000);
+        byte[] next = span(i, size);
+        boolean fits = expected.size() < 500 && expectedSize + size <= 100 * 1024;
+        assertEquals(fits, queue.offer(next, size));
+        if (fits) {
+          expected.add(next);
+          expectedSize += size;
+        }
+      } else {
+        for (byte[] next : drain(queue, random.nextInt(20))) {
+          assertArrayEquals(expected.poll(), next);
+          expectedSize -= next.length;
+        }
+      }
+      assertEquals(expected.size(), queue.count());
+      assertEquals(expectedSize, queue.sizeInBytes());
+    }
+  }
+
+  static List<byte[]> drain(EncodedSpanQueue queue, int max) {
+    Collector collector = new Collector(max);
+    queue.drainTo(collector, 0L);
+    return collector.spans;
+  }
+
+  static byte[] span(int id, int size) {
+    byte[] result = new byte[size];
+    Arrays.fill(result, (byte) id);
+    if (size > 0) result[size - 1] = (byte) (id >>> 8); // distinguishes ids 256 apart
+    return result;
+  }
+
+  static final class Collector implements SpanWithSizeConsumer<byte[]> {
+    final int max;
+    final List<byte[]> spans = new ArrayList<byte[]>();
+
+    Collector(int max) {
+      this.max = max;
+    }
+
+    @Override public boolean offer(byte[] next, int nextSizeInBytes) {
+      if (spans.size() == max) return false;
+      assertEquals(next.length, nextSizeInBytes);
+      spans.add(next);
+      return true;
+    }
+  }
+}
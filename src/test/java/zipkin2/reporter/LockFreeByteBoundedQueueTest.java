@@ -0,0 +1,207 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LockFreeByteBoundedQueueTest {
+  // the ring is rounded up to 4 slots, but only 3 may be used
+  LockFreeByteBoundedQueue<Integer> queue = new LockFreeByteBoundedQueue<Integer>(3, 30);
+
+  @Test public void offer_failsWhenFull_count() {
+    for (int i = 0; i < 3; i++) assertTrue(queue.offer(i, 1));
+
+    assertFalse(queue.offer(3, 1));
+    assertEquals(3, queue.count());
+    assertEquals(3, queue.sizeInBytes());
+  }
+
+  @Test public void offer_failsWhenFull_size() {
+    assertTrue(queue.offer(0, 25));
+
+    assertFalse(queue.offer(1, 6));
+    assertTrue(queue.offer(1, 5));
+    assertEquals(2, queue.count());
+    assertEquals(30, queue.sizeInBytes());
+  }
+
+  @Test public void offer_rejectedLeavesNoReservation() {
+    assertFalse(queue.offer(0, 31));
+    assertFalse(queue.offer(0, -1));
+
+    assertEquals(0, queue.count());
+    assertEquals(0, queue.sizeInBytes());
+  }
+
+  @Test(expected = NullPointerException.class) public void offer_null() {
+    queue.offer(null, 1);
+  }
+
+  @Test public void drainTo_inOrder() {
+    for (int i = 0; i < 3; i++) queue.offer(i, i + 1);
+
+    Collector collector = new Collector(Integer.MAX_VALUE);
+    assertEquals(3, queue.drainTo(collector, 0L));
+
+    assertEquals(Arrays.asList(0, 1, 2), collector.spans);
+    assertEquals(Arrays.asList(1, 2, 3), collector.sizes);
+    assertEquals(0, queue.count());
+    assertEquals(0, queue.sizeInBytes());
+  }
+
+  @Test public void drainTo_leavesWhatTheConsumerRejects() {
+    for (int i = 0; i < 3; i++) queue.offer(i, 10);
+
+    assertEquals(2, queue.drainTo(new Collector(2), 0L));
+
+    assertEquals(1, queue.count());
+    assertEquals(10, queue.sizeInBytes());
+    assertTrue(queue.offer(3, 10)); // capacity was released
+
+    Collector collector = new Collector(Integer.MAX_VALUE);
+    queue.drainTo(collector, 0L);
+    assertEquals(Arrays.asList(2, 3), collector.spans);
+  }
+
+  @Test public void drainTo_timesOutWhenEmpty() {
+    long start = System.nanoTime();
+    assertEquals(0, queue.drainTo(new Collector(1), TimeUnit.MILLISECONDS.toNanos(10)));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  /** A parked consumer is woken by a producer, as opposed to waiting out the timeout. */
+  @Test public void drainTo_wokenByOffer() throws Exception {
+    final CountDownLatch draining = new CountDownLatch(1);
+    final AtomicReference<Long> elapsed = new AtomicReference<Long>();
+    Thread consumer = new Thread() {
+      @Override public void run() {
+        draining.countDown();
+        long start = System.nanoTime();
+        queue.drainTo(new Collector(1), TimeUnit.SECONDS.toNanos(10));
+        elapsed.set(System.nanoTime() - start);
+      }
+    };
+    consumer.start();
+    draining.await();
+    Thread.sleep(50); // let the consumer park
+
+    queue.offer(1, 1);
+    consumer.join(5000L);
+
+    assertTrue(elapsed.get() < TimeUnit.SECONDS.toNanos(5));
+  }
+
+  /** The producer and consumer indexes run past the ring many times over. */
+  @Test public void wrapsAround() {
+    int next = 0, expected = 0;
+    for (int round = 0; round < 1000; round++) {
+      while (queue.offer(next, 1)) next++;
+      Collector collector = new Collector(1 + round % 3);
+      queue.drainTo(collector, 0L);
+      for (Integer span : collector.spans) assertEquals(expected++, (int) span);
+    }
+    assertTrue(queue.producerIndex.get() > 100 * queue.elements.length());
+    assertEquals(next - expected, queue.count());
+  }
+
+  @Test public void clear() {
+    for (int i = 0; i < 3; i++) queue.offer(i, 10);
+
+    assertEquals(3, queue.clear());
+
+    assertEquals(0, queue.count());
+    assertEquals(0, queue.sizeInBytes());
+    for (int i = 0; i < 3; i++) assertTrue(queue.offer(10 + i, 10));
+
+    Collector collector = new Collector(Integer.MAX_VALUE);
+    queue.drainTo(collector, 0L);
+    assertEquals(Arrays.asList(10, 11, 12), collector.spans);
+  }
+
+  /**
+   * Producers retry until their spans fit, while one consumer drains. Each producer's spans must
+   * arrive once and in order, and the bounds must never be exceeded.
+   */
+  @Test public void concurrentProducers() throws Exception {
+    final int producers = 4, perProducer = 100000;
+    final LockFreeByteBoundedQueue<Integer> queue =
+        new LockFreeByteBoundedQueue<Integer>(100, 100 * 8);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      threads.add(new Thread() {
+        @Override public void run() {
+          for (int i = 0; i < perProducer; i++) {
+            int size = 1 + i % 16; // on average 8.5 bytes, so both bounds are hit
+            while (!queue.offer(producer * perProducer + i, size)) Thread.yield();
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) thread.start();
+
+    final int[] nextByProducer = new int[producers];
+    int received = 0;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (received < producers * perProducer && System.nanoTime() < deadline) {
+      int count = queue.count(), sizeInBytes = queue.sizeInBytes();
+      assertTrue("count " + count, count <= 100);
+      assertTrue("sizeInBytes " + sizeInBytes, sizeInBytes <= 800);
+
+      received += queue.drainTo(new SpanWithSizeConsumer<Integer>() {
+        @Override public boolean offer(Integer next, int nextSizeInBytes) {
+          int producer = next / perProducer, i = next % perProducer;
+          if (i != nextByProducer[producer]++ || nextSizeInBytes != 1 + i % 16) {
+            failure.compareAndSet(null, new AssertionError("out of order: " + next));
+          }
+          return true;
+        }
+      }, TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    for (Thread thread : threads) thread.join(5000L);
+
+    if (failure.get() != null) throw new AssertionError(failure.get());
+    assertEquals(producers * perProducer, received);
+    assertEquals(0, queue.count());
+    assertEquals(0, queue.sizeInBytes());
+  }
+
+  static final class Collector implements SpanWithSizeConsumer<Integer> {
+    final int max;
+    final List<Integer> spans = new ArrayList<Integer>();
+    final List<Integer> sizes = new ArrayList<Integer>();
+
+    Collector(int max) {
+      this.max = max;
+    }
+
+    @Override public boolean offer(Integer next, int nextSizeInBytes) {
+      if (spans.size() == max) return false;
+      spans.add(next);
+      sizes.add(nextSizeInBytes);
+      return true;
+    }
+  }
+}
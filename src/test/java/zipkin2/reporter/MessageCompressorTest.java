@@ -0,0 +1,274 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCompressorTest {
+  static final Compression[] COMPRESSIONS = {Compression.GZIP, Compression.DEFLATE};
+
+  InMemoryReporterMetrics metrics = new InMemoryReporterMetrics();
+
+  @Test public void compress_roundTrip() throws IOException {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(spans(100));
+    for (Compression compression : COMPRESSIONS) {
+      for (boolean direct : new boolean[] {false, true}) {
+        MessageCompressor compressor = new MessageCompressor(compression, 64 * 1024, metrics);
+        ByteBuffer out = allocate(64 * 1024 + 3, direct);
+        out.position(3);
+
+        assertTrue(compressor.compress(ByteBuffer.wrap(message), out));
+
+        out.flip().position(3);
+        assertArrayEquals(message, decompress(compression, out));
+      }
+    }
+  }
+
+  @Test public void compress_empty() throws IOException {
+    for (Compression compression : COMPRESSIONS) {
+      MessageCompressor compressor = new MessageCompressor(compression, 1024, metrics);
+      ByteBuffer out = ByteBuffer.allocate(1024);
+
+      assertTrue(compressor.compress(ByteBuffer.allocate(0), out));
+
+      out.flip();
+      assertEquals(0, decompress(compression, out).length);
+    }
+  }
+
+  /** Deflaters are pooled, so the second message must not see state from the first */
+  @Test public void compress_reusesDeflater() throws IOException {
+    for (Compression compression : COMPRESSIONS) {
+      MessageCompressor compressor = new MessageCompressor(compression, 64 * 1024, metrics);
+      for (int i = 1; i <= 3; i++) {
+        byte[] message = SpanBytesEncoder.PROTO3.encodeList(spans(i * 10));
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+
+        assertTrue(compressor.compress(ByteBuffer.wrap(message), out));
+
+        out.flip();
+        assertArrayEquals(message, decompress(compression, out));
+        assertEquals(1, compressor.pool.size());
+      }
+    }
+  }
+
+  /** The compressed message doesn't fit, so the ratio is raised to reduce the next estimate */
+  @Test public void compress_doesntFit() {
+    byte[] random = new byte[4096];
+    new Random(42).nextBytes(random); // doesn't compress
+    for (Compression compression : COMPRESSIONS) {
+      for (boolean direct : new boolean[] {false, true}) {
+        MessageCompressor compressor = new MessageCompressor(compression, 1024, metrics);
+        compressor.ratio = 0.1f;
+
+        assertFalse(compressor.compress(ByteBuffer.wrap(random), allocate(4096, direct)));
+        assertTrue(compressor.ratio == 0.25f); // at least max bytes over the input size
+        assertEquals(1, compressor.pool.size()); // released regardless
+      }
+    }
+  }
+
+  @Test public void compress_updatesRatioAndMetrics() {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(spans(100));
+    for (Compression compression : COMPRESSIONS) {
+      metrics = new InMemoryReporterMetrics();
+      MessageCompressor compressor = new MessageCompressor(compression, 64 * 1024, metrics);
+      int estimateBefore = compressor.estimateSizeInBytes(message.length);
+      ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+
+      assertTrue(compressor.compress(ByteBuffer.wrap(message), out));
+
+      assertEquals(message.length, metrics.uncompressedMessageBytes());
+      assertEquals(out.position(), metrics.messageBytes());
+      assertTrue(compressor.ratio < 1f);
+      assertTrue(compressor.estimateSizeInBytes(message.length) < estimateBefore);
+    }
+  }
+
+  @Test public void estimateSizeInBytes() {
+    MessageCompressor gzip = new MessageCompressor(Compression.GZIP, 1024, metrics);
+    MessageCompressor deflate = new MessageCompressor(Compression.DEFLATE, 1024, metrics);
+
+    // until a message is compressed, the estimate is the padded input and the framing
+    assertEquals(18 + 110, gzip.estimateSizeInBytes(100));
+    assertEquals(6 + 110, deflate.estimateSizeInBytes(100));
+    assertEquals(Integer.MAX_VALUE, gzip.estimateSizeInBytes(Integer.MAX_VALUE));
+  }
+
+  @Test public void maxUncompressedBytes() {
+    assertEquals(8 * 1024,
+        new MessageCompressor(Compression.GZIP, 1024, metrics).maxUncompressedBytes);
+    assertEquals(MessageCompressor.MAX_UNCOMPRESSED_BYTES,
+        new MessageCompressor(Compression.GZIP, 5 * 1024 * 1024, metrics).maxUncompressedBytes);
+    assertEquals(Integer.MAX_VALUE,
+        new MessageCompressor(Compression.GZIP, Integer.MAX_VALUE, metrics).maxUncompressedBytes);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void none_unsupported() {
+    new MessageCompressor(Compression.NONE, 1024, metrics);
+  }
+
+  /**
+   * When the sender asks for compression, the reporter compresses each message, and bundles more
+   * spans than would fit in {@link Sender#messageMaxBytes()} uncompressed.
+   */
+  @Test public void reporter_compressesWhenSenderAsks() throws IOException {
+    List<Span> spans = spans(200);
+    for (Compression compression : Compression.values()) {
+      for (Encoding encoding : Encoding.values()) {
+        for (boolean direct : new boolean[] {false, true}) {
+          String message = compression + " " + encoding + " direct=" + direct;
+          RecordingSender sender = new RecordingSender(encoding, compression, 4096);
+          SpanBytesEncoder encoder =
+              encoding == Encoding.JSON ? SpanBytesEncoder.JSON_V2 : SpanBytesEncoder.PROTO3;
+          AsyncReporter<Span> reporter = AsyncReporter.builder(sender)
+              .messageTimeout(0, TimeUnit.MILLISECONDS)
+              .directBuffers(direct)
+              .build(encoder);
+          for (Span span : spans) reporter.report(span);
+          int before;
+          do { // each flush sends at most one message
+            before = sender.spans.size();
+            reporter.flush();
+          } while (sender.spans.size() > before);
+          reporter.close();
+
+          assertEquals(message, spans, sender.spans);
+          for (byte[] sent : sender.messages) {
+            assertTrue(message, sent.length <= 4096);
+          }
+          if (compression != Compression.NONE) {
+            assertTrue(message, sender.largestUncompressed > 4096);
+          }
+        }
+      }
+    }
+  }
+
+  static List<Span> spans(int count) {
+    List<Span> result = new ArrayList<Span>();
+    for (int i = 1; i <= count; i++) {
+      result.add(Span.newBuilder()
+          .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+          .id(Long.toHexString(i))
+          .name("get /api/" + (i % 7))
+          .kind(Span.Kind.SERVER)
+          .timestamp(1472470996199000L + i * 1000L)
+          .duration(207000L + i)
+          .putTag("http.path", "/api/" + (i % 7))
+          .build());
+    }
+    return result;
+  }
+
+  static ByteBuffer allocate(int capacity, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  static byte[] decompress(Compression compression, ByteBuffer compressed) throws IOException {
+    byte[] bytes = new byte[compressed.remaining()];
+    compressed.get(bytes);
+    return decompress(compression, bytes);
+  }
+
+  static byte[] decompress(Compression compression, byte[] bytes) throws IOException {
+    if (compression == Compression.NONE) return bytes;
+    InputStream in = new ByteArrayInputStream(bytes);
+    in = compression == Compression.GZIP ? new GZIPInputStream(in) : new InflaterInputStream(in);
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int read; (read = in.read(buffer)) != -1; ) result.write(buffer, 0, read);
+    return result.toByteArray();
+  }
+
+  /** Decompresses and decodes each message as it is sent */
+  static final class RecordingSender extends Sender {
+    final Encoding encoding;
+    final Compression compression;
+    final int messageMaxBytes;
+    final List<byte[]> messages = new ArrayList<byte[]>();
+    final List<Span> spans = new ArrayList<Span>();
+    int largestUncompressed;
+
+    RecordingSender(Encoding encoding, Compression compression, int messageMaxBytes) {
+      this.encoding = encoding;
+      this.compression = compression;
+      this.messageMaxBytes = messageMaxBytes;
+    }
+
+    @Override public Encoding encoding() {
+      return encoding;
+    }
+
+    @Override public int messageMaxBytes() {
+      return messageMaxBytes;
+    }
+
+    @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+      return encoding.listSizeInBytes(encodedSpans);
+    }
+
+    @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+      throw new AssertionError("expected sendMessage");
+    }
+
+    @Override public boolean supportsMessages() {
+      return true;
+    }
+
+    @Override public Compression compression() {
+      return compression;
+    }
+
+    @Override public Call<Void> sendMessage(byte[] message, int offset, int length) {
+      byte[] sent = Arrays.copyOfRange(message, offset, offset + length);
+      messages.add(sent);
+      try {
+        byte[] uncompressed = decompress(compression, sent);
+        largestUncompressed = Math.max(largestUncompressed, uncompressed.length);
+        List<Span> decoded = encoding == Encoding.JSON
+            ? SpanBytesDecoder.JSON_V2.decodeList(uncompressed)
+            : SpanBytesDecoder.PROTO3.decodeList(uncompressed);
+        spans.addAll(decoded);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      return Call.create(null);
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static zipkin2.reporter.SpanPriority.HIGH;
+import static zipkin2.reporter.SpanPriority.ROUTINE;
+
+public class PrioritySpanQueueTest {
+  InMemoryReporterMetrics metrics = new InMemoryReporterMetrics();
+  // routine spans can use 6 of the 8 slots, or 30 of the 40 bytes
+  PrioritySpanQueue<Integer> queue = new PrioritySpanQueue<Integer>(8, 40, metrics);
+
+  @Test public void routine_limitedToThreeQuarters_count() {
+    for (int i = 0; i < 6; i++) assertTrue(queue.offer(i, 1, ROUTINE));
+
+    assertFalse(queue.offer(6, 1, ROUTINE));
+    assertEquals(6, queue.count());
+  }
+
+  @Test public void routine_limitedToThreeQuarters_size() {
+    for (int i = 0; i < 3; i++) assertTrue(queue.offer(i, 10, ROUTINE));
+
+    assertFalse(queue.offer(3, 1, ROUTINE));
+    assertEquals(30, queue.sizeInBytes());
+  }
+
+  /** A routine span that fits its budget is still rejected if high priority spans fill the queue */
+  @Test public void routine_limitedByWholeQueue() {
+    assertTrue(queue.offer(0, 35, HIGH));
+
+    assertFalse(queue.offer(1, 10, ROUTINE));
+    assertTrue(queue.offer(1, 5, ROUTINE));
+  }
+
+  @Test public void offer_defaultsToRoutine() {
+    for (int i = 0; i < 6; i++) assertTrue(queue.offer(i, 1));
+
+    assertFalse(queue.offer(6, 1));
+    assertTrue(queue.offer(6, 1, HIGH));
+  }
+
+  @Test public void high_usesWholeQueue() {
+    for (int i = 0; i < 8; i++) assertTrue(queue.offer(i, 1, HIGH));
+
+    assertFalse(queue.offer(8, 1, HIGH));
+    assertEquals(8, queue.count());
+    assertEquals(0, metrics.spansDropped());
+  }
+
+  @Test public void high_evictsOldestRoutine_count() {
+    for (int i = 0; i < 6; i++) assertTrue(queue.offer(i, 1, ROUTINE));
+    assertTrue(queue.offer(100, 1, HIGH));
+    assertTrue(queue.offer(101, 1, HIGH));
+    assertEquals(0, metrics.spansDropped());
+
+    assertTrue(queue.offer(102, 1, HIGH)); // the queue is full, so routine span 0 is evicted
+
+    assertEquals(8, queue.count());
+    assertEquals(Arrays.asList(100, 101, 102, 1, 2, 3, 4, 5), drain(Integer.MAX_VALUE));
+    assertEquals(1, metrics.spansDropped());
+    assertEquals(1, metrics.spansDropped(ROUTINE));
+    assertEquals(0, metrics.spansDropped(HIGH));
+  }
+
+  @Test public void high_evictsOldestRoutine_size() {
+    for (int i = 0; i < 3; i++) assertTrue(queue.offer(i, 10, ROUTINE));
+
+    assertTrue(queue.offer(100, 30, HIGH)); // needs two routine spans evicted
+
+    assertEquals(40, queue.sizeInBytes());
+    assertEquals(Arrays.asList(100, 2), drain(Integer.MAX_VALUE));
+    assertEquals(2, metrics.spansDropped());
+    assertEquals(2, metrics.spansDropped(ROUTINE));
+  }
+
+  /** Routine spans aren't evicted for a high priority span that could never fit */
+  @Test public void high_tooLarge_evictsNothing() {
+    assertTrue(queue.offer(0, 10, ROUTINE));
+
+    assertFalse(queue.offer(100, 41, HIGH));
+
+    assertEquals(1, queue.count());
+    assertEquals(0, metrics.spansDropped());
+  }
+
+  /** High priority spans are never evicted, even by each other */
+  @Test public void high_fullOfHigh() {
+    for (int i = 0; i < 4; i++) assertTrue(queue.offer(i, 10, HIGH));
+
+    assertFalse(queue.offer(4, 10, HIGH));
+    assertEquals(Arrays.asList(0, 1, 2, 3), drain(Integer.MAX_VALUE));
+    assertEquals(0, metrics.spansDropped());
+  }
+
+  @Test public void drainTo_highFirst() {
+    assertTrue(queue.offer(0, 1, ROUTINE));
+    assertTrue(queue.offer(100, 1, HIGH));
+    assertTrue(queue.offer(1, 1, ROUTINE));
+    assertTrue(queue.offer(101, 1, HIGH));
+
+    assertEquals(Arrays.asList(100, 101, 0, 1), drain(Integer.MAX_VALUE));
+    assertEquals(0, queue.count());
+    assertEquals(0, queue.sizeInBytes());
+  }
+
+  /** When the consumer is full before all high priority spans are drained, routine ones wait */
+  @Test public void drainTo_routineWaitsForHigh() {
+    assertTrue(queue.offer(0, 1, ROUTINE));
+    assertTrue(queue.offer(100, 1, HIGH));
+    assertTrue(queue.offer(101, 1, HIGH));
+
+    assertEquals(Arrays.asList(100), drain(1));
+    assertEquals(Arrays.asList(101), drain(1));
+    assertEquals(Arrays.asList(0), drain(1));
+  }
+
+  /** Slots freed by draining are reused, as each priority is a ring */
+  @Test public void ringsWrapAround() {
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 6; i++) assertTrue(queue.offer(round * 10 + i, 1, ROUTINE));
+      for (int i = 0; i < 2; i++) assertTrue(queue.offer(round * 10 + i, 1, HIGH));
+      assertEquals(8, drain(Integer.MAX_VALUE).size());
+    }
+    assertEquals(0, queue.count());
+  }
+
+  @Test public void drainTo_emptyTimesOut() {
+    assertEquals(0, queue.drainTo(new SpanWithSizeConsumer<Integer>() {
+      @Override public boolean offer(Integer next, int nextSizeInBytes) {
+        throw new AssertionError();
+      }
+    }, 1000L));
+  }
+
+  @Test public void clear() {
+    assertTrue(queue.offer(0, 10, ROUTINE));
+    assertTrue(queue.offer(100, 10, HIGH));
+
+    assertEquals(2, queue.clear());
+
+    assertEquals(0, queue.count());
+    assertEquals(0, queue.sizeInBytes());
+    for (int i = 0; i < 3; i++) assertTrue(queue.offer(i, 10, ROUTINE)); // budget is restored
+  }
+
+  @Test public void classify() {
+    Span routine = Span.newBuilder().traceId("1").parentId("1").id("2").build();
+    Span childServer = routine.toBuilder().kind(Span.Kind.SERVER).build();
+
+    assertEquals(ROUTINE, SpanPriority.classify(routine));
+    assertEquals(ROUTINE, SpanPriority.classify(new byte[0]));
+    assertEquals(ROUTINE, SpanPriority.classify(childServer));
+    assertEquals(HIGH, SpanPriority.classify(routine.toBuilder().debug(true).build()));
+    assertEquals(HIGH, SpanPriority.classify(routine.toBuilder().putTag("error", "").build()));
+    assertEquals(HIGH, SpanPriority.classify(childServer.toBuilder().parentId(null).build()));
+  }
+
+  List<Integer> drain(final int max) {
+    final List<Integer> result = new ArrayList<Integer>();
+    queue.drainTo(new SpanWithSizeConsumer<Integer>() {
+      @Override public boolean offer(Integer next, int nextSizeInBytes) {
+        if (result.size() == max) return false;
+        return result.add(next);
+      }
+    }, 0L);
+    return result;
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2016-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter;
+
+import java.util.Random;
+import org.junit.Test;
+import zipkin2.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceShedderTest {
+  // fullness above 0.5 raises the level, and below 0.25 lowers it
+  TraceShedder shedder = new TraceShedder(0.5f);
+
+  /** Buckets derive from String.hashCode, which is specified, so are the same in any process */
+  @Test public void bucket_stable() {
+    assertEquals(0, TraceShedder.bucket("0000000000000001"));
+    assertEquals(10, TraceShedder.bucket("0000000000000002"));
+    assertEquals(4, TraceShedder.bucket("463ac35c9f6413ad"));
+    assertEquals(12, TraceShedder.bucket("7180c278b62e8f6a216a2aea45d08fc9"));
+  }
+
+  @Test public void bucket_spreadsTraceIds() {
+    int[] counts = new int[TraceShedder.LEVELS];
+    Random random = new Random(42);
+    for (int i = 0; i < 16000; i++) {
+      counts[TraceShedder.bucket(traceId(random.nextLong()))]++;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      assertTrue("bucket " + i + ": " + counts[i], counts[i] > 800 && counts[i] < 1200);
+    }
+  }
+
+  @Test public void update_upTwoDownOne() {
+    update(6, 10, 0, 100); // by count
+    assertEquals(2, shedder.level);
+    update(0, 10, 60, 100); // by size
+    assertEquals(4, shedder.level);
+
+    update(3, 10, 30, 100); // between the water marks
+    assertEquals(4, shedder.level);
+    update(5, 10, 50, 100); // at the high-water mark
+    assertEquals(4, shedder.level);
+
+    update(2, 10, 20, 100);
+    assertEquals(3, shedder.level);
+    update(0, 10, 0, 100);
+    assertEquals(2, shedder.level);
+    update(2, 10, 0, 100);
+    assertEquals(1, shedder.level);
+    update(0, 10, 0, 100);
+    assertEquals(0, shedder.level);
+    update(0, 10, 0, 100);
+    assertEquals(0, shedder.level);
+  }
+
+  /** The level changes at most once per interval, so that most traces see one level */
+  @Test public void update_rateLimited() {
+    update(10, 10, 0, 100);
+    assertEquals(2, shedder.level);
+
+    shedder.update(10, 10, 0, 100); // too soon
+    assertEquals(2, shedder.level);
+  }
+
+  /** At least one bucket is always kept, so some traces survive sustained overload */
+  @Test public void update_levelCappedBelowLevels() {
+    for (int i = 0; i < TraceShedder.LEVELS; i++) update(10, 10, 100, 100);
+
+    assertEquals(TraceShedder.LEVELS - 1, shedder.level);
+    assertFalse(shedder.shed(span(traceIdInBucket(TraceShedder.LEVELS - 1))));
+    assertTrue(shedder.shed(span(traceIdInBucket(TraceShedder.LEVELS - 2))));
+  }
+
+  @Test public void shed_wholeTraces() {
+    shedder.level = 4;
+    String shed = traceIdInBucket(3), kept = traceIdInBucket(4);
+
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(shedder.shed(span(shed).toBuilder().id(Long.toHexString(i)).build()));
+      assertFalse(shedder.shed(span(kept).toBuilder().id(Long.toHexString(i)).build()));
+    }
+  }
+
+  @Test public void shed_neverDebugOrUnknownTypes() {
+    shedder.level = TraceShedder.LEVELS - 1;
+    String traceId = traceIdInBucket(0);
+
+    assertTrue(shedder.shed(span(traceId)));
+    assertFalse(shedder.shed(span(traceId).toBuilder().debug(true).build()));
+    assertFalse(shedder.shed(new byte[0]));
+  }
+
+  @Test public void shed_nothingAtLevelZero() {
+    assertFalse(shedder.shed(span(traceIdInBucket(0))));
+  }
+
+  /** Bypasses the rate limit, as if the adjust interval had elapsed */
+  void update(int count, int maxCount, int sizeInBytes, int maxBytes) {
+    shedder.lastAdjustNanoTime = System.nanoTime() - TraceShedder.ADJUST_INTERVAL_NANOS;
+    shedder.update(count, maxCount, sizeInBytes, maxBytes);
+  }
+
+  static String traceIdInBucket(int bucket) {
+    for (long i = 1; ; i++) {
+      String traceId = traceId(i);
+      if (TraceShedder.bucket(traceId) == bucket) return traceId;
+    }
+  }
+
+  static String traceId(long id) {
+    return span(Long.toHexString(id)).traceId(); // normalizes to 16 characters
+  }
+
+  static Span span(String traceId) {
+    return Span.newBuilder().traceId(traceId).id("1").build();
+  }
+}